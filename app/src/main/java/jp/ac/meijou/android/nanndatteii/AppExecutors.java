@@ -0,0 +1,52 @@
+package jp.ac.meijou.android.nanndatteii;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * アプリ全体で共有するバックグラウンドスレッド
+ * 画面ごとにスレッドプールを作らないようにここから取得する
+ */
+public final class AppExecutors {
+    private static final int BACKGROUND_THREADS = 2;
+    private static final int FILE_IO_THREADS = 3;
+
+    private static final ExecutorService BACKGROUND = Executors.newFixedThreadPool(BACKGROUND_THREADS);
+    private static final ExecutorService FILE_IO = Executors.newFixedThreadPool(FILE_IO_THREADS);
+    private static final ExecutorService LONG_JOBS = Executors.newSingleThreadExecutor();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor();
+
+    private AppExecutors() {
+    }
+
+    /**
+     * DB・ファイルI/O用の共有スレッドプール
+     */
+    public static ExecutorService background() {
+        return BACKGROUND;
+    }
+
+    /**
+     * 大量のファイルコピー用（一括取り込みなど）
+     * DB・ファイルI/O用のプールを長時間ふさがないよう分けている。DBの書き込みはここで行わない
+     */
+    public static ExecutorService fileIo() {
+        return FILE_IO;
+    }
+
+    /**
+     * 長時間かかるジョブ用（一括取り込み・書庫の復元など、1件ずつ順に実行）
+     * 実行中もbackground()とジョブキューの順番待ちをふさがないよう分けている
+     */
+    public static ExecutorService longJobs() {
+        return LONG_JOBS;
+    }
+
+    /**
+     * 遅延実行用（実処理はbackground()に投げること）
+     */
+    public static ScheduledExecutorService scheduler() {
+        return SCHEDULER;
+    }
+}
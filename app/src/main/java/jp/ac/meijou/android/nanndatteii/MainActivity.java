@@ -1,30 +1,104 @@
 package jp.ac.meijou.android.nanndatteii;
 
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.Toast;
 
 import com.google.android.material.bottomnavigation.BottomNavigationView;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.core.content.IntentCompat;
 import androidx.core.splashscreen.SplashScreen;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.navigation.NavController;
 import androidx.navigation.Navigation;
 import androidx.navigation.ui.AppBarConfiguration;
 import androidx.navigation.ui.NavigationUI;
 
+import jp.ac.meijou.android.nanndatteii.backup.ArchiveFormat;
+import jp.ac.meijou.android.nanndatteii.backup.ExportResult;
+import jp.ac.meijou.android.nanndatteii.backup.LibraryExporter;
+import jp.ac.meijou.android.nanndatteii.backup.LibraryRestorer;
+import jp.ac.meijou.android.nanndatteii.backup.RestoreResult;
 import jp.ac.meijou.android.nanndatteii.databinding.ActivityMainBinding;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+import jp.ac.meijou.android.nanndatteii.diagnostics.QueryMetrics;
+import jp.ac.meijou.android.nanndatteii.diagnostics.StartupTrace;
+import jp.ac.meijou.android.nanndatteii.diagnostics.StorageMetrics;
+import jp.ac.meijou.android.nanndatteii.importer.ImportEngine;
+import jp.ac.meijou.android.nanndatteii.importer.ImportProgress;
+import jp.ac.meijou.android.nanndatteii.jobs.JobQueue;
+import jp.ac.meijou.android.nanndatteii.jobs.OrphanCleanupJob;
+import jp.ac.meijou.android.nanndatteii.jobs.SampleFileJob;
+import jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer;
+import jp.ac.meijou.android.nanndatteii.repository.ItemCache;
+import jp.ac.meijou.android.nanndatteii.ui.dashboard.DashboardSnapshot;
+import org.json.JSONObject;
+
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
+
+    // スプラッシュをDBの準備待ちで延ばす上限
+    private static final long MAX_SPLASH_WAIT_MS = 500;
 
     private ActivityMainBinding binding;
+    private volatile boolean databaseReady;
+    private JobQueue jobQueue;
+    private ImportProgress importProgress;
+
+    // フォルダを選んで取り込む
+    private final ActivityResultLauncher<Uri> pickImportTree = registerForActivityResult(
+        new ActivityResultContracts.OpenDocumentTree(), this::onImportTreePicked);
+
+    // ライブラリの書き出し先を選ぶ（全体・差分）
+    private final ActivityResultLauncher<String> createFullArchive = registerForActivityResult(
+        new ActivityResultContracts.CreateDocument(ArchiveFormat.MIME_TYPE), uri -> exportLibrary(uri, false));
+    private final ActivityResultLauncher<String> createIncrementalArchive = registerForActivityResult(
+        new ActivityResultContracts.CreateDocument(ArchiveFormat.MIME_TYPE), uri -> exportLibrary(uri, true));
+
+    // 復元する書庫を選ぶ（application/x-tarを知らないプロバイダもあるので全種類から選べるようにする）
+    private final ActivityResultLauncher<String[]> openArchive = registerForActivityResult(
+        new ActivityResultContracts.OpenDocument(), this::restoreLibrary);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        SplashScreen.installSplashScreen(this);
+        SplashScreen splashScreen = SplashScreen.installSplashScreen(this);
         super.onCreate(savedInstanceState);
 
+        // スプラッシュ表示中にDBを裏で開く（待つのは最大MAX_SPLASH_WAIT_MSまで）
+        long splashDeadline = SystemClock.uptimeMillis() + MAX_SPLASH_WAIT_MS;
+        AppDatabase.warmUp(this, () -> {
+            StartupTrace.markDatabaseReady();
+            databaseReady = true;
+        });
+        splashScreen.setKeepOnScreenCondition(
+            () -> !databaseReady && SystemClock.uptimeMillis() < splashDeadline);
+        DashboardSnapshot.preload(this);
+
         binding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
 
@@ -36,29 +110,259 @@ public class MainActivity extends AppCompatActivity {
         NavigationUI.setupActionBarWithNavController(this, navController, appBarConfiguration);
         NavigationUI.setupWithNavController(binding.navView, navController);
 
-        // [必須] ファイル保存処理を呼び出す
-        saveSampleFile();
+        // 起動に不要な処理は最初のフレームの後に回す
+        StartupTrace.observeFirstFrame(this, this::onFirstFrame);
+
+        ImportEngine.getInstance(this).getProgress().observe(this, this::showImportProgress);
+        if (savedInstanceState == null) {
+            handleShareIntent(getIntent());
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        handleShareIntent(intent);
+    }
+
+    /**
+     * 他のアプリから共有されたファイルを取り込む
+     */
+    private void handleShareIntent(Intent intent) {
+        if (intent == null) {
+            return;
+        }
+        List<Uri> uris = new ArrayList<>();
+        if (Intent.ACTION_SEND.equals(intent.getAction())) {
+            Uri uri = IntentCompat.getParcelableExtra(intent, Intent.EXTRA_STREAM, Uri.class);
+            if (uri != null) {
+                uris.add(uri);
+            }
+        } else if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+            List<Uri> shared = IntentCompat.getParcelableArrayListExtra(intent, Intent.EXTRA_STREAM, Uri.class);
+            if (shared != null) {
+                uris.addAll(shared);
+            }
+        } else {
+            return;
+        }
+
+        if (uris.isEmpty()) {
+            Toast.makeText(this, "取り込めるファイルがありません", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ImportEngine.getInstance(this).importUris(uris, Collections.emptyList());
+    }
+
+    private void onImportTreePicked(Uri treeUri) {
+        if (treeUri == null) {
+            return;
+        }
+        // 中断しても再開できるよう読み取り権限を保持する（取り込み後に解放される）
+        getContentResolver().takePersistableUriPermission(treeUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        ImportEngine.getInstance(this).importTree(treeUri, Collections.emptyList());
+    }
+
+    /**
+     * ライブラリを選ばれた書類に書き出す
+     * @param incremental 前回の書き出し以降に更新された分だけにするか
+     */
+    private void exportLibrary(Uri uri, boolean incremental) {
+        if (uri == null) {
+            return;
+        }
+        Toast.makeText(this, "書き出しています…", Toast.LENGTH_SHORT).show();
+        LibraryExporter exporter = new LibraryExporter(this);
+        AppExecutors.fileIo().execute(() -> {
+            try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "w");
+                 FileOutputStream outputStream = new FileOutputStream(pfd.getFileDescriptor());
+                 FileChannel channel = outputStream.getChannel()) {
+                ExportResult result = incremental
+                    ? exporter.exportIncremental(channel) : exporter.exportFull(channel);
+                Log.i(TAG, "exportLibrary: " + result);
+                runOnUiThread(() -> Toast.makeText(this,
+                    "書き出しました（" + result + "）", Toast.LENGTH_LONG).show());
+            } catch (Exception e) {
+                Log.e(TAG, "exportLibrary: 書き出しに失敗", e);
+                runOnUiThread(() -> Toast.makeText(this,
+                    "書き出しに失敗しました: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    /**
+     * 選ばれた書庫をライブラリに取り込む
+     * 全体を1つの書き込みトランザクションで行うので、長時間かかるジョブ用のスレッドで実行する
+     * （画面が閉じられても続くよう、Activityではなくアプリのコンテキストだけを使う）
+     */
+    private void restoreLibrary(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        Toast.makeText(this, "復元しています…", Toast.LENGTH_SHORT).show();
+        Context appContext = getApplicationContext();
+        Executor mainExecutor = ContextCompat.getMainExecutor(appContext);
+        LibraryRestorer restorer = new LibraryRestorer(appContext);
+        AppExecutors.longJobs().execute(() -> {
+            try (InputStream inputStream = appContext.getContentResolver().openInputStream(uri)) {
+                if (inputStream == null) {
+                    throw new FileNotFoundException(uri.toString());
+                }
+                RestoreResult result = restorer.restore(inputStream);
+                Log.i(TAG, "restoreLibrary: " + result);
+                mainExecutor.execute(() -> Toast.makeText(appContext,
+                    "復元しました（" + result + "）", Toast.LENGTH_LONG).show());
+            } catch (Exception e) {
+                Log.e(TAG, "restoreLibrary: 復元に失敗", e);
+                mainExecutor.execute(() -> Toast.makeText(appContext,
+                    "復元に失敗しました: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
     }
 
-    private void saveSampleFile() {
-        // [必須] フォルダ名・タグ名・日時をstrings.xmlから取得
-        String photoFolderName = getString(R.string.photo_folder_name);
-        String tagName = getString(R.string.Tags);
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String fileName = tagName + "_" + timeStamp + ".txt";
-
-        File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-        File photoDir = new File(downloadsDir, photoFolderName);
-        if (!photoDir.exists()) photoDir.mkdirs();
-        File saveFile = new File(photoDir, fileName);
-
-        // [必須] ファイル保存処理例（テキスト書き込み）
-        try {
-            java.io.FileWriter writer = new java.io.FileWriter(saveFile);
-            writer.write("サンプルデータを書き込みます。\n");
-            writer.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * 取り込みの進捗をアクションバーのサブタイトルに表示
+     */
+    private void showImportProgress(ImportProgress progress) {
+        ImportProgress previous = importProgress;
+        importProgress = progress;
+        invalidateOptionsMenu();
+        if (getSupportActionBar() == null) {
+            return;
         }
+        if (ImportProgress.STATE_SCANNING.equals(progress.getState())) {
+            getSupportActionBar().setSubtitle("フォルダを確認中: " + progress.getTotal() + "件");
+        } else if (progress.isActive()) {
+            getSupportActionBar().setSubtitle("取り込み中: "
+                + (progress.getDone() + progress.getFailed()) + "/" + progress.getTotal());
+        } else {
+            getSupportActionBar().setSubtitle(null);
+            // 画面の再生成で終わった取り込みが再通知された場合は知らせない
+            if (previous == null || !previous.isActive()) {
+                return;
+            }
+            String result = ImportProgress.STATE_CANCELLED.equals(progress.getState()) ? "取り込みを中止しました" : "取り込みました";
+            Toast.makeText(this, result + ": " + progress.getDone() + "件"
+                + (progress.getFailed() > 0 ? "（失敗 " + progress.getFailed() + "件）" : ""), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * 最初のフレーム描画後の処理
+     */
+    private void onFirstFrame() {
+        jobQueue = JobQueue.getInstance(this);
+
+        // [必須] ファイル保存処理を呼び出す（起動中に書き込まないようアイドル時に実行）
+        jobQueue.enqueue(SampleFileJob.TYPE, null,
+            SampleFileJob.TYPE, Job.PRIORITY_LOW, true);
+
+        // 参照されていないファイルの掃除をアイドル時に予約
+        jobQueue.enqueue(OrphanCleanupJob.TYPE, null,
+            OrphanCleanupJob.TYPE, Job.PRIORITY_LOW, true);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (jobQueue != null) {
+            jobQueue.setIdle(false);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (jobQueue != null) {
+            jobQueue.setIdle(true);
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.diagnostics_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.menu_query_metrics).setChecked(QueryMetrics.isEnabled());
+        menu.findItem(R.id.menu_import_cancel).setVisible(importProgress != null && importProgress.isActive());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.menu_import_tree) {
+            pickImportTree.launch(null);
+            return true;
+        } else if (id == R.id.menu_export_full || id == R.id.menu_export_incremental) {
+            boolean incremental = id == R.id.menu_export_incremental;
+            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+            String name = "library_" + timeStamp + (incremental ? "_diff" : "") + ".tar";
+            (incremental ? createIncrementalArchive : createFullArchive).launch(name);
+            return true;
+        } else if (id == R.id.menu_restore) {
+            openArchive.launch(new String[]{ArchiveFormat.MIME_TYPE, "*/*"});
+            return true;
+        } else if (id == R.id.menu_import_cancel) {
+            if (importProgress != null && importProgress.isActive()) {
+                ImportEngine.getInstance(this).cancel(importProgress.getSessionId());
+            }
+            return true;
+        } else if (id == R.id.menu_query_metrics) {
+            // 計測のON/OFF（OFFにしても集計結果は残る）
+            QueryMetrics.setEnabled(!QueryMetrics.isEnabled());
+            item.setChecked(QueryMetrics.isEnabled());
+            return true;
+        } else if (id == R.id.menu_diagnostics_dump) {
+            new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_diagnostics_dump)
+                .setMessage(StartupTrace.dump() + "\n" + QueryMetrics.dump() + "\n" + StorageMetrics.dump()
+                    + "\n" + InvalidationCoalescer.getInstance(this).dump()
+                    + "\n" + ItemCache.getInstance(this).dump())
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton("リセット", (dialog, which) -> {
+                    QueryMetrics.reset();
+                    StorageMetrics.reset();
+                    InvalidationCoalescer.getInstance(this).reset();
+                    ItemCache.getInstance(this).reset();
+                })
+                .show();
+            return true;
+        } else if (id == R.id.menu_diagnostics_export) {
+            exportDiagnostics();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * 診断情報をJSONでアプリ専用の外部ストレージに書き出す
+     */
+    private void exportDiagnostics() {
+        File dir = getExternalFilesDir("diagnostics");
+        AppExecutors.background().execute(() -> {
+            try {
+                String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+                JSONObject json = QueryMetrics.toJson();
+                json.put("storage", StorageMetrics.toJson());
+                json.put("startup", StartupTrace.toJson());
+                json.put("invalidation", InvalidationCoalescer.getInstance(this).toJson());
+                json.put("item_cache", ItemCache.getInstance(this).toJson());
+                File output = new File(dir, "diagnostics_" + timeStamp + ".json");
+                try (java.io.Writer writer = new java.io.OutputStreamWriter(
+                        new java.io.FileOutputStream(output), StandardCharsets.UTF_8)) {
+                    writer.write(json.toString(2));
+                }
+                runOnUiThread(() -> Toast.makeText(this,
+                    "書き出しました: " + output.getAbsolutePath(), Toast.LENGTH_LONG).show());
+            } catch (Exception e) {
+                Log.e(TAG, "exportDiagnostics: 書き出しに失敗", e);
+                runOnUiThread(() -> Toast.makeText(this,
+                    "書き出しに失敗しました: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package jp.ac.meijou.android.nanndatteii;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+
+/**
+ * タイムゾーンが変わったら、日ごとのアイテム数を新しいタイムゾーンの日付で数え直す
+ * （ACTION_TIMEZONE_CHANGEDは暗黙ブロードキャストの制限の対象外なのでマニフェストで受け取る）
+ */
+public class TimeZoneChangedReceiver extends BroadcastReceiver {
+    private static final String TAG = "TimeZoneChangedReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_TIMEZONE_CHANGED.equals(intent.getAction())) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        PendingResult result = goAsync();
+        AppExecutors.background().execute(() -> {
+            try {
+                AppDatabase.rebuildTimelineIfZoneChanged(appContext);
+            } catch (Exception e) {
+                // 次にDBを開いた時にも確かめるので、ここでは記録だけ
+                Log.e(TAG, "onReceive: 数え直せませんでした", e);
+            } finally {
+                result.finish();
+            }
+        });
+    }
+}
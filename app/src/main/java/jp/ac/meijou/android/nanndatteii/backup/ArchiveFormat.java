@@ -0,0 +1,50 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import java.util.Locale;
+
+/**
+ * ライブラリの書庫の構成（tar形式）
+ *
+ * <pre>
+ * manifest.json          形式・全体/差分・起点のupdated_at
+ * tags/000001.ndjson     タグ（1行1件、id順）
+ * items/000001.ndjson    アイテム（1行1件、ファイル・タグIDを含む）
+ * blobs/images/xxx.jpg   直前のitemsページが参照するファイルの中身（保存されたままのバイト列）
+ * ...                    以降 items と blobs の繰り返し
+ * summary.json           件数とウォーターマーク（最後まで書けた印）
+ * </pre>
+ *
+ * 同じアイテムが2回出てきた場合（書き出し中に更新された）は後のものが新しい。
+ * タグ・アイテム・ファイルのuid（同期で端末をまたいで行を指す）も書く。古い書庫にはない
+ */
+public final class ArchiveFormat {
+    public static final int VERSION = 1;
+    public static final String MIME_TYPE = "application/x-tar";
+
+    public static final String MANIFEST = "manifest.json";
+    public static final String SUMMARY = "summary.json";
+    public static final String TAGS_DIR = "tags/";
+    public static final String ITEMS_DIR = "items/";
+    public static final String BLOBS_DIR = "blobs/";
+
+    public static final String KIND_FULL = "full";
+    public static final String KIND_INCREMENTAL = "incremental";
+
+    private ArchiveFormat() {
+    }
+
+    /**
+     * ページのエントリ名（例: items/000001.ndjson）
+     */
+    static String pageName(String dir, int page) {
+        return String.format(Locale.US, "%s%06d.ndjson", dir, page);
+    }
+
+    /**
+     * ファイルの中身のエントリ名
+     * @param filePath ItemFileの相対パス
+     */
+    static String blobName(String filePath) {
+        return BLOBS_DIR + filePath;
+    }
+}
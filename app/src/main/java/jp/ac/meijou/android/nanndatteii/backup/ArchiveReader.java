@@ -0,0 +1,211 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 書庫（ustar形式のtar）を先頭から順に読む
+ *
+ * next()でエントリを1つ進め、中身はopenEntry()のストリームで読む。
+ * 読み残した分は次のnext()で読み飛ばす
+ */
+final class ArchiveReader {
+    // マニフェストなどメモリに読むエントリの上限
+    private static final int MAX_IN_MEMORY_SIZE = 64 * 1024 * 1024;
+
+    private final InputStream in;
+    private final byte[] header = new byte[ArchiveWriter.BLOCK_SIZE];
+    private final byte[] skipBuffer = new byte[8192];
+    private long remaining;
+    private long padding;
+
+    ArchiveReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 次のエントリへ進む
+     * @return エントリ名（終端ならnull）
+     */
+    String next() throws IOException {
+        skip(remaining + padding);
+        remaining = 0;
+        padding = 0;
+
+        if (!readBlock()) {
+            return null;
+        }
+        if (isZeroBlock()) {
+            // 終端（空ブロック2つ）
+            return null;
+        }
+        verifyChecksum();
+
+        String name = field(0, 100);
+        String prefix = field(345, 155);
+        if (!prefix.isEmpty()) {
+            name = prefix + "/" + name;
+        }
+        remaining = parseOctal(124, 12);
+        padding = (ArchiveWriter.BLOCK_SIZE - remaining % ArchiveWriter.BLOCK_SIZE) % ArchiveWriter.BLOCK_SIZE;
+        return name;
+    }
+
+    /**
+     * 現在のエントリの大きさ
+     */
+    long size() {
+        return remaining;
+    }
+
+    /**
+     * 現在のエントリの中身（閉じても書庫のストリームは閉じない）
+     */
+    InputStream openEntry() {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("書庫が途中で終わっています");
+                }
+                remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int count = in.read(b, off, (int) Math.min(len, remaining));
+                if (count < 0) {
+                    throw new EOFException("書庫が途中で終わっています");
+                }
+                remaining -= count;
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = in.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(in.available(), remaining);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+                // 書庫のストリームは閉じない
+            }
+        };
+    }
+
+    /**
+     * 現在のエントリの中身をすべて読む（マニフェスト用）
+     */
+    byte[] readEntry() throws IOException {
+        if (remaining > MAX_IN_MEMORY_SIZE) {
+            throw new IOException("エントリが大きすぎます: " + remaining);
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) remaining);
+        InputStream entry = openEntry();
+        byte[] chunk = new byte[8192];
+        int count;
+        while ((count = entry.read(chunk)) != -1) {
+            buffer.write(chunk, 0, count);
+        }
+        return buffer.toByteArray();
+    }
+
+    private boolean readBlock() throws IOException {
+        int offset = 0;
+        while (offset < header.length) {
+            int count = in.read(header, offset, header.length - offset);
+            if (count < 0) {
+                if (offset == 0) {
+                    // 終端ブロックのない書庫も受け付ける
+                    return false;
+                }
+                throw new EOFException("書庫が途中で終わっています");
+            }
+            offset += count;
+        }
+        return true;
+    }
+
+    private boolean isZeroBlock() {
+        for (byte b : header) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void verifyChecksum() throws IOException {
+        long expected = parseOctal(148, 8);
+        long actual = 0;
+        for (int i = 0; i < header.length; i++) {
+            actual += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+        }
+        if (expected != actual) {
+            throw new IOException("書庫のヘッダーが壊れています");
+        }
+    }
+
+    private String field(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private long parseOctal(int offset, int length) throws IOException {
+        long value = 0;
+        boolean started = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                // 前後の空白・NULは読み飛ばす
+                if (started) {
+                    break;
+                }
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("書庫のヘッダーが壊れています");
+            }
+            value = (value << 3) + (b - '0');
+            started = true;
+        }
+        return value;
+    }
+
+    private void skip(long count) throws IOException {
+        while (count > 0) {
+            int read = in.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, count));
+            if (read < 0) {
+                throw new EOFException("書庫が途中で終わっています");
+            }
+            count -= read;
+        }
+    }
+}
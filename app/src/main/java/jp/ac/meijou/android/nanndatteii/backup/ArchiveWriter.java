@@ -0,0 +1,174 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 書庫（ustar形式のtar）を先頭から順に書き出す
+ *
+ * ファイルの中身はFileChannel.transferToで出力先へ直接転送するので、
+ * ファイルの大きさに関わらずメモリはヘッダー1ブロック分しか使わない
+ */
+final class ArchiveWriter implements Closeable {
+    static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    // サイズ欄（8進数11桁）に入る上限
+    private static final long MAX_ENTRY_SIZE = 077777777777L;
+
+    private final WritableByteChannel out;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+    private final ByteBuffer zeros = ByteBuffer.allocate(BLOCK_SIZE);
+    private long position;
+
+    ArchiveWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    /**
+     * メモリ上のデータを1エントリとして書く（マニフェストなど小さいもの用）
+     */
+    void writeEntry(String name, byte[] data, long modifiedAt) throws IOException {
+        writeHeader(name, data.length, modifiedAt);
+        writeFully(ByteBuffer.wrap(data));
+        pad(data.length);
+    }
+
+    /**
+     * ファイルの中身を1エントリとしてチャネル転送で書く
+     * @return 書いたバイト数
+     */
+    long writeFile(String name, File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file);
+             FileChannel source = inputStream.getChannel()) {
+            long size = source.size();
+            writeHeader(name, size, file.lastModified());
+            long transferred = 0;
+            while (transferred < size) {
+                long count = source.transferTo(transferred, size - transferred, out);
+                if (count <= 0) {
+                    // 書き出し中に切り詰められた（ヘッダーのサイズと合わなくなる）
+                    throw new IOException("書き出し中にファイルが変更されました: " + name);
+                }
+                transferred += count;
+            }
+            position += size;
+            pad(size);
+            return size;
+        }
+    }
+
+    /**
+     * これまでに書いたバイト数
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * 終端（空ブロック2つ）を書く。出力先のチャネルは閉じない
+     */
+    @Override
+    public void close() throws IOException {
+        writeZeros(BLOCK_SIZE * 2);
+    }
+
+    private void writeHeader(String name, long size, long modifiedAt) throws IOException {
+        if (size > MAX_ENTRY_SIZE) {
+            throw new IOException("エントリが大きすぎます: " + name);
+        }
+        byte[] block = header.array();
+        Arrays.fill(block, (byte) 0);
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length <= NAME_LENGTH) {
+            System.arraycopy(nameBytes, 0, block, 0, nameBytes.length);
+        } else {
+            // 長い名前は "/" で prefix と name に分ける
+            int split = findPrefixSplit(nameBytes);
+            if (split < 0) {
+                throw new IOException("エントリ名が長すぎます: " + name);
+            }
+            System.arraycopy(nameBytes, split + 1, block, 0, nameBytes.length - split - 1);
+            System.arraycopy(nameBytes, 0, block, 345, split);
+        }
+        putOctal(block, 100, 8, 0644);
+        putOctal(block, 108, 8, 0);
+        putOctal(block, 116, 8, 0);
+        putOctal(block, 124, 12, size);
+        putOctal(block, 136, 12, Math.max(0, modifiedAt / 1000));
+        block[156] = '0';
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, block, 257, 6);
+        block[263] = '0';
+        block[264] = '0';
+
+        // チェックサムは欄を空白で埋めた状態で計算する
+        Arrays.fill(block, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : block) {
+            checksum += b & 0xff;
+        }
+        putOctal(block, 148, 7, checksum);
+        block[155] = ' ';
+
+        header.clear();
+        writeFully(header);
+    }
+
+    private static int findPrefixSplit(byte[] nameBytes) {
+        for (int i = nameBytes.length - 1; i > 0; i--) {
+            if (nameBytes[i] == '/') {
+                if (nameBytes.length - i - 1 > NAME_LENGTH) {
+                    return -1;
+                }
+                if (i <= PREFIX_LENGTH) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 0埋めの8進数とNUL終端（lengthは終端を含む）
+     */
+    private static void putOctal(byte[] block, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            block[offset + i] = (byte) (index >= 0 ? octal.charAt(index) : '0');
+        }
+        block[offset + digits] = 0;
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            writeZeros(BLOCK_SIZE - remainder);
+        }
+    }
+
+    private void writeZeros(int length) throws IOException {
+        while (length > 0) {
+            zeros.clear();
+            zeros.limit(Math.min(length, BLOCK_SIZE));
+            length -= zeros.limit();
+            writeFully(zeros);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import java.util.Locale;
+
+/**
+ * 書き出しの結果（不変）
+ */
+public class ExportResult {
+    private final boolean incremental;
+    private final int itemCount;
+    private final int fileCount;
+    private final int missingFileCount;
+    private final long blobBytes;
+    private final long archiveBytes;
+    private final long elapsedNanos;
+    private final long watermark;
+
+    ExportResult(boolean incremental, int itemCount, int fileCount, int missingFileCount,
+                 long blobBytes, long archiveBytes, long elapsedNanos, long watermark) {
+        this.incremental = incremental;
+        this.itemCount = itemCount;
+        this.fileCount = fileCount;
+        this.missingFileCount = missingFileCount;
+        this.blobBytes = blobBytes;
+        this.archiveBytes = archiveBytes;
+        this.elapsedNanos = elapsedNanos;
+        this.watermark = watermark;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * 中身を書き出したファイルの数
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * DBにはあるが保存先に見つからなかったファイルの数
+     */
+    public int getMissingFileCount() {
+        return missingFileCount;
+    }
+
+    public long getBlobBytes() {
+        return blobBytes;
+    }
+
+    public long getArchiveBytes() {
+        return archiveBytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * 書き出したアイテムのupdated_atの最大値（次の差分の起点）
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * 書庫の書き込み速度（MB/s）
+     */
+    public double megabytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : archiveBytes / (1024.0 * 1024.0) / (elapsedNanos / 1_000_000_000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: アイテム %d件 / ファイル %d件（見つからない %d件） / %.1f MB / %.1f MB/s",
+            incremental ? "差分" : "全体", itemCount, fileCount, missingFileCount,
+            archiveBytes / (1024.0 * 1024.0), megabytesPerSecond());
+    }
+}
@@ -0,0 +1,258 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.KeysetIterator;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.db.relation.ItemWithFilesAndTags;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+
+/**
+ * ライブラリ（アイテム・ファイル・タグ）を1つの書庫に書き出す
+ *
+ * アイテムはupdated_at・id順にページ単位で読み、ページごとにマニフェストと
+ * ファイルの中身を続けて書くので、メモリ使用量はライブラリの大きさによらない。
+ * 差分の書き出しは前回書き出したupdated_atの最大値（ウォーターマーク）より後に
+ * 更新されたアイテムだけを含む（削除されたアイテムは含まれない）
+ */
+public class LibraryExporter {
+    private static final String PREFS_NAME = "library_export";
+    private static final String KEY_WATERMARK = "watermark";
+
+    // 1ページのアイテム数（ファイル・タグの読み込みのIN句にも収まる大きさ）
+    private static final int ITEMS_PER_PAGE = 200;
+    private static final int TAGS_PER_PAGE = 1000;
+
+    private final AppDatabase db;
+    private final FileStorageManager storageManager;
+    private final SharedPreferences prefs;
+
+    public LibraryExporter(Context context) {
+        db = AppDatabase.getInstance(context);
+        storageManager = new FileStorageManager(context);
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * すべてのアイテムを書き出す（完了後、ウォーターマークを更新する）
+     * @param out 出力先（閉じない）
+     */
+    @WorkerThread
+    public ExportResult exportFull(WritableByteChannel out) throws IOException {
+        return export(out, false);
+    }
+
+    /**
+     * 前回の書き出し以降に更新されたアイテムだけを書き出す
+     * 一度も書き出していなければすべてを書き出す
+     * @param out 出力先（閉じない）
+     */
+    @WorkerThread
+    public ExportResult exportIncremental(WritableByteChannel out) throws IOException {
+        return export(out, true);
+    }
+
+    /**
+     * 前回の書き出しのウォーターマーク（書き出していなければnull）
+     */
+    public Long getWatermark() {
+        return prefs.contains(KEY_WATERMARK) ? prefs.getLong(KEY_WATERMARK, 0) : null;
+    }
+
+    private synchronized ExportResult export(WritableByteChannel out, boolean incremental) throws IOException {
+        long start = System.nanoTime();
+        Long previous = getWatermark();
+        long since = incremental && previous != null ? previous : Long.MIN_VALUE;
+
+        ArchiveWriter writer = new ArchiveWriter(out);
+        long now = System.currentTimeMillis();
+        try {
+            JSONObject manifest = new JSONObject();
+            manifest.put("format", ArchiveFormat.VERSION);
+            manifest.put("kind", incremental ? ArchiveFormat.KIND_INCREMENTAL : ArchiveFormat.KIND_FULL);
+            manifest.put("since", since == Long.MIN_VALUE ? JSONObject.NULL : since);
+            manifest.put("created_at", now);
+            writer.writeEntry(ArchiveFormat.MANIFEST, manifest.toString().getBytes(StandardCharsets.UTF_8), now);
+
+            // タグは件数が少なく、差分でもIDの対応付けに要るので毎回すべて書く
+            writeTags(writer, now);
+
+            // 書き出し中に更新されたアイテムは後でもう一度出てくる（復元側は後のものを残す）
+            ItemPages pages = new ItemPages();
+            List<Item> items = new ArrayList<>(ITEMS_PER_PAGE);
+            try (KeysetIterator<Item> iterator = db.itemDao().iterateItemsUpdatedAfter(since, ITEMS_PER_PAGE)) {
+                while (iterator.hasNext()) {
+                    items.add(iterator.next());
+                    if (items.size() == ITEMS_PER_PAGE) {
+                        writeItemPage(writer, pages, items, now);
+                        items.clear();
+                    }
+                }
+            }
+            if (!items.isEmpty()) {
+                writeItemPage(writer, pages, items, now);
+            }
+
+            long watermark = pages.maxUpdatedAt != Long.MIN_VALUE ? pages.maxUpdatedAt
+                : previous != null ? previous : 0;
+            JSONObject summary = new JSONObject();
+            summary.put("items", pages.itemCount);
+            summary.put("files", pages.fileCount);
+            summary.put("missing_files", pages.missingFileCount);
+            summary.put("blob_bytes", pages.blobBytes);
+            summary.put("watermark", watermark);
+            writer.writeEntry(ArchiveFormat.SUMMARY, summary.toString().getBytes(StandardCharsets.UTF_8), now);
+            writer.close();
+
+            // 最後まで書けた時だけ進める（失敗した書き出しの分を次の差分から落とさない）
+            prefs.edit().putLong(KEY_WATERMARK, watermark).apply();
+            return new ExportResult(incremental, pages.itemCount, pages.fileCount, pages.missingFileCount,
+                pages.blobBytes, writer.getPosition(), System.nanoTime() - start, watermark);
+        } catch (JSONException e) {
+            throw new IOException("マニフェストを作成できません", e);
+        }
+    }
+
+    private void writeTags(ArchiveWriter writer, long now) throws IOException, JSONException {
+        int page = 0;
+        long afterId = 0;
+        List<Tag> tags;
+        while (!(tags = db.tagDao().getTagsAfterSync(afterId, TAGS_PER_PAGE)).isEmpty()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (Tag tag : tags) {
+                JSONObject json = new JSONObject();
+                json.put("id", tag.getId());
+                json.put("uid", orNull(tag.getUid()));
+                json.put("name", tag.getName());
+                json.put("color", orNull(tag.getColor()));
+                json.put("created_at", tag.getCreatedAt());
+                json.put("parent_id", orNull(tag.getParentId()));
+                appendLine(buffer, json);
+                afterId = tag.getId();
+            }
+            writer.writeEntry(ArchiveFormat.pageName(ArchiveFormat.TAGS_DIR, ++page), buffer.toByteArray(), now);
+        }
+    }
+
+    /**
+     * 1ページ分のマニフェストを書き、続けて参照するファイルの中身を書く
+     */
+    private void writeItemPage(ArchiveWriter writer, ItemPages pages, List<Item> items, long now)
+            throws IOException, JSONException {
+        List<Long> itemIds = new ArrayList<>(items.size());
+        for (Item item : items) {
+            itemIds.add(item.getId());
+        }
+        Map<Long, ItemWithFilesAndTags> details = new HashMap<>();
+        for (ItemWithFilesAndTags detail : db.itemDao().getItemsWithFilesAndTagsSync(itemIds)) {
+            details.put(detail.item.getId(), detail);
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        List<ItemFile> blobs = new ArrayList<>();
+        for (Item listed : items) {
+            ItemWithFilesAndTags detail = details.get(listed.getId());
+            if (detail == null) {
+                // ページを読んだ後に削除された
+                continue;
+            }
+            Item item = detail.item;
+            JSONObject json = new JSONObject();
+            json.put("id", item.getId());
+            json.put("uid", orNull(item.getUid()));
+            json.put("title", orNull(item.getTitle()));
+            json.put("description", orNull(item.getDescription()));
+            json.put("created_at", item.getCreatedAt());
+            json.put("updated_at", item.getUpdatedAt());
+            json.put("last_viewed", orNull(item.getLastViewed()));
+
+            JSONArray tagIds = new JSONArray();
+            for (Tag tag : detail.tags) {
+                tagIds.put(tag.getId());
+            }
+            json.put("tag_ids", tagIds);
+
+            JSONArray files = new JSONArray();
+            for (ItemFile file : detail.files) {
+                JSONObject fileJson = new JSONObject();
+                fileJson.put("id", file.getId());
+                fileJson.put("uid", orNull(file.getUid()));
+                fileJson.put("path", file.getFilePath());
+                fileJson.put("name", file.getFileName());
+                fileJson.put("type", file.getFileType());
+                fileJson.put("size", file.getFileSize());
+                fileJson.put("original_size", file.getOriginalSize());
+                fileJson.put("mime_type", file.getMimeType());
+                fileJson.put("codec", file.getCodec());
+                fileJson.put("created_at", file.getCreatedAt());
+                if (storageManager.getFile(file.getFilePath()).isFile()) {
+                    fileJson.put("blob", ArchiveFormat.blobName(file.getFilePath()));
+                    blobs.add(file);
+                } else {
+                    pages.missingFileCount++;
+                }
+                files.put(fileJson);
+            }
+            json.put("files", files);
+            appendLine(buffer, json);
+
+            pages.itemCount++;
+            pages.maxUpdatedAt = Math.max(pages.maxUpdatedAt, item.getUpdatedAt());
+        }
+
+        pages.page++;
+        writer.writeEntry(ArchiveFormat.pageName(ArchiveFormat.ITEMS_DIR, pages.page), buffer.toByteArray(), now);
+
+        for (ItemFile file : blobs) {
+            File source = storageManager.getFile(file.getFilePath());
+            if (!source.isFile()) {
+                // マニフェストを書いた後に削除された（復元側では見つからないファイルとして扱われる）
+                pages.missingFileCount++;
+                continue;
+            }
+            pages.blobBytes += writer.writeFile(ArchiveFormat.blobName(file.getFilePath()), source);
+            pages.fileCount++;
+        }
+    }
+
+    private static void appendLine(ByteArrayOutputStream buffer, JSONObject json) throws IOException {
+        buffer.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        buffer.write('\n');
+    }
+
+    private static Object orNull(Object value) {
+        return value != null ? value : JSONObject.NULL;
+    }
+
+    /**
+     * 書いたページの集計
+     */
+    private static class ItemPages {
+        long maxUpdatedAt = Long.MIN_VALUE;
+        int page;
+        int itemCount;
+        int fileCount;
+        int missingFileCount;
+        long blobBytes;
+    }
+}
@@ -0,0 +1,618 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import android.content.Context;
+import android.util.LongSparseArray;
+
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.BulkLoad;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemTag;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer;
+import jp.ac.meijou.android.nanndatteii.repository.ItemCache;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+import jp.ac.meijou.android.nanndatteii.storage.SavedFile;
+import jp.ac.meijou.android.nanndatteii.storage.TextCodec;
+
+/**
+ * LibraryExporterで書き出した書庫をライブラリに取り込む
+ *
+ * 書庫は先頭から1回だけ読み、ファイルの中身はFileStorageManagerで保存し直す。
+ * 全体を1つのトランザクションで入れ、その間は副次インデックスと行ごとのトリガーを外しておく（BulkLoad）。
+ * 終わるまで他の書き込みは待たされ、外した状態は他からは見えない。
+ * 行はITEMS_PER_TRANSACTION件ずつまとめて入れる（入れ子のトランザクション）。
+ *
+ * IDは振り直し、uidは書庫のものを引き継ぐ（同期で別のアイテムとして扱われないように）。
+ * uidが同じアイテムが端末にあれば新しく追加せずに上書きするので、
+ * 同じ書庫を2回戻しても、全体→差分の順に戻しても重複しない。
+ * タグはuidか名前が同じものがあればそれを使う。
+ * 同じアイテムが書庫に2回出てきた場合は後のものだけを残す
+ */
+public class LibraryRestorer {
+    // 1トランザクションで入れるアイテム数（ファイル・タグ付けを含めて数千行）
+    private static final int ITEMS_PER_TRANSACTION = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Context context;
+    private final AppDatabase db;
+    private final FileStorageManager storageManager;
+    private final InvalidationCoalescer coalescer;
+    private final ItemCache itemCache;
+
+    public LibraryRestorer(Context context) {
+        this.context = context.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        storageManager = new FileStorageManager(context);
+        coalescer = InvalidationCoalescer.getInstance(context);
+        itemCache = ItemCache.getInstance(context);
+    }
+
+    /**
+     * 書庫を取り込む
+     * 途中で失敗した場合は何も入らない（保存し直したファイルの中身は孤立ファイルの掃除で消える）
+     * @param in 書庫（閉じない）
+     */
+    @WorkerThread
+    public synchronized RestoreResult restore(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        int itemsBefore = db.itemDao().countItemsSync();
+        int filesBefore = db.fileDao().countFilesSync();
+
+        Load load = new Load();
+        ArchiveReader reader = new ArchiveReader(new BufferedInputStream(in, BUFFER_SIZE));
+        JSONObject summary;
+        // 一覧の読み直しは最後に1回だけにする
+        coalescer.beginBulkWrite();
+        try {
+            // 全体を1トランザクションにして、終わるまで他の書き込みを待たせる
+            // （インデックスとトリガーを外した状態で他の書き込みが走らないようにする）
+            summary = db.runInTransaction(() -> {
+                try {
+                    return readArchive(load, reader, start);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            try {
+                if (load.bulkLoading) {
+                    // 失敗時はロールバックでインデックスとトリガーが戻っているので、保存した定義を片付けるだけ
+                    BulkLoad.end(context, db);
+                }
+            } finally {
+                // 置き換えたアイテムや付け替えたタグは数が多いのでまとめて外す
+                itemCache.clear();
+                coalescer.endBulkWrite();
+            }
+        }
+
+        for (String path : load.unusedPaths) {
+            storageManager.deleteFile(path);
+        }
+
+        int items = load.insertedItems;
+        int files = load.insertedFiles - load.replacedFiles;
+        // 書庫に書かれた件数と、DBに実際に増えた件数の両方を確かめる
+        boolean countsVerified = summary != null
+            && summary.optInt("items", -1) == load.itemLines
+            && summary.optInt("files", -1) == load.savedBlobs
+            && db.itemDao().countItemsSync() - itemsBefore == items
+            && db.fileDao().countFilesSync() - filesBefore == files;
+        return new RestoreResult(items, load.updatedItems, files, load.createdTags, load.insertedItemTags,
+            load.missingFiles, load.checksumErrors, countsVerified, load.loadNanos, load.rebuildNanos);
+    }
+
+    /**
+     * 書庫を先頭から読んで入れる（restoreのトランザクションの中で呼ぶ）
+     * @return 書庫の集計（なければnull）
+     */
+    private JSONObject readArchive(Load load, ArchiveReader reader, long start) throws IOException {
+        JSONObject summary = null;
+        boolean manifestRead = false;
+        String name;
+        while ((name = reader.next()) != null) {
+            if (ArchiveFormat.MANIFEST.equals(name)) {
+                checkManifest(parse(reader.readEntry()));
+                manifestRead = true;
+                // タグの親子付け（閉包テーブル）も含めて外す
+                BulkLoad.begin(context, db);
+                load.bulkLoading = true;
+            } else if (!manifestRead) {
+                throw new IOException("ライブラリの書庫ではありません");
+            } else if (name.startsWith(ArchiveFormat.TAGS_DIR)) {
+                restoreTags(load, reader.readEntry());
+            } else if (name.startsWith(ArchiveFormat.ITEMS_DIR)) {
+                // タグはアイテムより前に並んでいる（2ページ目からは何もしない）
+                finishTags(load);
+                closePage(load);
+                readItemPage(load, reader.readEntry());
+            } else if (name.startsWith(ArchiveFormat.BLOBS_DIR)) {
+                restoreBlob(load, name, reader.openEntry());
+            } else if (ArchiveFormat.SUMMARY.equals(name)) {
+                summary = parse(reader.readEntry());
+            }
+            // 知らないエントリは読み飛ばす（新しい形式との互換のため）
+        }
+        if (!manifestRead) {
+            throw new IOException("ライブラリの書庫ではありません");
+        }
+        finishTags(load);
+        closePage(load);
+        flush(load);
+
+        long loaded = System.nanoTime();
+        load.loadNanos = loaded - start;
+        if (load.bulkLoading) {
+            BulkLoad.end(context, db);
+            load.bulkLoading = false;
+        }
+        load.rebuildNanos = System.nanoTime() - loaded;
+        return summary;
+    }
+
+    private static void checkManifest(JSONObject manifest) throws IOException {
+        if (manifest.optInt("format", 0) > ArchiveFormat.VERSION) {
+            throw new IOException("新しい形式の書庫です（アプリを更新してください）");
+        }
+    }
+
+    /**
+     * タグを取り込む（uidか名前が同じタグがあればそれに対応付ける）
+     * 親子関係は、親が後のページにある場合に備えてfinishTagsでまとめて付ける
+     */
+    private void restoreTags(Load load, byte[] page) throws IOException {
+        List<Long> oldIds = new ArrayList<>();
+        List<Long> oldParentIds = new ArrayList<>();
+        List<Tag> tags = new ArrayList<>();
+        try {
+            for (JSONObject json : parseLines(page)) {
+                Tag tag = new Tag();
+                tag.setUid(stringOrNull(json, "uid"));
+                tag.setName(json.getString("name"));
+                tag.setColor(stringOrNull(json, "color"));
+                tag.setCreatedAt(json.getLong("created_at"));
+                tags.add(tag);
+                oldIds.add(json.getLong("id"));
+                oldParentIds.add(json.isNull("parent_id") ? null : json.getLong("parent_id"));
+            }
+        } catch (JSONException e) {
+            throw new IOException("書庫のマニフェストが壊れています", e);
+        }
+
+        List<String> names = new ArrayList<>(tags.size());
+        for (Tag tag : tags) {
+            names.add(tag.getName());
+        }
+        Map<String, Long> existing = new HashMap<>();
+        for (List<String> chunk : AppDatabase.chunk(names)) {
+            for (Tag tag : db.tagDao().getTagsByNamesSync(chunk)) {
+                existing.put(tag.getName(), tag.getId());
+            }
+        }
+        List<String> uids = new ArrayList<>();
+        for (Tag tag : tags) {
+            if (tag.getUid() != null) {
+                uids.add(tag.getUid());
+            }
+        }
+        Map<String, Long> existingUids = new HashMap<>();
+        for (List<String> chunk : AppDatabase.chunk(uids)) {
+            for (Tag tag : db.tagDao().getTagsByUidsSync(chunk)) {
+                existingUids.put(tag.getUid(), tag.getId());
+            }
+        }
+
+        db.runInTransaction(() -> {
+            for (int i = 0; i < tags.size(); i++) {
+                // 端末で名前を変えたタグもuidで対応付ける
+                Long tagId = tags.get(i).getUid() != null ? existingUids.get(tags.get(i).getUid()) : null;
+                if (tagId == null) {
+                    tagId = existing.get(tags.get(i).getName());
+                }
+                if (tagId == null) {
+                    tagId = db.tagDao().insert(tags.get(i));
+                    load.createdTags++;
+                    if (oldParentIds.get(i) != null) {
+                        load.tagParents.put(tagId, oldParentIds.get(i));
+                    }
+                }
+                load.tagIds.put(oldIds.get(i), tagId);
+            }
+        });
+    }
+
+    /**
+     * 新しく作ったタグを親の下に移す（閉包テーブルはBulkLoad.endでまとめて作り直す）
+     */
+    private void finishTags(Load load) {
+        if (load.tagParents.isEmpty()) {
+            return;
+        }
+        db.runInTransaction(() -> {
+            for (Map.Entry<Long, Long> entry : load.tagParents.entrySet()) {
+                Long parentId = load.tagIds.get(entry.getValue());
+                if (parentId != null) {
+                    db.tagDao().move(entry.getKey(), parentId);
+                }
+            }
+        });
+        load.tagParents.clear();
+    }
+
+    /**
+     * アイテムのページを読み、続くblobsのエントリを待つ
+     */
+    private void readItemPage(Load load, byte[] page) throws IOException {
+        try {
+            for (JSONObject json : parseLines(page)) {
+                PendingItem pending = new PendingItem(json.getLong("id"));
+                Item item = pending.item;
+                item.setUid(stringOrNull(json, "uid"));
+                item.setTitle(stringOrNull(json, "title"));
+                item.setDescription(stringOrNull(json, "description"));
+                item.setCreatedAt(json.getLong("created_at"));
+                item.setUpdatedAt(json.getLong("updated_at"));
+                item.setLastViewed(json.isNull("last_viewed") ? null : json.getLong("last_viewed"));
+
+                JSONArray tagIds = json.getJSONArray("tag_ids");
+                for (int i = 0; i < tagIds.length(); i++) {
+                    pending.oldTagIds.add(tagIds.getLong(i));
+                }
+
+                JSONArray files = json.getJSONArray("files");
+                for (int i = 0; i < files.length(); i++) {
+                    JSONObject fileJson = files.getJSONObject(i);
+                    PendingFile file = new PendingFile(fileJson);
+                    pending.files.add(file);
+                    if (file.blob != null) {
+                        load.pendingBlobs.put(file.blob, file);
+                    }
+                }
+                load.page.add(pending);
+                load.itemLines++;
+            }
+        } catch (JSONException e) {
+            throw new IOException("書庫のマニフェストが壊れています", e);
+        }
+    }
+
+    /**
+     * ファイルの中身を保存し直し、保存したものを読み直して書庫の中身と一致するか確かめる
+     */
+    private void restoreBlob(Load load, String name, InputStream entry) throws IOException {
+        PendingFile file = load.pendingBlobs.remove(name);
+        if (file == null) {
+            return;
+        }
+        // 保存時のコーデックを外してから渡す（保存先のコーデックはFileStorageManagerが選び直す）
+        CheckedInputStream archived = new CheckedInputStream(
+            TextCodec.wrapInput(entry, file.codec), new CRC32());
+        SavedFile saved = storageManager.saveFile(archived, file.mimeType);
+        file.saved = saved;
+        load.savedBlobs++;
+
+        CRC32 restored = new CRC32();
+        try (InputStream inputStream = storageManager.openInputStream(saved.getRelativePath(), saved.getCodec())) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                restored.update(buffer, 0, count);
+            }
+        }
+        if (restored.getValue() != archived.getChecksum().getValue()) {
+            load.checksumErrors++;
+        }
+    }
+
+    /**
+     * 直前のページのファイルがそろったので、トランザクション待ちに回す
+     */
+    private void closePage(Load load) {
+        for (PendingItem pending : load.page) {
+            List<PendingFile> saved = new ArrayList<>(pending.files.size());
+            for (PendingFile file : pending.files) {
+                if (file.saved != null) {
+                    saved.add(file);
+                } else {
+                    load.missingFiles++;
+                }
+            }
+            pending.files.clear();
+            pending.files.addAll(saved);
+            // 同じアイテムが既に待っていれば後のもので置き換える
+            load.batch.remove(pending.oldId);
+            load.batch.put(pending.oldId, pending);
+        }
+        load.page.clear();
+        load.pendingBlobs.clear();
+        if (load.batch.size() >= ITEMS_PER_TRANSACTION) {
+            flush(load);
+        }
+    }
+
+    /**
+     * 待っているアイテム・ファイル・タグ付けを1トランザクションで入れる
+     * 端末に既にあるアイテム（uidが同じもの、この復元で先に入れたもの）は上書きする
+     */
+    private void flush(Load load) {
+        if (load.batch.isEmpty()) {
+            return;
+        }
+        List<PendingItem> pendingItems = new ArrayList<>(load.batch.values());
+        load.batch.clear();
+        db.runInTransaction(() -> {
+            Map<String, Long> existing = findItemIdsByUid(pendingItems);
+            List<PendingItem> newItems = new ArrayList<>(pendingItems.size());
+            List<ItemFile> files = new ArrayList<>();
+            List<ItemTag> itemTags = new ArrayList<>();
+            for (PendingItem pending : pendingItems) {
+                String uid = pending.item.getUid();
+                Long itemId = uid != null ? existing.get(uid) : null;
+                if (itemId == null) {
+                    itemId = load.itemIds.get(pending.oldId);
+                }
+                if (itemId == null) {
+                    newItems.add(pending);
+                } else {
+                    updateItem(load, pending, itemId, files, itemTags);
+                }
+            }
+
+            List<Item> items = new ArrayList<>(newItems.size());
+            for (PendingItem pending : newItems) {
+                items.add(pending.item);
+            }
+            List<Long> newIds = db.itemDao().insertAll(items);
+            for (int i = 0; i < newItems.size(); i++) {
+                PendingItem pending = newItems.get(i);
+                long itemId = newIds.get(i);
+                load.itemIds.put(pending.oldId, itemId);
+                for (PendingFile file : pending.files) {
+                    files.add(file.toItemFile(itemId));
+                }
+                for (long tagId : tagIdsOf(load, pending)) {
+                    itemTags.add(new ItemTag(itemId, tagId));
+                }
+            }
+            dropUsedFileUids(files);
+            db.fileDao().insertAll(files);
+            db.itemTagDao().insertOrIgnoreAll(itemTags);
+
+            load.insertedItems += items.size();
+            load.insertedFiles += files.size();
+            load.insertedItemTags += itemTags.size();
+        });
+    }
+
+    /**
+     * 端末にあるアイテムを書庫の内容で上書きする
+     * ファイルはuidが同じなら作成後に変わらないので行を残し、書庫にないものは外す（中身は孤立ファイルの掃除で消える）
+     * タグ付けは差分だけを付け外しする
+     */
+    private void updateItem(Load load, PendingItem pending, long itemId,
+                            List<ItemFile> files, List<ItemTag> itemTags) {
+        Item item = pending.item;
+        item.setId(itemId);
+        if (item.getUid() == null) {
+            // uidのない古い書庫で、この復元で先に入れたもの（振られたuidを消さない）
+            item.setUid(db.itemDao().getItemByIdSync(itemId).getUid());
+        }
+        db.itemDao().update(item);
+        load.itemIds.put(pending.oldId, itemId);
+        load.updatedItems++;
+
+        Set<String> archivedUids = new HashSet<>();
+        for (PendingFile file : pending.files) {
+            if (file.uid != null) {
+                archivedUids.add(file.uid);
+            }
+        }
+        Set<String> keptUids = new HashSet<>();
+        for (ItemFile file : db.fileDao().getFilesByItemIdSync(itemId)) {
+            if (file.getUid() != null && archivedUids.contains(file.getUid())) {
+                keptUids.add(file.getUid());
+            } else {
+                db.fileDao().delete(file);
+                load.replacedFiles++;
+            }
+        }
+        for (PendingFile file : pending.files) {
+            if (file.uid != null && keptUids.contains(file.uid)) {
+                // 保存し直した中身は使わないので、コミット後に消す
+                load.unusedPaths.add(file.saved.getRelativePath());
+            } else {
+                files.add(file.toItemFile(itemId));
+            }
+        }
+
+        Set<Long> wanted = tagIdsOf(load, pending);
+        List<Long> itemIds = Collections.singletonList(itemId);
+        for (Tag tag : db.itemTagDao().getTagsForItemSync(itemId)) {
+            if (!wanted.remove(tag.getId())) {
+                db.itemTagDao().deleteTagForItems(tag.getId(), itemIds);
+            }
+        }
+        for (long tagId : wanted) {
+            itemTags.add(new ItemTag(itemId, tagId));
+        }
+    }
+
+    /**
+     * 書庫のuidで端末のアイテムを探す
+     * @return uid → アイテムID
+     */
+    private Map<String, Long> findItemIdsByUid(List<PendingItem> pendingItems) {
+        List<String> uids = new ArrayList<>();
+        for (PendingItem pending : pendingItems) {
+            if (pending.item.getUid() != null) {
+                uids.add(pending.item.getUid());
+            }
+        }
+        Map<String, Long> itemIds = new HashMap<>();
+        for (List<String> chunk : AppDatabase.chunk(uids)) {
+            for (Item item : db.itemDao().getItemsByUidsSync(chunk)) {
+                itemIds.put(item.getUid(), item.getId());
+            }
+        }
+        return itemIds;
+    }
+
+    private static Set<Long> tagIdsOf(Load load, PendingItem pending) {
+        Set<Long> tagIds = new LinkedHashSet<>();
+        for (long oldTagId : pending.oldTagIds) {
+            Long tagId = load.tagIds.get(oldTagId);
+            if (tagId != null) {
+                tagIds.add(tagId);
+            }
+        }
+        return tagIds;
+    }
+
+    /**
+     * 端末の別のファイルで使われているuidは外す（挿入時にトリガーが振り直す）
+     */
+    private void dropUsedFileUids(List<ItemFile> files) {
+        List<String> uids = new ArrayList<>();
+        for (ItemFile file : files) {
+            if (file.getUid() != null) {
+                uids.add(file.getUid());
+            }
+        }
+        Set<String> used = new HashSet<>();
+        for (List<String> chunk : AppDatabase.chunk(uids)) {
+            for (ItemFile file : db.fileDao().getFilesByUidsSync(chunk)) {
+                used.add(file.getUid());
+            }
+        }
+        for (ItemFile file : files) {
+            if (used.contains(file.getUid())) {
+                file.setUid(null);
+            }
+        }
+    }
+
+    private static JSONObject parse(byte[] data) throws IOException {
+        try {
+            return new JSONObject(new String(data, StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("書庫のマニフェストが壊れています", e);
+        }
+    }
+
+    private static List<JSONObject> parseLines(byte[] page) throws IOException {
+        List<JSONObject> lines = new ArrayList<>();
+        for (String line : new String(page, StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(parse(line.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return lines;
+    }
+
+    private static String stringOrNull(JSONObject json, String key) throws JSONException {
+        return json.isNull(key) ? null : json.getString(key);
+    }
+
+    private static class PendingItem {
+        final long oldId;
+        final Item item = new Item();
+        final List<Long> oldTagIds = new ArrayList<>();
+        final List<PendingFile> files = new ArrayList<>();
+
+        PendingItem(long oldId) {
+            this.oldId = oldId;
+        }
+    }
+
+    private static class PendingFile {
+        final String blob;
+        String uid;
+        final String fileName;
+        final String fileType;
+        final String mimeType;
+        final String codec;
+        final long originalSize;
+        final long createdAt;
+        SavedFile saved;
+
+        PendingFile(JSONObject json) throws JSONException {
+            blob = stringOrNull(json, "blob");
+            uid = stringOrNull(json, "uid");
+            fileName = json.getString("name");
+            fileType = json.getString("type");
+            mimeType = json.getString("mime_type");
+            codec = json.getString("codec");
+            originalSize = json.getLong("original_size");
+            createdAt = json.getLong("created_at");
+        }
+
+        ItemFile toItemFile(long itemId) {
+            ItemFile file = new ItemFile();
+            file.setUid(uid);
+            file.setItemId(itemId);
+            file.setFilePath(saved.getRelativePath());
+            file.setFileName(fileName);
+            file.setFileType(fileType);
+            file.setFileSize(saved.getFileSize());
+            file.setOriginalSize(originalSize);
+            file.setMimeType(mimeType);
+            file.setCodec(saved.getCodec());
+            file.setCreatedAt(createdAt);
+            return file;
+        }
+    }
+
+    /**
+     * 1回の復元の状態
+     */
+    private static class Load {
+        final Map<Long, Long> tagIds = new HashMap<>();
+        // 新しく作ったタグID → 書庫での親のID
+        final Map<Long, Long> tagParents = new LinkedHashMap<>();
+        final LongSparseArray<Long> itemIds = new LongSparseArray<>();
+        final List<PendingItem> page = new ArrayList<>();
+        final Map<String, PendingFile> pendingBlobs = new HashMap<>();
+        final LinkedHashMap<Long, PendingItem> batch = new LinkedHashMap<>();
+        // 上書きで使わなかった、保存し直したファイルの中身
+        final List<String> unusedPaths = new ArrayList<>();
+        boolean bulkLoading;
+        int itemLines;
+        int savedBlobs;
+        int missingFiles;
+        int checksumErrors;
+        int createdTags;
+        int insertedItems;
+        int insertedFiles;
+        int insertedItemTags;
+        int updatedItems;
+        int replacedFiles;
+        long loadNanos;
+        long rebuildNanos;
+    }
+}
@@ -0,0 +1,125 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import java.util.Locale;
+
+/**
+ * 復元の結果（不変）
+ */
+public class RestoreResult {
+    private final int itemCount;
+    private final int updatedItemCount;
+    private final int fileCount;
+    private final int tagCount;
+    private final int itemTagCount;
+    private final int missingFileCount;
+    private final int checksumErrorCount;
+    private final boolean countsVerified;
+    private final long loadNanos;
+    private final long rebuildNanos;
+
+    RestoreResult(int itemCount, int updatedItemCount, int fileCount, int tagCount, int itemTagCount,
+                  int missingFileCount, int checksumErrorCount, boolean countsVerified,
+                  long loadNanos, long rebuildNanos) {
+        this.itemCount = itemCount;
+        this.updatedItemCount = updatedItemCount;
+        this.fileCount = fileCount;
+        this.tagCount = tagCount;
+        this.itemTagCount = itemTagCount;
+        this.missingFileCount = missingFileCount;
+        this.checksumErrorCount = checksumErrorCount;
+        this.countsVerified = countsVerified;
+        this.loadNanos = loadNanos;
+        this.rebuildNanos = rebuildNanos;
+    }
+
+    /**
+     * 新しく追加したアイテムの数
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * 端末に既にあった（uidが同じ）ので上書きしたアイテムの数
+     */
+    public int getUpdatedItemCount() {
+        return updatedItemCount;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * 新しく作ったタグの数（同名のタグがあればそれを使う）
+     */
+    public int getTagCount() {
+        return tagCount;
+    }
+
+    public int getItemTagCount() {
+        return itemTagCount;
+    }
+
+    /**
+     * 書庫に中身が入っていなかったファイルの数（行は作らない）
+     */
+    public int getMissingFileCount() {
+        return missingFileCount;
+    }
+
+    /**
+     * 保存し直したファイルの中身が書庫と一致しなかった数
+     */
+    public int getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+
+    /**
+     * 書庫のsummary.jsonの件数とDBに入った件数が一致したか
+     */
+    public boolean isCountsVerified() {
+        return countsVerified;
+    }
+
+    /**
+     * 行とファイルを入れるのにかかった時間
+     */
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * インデックス・トリガーを作り直すのにかかった時間
+     */
+    public long getRebuildNanos() {
+        return rebuildNanos;
+    }
+
+    public int getRowCount() {
+        return itemCount + updatedItemCount + fileCount + tagCount + itemTagCount;
+    }
+
+    /**
+     * 作り直しを含めた1秒あたりの行数
+     */
+    public double rowsPerSecond() {
+        long total = loadNanos + rebuildNanos;
+        return total == 0 ? 0 : getRowCount() / (total / 1_000_000_000.0);
+    }
+
+    /**
+     * 問題なく復元できたか
+     */
+    public boolean isVerified() {
+        return countsVerified && checksumErrorCount == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "アイテム %d件（上書き %d件） / ファイル %d件（見つからない %d件） / タグ %d件 / %.0f 行/s%s",
+            itemCount, updatedItemCount, fileCount, missingFileCount, tagCount, rowsPerSecond(),
+            isVerified() ? "" : " / 検証エラー（件数: " + (countsVerified ? "OK" : "NG")
+                + "、チェックサム不一致: " + checksumErrorCount + "件）");
+    }
+}
@@ -1,39 +1,83 @@
 package jp.ac.meijou.android.nanndatteii.db;
 
 import android.content.Context;
+import android.os.Trace;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.dao.ChangeLogDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.CollectionDao;
 import jp.ac.meijou.android.nanndatteii.db.dao.FileDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.ImportDao;
 import jp.ac.meijou.android.nanndatteii.db.dao.ItemDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemSortDao;
 import jp.ac.meijou.android.nanndatteii.db.dao.ItemTagDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.JobDao;
 import jp.ac.meijou.android.nanndatteii.db.dao.TagDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.TimelineDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeConsumer;
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeLogEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.CollectionItem;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportSession;
 import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemCollection;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemDayCount;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemSortKey;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemTag;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
 import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.db.entity.TagClosure;
 
 @Database(
     entities = {
         Item.class,
         ItemFile.class,
         Tag.class,
-        ItemTag.class
+        ItemTag.class,
+        Job.class,
+        TagClosure.class,
+        ImportSession.class,
+        ImportEntry.class,
+        ChangeLogEntry.class,
+        ChangeConsumer.class,
+        ItemCollection.class,
+        CollectionItem.class,
+        ItemDayCount.class,
+        ItemSortKey.class
     },
-    version = 1,
+    version = 12,
     exportSchema = false
 )
 public abstract class AppDatabase extends RoomDatabase {
+    private static final String TAG = "AppDatabase";
+
+    // SQLiteのバインド変数の上限（古い端末では999）を超えないようIN句を分割する単位
+    public static final int MAX_BIND_ARGS = 900;
     private static volatile AppDatabase INSTANCE;
 
     public abstract ItemDao itemDao();
     public abstract FileDao fileDao();
     public abstract TagDao tagDao();
     public abstract ItemTagDao itemTagDao();
+    public abstract JobDao jobDao();
+    public abstract ImportDao importDao();
+    public abstract ChangeLogDao changeLogDao();
+    public abstract CollectionDao collectionDao();
+    public abstract TimelineDao timelineDao();
+    public abstract ItemSortDao itemSortDao();
 
     public static AppDatabase getInstance(Context context) {
         if (INSTANCE == null) {
@@ -45,6 +89,11 @@ public abstract class AppDatabase extends RoomDatabase {
                         "app_data.db"
                     )
                     .fallbackToDestructiveMigration()
+                    // クエリ計測（診断メニューからON/OFF）
+                    .openHelperFactory(new InstrumentedOpenHelperFactory(
+                        new FrameworkSQLiteOpenHelperFactory()))
+                    // 閉包テーブルなどを追従させるトリガー（recoverより先に作る）
+                    .addCallback(new TriggerCallback())
                     .addCallback(new Callback() {
                         @Override
                         public void onCreate(@NonNull SupportSQLiteDatabase db) {
@@ -52,6 +101,13 @@ public abstract class AppDatabase extends RoomDatabase {
                             // 初期データの挿入（オプション）
                             // 必要に応じてデフォルトタグなどを挿入できます
                         }
+
+                        @Override
+                        public void onOpen(@NonNull SupportSQLiteDatabase db) {
+                            super.onOpen(db);
+                            BulkLoad.recover(context, db);
+                            ItemTimeline.rebuildIfZoneChanged(context, () -> ItemTimeline.rebuild(db));
+                        }
                     })
                     .build();
                 }
@@ -59,4 +115,53 @@ public abstract class AppDatabase extends RoomDatabase {
         }
         return INSTANCE;
     }
+
+    /**
+     * 前回数えた時とタイムゾーンが違えば、日ごとのアイテム数（item_day_counts）を数え直す
+     * バックグラウンドスレッドで呼ぶこと
+     */
+    public static void rebuildTimelineIfZoneChanged(Context context) {
+        AppDatabase db = getInstance(context);
+        // 開いた時（onOpen）に数え直していれば、ここでは何もしない
+        db.getOpenHelper().getWritableDatabase();
+        ItemTimeline.rebuildIfZoneChanged(context, db.timelineDao()::rebuild);
+    }
+
+    /**
+     * IN句に渡せる大きさ（MAX_BIND_ARGS）に分割
+     */
+    public static <T> List<List<T>> chunk(Collection<T> values) {
+        List<List<T>> chunks = new ArrayList<>();
+        List<T> current = new ArrayList<>(Math.min(values.size(), MAX_BIND_ARGS));
+        for (T value : values) {
+            current.add(value);
+            if (current.size() == MAX_BIND_ARGS) {
+                chunks.add(current);
+                current = new ArrayList<>(MAX_BIND_ARGS);
+            }
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    /**
+     * バックグラウンドで接続を開いておく
+     * 最初のクエリがDBのオープン（作成・マイグレーションを含む）を待たなくてよくなる
+     * @param onReady 開き終わった後（失敗時も）にバックグラウンドスレッドで呼ばれる
+     */
+    public static void warmUp(Context context, Runnable onReady) {
+        AppExecutors.background().execute(() -> {
+            Trace.beginSection("AppDatabase.warmUp");
+            try {
+                getInstance(context).getOpenHelper().getWritableDatabase();
+            } catch (Exception e) {
+                Log.e(TAG, "warmUp: DBを開けませんでした", e);
+            } finally {
+                Trace.endSection();
+                onReady.run();
+            }
+        });
+    }
 }
@@ -0,0 +1,136 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 大量の行を入れる間、items・files・item_tags・item_sort_keysの副次インデックスと
+ * 行ごとに走るトリガー（updated_at・閉包テーブル・タイムライン・並べ替えの値）を外しておき、
+ * 入れ終わってから派生テーブルを集計1回ずつで作り直す
+ *
+ * change_logのトリガー（とuidを振るトリガー）は外さない。
+ * 変更の記録は後から作り直せず、購読者がいない間はもともと何も書かないため
+ *
+ * begin〜endは行を入れるのと同じ1つのトランザクションの中で呼ぶこと。
+ * 外した状態は他の接続からは見えず、他の書き込みは終わるまで待たされるので、
+ * インデックスなしの書き込みやupdated_atの進まない変更が紛れ込まない。
+ *
+ * 外したインデックスの定義は作り直すまで保存しておき、
+ * 途中でプロセスが終了しても次にDBを開いた時に作り直す
+ * （一意インデックスは重複の検出に要るので外さない）
+ */
+public final class BulkLoad {
+    private static final String TAG = "BulkLoad";
+    private static final String PREFS_NAME = "bulk_load";
+    private static final String KEY_PENDING_INDEXES = "pending_indexes";
+    // beginで外すトリガーの1つ（残っていれば派生テーブルは作り直さなくてよい）
+    private static final String MARKER_TRIGGER = "item_sort_keys_after_item_insert";
+
+    private BulkLoad() {
+    }
+
+    /**
+     * インデックスとトリガーを外す（一括取り込みのトランザクションの中で呼ぶこと）
+     */
+    public static void begin(Context context, AppDatabase database) {
+        SupportSQLiteDatabase db = database.getOpenHelper().getWritableDatabase();
+        Set<String> indexes = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        try (Cursor cursor = db.query("SELECT name, sql FROM sqlite_master " +
+                "WHERE type = 'index' AND tbl_name IN ('items', 'files', 'item_tags', 'item_sort_keys') " +
+                "AND sql IS NOT NULL AND sql NOT LIKE 'CREATE UNIQUE%'")) {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+                indexes.add(cursor.getString(1));
+            }
+        }
+        // 消す前に保存する（作り直せなくなるのを防ぐ）
+        Set<String> pending = new HashSet<>(getPending(context));
+        pending.addAll(indexes);
+        prefs(context).edit().putStringSet(KEY_PENDING_INDEXES, pending).commit();
+
+        db.beginTransaction();
+        try {
+            for (String name : names) {
+                db.execSQL("DROP INDEX IF EXISTS `" + name + "`");
+            }
+            ItemTimestamps.dropTriggers(db);
+            TagHierarchy.dropTriggers(db);
+            ItemTimeline.dropTriggers(db);
+            ItemSortKeys.dropTriggers(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 派生テーブル・外したインデックス・トリガーを作り直す
+     * トランザクションがロールバックされた後に呼んだ場合は、保存した定義を消すだけになる
+     */
+    public static void end(Context context, AppDatabase database) {
+        rebuild(context, database.getOpenHelper().getWritableDatabase());
+    }
+
+    /**
+     * 前回の取り込みが途中で終わっていれば作り直す（DBを開いた時に呼ぶ）
+     */
+    static void recover(Context context, SupportSQLiteDatabase db) {
+        if (!getPending(context).isEmpty()) {
+            Log.w(TAG, "recover: 中断された一括取り込みのインデックスを作り直します");
+            rebuild(context, db);
+        }
+    }
+
+    private static void rebuild(Context context, SupportSQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            // トリガーを外したまま行を入れた時だけ（ロールバック・中断の後は外す前に戻っている）
+            // インデックスより先に作ると、並べ替えの値のインデックスを行ごとに更新しなくて済む
+            if (!hasTrigger(db, MARKER_TRIGGER)) {
+                TagHierarchy.rebuild(db);
+                ItemTimeline.rebuild(db);
+                ItemSortKeys.rebuild(db);
+            }
+            for (String sql : getPending(context)) {
+                try {
+                    db.execSQL(sql.replaceFirst("(?i)^CREATE INDEX (?!IF NOT EXISTS)", "CREATE INDEX IF NOT EXISTS "));
+                } catch (SQLException e) {
+                    // 破壊的マイグレーションで列がなくなった場合など（Roomが作り直している）
+                    Log.w(TAG, "rebuild: インデックスを作れません: " + sql, e);
+                }
+            }
+            ItemTimestamps.installTriggers(db);
+            TagHierarchy.installTriggers(db);
+            ItemTimeline.installTriggers(db);
+            ItemSortKeys.installTriggers(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        prefs(context).edit().remove(KEY_PENDING_INDEXES).commit();
+    }
+
+    private static boolean hasTrigger(SupportSQLiteDatabase db, String name) {
+        try (Cursor cursor = db.query("SELECT 1 FROM sqlite_master WHERE type = 'trigger' AND name = ?",
+                new Object[]{name})) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    private static Set<String> getPending(Context context) {
+        return prefs(context).getStringSet(KEY_PENDING_INDEXES, new HashSet<>());
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,70 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * change_logに変更を記録するトリガーと、uidを振るトリガー
+ * DAO・CASCADE・他のトリガーのどの経路で変更してもchange_logに残る
+ *
+ * - uid: nullで挿入された行にランダムな32桁の16進数を振る（同期で端末をまたいで行を指す）
+ * - items: 閲覧日時（last_viewed）の更新は端末ごとの情報なので記録しない
+ * - item_tags: row_idにitem_id、ref_idにtag_idを入れる
+ * - 削除: 行から引けなくなるのでuid（item_tagsはアイテムのuid）を残す
+ * - 購読者（change_consumers）がいない間は記録しない（読む人がいないため）
+ */
+final class ChangeLog {
+    private static final String[] UID_TABLES = {"items", "files", "tags"};
+
+    private static final String[] TRIGGERS = {
+        log("items_log_after_insert", "AFTER INSERT ON items", "items", "insert", "NEW.id", "NULL", "NULL"),
+        log("items_log_after_update", "AFTER UPDATE OF title, description, created_at, updated_at ON items",
+            "items", "update", "NEW.id", "NULL", "NULL"),
+        log("items_log_after_delete", "AFTER DELETE ON items", "items", "delete", "OLD.id", "NULL", "OLD.uid"),
+
+        log("files_log_after_insert", "AFTER INSERT ON files", "files", "insert", "NEW.id", "NULL", "NULL"),
+        log("files_log_after_update",
+            "AFTER UPDATE OF item_id, file_path, file_name, file_type, file_size, mime_type, codec ON files",
+            "files", "update", "NEW.id", "NULL", "NULL"),
+        log("files_log_after_delete", "AFTER DELETE ON files", "files", "delete", "OLD.id", "NULL", "OLD.uid"),
+
+        log("tags_log_after_insert", "AFTER INSERT ON tags", "tags", "insert", "NEW.id", "NULL", "NULL"),
+        log("tags_log_after_update", "AFTER UPDATE OF name, color, parent_id ON tags",
+            "tags", "update", "NEW.id", "NULL", "NULL"),
+        log("tags_log_after_delete", "AFTER DELETE ON tags", "tags", "delete", "OLD.id", "NULL", "OLD.uid"),
+
+        log("item_tags_log_after_insert", "AFTER INSERT ON item_tags", "item_tags", "insert",
+            "NEW.item_id", "NEW.tag_id", "NULL"),
+        log("item_tags_log_after_delete", "AFTER DELETE ON item_tags", "item_tags", "delete",
+            "OLD.item_id", "OLD.tag_id", "(SELECT uid FROM items WHERE id = OLD.item_id)")
+    };
+
+    private ChangeLog() {
+    }
+
+    /**
+     * トリガーを作成（既にあれば何もしない）
+     */
+    static void installTriggers(SupportSQLiteDatabase db) {
+        for (String table : UID_TABLES) {
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_assign_uid AFTER INSERT ON " + table + " " +
+                "WHEN NEW.uid IS NULL " +
+                "BEGIN " +
+                "UPDATE " + table + " SET uid = lower(hex(randomblob(16))) WHERE id = NEW.id; " +
+                "END");
+        }
+        for (String sql : TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    private static String log(String name, String event, String table, String op,
+                              String rowId, String refId, String uid) {
+        return "CREATE TRIGGER IF NOT EXISTS " + name + " " + event + " " +
+            "WHEN EXISTS (SELECT 1 FROM change_consumers) " +
+            "BEGIN " +
+            "INSERT INTO change_log (table_name, op, row_id, ref_id, uid, changed_at) " +
+            "VALUES ('" + table + "', '" + op + "', " + rowId + ", " + refId + ", " + uid + ", " +
+            ItemTimestamps.NOW_MILLIS + "); " +
+            "END";
+    }
+}
@@ -0,0 +1,545 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.os.CancellationSignal;
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+import jp.ac.meijou.android.nanndatteii.diagnostics.QueryMetrics;
+
+/**
+ * 実行したSQLとトランザクションの時間をQueryMetricsに記録するOpenHelper
+ * RoomのQueryCallbackは実行前に呼ばれるだけで時間が取れないため、同じ位置で委譲して計測する
+ * QueryMetricsが無効の間は委譲のみ行う
+ */
+public class InstrumentedOpenHelperFactory implements SupportSQLiteOpenHelper.Factory {
+    private final SupportSQLiteOpenHelper.Factory delegate;
+
+    public InstrumentedOpenHelperFactory(SupportSQLiteOpenHelper.Factory delegate) {
+        this.delegate = delegate;
+    }
+
+    @NonNull
+    @Override
+    public SupportSQLiteOpenHelper create(@NonNull SupportSQLiteOpenHelper.Configuration configuration) {
+        return new InstrumentedOpenHelper(delegate.create(configuration));
+    }
+
+    private static class InstrumentedOpenHelper implements SupportSQLiteOpenHelper {
+        private final SupportSQLiteOpenHelper delegate;
+        // Roomは文・トランザクションごとにgetWritableDatabaseを呼ぶので、包んだものを使い回す
+        // （委譲先は開き直さない限り同じものを返す。読み取り用も通常は同じ）
+        private volatile InstrumentedDatabase wrapped;
+
+        InstrumentedOpenHelper(SupportSQLiteOpenHelper delegate) {
+            this.delegate = delegate;
+        }
+
+        @Nullable
+        @Override
+        public String getDatabaseName() {
+            return delegate.getDatabaseName();
+        }
+
+        @Override
+        public void setWriteAheadLoggingEnabled(boolean enabled) {
+            delegate.setWriteAheadLoggingEnabled(enabled);
+        }
+
+        @NonNull
+        @Override
+        public SupportSQLiteDatabase getWritableDatabase() {
+            return wrap(delegate.getWritableDatabase());
+        }
+
+        @NonNull
+        @Override
+        public SupportSQLiteDatabase getReadableDatabase() {
+            return wrap(delegate.getReadableDatabase());
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+            wrapped = null;
+        }
+
+        private SupportSQLiteDatabase wrap(SupportSQLiteDatabase database) {
+            InstrumentedDatabase current = wrapped;
+            if (current == null || current.delegate != database) {
+                current = new InstrumentedDatabase(database);
+                wrapped = current;
+            }
+            return current;
+        }
+    }
+
+    private static class InstrumentedDatabase implements SupportSQLiteDatabase {
+        // トランザクション開始時刻（入れ子に対応、無効時は0）
+        private static final ThreadLocal<Deque<Long>> TRANSACTION_STARTS =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+        private final SupportSQLiteDatabase delegate;
+
+        InstrumentedDatabase(SupportSQLiteDatabase delegate) {
+            this.delegate = delegate;
+        }
+
+        private void onBeginTransaction() {
+            TRANSACTION_STARTS.get().push(QueryMetrics.isEnabled() ? System.nanoTime() : 0L);
+        }
+
+        private void onEndTransaction() {
+            Long start = TRANSACTION_STARTS.get().poll();
+            if (start != null && start != 0L && QueryMetrics.isEnabled()) {
+                QueryMetrics.record(QueryMetrics.TRANSACTION, System.nanoTime() - start, -1);
+            }
+        }
+
+        @NonNull
+        @Override
+        public SupportSQLiteStatement compileStatement(@NonNull String sql) {
+            return new InstrumentedStatement(delegate.compileStatement(sql), sql);
+        }
+
+        @Override
+        public void beginTransaction() {
+            delegate.beginTransaction();
+            onBeginTransaction();
+        }
+
+        @Override
+        public void beginTransactionNonExclusive() {
+            delegate.beginTransactionNonExclusive();
+            onBeginTransaction();
+        }
+
+        @Override
+        public void beginTransactionWithListener(@NonNull SQLiteTransactionListener transactionListener) {
+            delegate.beginTransactionWithListener(transactionListener);
+            onBeginTransaction();
+        }
+
+        @Override
+        public void beginTransactionWithListenerNonExclusive(@NonNull SQLiteTransactionListener transactionListener) {
+            delegate.beginTransactionWithListenerNonExclusive(transactionListener);
+            onBeginTransaction();
+        }
+
+        @Override
+        public void endTransaction() {
+            try {
+                delegate.endTransaction();
+            } finally {
+                onEndTransaction();
+            }
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            delegate.setTransactionSuccessful();
+        }
+
+        @Override
+        public boolean inTransaction() {
+            return delegate.inTransaction();
+        }
+
+        @Override
+        public boolean isDbLockedByCurrentThread() {
+            return delegate.isDbLockedByCurrentThread();
+        }
+
+        @Override
+        public boolean yieldIfContendedSafely() {
+            return delegate.yieldIfContendedSafely();
+        }
+
+        @Override
+        public boolean yieldIfContendedSafely(long sleepAfterYieldDelayMillis) {
+            return delegate.yieldIfContendedSafely(sleepAfterYieldDelayMillis);
+        }
+
+        @Override
+        public boolean isExecPerConnectionSQLSupported() {
+            return delegate.isExecPerConnectionSQLSupported();
+        }
+
+        @Override
+        public void execPerConnectionSQL(@NonNull String sql, @Nullable Object[] bindArgs) {
+            delegate.execPerConnectionSQL(sql, bindArgs);
+        }
+
+        @Override
+        public int getVersion() {
+            return delegate.getVersion();
+        }
+
+        @Override
+        public void setVersion(int version) {
+            delegate.setVersion(version);
+        }
+
+        @Override
+        public long getMaximumSize() {
+            return delegate.getMaximumSize();
+        }
+
+        @Override
+        public long setMaximumSize(long numBytes) {
+            return delegate.setMaximumSize(numBytes);
+        }
+
+        @Override
+        public long getPageSize() {
+            return delegate.getPageSize();
+        }
+
+        @Override
+        public void setPageSize(long numBytes) {
+            delegate.setPageSize(numBytes);
+        }
+
+        @NonNull
+        @Override
+        public Cursor query(@NonNull String query) {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.query(query);
+            }
+            long start = System.nanoTime();
+            return new TimedCursor(delegate.query(query), query, start);
+        }
+
+        @NonNull
+        @Override
+        public Cursor query(@NonNull String query, @NonNull Object[] bindArgs) {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.query(query, bindArgs);
+            }
+            long start = System.nanoTime();
+            return new TimedCursor(delegate.query(query, bindArgs), query, start);
+        }
+
+        @NonNull
+        @Override
+        public Cursor query(@NonNull SupportSQLiteQuery query) {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.query(query);
+            }
+            long start = System.nanoTime();
+            return new TimedCursor(delegate.query(query), query.getSql(), start);
+        }
+
+        @NonNull
+        @Override
+        public Cursor query(@NonNull SupportSQLiteQuery query, @Nullable CancellationSignal cancellationSignal) {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.query(query, cancellationSignal);
+            }
+            long start = System.nanoTime();
+            return new TimedCursor(delegate.query(query, cancellationSignal), query.getSql(), start);
+        }
+
+        @Override
+        public long insert(@NonNull String table, int conflictAlgorithm,
+                           @NonNull ContentValues values) throws SQLException {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.insert(table, conflictAlgorithm, values);
+            }
+            long start = System.nanoTime();
+            long rowId = delegate.insert(table, conflictAlgorithm, values);
+            QueryMetrics.record("INSERT INTO " + table, System.nanoTime() - start, rowId == -1 ? 0 : 1);
+            return rowId;
+        }
+
+        @Override
+        public int delete(@NonNull String table, @Nullable String whereClause, @Nullable Object[] whereArgs) {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.delete(table, whereClause, whereArgs);
+            }
+            long start = System.nanoTime();
+            int rows = delegate.delete(table, whereClause, whereArgs);
+            QueryMetrics.record(String.format(Locale.US, "DELETE FROM %s WHERE %s", table, whereClause),
+                System.nanoTime() - start, rows);
+            return rows;
+        }
+
+        @Override
+        public int update(@NonNull String table, int conflictAlgorithm, @NonNull ContentValues values,
+                          @Nullable String whereClause, @Nullable Object[] whereArgs) {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.update(table, conflictAlgorithm, values, whereClause, whereArgs);
+            }
+            long start = System.nanoTime();
+            int rows = delegate.update(table, conflictAlgorithm, values, whereClause, whereArgs);
+            QueryMetrics.record(String.format(Locale.US, "UPDATE %s WHERE %s", table, whereClause),
+                System.nanoTime() - start, rows);
+            return rows;
+        }
+
+        @Override
+        public void execSQL(@NonNull String sql) throws SQLException {
+            if (!QueryMetrics.isEnabled()) {
+                delegate.execSQL(sql);
+                return;
+            }
+            long start = System.nanoTime();
+            delegate.execSQL(sql);
+            QueryMetrics.record(sql, System.nanoTime() - start, -1);
+        }
+
+        @Override
+        public void execSQL(@NonNull String sql, @NonNull Object[] bindArgs) throws SQLException {
+            if (!QueryMetrics.isEnabled()) {
+                delegate.execSQL(sql, bindArgs);
+                return;
+            }
+            long start = System.nanoTime();
+            delegate.execSQL(sql, bindArgs);
+            QueryMetrics.record(sql, System.nanoTime() - start, -1);
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return delegate.isReadOnly();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public boolean needUpgrade(int newVersion) {
+            return delegate.needUpgrade(newVersion);
+        }
+
+        @Nullable
+        @Override
+        public String getPath() {
+            return delegate.getPath();
+        }
+
+        @Override
+        public void setLocale(@NonNull Locale locale) {
+            delegate.setLocale(locale);
+        }
+
+        @Override
+        public void setMaxSqlCacheSize(int cacheSize) {
+            delegate.setMaxSqlCacheSize(cacheSize);
+        }
+
+        @Override
+        public void setForeignKeyConstraintsEnabled(boolean enabled) {
+            delegate.setForeignKeyConstraintsEnabled(enabled);
+        }
+
+        @Override
+        public boolean enableWriteAheadLogging() {
+            return delegate.enableWriteAheadLogging();
+        }
+
+        @Override
+        public void disableWriteAheadLogging() {
+            delegate.disableWriteAheadLogging();
+        }
+
+        @Override
+        public boolean isWriteAheadLoggingEnabled() {
+            return delegate.isWriteAheadLoggingEnabled();
+        }
+
+        @Nullable
+        @Override
+        public List<Pair<String, String>> getAttachedDbs() {
+            return delegate.getAttachedDbs();
+        }
+
+        @Override
+        public boolean isDatabaseIntegrityOk() {
+            return delegate.isDatabaseIntegrityOk();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    /**
+     * クエリ開始からclose()までを1回の実行として記録する
+     * SQLiteCursorは行の読み込みを遅延するため、読み出しまで含めて計測する
+     */
+    private static class TimedCursor extends CursorWrapper {
+        private final String sql;
+        private final long start;
+        private boolean recorded;
+        // 呼び出し側が読んだ一番後ろの行（件数を数えるためにgetCountで全行を読み込ませない）
+        private int lastReadPosition = -1;
+
+        TimedCursor(Cursor cursor, String sql, long start) {
+            super(cursor);
+            this.sql = sql;
+            this.start = start;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return onMoved(super.moveToNext());
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return onMoved(super.moveToFirst());
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return onMoved(super.moveToLast());
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            return onMoved(super.moveToPosition(position));
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return onMoved(super.move(offset));
+        }
+
+        private boolean onMoved(boolean moved) {
+            if (moved) {
+                lastReadPosition = Math.max(lastReadPosition, getPosition());
+            }
+            return moved;
+        }
+
+        @Override
+        public void close() {
+            if (!recorded) {
+                recorded = true;
+                QueryMetrics.record(sql, System.nanoTime() - start, lastReadPosition + 1);
+            }
+            super.close();
+        }
+    }
+
+    private static class InstrumentedStatement implements SupportSQLiteStatement {
+        private final SupportSQLiteStatement delegate;
+        private final String sql;
+
+        InstrumentedStatement(SupportSQLiteStatement delegate, String sql) {
+            this.delegate = delegate;
+            this.sql = sql;
+        }
+
+        @Override
+        public void execute() {
+            if (!QueryMetrics.isEnabled()) {
+                delegate.execute();
+                return;
+            }
+            long start = System.nanoTime();
+            delegate.execute();
+            QueryMetrics.record(sql, System.nanoTime() - start, -1);
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.executeUpdateDelete();
+            }
+            long start = System.nanoTime();
+            int rows = delegate.executeUpdateDelete();
+            QueryMetrics.record(sql, System.nanoTime() - start, rows);
+            return rows;
+        }
+
+        @Override
+        public long executeInsert() {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.executeInsert();
+            }
+            long start = System.nanoTime();
+            long rowId = delegate.executeInsert();
+            QueryMetrics.record(sql, System.nanoTime() - start, rowId == -1 ? 0 : 1);
+            return rowId;
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.simpleQueryForLong();
+            }
+            long start = System.nanoTime();
+            long result = delegate.simpleQueryForLong();
+            QueryMetrics.record(sql, System.nanoTime() - start, 1);
+            return result;
+        }
+
+        @Nullable
+        @Override
+        public String simpleQueryForString() {
+            if (!QueryMetrics.isEnabled()) {
+                return delegate.simpleQueryForString();
+            }
+            long start = System.nanoTime();
+            String result = delegate.simpleQueryForString();
+            QueryMetrics.record(sql, System.nanoTime() - start, 1);
+            return result;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            delegate.bindNull(index);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            delegate.bindLong(index, value);
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            delegate.bindDouble(index, value);
+        }
+
+        @Override
+        public void bindString(int index, @NonNull String value) {
+            delegate.bindString(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, @NonNull byte[] value) {
+            delegate.bindBlob(index, value);
+        }
+
+        @Override
+        public void clearBindings() {
+            delegate.clearBindings();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
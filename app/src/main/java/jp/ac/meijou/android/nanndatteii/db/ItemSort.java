@@ -0,0 +1,41 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+/**
+ * アイテム一覧の並べ方（何で並べるかと向き）
+ * どの並べ方も(値, id)のインデックスの順に読むので、一時B-treeでの並べ替えは起きない（ItemSortDao参照）
+ */
+public final class ItemSort {
+    public enum Key {
+        // 更新日時（items.updated_at）
+        UPDATED,
+        // タイトル（大文字・小文字を区別しない）
+        TITLE,
+        // ファイルサイズの合計
+        FILE_SIZE,
+        // 付いているタグの名前（複数あれば最小のもの）
+        TAG,
+        // 閲覧日時（未閲覧は最も古い扱い）
+        LAST_VIEWED
+    }
+
+    private final Key key;
+    private final boolean ascending;
+
+    public ItemSort(Key key, boolean ascending) {
+        this.key = key;
+        this.ascending = ascending;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    @Override
+    public String toString() {
+        return key + (ascending ? " ASC" : " DESC");
+    }
+}
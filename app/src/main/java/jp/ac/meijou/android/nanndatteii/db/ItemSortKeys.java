@@ -0,0 +1,108 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * item_sort_keysをitems・files・item_tags・tagsに追従させるトリガー
+ *
+ * - ファイルサイズは差分で足し引きする（一括取り込みでfiles.item_idのインデックスを外していても遅くならない）
+ * - タグ名はitem_tagsの主キー（item_id, tag_id）で引き直す。タグの削除はCASCADEでitem_tagsを通る
+ * - アイテムの削除はCASCADEで行が消える
+ */
+final class ItemSortKeys {
+    private static final String TAG_OF_NEW_ITEM = tagOf("NEW.item_id");
+    private static final String TAG_OF_OLD_ITEM = tagOf("OLD.item_id");
+
+    private static final String[] TRIGGERS = {
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_item_insert AFTER INSERT ON items " +
+        "BEGIN " +
+        "INSERT OR REPLACE INTO item_sort_keys " +
+        "(item_id, sort_title, sort_last_viewed, sort_file_size, sort_tag) " +
+        "VALUES (NEW.id, COALESCE(NEW.title, ''), COALESCE(NEW.last_viewed, 0), 0, ''); " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_item_update AFTER UPDATE OF title, last_viewed ON items " +
+        "BEGIN " +
+        "UPDATE item_sort_keys SET sort_title = COALESCE(NEW.title, ''), " +
+        "sort_last_viewed = COALESCE(NEW.last_viewed, 0) WHERE item_id = NEW.id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_file_insert AFTER INSERT ON files " +
+        "BEGIN " +
+        "UPDATE item_sort_keys SET sort_file_size = sort_file_size + NEW.file_size " +
+        "WHERE item_id = NEW.item_id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_file_update AFTER UPDATE OF item_id, file_size ON files " +
+        "BEGIN " +
+        "UPDATE item_sort_keys SET sort_file_size = sort_file_size - OLD.file_size " +
+        "WHERE item_id = OLD.item_id; " +
+        "UPDATE item_sort_keys SET sort_file_size = sort_file_size + NEW.file_size " +
+        "WHERE item_id = NEW.item_id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_file_delete AFTER DELETE ON files " +
+        "BEGIN " +
+        "UPDATE item_sort_keys SET sort_file_size = sort_file_size - OLD.file_size " +
+        "WHERE item_id = OLD.item_id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_tag_insert AFTER INSERT ON item_tags " +
+        "BEGIN " +
+        "UPDATE item_sort_keys SET sort_tag = " + TAG_OF_NEW_ITEM + " WHERE item_id = NEW.item_id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_tag_delete AFTER DELETE ON item_tags " +
+        "BEGIN " +
+        "UPDATE item_sort_keys SET sort_tag = " + TAG_OF_OLD_ITEM + " WHERE item_id = OLD.item_id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_sort_keys_after_tag_rename AFTER UPDATE OF name ON tags " +
+        "BEGIN " +
+        "UPDATE item_sort_keys SET sort_tag = " + tagOf("item_sort_keys.item_id") + " " +
+        "WHERE item_id IN (SELECT item_id FROM item_tags WHERE tag_id = NEW.id); " +
+        "END"
+    };
+
+    private ItemSortKeys() {
+    }
+
+    /**
+     * トリガーを作成（既にあれば何もしない）
+     */
+    static void installTriggers(SupportSQLiteDatabase db) {
+        for (String sql : TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * トリガーを削除（一括取り込みの間。入れ終わったらrebuildで作り直す）
+     */
+    static void dropTriggers(SupportSQLiteDatabase db) {
+        TriggerCallback.dropTriggers(db, TRIGGERS);
+    }
+
+    /**
+     * items・files・item_tagsからまとめて作り直す
+     * ファイルサイズとタグ名は1回ずつの集計で求め、アイテムごとに引き直さない
+     */
+    static void rebuild(SupportSQLiteDatabase db) {
+        db.execSQL("DELETE FROM item_sort_keys");
+        db.execSQL("INSERT INTO item_sort_keys " +
+            "(item_id, sort_title, sort_last_viewed, sort_file_size, sort_tag) " +
+            "SELECT items.id, COALESCE(items.title, ''), COALESCE(items.last_viewed, 0), " +
+            "COALESCE(sizes.total, 0), COALESCE(first_tags.name, '') " +
+            "FROM items " +
+            "LEFT JOIN (SELECT item_id, SUM(file_size) AS total FROM files GROUP BY item_id) AS sizes " +
+            "ON sizes.item_id = items.id " +
+            "LEFT JOIN (SELECT item_tags.item_id AS item_id, MIN(tags.name) AS name FROM item_tags " +
+            "INNER JOIN tags ON tags.id = item_tags.tag_id GROUP BY item_tags.item_id) AS first_tags " +
+            "ON first_tags.item_id = items.id");
+    }
+
+    private static String tagOf(String itemId) {
+        return "(SELECT COALESCE(MIN(tags.name), '') FROM item_tags " +
+               "INNER JOIN tags ON tags.id = item_tags.tag_id WHERE item_tags.item_id = " + itemId + ")";
+    }
+}
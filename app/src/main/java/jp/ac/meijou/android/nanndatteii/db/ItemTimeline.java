@@ -0,0 +1,110 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.util.TimeZone;
+
+/**
+ * item_day_counts（作成日ごとのアイテム数）をitemsに追従させるトリガー
+ * タイムラインの早送りやカレンダー表示で、itemsを走査せずに日・月ごとの件数を出すため
+ *
+ * 日付はSQLiteのlocaltime（端末のタイムゾーン）で決める。
+ * 数えた時のタイムゾーンを保存しておき、DBを開いた時とタイムゾーンの変更通知
+ * （TimeZoneChangedReceiver）で違っていれば数え直す
+ */
+final class ItemTimeline {
+    private static final String TAG = "ItemTimeline";
+    private static final String PREFS_NAME = "item_timeline";
+    private static final String KEY_ZONE_ID = "zone_id";
+
+    // created_atの日付（yyyyMMddの整数）。TimelineDao.insertCountsFromItemsも同じ式にすること
+    private static final String CREATED_DAY =
+        "CAST(strftime('%Y%m%d', created_at / 1000, 'unixepoch', 'localtime') AS INTEGER)";
+
+    private static final String NEW_DAY = CREATED_DAY.replace("created_at", "NEW.created_at");
+    private static final String OLD_DAY = CREATED_DAY.replace("created_at", "OLD.created_at");
+
+    private static final String[] TRIGGERS = {
+        "CREATE TRIGGER IF NOT EXISTS item_day_counts_after_insert AFTER INSERT ON items " +
+        "BEGIN " +
+        increment(NEW_DAY) +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_day_counts_after_delete AFTER DELETE ON items " +
+        "BEGIN " +
+        decrement(OLD_DAY) +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS item_day_counts_after_move AFTER UPDATE OF created_at ON items " +
+        "WHEN " + OLD_DAY + " != " + NEW_DAY + " " +
+        "BEGIN " +
+        decrement(OLD_DAY) +
+        increment(NEW_DAY) +
+        "END"
+    };
+
+    private ItemTimeline() {
+    }
+
+    /**
+     * トリガーを作成（既にあれば何もしない）
+     */
+    static void installTriggers(SupportSQLiteDatabase db) {
+        for (String sql : TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * トリガーを削除（一括取り込みの間。入れ終わったらrebuildで数え直す）
+     */
+    static void dropTriggers(SupportSQLiteDatabase db) {
+        TriggerCallback.dropTriggers(db, TRIGGERS);
+    }
+
+    /**
+     * 数えた時とタイムゾーンが違えば、rebuildで数え直してから今のタイムゾーンを保存する
+     */
+    static synchronized void rebuildIfZoneChanged(Context context, Runnable rebuild) {
+        String zoneId = TimeZone.getDefault().getID();
+        SharedPreferences prefs = context.getApplicationContext()
+            .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String counted = prefs.getString(KEY_ZONE_ID, null);
+        if (zoneId.equals(counted)) {
+            return;
+        }
+        Log.i(TAG, "rebuildIfZoneChanged: " + counted + " -> " + zoneId);
+        rebuild.run();
+        prefs.edit().putString(KEY_ZONE_ID, zoneId).commit();
+    }
+
+    /**
+     * itemsから数え直す（DBを開いた時・一括取り込みの後。DAOを使えない間に呼ぶ）
+     */
+    static void rebuild(SupportSQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM item_day_counts");
+            db.execSQL("INSERT INTO item_day_counts (day, count) " +
+                       "SELECT " + CREATED_DAY + ", COUNT(*) FROM items GROUP BY 1");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // UPSERT（ON CONFLICT DO UPDATE）はSQLite 3.24からで古い端末にはないので、2文に分ける
+    private static String increment(String day) {
+        return "INSERT OR IGNORE INTO item_day_counts (day, count) VALUES (" + day + ", 0); " +
+               "UPDATE item_day_counts SET count = count + 1 WHERE day = " + day + "; ";
+    }
+
+    private static String decrement(String day) {
+        return "UPDATE item_day_counts SET count = count - 1 WHERE day = " + day + "; " +
+               "DELETE FROM item_day_counts WHERE day = " + day + " AND count <= 0; ";
+    }
+}
@@ -0,0 +1,47 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * タグの付け外しでアイテムのupdated_atを進めるトリガー
+ * 差分の書き出し（updated_atのウォーターマーク）にタグの変更も含まれるようにする
+ *
+ * タグの統合・削除（CASCADEでitem_tagsが消える）もトリガーを通る。
+ * 時計が戻っても値が減らないよう、元の値より小さくはしない
+ */
+final class ItemTimestamps {
+    static final String NOW_MILLIS =
+        "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    private static final String[] TRIGGERS = {
+        "CREATE TRIGGER IF NOT EXISTS items_touch_after_tag_insert AFTER INSERT ON item_tags " +
+        "BEGIN " +
+        "UPDATE items SET updated_at = MAX(updated_at, " + NOW_MILLIS + ") WHERE id = NEW.item_id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS items_touch_after_tag_delete AFTER DELETE ON item_tags " +
+        "BEGIN " +
+        "UPDATE items SET updated_at = MAX(updated_at, " + NOW_MILLIS + ") WHERE id = OLD.item_id; " +
+        "END"
+    };
+
+    private ItemTimestamps() {
+    }
+
+    /**
+     * トリガーを作成（既にあれば何もしない）
+     */
+    static void installTriggers(SupportSQLiteDatabase db) {
+        for (String sql : TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * トリガーを削除（一括取り込みの間、元のupdated_atを保つため）
+     */
+    static void dropTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS items_touch_after_tag_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS items_touch_after_tag_delete");
+    }
+}
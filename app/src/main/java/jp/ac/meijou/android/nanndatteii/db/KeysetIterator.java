@@ -0,0 +1,113 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 大きな結果をキー順にchunkSize件ずつ読みながら、1件ずつ返す（キーセットページング）
+ *
+ * 保持するのは読んでいる1チャンク分だけで、チャンクの間はカーソルもトランザクションも持たない。
+ * 各チャンクは別のクエリなので、読んでいる間の書き込みはまだ読んでいない範囲にだけ反映される。
+ * idのように行の更新で変わらないキーなら、同じ行を2回返したり読み飛ばしたりはしない。
+ * updated_atのように更新で変わるキーでは、読んだ後に更新された行は新しい位置でもう一度返り、
+ * まだ読んでいない行のキーが読んだ位置より前へ戻されると読み飛ばす
+ *
+ * 最後まで読むと自動で閉じる。途中でやめる場合はclose（try-with-resources）で残りを読まないようにする。
+ * DAOの同期メソッドを呼ぶのでメインスレッド以外で使う
+ */
+public final class KeysetIterator<T> implements Iterator<T>, Closeable {
+    /**
+     * lastの次からlimit件をキー順に読む
+     */
+    public interface ChunkLoader<T> {
+        /**
+         * @param last 前のチャンクの最後の行（最初のチャンクではnull）
+         */
+        List<T> load(T last, int limit);
+    }
+
+    private final int chunkSize;
+    private final ChunkLoader<T> loader;
+    private List<T> chunk = Collections.emptyList();
+    private int position;
+    private T last;
+    private boolean exhausted;
+    private boolean closed;
+    private int loadedChunks;
+
+    public KeysetIterator(int chunkSize, ChunkLoader<T> loader) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.loader = loader;
+    }
+
+    @WorkerThread
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (position < chunk.size()) {
+            return true;
+        }
+        if (!exhausted) {
+            chunk = loader.load(last, chunkSize);
+            position = 0;
+            loadedChunks++;
+            // limit件に満たなければ次のチャンクはない（空のクエリを1回減らす）
+            exhausted = chunk.size() < chunkSize;
+            if (!chunk.isEmpty()) {
+                last = chunk.get(chunk.size() - 1);
+                return true;
+            }
+        }
+        close();
+        return false;
+    }
+
+    @WorkerThread
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.get(position++);
+    }
+
+    /**
+     * 残りを読まずに終える（何度呼んでもよい）
+     */
+    @Override
+    public void close() {
+        closed = true;
+        chunk = Collections.emptyList();
+        last = null;
+    }
+
+    /**
+     * これまでに実行したクエリの数（計測・テスト用）
+     */
+    public int getLoadedChunkCount() {
+        return loadedChunks;
+    }
+
+    /**
+     * 順次のStreamとして読む（Streamをcloseするとこのイテレーターも閉じる）
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(this::close);
+    }
+}
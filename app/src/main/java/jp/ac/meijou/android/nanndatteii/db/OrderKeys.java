@@ -0,0 +1,216 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+/**
+ * 手動の並び順に使う並び替えキー（文字列の辞書順がそのまま並び順になる）
+ *
+ * 2つのキーの間に入るキーをいつでも作れるので、並べ替えは動かした1行のキーを書き換えるだけで済む。
+ * キーは62進数（0-9A-Za-z、ASCII順）で、先頭の「整数部」と残りの「小数部」からなる
+ * - 整数部: 先頭の1文字が桁数を表す（a〜z: 2〜27桁の正の数、A〜Z: 負の数）。
+ *   末尾への追加は整数部を1増やすだけなので、何件追加してもキーは桁数分しか伸びない
+ * - 小数部: 間に入れる時に使う。同じ所へ何度も差し込むと約6回で1文字伸びる
+ *   （長くなったらCollectionRebalanceJobで振り直す）
+ *
+ * SQLiteの既定の照合順序（BINARY）とString.compareToはASCIIの範囲で同じ順になる
+ */
+public final class OrderKeys {
+    private static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int BASE = DIGITS.length();
+    private static final String INTEGER_ZERO = "a0";
+    // これより小さい整数部はないので、前に入れる時は小数部を使う
+    private static final String SMALLEST_INTEGER = "A" + repeat('0', 26);
+
+    private OrderKeys() {
+    }
+
+    /**
+     * aとbの間に入るキー
+     * @param a 前のキー（先頭に入れる場合はnull）
+     * @param b 後ろのキー（末尾に入れる場合はnull）
+     * @throws IllegalArgumentException aがb以上か、このクラスで作ったキーでない
+     */
+    public static String between(String a, String b) {
+        if (a != null) {
+            validate(a);
+        }
+        if (b != null) {
+            validate(b);
+        }
+        if (a != null && b != null && a.compareTo(b) >= 0) {
+            throw new IllegalArgumentException("キーの順序が逆です: " + a + " >= " + b);
+        }
+        if (a == null) {
+            if (b == null) {
+                return INTEGER_ZERO;
+            }
+            String ib = integerPart(b);
+            String fb = b.substring(ib.length());
+            if (ib.equals(SMALLEST_INTEGER)) {
+                return ib + midpoint("", fb);
+            }
+            if (ib.length() < b.length()) {
+                // 小数部を落とすだけで前になる
+                return ib;
+            }
+            return decrementInteger(ib);
+        }
+        String ia = integerPart(a);
+        String fa = a.substring(ia.length());
+        if (b == null) {
+            String next = incrementInteger(ia);
+            return next != null ? next : ia + midpoint(fa, null);
+        }
+        String ib = integerPart(b);
+        String fb = b.substring(ib.length());
+        if (ia.equals(ib)) {
+            return ia + midpoint(fa, fb);
+        }
+        String next = incrementInteger(ia);
+        if (next != null && next.compareTo(b) < 0) {
+            return next;
+        }
+        return ia + midpoint(fa, null);
+    }
+
+    /**
+     * キーが正しい形か（外から入った値の確認用）
+     */
+    public static boolean isValid(String key) {
+        try {
+            validate(key);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void validate(String key) {
+        if (key.isEmpty() || key.equals(SMALLEST_INTEGER)) {
+            throw new IllegalArgumentException("不正なキー: " + key);
+        }
+        String integer = integerPart(key);
+        for (int i = 1; i < key.length(); i++) {
+            if (DIGITS.indexOf(key.charAt(i)) < 0) {
+                throw new IllegalArgumentException("不正なキー: " + key);
+            }
+        }
+        // 小数部の末尾が0だと、その直前に入るキーが作れない
+        if (key.length() > integer.length() && key.charAt(key.length() - 1) == '0') {
+            throw new IllegalArgumentException("不正なキー: " + key);
+        }
+    }
+
+    private static String integerPart(String key) {
+        int length = integerLength(key.charAt(0));
+        if (length > key.length()) {
+            throw new IllegalArgumentException("不正なキー: " + key);
+        }
+        return key.substring(0, length);
+    }
+
+    private static int integerLength(char head) {
+        if (head >= 'a' && head <= 'z') {
+            return head - 'a' + 2;
+        }
+        if (head >= 'A' && head <= 'Z') {
+            return 'Z' - head + 2;
+        }
+        throw new IllegalArgumentException("不正なキーの先頭: " + head);
+    }
+
+    /**
+     * 整数部を1増やす（桁が増える場合は先頭の文字も進める。最大ならnull）
+     */
+    private static String incrementInteger(String integer) {
+        char head = integer.charAt(0);
+        StringBuilder digits = new StringBuilder(integer.substring(1));
+        boolean carry = true;
+        for (int i = digits.length() - 1; carry && i >= 0; i--) {
+            int digit = DIGITS.indexOf(digits.charAt(i)) + 1;
+            if (digit == BASE) {
+                digits.setCharAt(i, '0');
+            } else {
+                digits.setCharAt(i, DIGITS.charAt(digit));
+                carry = false;
+            }
+        }
+        if (!carry) {
+            return head + digits.toString();
+        }
+        if (head == 'Z') {
+            return INTEGER_ZERO;
+        }
+        if (head == 'z') {
+            return null;
+        }
+        char nextHead = (char) (head + 1);
+        if (nextHead > 'a') {
+            digits.append('0');
+        } else {
+            digits.deleteCharAt(digits.length() - 1);
+        }
+        return nextHead + digits.toString();
+    }
+
+    /**
+     * 整数部を1減らす（SMALLEST_INTEGERより前はないので呼び出し側で除く）
+     */
+    private static String decrementInteger(String integer) {
+        char head = integer.charAt(0);
+        StringBuilder digits = new StringBuilder(integer.substring(1));
+        boolean borrow = true;
+        for (int i = digits.length() - 1; borrow && i >= 0; i--) {
+            int digit = DIGITS.indexOf(digits.charAt(i)) - 1;
+            if (digit == -1) {
+                digits.setCharAt(i, DIGITS.charAt(BASE - 1));
+            } else {
+                digits.setCharAt(i, DIGITS.charAt(digit));
+                borrow = false;
+            }
+        }
+        if (!borrow) {
+            return head + digits.toString();
+        }
+        if (head == 'a') {
+            return "Z" + DIGITS.charAt(BASE - 1);
+        }
+        char previousHead = (char) (head - 1);
+        if (previousHead < 'Z') {
+            digits.append(DIGITS.charAt(BASE - 1));
+        } else {
+            digits.deleteCharAt(digits.length() - 1);
+        }
+        return previousHead + digits.toString();
+    }
+
+    /**
+     * 小数部aとbの間（bがnullなら上限なし）。aが短い場合は末尾を0で埋めて比べる
+     */
+    private static String midpoint(String a, String b) {
+        if (b != null) {
+            int n = 0;
+            while (n < b.length() && (n < a.length() ? a.charAt(n) : '0') == b.charAt(n)) {
+                n++;
+            }
+            if (n > 0) {
+                return b.substring(0, n) + midpoint(n < a.length() ? a.substring(n) : "", b.substring(n));
+            }
+        }
+        int digitA = a.isEmpty() ? 0 : DIGITS.indexOf(a.charAt(0));
+        int digitB = b != null ? DIGITS.indexOf(b.charAt(0)) : BASE;
+        if (digitB - digitA > 1) {
+            return String.valueOf(DIGITS.charAt((digitA + digitB + 1) / 2));
+        }
+        if (b != null && b.length() > 1) {
+            return b.substring(0, 1);
+        }
+        return DIGITS.charAt(digitA) + midpoint(a.isEmpty() ? "" : a.substring(1), null);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * tag_closureを維持するトリガー
+ * タグの追加・移動（parent_idの更新）・削除をどの経路で行っても閉包テーブルが追従する
+ *
+ * - 追加: 自分自身と、親の祖先すべてとの組を追加
+ * - 移動: 部分木と外の祖先との組を消し、新しい親の祖先 × 部分木の組を追加
+ *         自分の部分木の中へ移動しようとした場合はABORT（SQLiteConstraintException）
+ * - 削除: 子は削除されるタグの親に付け替える（自分の行はCASCADEで消える）
+ */
+final class TagHierarchy {
+    private static final String[] TRIGGERS = {
+        "CREATE TRIGGER IF NOT EXISTS tag_closure_after_insert AFTER INSERT ON tags " +
+        "BEGIN " +
+        "INSERT INTO tag_closure (ancestor_id, descendant_id, depth) " +
+        "SELECT NEW.id, NEW.id, 0 " +
+        "UNION ALL " +
+        "SELECT ancestor_id, NEW.id, depth + 1 FROM tag_closure WHERE descendant_id = NEW.parent_id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS tag_closure_before_move BEFORE UPDATE OF parent_id ON tags " +
+        "WHEN NEW.parent_id IS NOT NULL " +
+        "BEGIN " +
+        "SELECT RAISE(ABORT, 'tag cannot be moved under its own subtree') WHERE EXISTS " +
+        "(SELECT 1 FROM tag_closure WHERE ancestor_id = NEW.id AND descendant_id = NEW.parent_id); " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS tag_closure_after_move AFTER UPDATE OF parent_id ON tags " +
+        "WHEN OLD.parent_id IS NOT NEW.parent_id " +
+        "BEGIN " +
+        "DELETE FROM tag_closure " +
+        "WHERE descendant_id IN (SELECT descendant_id FROM tag_closure WHERE ancestor_id = NEW.id) " +
+        "AND ancestor_id NOT IN (SELECT descendant_id FROM tag_closure WHERE ancestor_id = NEW.id); " +
+        "INSERT INTO tag_closure (ancestor_id, descendant_id, depth) " +
+        "SELECT above.ancestor_id, below.descendant_id, above.depth + below.depth + 1 " +
+        "FROM tag_closure AS above, tag_closure AS below " +
+        "WHERE above.descendant_id = NEW.parent_id AND below.ancestor_id = NEW.id; " +
+        "END",
+
+        "CREATE TRIGGER IF NOT EXISTS tag_closure_before_delete BEFORE DELETE ON tags " +
+        "BEGIN " +
+        "UPDATE tags SET parent_id = OLD.parent_id WHERE parent_id = OLD.id; " +
+        "END"
+    };
+
+    private TagHierarchy() {
+    }
+
+    /**
+     * トリガーを作成（既にあれば何もしない）
+     */
+    static void installTriggers(SupportSQLiteDatabase db) {
+        for (String sql : TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * トリガーを削除（一括取り込みの間。入れ終わったらrebuildで作り直す）
+     * 外している間は自分の部分木の中への移動も止められないので、親は書庫のとおりに付けること
+     */
+    static void dropTriggers(SupportSQLiteDatabase db) {
+        TriggerCallback.dropTriggers(db, TRIGGERS);
+    }
+
+    /**
+     * tagsのparent_idから閉包テーブルを作り直す（各タグから根までたどる）
+     * 親子が輪になっていれば深さがタグの数を超えた所で止まり、主キーの重複で失敗する
+     */
+    static void rebuild(SupportSQLiteDatabase db) {
+        db.execSQL("DELETE FROM tag_closure");
+        db.execSQL("WITH RECURSIVE paths (ancestor_id, descendant_id, depth) AS (" +
+            "SELECT id, id, 0 FROM tags " +
+            "UNION ALL " +
+            "SELECT tags.parent_id, paths.descendant_id, paths.depth + 1 FROM paths " +
+            "INNER JOIN tags ON tags.id = paths.ancestor_id " +
+            "WHERE tags.parent_id IS NOT NULL AND paths.depth < (SELECT COUNT(*) FROM tags)) " +
+            "INSERT INTO tag_closure (ancestor_id, descendant_id, depth) " +
+            "SELECT ancestor_id, descendant_id, depth FROM paths");
+    }
+}
@@ -0,0 +1,33 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+/**
+ * DBを開くたびにトリガーを作る（既にあれば何もしない）
+ * 閉包テーブル・updated_at・change_log・タイムライン・並べ替えの値はトリガーで追従するので、
+ * AppDatabaseを作るビルダーには（テストのインメモリDBも含めて）必ず付けること
+ */
+public class TriggerCallback extends RoomDatabase.Callback {
+    @Override
+    public void onOpen(@NonNull SupportSQLiteDatabase db) {
+        super.onOpen(db);
+        // 作成時・破壊的マイグレーション後のどちらでも入るようonOpenで作る
+        TagHierarchy.installTriggers(db);
+        ItemTimestamps.installTriggers(db);
+        ChangeLog.installTriggers(db);
+        ItemTimeline.installTriggers(db);
+        ItemSortKeys.installTriggers(db);
+    }
+
+    /**
+     * CREATE TRIGGER文の並びにあるトリガーを削除する（一括取り込みの間外しておくため）
+     */
+    static void dropTriggers(SupportSQLiteDatabase db, String[] createStatements) {
+        for (String sql : createStatements) {
+            // "CREATE TRIGGER IF NOT EXISTS <名前> ..."
+            db.execSQL("DROP TRIGGER IF EXISTS " + sql.split(" ")[5]);
+        }
+    }
+}
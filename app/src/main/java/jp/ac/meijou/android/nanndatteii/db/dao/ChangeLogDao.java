@@ -0,0 +1,95 @@
+package jp.ac.meijou.android.nanndatteii.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeConsumer;
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeLogEntry;
+
+/**
+ * change_logの読み出しと、購読者の読み終えた位置の管理（行の追加はトリガーが行う）
+ */
+@Dao
+public interface ChangeLogDao {
+    /**
+     * afterSeqより後の変更をseq順にlimit件（同期で取り込んだ変更も含む）
+     */
+    @Query("SELECT * FROM change_log WHERE seq > :afterSeq ORDER BY seq LIMIT :limit")
+    List<ChangeLogEntry> getChangesAfterSync(long afterSeq, int limit);
+
+    /**
+     * 最後に記録された変更のseq（空なら0）
+     */
+    @Query("SELECT COALESCE(MAX(seq), 0) FROM change_log")
+    long getLastSeqSync();
+
+    /**
+     * afterSeqより後の変更を同期で取り込んだものとする（取り込みと同じトランザクションで呼ぶ）
+     */
+    @Query("UPDATE change_log SET remote = 1 WHERE seq > :afterSeq")
+    int markRemoteAfter(long afterSeq);
+
+    /**
+     * すべての購読者が読み終えた変更を消す
+     * 購読者がいなければ全部消す（新しい購読者は登録した時点より後だけを読む）
+     */
+    @Query("DELETE FROM change_log WHERE seq <= COALESCE(" +
+           "(SELECT MIN(checkpoint) FROM change_consumers), (SELECT MAX(seq) FROM change_log))")
+    int truncate();
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insertConsumer(ChangeConsumer consumer);
+
+    @Query("SELECT * FROM change_consumers WHERE name = :name")
+    ChangeConsumer getConsumerSync(String name);
+
+    @Query("SELECT * FROM change_consumers ORDER BY name")
+    List<ChangeConsumer> getConsumersSync();
+
+    /**
+     * 読み終えた位置を進める（戻すことはしない）
+     */
+    @Query("UPDATE change_consumers SET checkpoint = :seq, updated_at = :now " +
+           "WHERE name = :name AND checkpoint < :seq")
+    int advanceConsumer(String name, long seq, long now);
+
+    @Query("DELETE FROM change_consumers WHERE name = :name")
+    int deleteConsumer(String name);
+
+    /**
+     * 購読者を登録し、読み終えた位置を返す
+     * 新しい購読者は今の最後の変更まで読み終えたことにする（既にあれば位置は変えない）
+     */
+    @Transaction
+    default long subscribe(String name, long now) {
+        ChangeConsumer consumer = new ChangeConsumer();
+        consumer.setName(name);
+        consumer.setCheckpoint(getLastSeqSync());
+        consumer.setUpdatedAt(now);
+        insertConsumer(consumer);
+        return getConsumerSync(name).getCheckpoint();
+    }
+
+    /**
+     * 位置を進めて、全員が読み終えた変更を消す
+     */
+    @Transaction
+    default void commit(String name, long seq, long now) {
+        advanceConsumer(name, seq, now);
+        truncate();
+    }
+
+    /**
+     * 購読をやめる（この購読者だけが読んでいなかった変更も消える）
+     */
+    @Transaction
+    default void unsubscribe(String name) {
+        deleteConsumer(name);
+        truncate();
+    }
+}
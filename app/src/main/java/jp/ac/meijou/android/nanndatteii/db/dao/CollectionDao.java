@@ -0,0 +1,179 @@
+package jp.ac.meijou.android.nanndatteii.db.dao;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+import androidx.room.Update;
+
+import java.util.Collection;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.OrderKeys;
+import jp.ac.meijou.android.nanndatteii.db.entity.CollectionItem;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemCollection;
+
+/**
+ * コレクションと、その中のアイテムの並び順
+ * 並びはorder_keyの順で、(collection_id, order_key)のインデックスからそのまま読む
+ */
+@Dao
+public interface CollectionDao {
+    @Insert
+    long insert(ItemCollection collection);
+
+    @Update
+    void update(ItemCollection collection);
+
+    @Query("DELETE FROM collections WHERE id = :collectionId")
+    int deleteById(long collectionId);
+
+    @Query("SELECT * FROM collections ORDER BY name")
+    LiveData<List<ItemCollection>> getAllCollections();
+
+    @Query("SELECT * FROM collections WHERE id = :collectionId")
+    ItemCollection getCollectionByIdSync(long collectionId);
+
+    /**
+     * コレクションのアイテムを並び順で取得
+     */
+    @Query("SELECT items.* FROM collection_items " +
+           "INNER JOIN items ON items.id = collection_items.item_id " +
+           "WHERE collection_items.collection_id = :collectionId " +
+           "ORDER BY collection_items.order_key")
+    LiveData<List<Item>> getItems(long collectionId);
+
+    /**
+     * afterKeyより後をlimit件（キーセットページング。先頭から読むなら空文字）
+     */
+    @Query("SELECT * FROM collection_items " +
+           "WHERE collection_id = :collectionId AND order_key > :afterKey " +
+           "ORDER BY order_key LIMIT :limit")
+    List<CollectionItem> getEntriesAfterSync(long collectionId, String afterKey, int limit);
+
+    @Query("SELECT * FROM collection_items WHERE collection_id = :collectionId AND item_id = :itemId")
+    CollectionItem getEntrySync(long collectionId, long itemId);
+
+    /**
+     * keyのすぐ後ろのキー（末尾ならnull）
+     */
+    @Query("SELECT order_key FROM collection_items " +
+           "WHERE collection_id = :collectionId AND order_key > :key " +
+           "ORDER BY order_key LIMIT 1")
+    String getKeyAfterSync(long collectionId, String key);
+
+    @Query("SELECT MIN(order_key) FROM collection_items WHERE collection_id = :collectionId")
+    String getFirstKeySync(long collectionId);
+
+    @Query("SELECT MAX(order_key) FROM collection_items WHERE collection_id = :collectionId")
+    String getLastKeySync(long collectionId);
+
+    @Query("SELECT item_id FROM collection_items WHERE collection_id = :collectionId ORDER BY order_key")
+    List<Long> getItemIdsInOrderSync(long collectionId);
+
+    @Query("SELECT COUNT(*) FROM collection_items WHERE collection_id = :collectionId")
+    int countItems(long collectionId);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insertEntry(CollectionItem entry);
+
+    @Query("UPDATE collection_items SET order_key = :orderKey " +
+           "WHERE collection_id = :collectionId AND item_id = :itemId")
+    int updateKey(long collectionId, long itemId, String orderKey);
+
+    @Query("DELETE FROM collection_items WHERE collection_id = :collectionId AND item_id IN (:itemIds)")
+    int removeItemsChunk(long collectionId, List<Long> itemIds);
+
+    /**
+     * 振り直しの間だけ使う仮のキーにする（'~'は正しいキーのどの文字よりも後ろで、item_idで重ならない）
+     */
+    @Query("UPDATE collection_items SET order_key = '~' || item_id WHERE collection_id = :collectionId")
+    int clearKeys(long collectionId);
+
+    /**
+     * 末尾に追加する（既に入っているアイテムは動かさない）
+     * @return 追加した最後のキー（何も追加しなければnull）
+     */
+    @Transaction
+    default String addItems(long collectionId, Collection<Long> itemIds, long now) {
+        String last = getLastKeySync(collectionId);
+        String added = null;
+        for (long itemId : itemIds) {
+            CollectionItem entry = new CollectionItem();
+            entry.setCollectionId(collectionId);
+            entry.setItemId(itemId);
+            entry.setOrderKey(OrderKeys.between(last, null));
+            entry.setAddedAt(now);
+            if (insertEntry(entry) != -1) {
+                last = entry.getOrderKey();
+                added = last;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * 複数のアイテムをコレクションから外す（ほかのキーは変えない）
+     */
+    @Transaction
+    default int removeItems(long collectionId, Collection<Long> itemIds) {
+        int removed = 0;
+        for (List<Long> chunk : AppDatabase.chunk(itemIds)) {
+            removed += removeItemsChunk(collectionId, chunk);
+        }
+        return removed;
+    }
+
+    /**
+     * アイテムをafterItemIdの直後へ動かす（書き換えるのは動かす1行のキーだけ）
+     * @param afterItemId 直前に来るアイテム（先頭へ動かすならnull）
+     * @return 新しいキー（どちらかがコレクションにない場合はnull）
+     */
+    @Transaction
+    default String moveItem(long collectionId, long itemId, Long afterItemId) {
+        CollectionItem moving = getEntrySync(collectionId, itemId);
+        if (moving == null) {
+            return null;
+        }
+        if (afterItemId != null && afterItemId == itemId) {
+            return moving.getOrderKey();
+        }
+        String prevKey = null;
+        if (afterItemId != null) {
+            CollectionItem after = getEntrySync(collectionId, afterItemId);
+            if (after == null) {
+                return null;
+            }
+            prevKey = after.getOrderKey();
+        }
+        String nextKey = prevKey != null ? getKeyAfterSync(collectionId, prevKey) : getFirstKeySync(collectionId);
+        if (moving.getOrderKey().equals(nextKey)) {
+            // 既にその位置にある
+            return nextKey;
+        }
+        String key = OrderKeys.between(prevKey, nextKey);
+        updateKey(collectionId, itemId, key);
+        return key;
+    }
+
+    /**
+     * 並び順を変えずにキーを短く振り直す（同じ所への差し込みが続いてキーが伸びた時）
+     * @return 振り直した件数
+     */
+    @Transaction
+    default int rebalance(long collectionId) {
+        List<Long> itemIds = getItemIdsInOrderSync(collectionId);
+        // 振り直しの途中でユニーク制約に当たらないよう、いったん仮のキーにする
+        clearKeys(collectionId);
+        String key = null;
+        for (long itemId : itemIds) {
+            key = OrderKeys.between(key, null);
+            updateKey(collectionId, itemId, key);
+        }
+        return itemIds.size();
+    }
+}
@@ -9,6 +9,7 @@ import androidx.room.Update;
 
 import java.util.List;
 
+import jp.ac.meijou.android.nanndatteii.db.KeysetIterator;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
 
 @Dao
@@ -16,6 +17,9 @@ public interface FileDao {
     @Insert
     long insert(ItemFile file);
 
+    @Insert
+    void insertAll(List<ItemFile> files);
+
     @Update
     void update(ItemFile file);
 
@@ -28,9 +32,41 @@ public interface FileDao {
     @Query("SELECT * FROM files WHERE item_id = :itemId")
     List<ItemFile> getFilesByItemIdSync(long itemId);
 
+    @Query("SELECT * FROM files WHERE id IN (:fileIds)")
+    List<ItemFile> getFilesByIdsSync(List<Long> fileIds);
+
+    @Query("SELECT * FROM files WHERE uid = :uid")
+    ItemFile getFileByUidSync(String uid);
+
+    @Query("SELECT * FROM files WHERE uid IN (:uids)")
+    List<ItemFile> getFilesByUidsSync(List<String> uids);
+
+    /**
+     * idがafterIdより大きいファイルのidをid順にlimit件（キーセットページング）
+     */
+    @Query("SELECT id FROM files WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<Long> getFileIdsAfterSync(long afterId, int limit);
+
+    /**
+     * idがafterIdより大きいファイルをid順にlimit件（キーセットページング）
+     */
+    @Query("SELECT * FROM files WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<ItemFile> getFilesAfterSync(long afterId, int limit);
+
+    /**
+     * 全ファイルをid順に、chunkSize件ずつ読みながら1件ずつ返す（try-with-resourcesで使う）
+     */
+    default KeysetIterator<ItemFile> iterateFiles(int chunkSize) {
+        return new KeysetIterator<>(chunkSize,
+            (last, limit) -> getFilesAfterSync(last != null ? last.getId() : 0, limit));
+    }
+
     @Query("SELECT * FROM files WHERE file_type = :fileType")
     LiveData<List<ItemFile>> getFilesByType(String fileType);
 
+    @Query("SELECT COUNT(*) FROM files")
+    int countFilesSync();
+
     @Query("SELECT file_path FROM files")
     List<String> getAllFilePaths();
 }
@@ -0,0 +1,60 @@
+package jp.ac.meijou.android.nanndatteii.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportSession;
+
+@Dao
+public interface ImportDao {
+    @Insert
+    long insertSession(ImportSession session);
+
+    @Query("SELECT * FROM import_sessions WHERE id = :sessionId")
+    ImportSession getSessionSync(long sessionId);
+
+    @Query("UPDATE import_sessions SET status = :status WHERE id = :sessionId")
+    int updateSessionStatus(long sessionId, String status);
+
+    /**
+     * フォルダの走査が終わった（走査中に中止されていれば変えない）
+     */
+    @Query("UPDATE import_sessions SET status = 'RUNNING' WHERE id = :sessionId AND status = 'SCANNING'")
+    int markScanned(long sessionId);
+
+    /**
+     * セッションを削除（取り込み対象もCASCADEで削除される）
+     */
+    @Query("DELETE FROM import_sessions WHERE id = :sessionId")
+    void deleteSession(long sessionId);
+
+    /**
+     * 同じセッションに同じURIが既にあれば無視する（フォルダの再走査用）
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertEntries(List<ImportEntry> entries);
+
+    /**
+     * 未処理の取り込み対象をID順に取得（afterIdより後ろからlimit件）
+     */
+    @Query("SELECT * FROM import_entries WHERE session_id = :sessionId AND status = 'PENDING' " +
+           "AND id > :afterId ORDER BY id LIMIT :limit")
+    List<ImportEntry> getPendingEntries(long sessionId, long afterId, int limit);
+
+    @Query("UPDATE import_entries SET status = 'DONE', item_id = :itemId WHERE id = :entryId")
+    void markDone(long entryId, long itemId);
+
+    @Query("UPDATE import_entries SET status = 'FAILED', error = :error WHERE id = :entryId")
+    void markFailed(long entryId, String error);
+
+    @Query("SELECT COUNT(*) FROM import_entries WHERE session_id = :sessionId")
+    int countEntries(long sessionId);
+
+    @Query("SELECT COUNT(*) FROM import_entries WHERE session_id = :sessionId AND status = :status")
+    int countByStatus(long sessionId, String status);
+}
@@ -5,17 +5,23 @@ import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.Transaction;
 import androidx.room.Update;
 
 import java.util.List;
 
+import jp.ac.meijou.android.nanndatteii.db.KeysetIterator;
 import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.relation.ItemWithFilesAndTags;
 
 @Dao
 public interface ItemDao {
     @Insert
     long insert(Item item);
 
+    @Insert
+    List<Long> insertAll(List<Item> items);
+
     @Update
     void update(Item item);
 
@@ -25,12 +31,71 @@ public interface ItemDao {
     @Query("SELECT * FROM items ORDER BY created_at DESC")
     LiveData<List<Item>> getAllItems();
 
+    @Query("SELECT * FROM items ORDER BY created_at DESC")
+    List<Item> getAllItemsSync();
+
     @Query("SELECT * FROM items WHERE id = :itemId")
     LiveData<Item> getItemById(long itemId);
 
     @Query("SELECT * FROM items WHERE id = :itemId")
     Item getItemByIdSync(long itemId);
 
+    /**
+     * アイテムとそのファイル・タグ（ファイルとタグはそれぞれ1回のクエリで引かれる）
+     */
+    @Transaction
+    @Query("SELECT * FROM items WHERE id = :itemId")
+    ItemWithFilesAndTags getItemWithFilesAndTagsSync(long itemId);
+
+    /**
+     * 複数アイテムとそのファイル・タグ（全アイテム分のファイルとタグをIN句でまとめて引く）
+     * itemIdsはAppDatabase.MAX_BIND_ARGS以下にすること
+     */
+    @Transaction
+    @Query("SELECT * FROM items WHERE id IN (:itemIds)")
+    List<ItemWithFilesAndTags> getItemsWithFilesAndTagsSync(List<Long> itemIds);
+
+    @Query("SELECT * FROM items WHERE id IN (:itemIds)")
+    List<Item> getItemsByIdsSync(List<Long> itemIds);
+
+    @Query("SELECT * FROM items WHERE uid = :uid")
+    Item getItemByUidSync(String uid);
+
+    @Query("SELECT * FROM items WHERE uid IN (:uids)")
+    List<Item> getItemsByUidsSync(List<String> uids);
+
+    /**
+     * idがafterIdより大きいアイテムのidをid順にlimit件（キーセットページング）
+     */
+    @Query("SELECT id FROM items WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<Long> getItemIdsAfterSync(long afterId, int limit);
+
+    /**
+     * idがafterIdより大きいアイテムをid順にlimit件（キーセットページング）
+     */
+    @Query("SELECT * FROM items WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<Item> getItemsAfterSync(long afterId, int limit);
+
+    /**
+     * 全アイテムをid順に、chunkSize件ずつ読みながら1件ずつ返す（try-with-resourcesで使う）
+     */
+    default KeysetIterator<Item> iterateItems(int chunkSize) {
+        return new KeysetIterator<>(chunkSize,
+            (last, limit) -> getItemsAfterSync(last != null ? last.getId() : 0, limit));
+    }
+
+    @Query("DELETE FROM items WHERE id = :itemId")
+    int deleteById(long itemId);
+
+    @Query("SELECT COUNT(*) FROM items")
+    int countItemsSync();
+
+    /**
+     * updated_atの最大値（アイテムがなければnull。updated_atのインデックスの末尾を読むだけ）
+     */
+    @Query("SELECT MAX(updated_at) FROM items")
+    Long getMaxUpdatedAtSync();
+
     @Query("UPDATE items SET last_viewed = :timestamp WHERE id = :itemId")
     void updateLastViewed(long itemId, long timestamp);
 
@@ -41,4 +106,58 @@ public interface ItemDao {
            "(SELECT item_id FROM item_tags WHERE tag_id = :tagId) " +
            "ORDER BY created_at DESC")
     LiveData<List<Item>> getItemsByTag(long tagId);
+
+    @Query("SELECT * FROM items WHERE id IN " +
+           "(SELECT item_id FROM item_tags WHERE tag_id = :tagId) " +
+           "ORDER BY created_at DESC")
+    List<Item> getItemsByTagSync(long tagId);
+
+    /**
+     * タグとその子孫のいずれかが付いたアイテム（閉包テーブルとのJOIN1回）
+     */
+    @Query("SELECT * FROM items WHERE id IN " +
+           "(SELECT item_tags.item_id FROM tag_closure " +
+           "INNER JOIN item_tags ON item_tags.tag_id = tag_closure.descendant_id " +
+           "WHERE tag_closure.ancestor_id = :tagId) " +
+           "ORDER BY created_at DESC")
+    LiveData<List<Item>> getItemsByTagSubtree(long tagId);
+
+    @Query("SELECT * FROM items WHERE id IN " +
+           "(SELECT item_tags.item_id FROM tag_closure " +
+           "INNER JOIN item_tags ON item_tags.tag_id = tag_closure.descendant_id " +
+           "WHERE tag_closure.ancestor_id = :tagId) " +
+           "ORDER BY created_at DESC")
+    List<Item> getItemsByTagSubtreeSync(long tagId);
+
+    /**
+     * created_atがstart以上end未満のアイテムを新しい順にlimit件（タイムラインの日・月へ飛ぶ）
+     */
+    @Query("SELECT * FROM items WHERE created_at >= :start AND created_at < :end " +
+           "ORDER BY created_at DESC LIMIT :limit")
+    List<Item> getItemsCreatedBetweenSync(long start, long end, int limit);
+
+    @Query("SELECT COUNT(DISTINCT item_tags.item_id) FROM tag_closure " +
+           "INNER JOIN item_tags ON item_tags.tag_id = tag_closure.descendant_id " +
+           "WHERE tag_closure.ancestor_id = :tagId")
+    LiveData<Integer> countItemsByTagSubtree(long tagId);
+
+    /**
+     * updated_atが(afterUpdatedAt, afterId)より後のアイテムを、updated_at・id順にlimit件
+     * 最後の行の(updated_at, id)を次の呼び出しに渡して続きを読む（キーセットページング）
+     */
+    @Query("SELECT * FROM items " +
+           "WHERE updated_at >= :afterUpdatedAt AND (updated_at > :afterUpdatedAt OR id > :afterId) " +
+           "ORDER BY updated_at, id LIMIT :limit")
+    List<Item> getItemsUpdatedAfterSync(long afterUpdatedAt, long afterId, int limit);
+
+    /**
+     * updated_atがsinceより後のアイテムをupdated_at・id順に、chunkSize件ずつ読みながら1件ずつ返す
+     * 読んだ後に更新されたアイテムはもう一度返る（同じアイテムは後のものが新しい）
+     */
+    default KeysetIterator<Item> iterateItemsUpdatedAfter(long since, int chunkSize) {
+        return new KeysetIterator<>(chunkSize, (last, limit) -> last != null
+            ? getItemsUpdatedAfterSync(last.getUpdatedAt(), last.getId(), limit)
+            // (since, MAX_VALUE)より後 = updated_atがsinceより大きい行
+            : getItemsUpdatedAfterSync(since, Long.MAX_VALUE, limit));
+    }
 }
@@ -0,0 +1,173 @@
+package jp.ac.meijou.android.nanndatteii.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Query;
+
+import java.util.Collections;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.ItemSort;
+import jp.ac.meijou.android.nanndatteii.db.KeysetIterator;
+import jp.ac.meijou.android.nanndatteii.db.relation.SortedItem;
+
+/**
+ * 並べ方（ItemSort）ごとのアイテム一覧を、キーセットページングで読む
+ *
+ * どの並べ方も(値, id)のインデックスを前から（降順は後ろから）読むだけで、一時B-treeでの並べ替えはしない。
+ * 前のページの最後の行の(値, id)から続きを探すので、深いページも最初のページと同じ手間で読める。
+ * タグで絞る場合は、インデックスの順に読みながら1件ずつitem_tagsの主キーで確かめる
+ * （並べ替えは起きないが、付いているアイテムが少ないタグほど読み飛ばす行が増える）
+ */
+@Dao
+public interface ItemSortDao {
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM items INNER JOIN item_sort_keys ON item_sort_keys.item_id = items.id " +
+           "WHERE items.updated_at >= :afterValue " +
+           "AND (items.updated_at > :afterValue OR items.id > :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY items.updated_at, items.id LIMIT :limit")
+    List<SortedItem> getByUpdatedAscSync(long afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM items INNER JOIN item_sort_keys ON item_sort_keys.item_id = items.id " +
+           "WHERE items.updated_at <= :afterValue " +
+           "AND (items.updated_at < :afterValue OR items.id < :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY items.updated_at DESC, items.id DESC LIMIT :limit")
+    List<SortedItem> getByUpdatedDescSync(long afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_title >= :afterValue " +
+           "AND (item_sort_keys.sort_title > :afterValue OR item_sort_keys.item_id > :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_title, item_sort_keys.item_id LIMIT :limit")
+    List<SortedItem> getByTitleAscSync(String afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_title <= :afterValue " +
+           "AND (item_sort_keys.sort_title < :afterValue OR item_sort_keys.item_id < :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_title DESC, item_sort_keys.item_id DESC LIMIT :limit")
+    List<SortedItem> getByTitleDescSync(String afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_file_size >= :afterValue " +
+           "AND (item_sort_keys.sort_file_size > :afterValue OR item_sort_keys.item_id > :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_file_size, item_sort_keys.item_id LIMIT :limit")
+    List<SortedItem> getByFileSizeAscSync(long afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_file_size <= :afterValue " +
+           "AND (item_sort_keys.sort_file_size < :afterValue OR item_sort_keys.item_id < :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_file_size DESC, item_sort_keys.item_id DESC LIMIT :limit")
+    List<SortedItem> getByFileSizeDescSync(long afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_tag >= :afterValue " +
+           "AND (item_sort_keys.sort_tag > :afterValue OR item_sort_keys.item_id > :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_tag, item_sort_keys.item_id LIMIT :limit")
+    List<SortedItem> getByTagAscSync(String afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_tag <= :afterValue " +
+           "AND (item_sort_keys.sort_tag < :afterValue OR item_sort_keys.item_id < :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_tag DESC, item_sort_keys.item_id DESC LIMIT :limit")
+    List<SortedItem> getByTagDescSync(String afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_last_viewed >= :afterValue " +
+           "AND (item_sort_keys.sort_last_viewed > :afterValue OR item_sort_keys.item_id > :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_last_viewed, item_sort_keys.item_id LIMIT :limit")
+    List<SortedItem> getByLastViewedAscSync(long afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT items.*, item_sort_keys.* " +
+           "FROM item_sort_keys INNER JOIN items ON items.id = item_sort_keys.item_id " +
+           "WHERE item_sort_keys.sort_last_viewed <= :afterValue " +
+           "AND (item_sort_keys.sort_last_viewed < :afterValue OR item_sort_keys.item_id < :afterId) " +
+           "AND (:tagId IS NULL OR EXISTS (SELECT 1 FROM item_tags " +
+           "WHERE item_tags.item_id = items.id AND item_tags.tag_id = :tagId)) " +
+           "ORDER BY item_sort_keys.sort_last_viewed DESC, item_sort_keys.item_id DESC LIMIT :limit")
+    List<SortedItem> getByLastViewedDescSync(long afterValue, long afterId, Long tagId, int limit);
+
+    @Query("SELECT MAX(sort_title) FROM item_sort_keys")
+    String getMaxTitleSync();
+
+    @Query("SELECT MAX(sort_tag) FROM item_sort_keys")
+    String getMaxTagSync();
+
+    /**
+     * afterの次からlimit件を並べ方の順に読む
+     * @param tagId このタグが付いたアイテムだけにする（絞らないならnull）
+     * @param after 前のページの最後の行（最初のページはnull）
+     */
+    default List<SortedItem> getPageSync(ItemSort sort, Long tagId, SortedItem after, int limit) {
+        boolean asc = sort.isAscending();
+        // 最初のページは、どの行よりも前（降順なら後ろ）の位置から読む
+        long afterId = after != null ? after.item.getId() : (asc ? Long.MIN_VALUE : Long.MAX_VALUE);
+        long firstNumber = asc ? Long.MIN_VALUE : Long.MAX_VALUE;
+        switch (sort.getKey()) {
+            case UPDATED: {
+                long value = after != null ? after.item.getUpdatedAt() : firstNumber;
+                return asc ? getByUpdatedAscSync(value, afterId, tagId, limit)
+                    : getByUpdatedDescSync(value, afterId, tagId, limit);
+            }
+            case TITLE: {
+                String value = after != null ? after.sortKey.getTitle() : (asc ? "" : getMaxTitleSync());
+                if (value == null) {
+                    // 降順の最初のページで、アイテムが1件もない
+                    return Collections.emptyList();
+                }
+                return asc ? getByTitleAscSync(value, afterId, tagId, limit)
+                    : getByTitleDescSync(value, afterId, tagId, limit);
+            }
+            case FILE_SIZE: {
+                long value = after != null ? after.sortKey.getFileSize() : firstNumber;
+                return asc ? getByFileSizeAscSync(value, afterId, tagId, limit)
+                    : getByFileSizeDescSync(value, afterId, tagId, limit);
+            }
+            case TAG: {
+                String value = after != null ? after.sortKey.getTag() : (asc ? "" : getMaxTagSync());
+                if (value == null) {
+                    return Collections.emptyList();
+                }
+                return asc ? getByTagAscSync(value, afterId, tagId, limit)
+                    : getByTagDescSync(value, afterId, tagId, limit);
+            }
+            case LAST_VIEWED: {
+                long value = after != null ? after.sortKey.getLastViewed() : firstNumber;
+                return asc ? getByLastViewedAscSync(value, afterId, tagId, limit)
+                    : getByLastViewedDescSync(value, afterId, tagId, limit);
+            }
+            default:
+                throw new IllegalArgumentException("不明な並べ方: " + sort);
+        }
+    }
+
+    /**
+     * 並べ方の順にchunkSize件ずつ読みながら1件ずつ返す
+     */
+    default KeysetIterator<SortedItem> iterateSorted(ItemSort sort, Long tagId, int chunkSize) {
+        return new KeysetIterator<>(chunkSize, (last, limit) -> getPageSync(sort, tagId, last, limit));
+    }
+}
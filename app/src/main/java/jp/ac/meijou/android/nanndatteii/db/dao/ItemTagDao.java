@@ -4,10 +4,14 @@ import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
 
+import java.util.Collection;
 import java.util.List;
 
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemTag;
 import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
 
@@ -16,20 +20,75 @@ public interface ItemTagDao {
     @Insert
     void insert(ItemTag itemTag);
 
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertOrIgnoreAll(List<ItemTag> itemTags);
+
     @Delete
     void delete(ItemTag itemTag);
 
     @Query("DELETE FROM item_tags WHERE item_id = :itemId")
     void deleteByItemId(long itemId);
 
-    @Query("SELECT * FROM tags WHERE id IN " +
-           "(SELECT tag_id FROM item_tags WHERE item_id = :itemId)")
+    /**
+     * 存在するアイテムにだけタグを付ける（付いていれば何もしない）
+     */
+    @Query("INSERT OR IGNORE INTO item_tags (item_id, tag_id) " +
+           "SELECT id, :tagId FROM items WHERE id IN (:itemIds)")
+    void insertTagForItems(long tagId, List<Long> itemIds);
+
+    /**
+     * 存在するタグだけをアイテムに付ける（途中で削除されたタグは飛ばす）
+     */
+    @Query("INSERT OR IGNORE INTO item_tags (item_id, tag_id) " +
+           "SELECT :itemId, id FROM tags WHERE id IN (:tagIds)")
+    void insertTagsForItem(long itemId, List<Long> tagIds);
+
+    @Query("DELETE FROM item_tags WHERE tag_id = :tagId AND item_id IN (:itemIds)")
+    int deleteTagForItems(long tagId, List<Long> itemIds);
+
+    /**
+     * 直前のINSERT/UPDATE/DELETEで変更された行数
+     */
+    @Query("SELECT changes()")
+    int countChanges();
+
+    @Query("SELECT tags.* FROM tags " +
+           "INNER JOIN item_tags ON tags.id = item_tags.tag_id " +
+           "WHERE item_tags.item_id = :itemId")
     LiveData<List<Tag>> getTagsForItem(long itemId);
 
-    @Query("SELECT * FROM tags WHERE id IN " +
-           "(SELECT tag_id FROM item_tags WHERE item_id = :itemId)")
+    @Query("SELECT tags.* FROM tags " +
+           "INNER JOIN item_tags ON tags.id = item_tags.tag_id " +
+           "WHERE item_tags.item_id = :itemId")
     List<Tag> getTagsForItemSync(long itemId);
 
     @Query("SELECT COUNT(*) FROM item_tags WHERE tag_id = :tagId")
     LiveData<Integer> getItemCountForTag(long tagId);
+
+    /**
+     * 複数のアイテムにタグを付ける（1トランザクション）
+     * @return 新しく付いた数
+     */
+    @Transaction
+    default int applyTagToItems(long tagId, Collection<Long> itemIds) {
+        int applied = 0;
+        for (List<Long> chunk : AppDatabase.chunk(itemIds)) {
+            insertTagForItems(tagId, chunk);
+            applied += countChanges();
+        }
+        return applied;
+    }
+
+    /**
+     * 複数のアイテムからタグを外す（1トランザクション）
+     * @return 外れた数
+     */
+    @Transaction
+    default int removeTagFromItems(long tagId, Collection<Long> itemIds) {
+        int removed = 0;
+        for (List<Long> chunk : AppDatabase.chunk(itemIds)) {
+            removed += deleteTagForItems(tagId, chunk);
+        }
+        return removed;
+    }
 }
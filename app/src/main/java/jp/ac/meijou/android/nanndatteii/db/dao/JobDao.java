@@ -0,0 +1,56 @@
+package jp.ac.meijou.android.nanndatteii.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+
+@Dao
+public interface JobDao {
+    /**
+     * 同じidempotency_keyの未完了ジョブが既にあれば無視して-1を返す
+     * （完了したジョブは消え、失敗したジョブはmarkFailedでキーを外すので、同じキーで積み直せる）
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insert(Job job);
+
+    @Query("SELECT * FROM jobs WHERE status = 'PENDING' AND next_run_at <= :now " +
+           "AND (requires_idle = 0 OR :idle) " +
+           "ORDER BY priority DESC, next_run_at ASC LIMIT 1")
+    Job getNextRunnableJob(long now, boolean idle);
+
+    @Query("SELECT MIN(next_run_at) FROM jobs WHERE status = 'PENDING' " +
+           "AND (requires_idle = 0 OR :idle)")
+    Long getNextRunAt(boolean idle);
+
+    /**
+     * PENDINGのジョブを実行中にする（取得できた場合のみ1を返す）
+     */
+    @Query("UPDATE jobs SET status = 'RUNNING', attempts = attempts + 1 " +
+           "WHERE id = :jobId AND status = 'PENDING'")
+    int claim(long jobId);
+
+    @Query("UPDATE jobs SET status = 'PENDING', next_run_at = :nextRunAt, last_error = :error " +
+           "WHERE id = :jobId")
+    void reschedule(long jobId, long nextRunAt, String error);
+
+    /**
+     * 失敗として残す（診断用）。idempotency_keyは外し、同じキーのジョブを積めるようにする
+     */
+    @Query("UPDATE jobs SET status = 'FAILED', last_error = :error, idempotency_key = NULL WHERE id = :jobId")
+    void markFailed(long jobId, String error);
+
+    @Query("DELETE FROM jobs WHERE id = :jobId")
+    void deleteById(long jobId);
+
+    /**
+     * プロセス終了で中断されたジョブを再実行できる状態に戻す
+     */
+    @Query("UPDATE jobs SET status = 'PENDING' WHERE status = 'RUNNING'")
+    int resetRunningJobs();
+
+    @Query("SELECT COUNT(*) FROM jobs WHERE status = :status")
+    int countByStatus(String status);
+}
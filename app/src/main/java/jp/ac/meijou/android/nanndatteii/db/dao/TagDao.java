@@ -4,11 +4,20 @@ import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
 import androidx.room.Update;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
 import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
 
 @Dao
@@ -16,24 +25,184 @@ public interface TagDao {
     @Insert
     long insert(Tag tag);
 
+    /**
+     * 同名のタグがあれば何もしない
+     * @return 挿入した行のID（既にあれば-1）
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insertOrIgnore(Tag tag);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertOrIgnoreAll(List<Tag> tags);
+
     @Update
     void update(Tag tag);
 
     @Delete
     void delete(Tag tag);
 
+    @Query("DELETE FROM tags WHERE id = :tagId")
+    int deleteById(long tagId);
+
+    /**
+     * タグ名を変更（同名のタグがあればSQLiteConstraintException）
+     * @return 更新した行数
+     */
+    @Query("UPDATE tags SET name = :name WHERE id = :tagId")
+    int rename(long tagId, String name);
+
+    @Query("INSERT OR IGNORE INTO item_tags (item_id, tag_id) " +
+           "SELECT item_id, :targetTagId FROM item_tags WHERE tag_id = :sourceTagId")
+    void copyAssignments(long sourceTagId, long targetTagId);
+
+    @Query("SELECT changes()")
+    int countChanges();
+
+    /**
+     * 子タグの親をまとめて付け替える（統合で消えるタグの子を統合先へ移す）
+     */
+    @Query("UPDATE tags SET parent_id = :newParentId WHERE parent_id = :parentId")
+    int reparentChildren(long parentId, long newParentId);
+
+    /**
+     * descendantIdがancestorIdの部分木にあるか（同じタグもtrue）
+     */
+    @Query("SELECT EXISTS (SELECT 1 FROM tag_closure " +
+           "WHERE ancestor_id = :ancestorId AND descendant_id = :descendantId)")
+    boolean isInSubtree(long ancestorId, long descendantId);
+
     @Query("SELECT * FROM tags ORDER BY name ASC")
     LiveData<List<Tag>> getAllTags();
 
+    @Query("SELECT * FROM tags ORDER BY name ASC")
+    List<Tag> getAllTagsSync();
+
+    /**
+     * idがafterIdより大きいタグをid順にlimit件（キーセットページング）
+     */
+    @Query("SELECT * FROM tags WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<Tag> getTagsAfterSync(long afterId, int limit);
+
+    @Query("SELECT * FROM tags WHERE id IN (:tagIds)")
+    List<Tag> getTagsByIdsSync(Collection<Long> tagIds);
+
+    @Query("SELECT * FROM tags WHERE uid = :uid")
+    Tag getTagByUidSync(String uid);
+
+    @Query("SELECT * FROM tags WHERE uid IN (:uids)")
+    List<Tag> getTagsByUidsSync(List<String> uids);
+
     @Query("SELECT * FROM tags WHERE name = :name")
     Tag getTagByName(String name);
 
     @Query("SELECT * FROM tags WHERE name = :name")
     Tag getTagByNameSync(String name);
 
+    @Query("SELECT * FROM tags WHERE parent_id IS NULL ORDER BY name ASC")
+    LiveData<List<Tag>> getRootTags();
+
+    @Query("SELECT * FROM tags WHERE parent_id = :parentId ORDER BY name ASC")
+    LiveData<List<Tag>> getChildTags(long parentId);
+
+    /**
+     * 部分木のタグ（自分自身を含む、順不同）
+     */
+    @Query("SELECT tags.* FROM tag_closure " +
+           "INNER JOIN tags ON tags.id = tag_closure.descendant_id " +
+           "WHERE tag_closure.ancestor_id = :tagId")
+    List<Tag> getSubtreeSync(long tagId);
+
+    /**
+     * ルートから自分までのタグ（パンくず表示用）
+     */
+    @Query("SELECT tags.* FROM tag_closure " +
+           "INNER JOIN tags ON tags.id = tag_closure.ancestor_id " +
+           "WHERE tag_closure.descendant_id = :tagId " +
+           "ORDER BY tag_closure.depth DESC")
+    List<Tag> getPathSync(long tagId);
+
+    /**
+     * 親を付け替える（ルートにするならnull）
+     * 自分の部分木の中へは移動できない（SQLiteConstraintException）
+     * @return 更新した行数
+     */
+    @Query("UPDATE tags SET parent_id = :parentId WHERE id = :tagId")
+    int move(long tagId, Long parentId);
+
+    @Query("SELECT * FROM tags WHERE name IN (:names)")
+    List<Tag> getTagsByNamesSync(Collection<String> names);
+
     @Query("SELECT * FROM tags WHERE id = :tagId")
     LiveData<Tag> getTagById(long tagId);
 
     @Query("SELECT * FROM tags WHERE id = :tagId")
     Tag getTagByIdSync(long tagId);
+
+    /**
+     * タグ名からIDを取得し、なければ作成する（1トランザクション）
+     */
+    @Transaction
+    default long upsertByName(String name, long createdAt) {
+        Tag tag = new Tag();
+        tag.setName(name);
+        tag.setCreatedAt(createdAt);
+        long tagId = insertOrIgnore(tag);
+        if (tagId == -1) {
+            tagId = getTagByNameSync(name).getId();
+        }
+        return tagId;
+    }
+
+    /**
+     * タグsourceをtargetに統合する（1トランザクション）
+     * sourceが付いていたアイテムにtargetを付け、sourceの子タグはtargetの下へ移し、sourceは削除する
+     * @return 新しくtargetが付いたアイテム数
+     * @throws IllegalArgumentException targetがsource自身か、その部分木にある
+     */
+    @Transaction
+    default int mergeInto(long sourceTagId, long targetTagId) {
+        if (isInSubtree(sourceTagId, targetTagId)) {
+            throw new IllegalArgumentException("統合先が統合元の部分木にあります: " + targetTagId);
+        }
+        copyAssignments(sourceTagId, targetTagId);
+        int moved = countChanges();
+        // 削除時のトリガーは子をsourceの親へ付け替えるので、先に統合先の下へ移す
+        reparentChildren(sourceTagId, targetTagId);
+        // item_tagsのsource分はCASCADEで消える
+        deleteById(sourceTagId);
+        return moved;
+    }
+
+    /**
+     * 複数のタグ名をIDに変換し、ないものはまとめて作成する（1トランザクション）
+     * @return タグ名 → ID（空白のみの名前は含まない）
+     */
+    @Transaction
+    default Map<String, Long> resolveOrCreateTags(Collection<String> names, long createdAt) {
+        Set<String> unique = new LinkedHashSet<>();
+        for (String name : names) {
+            if (name != null && !name.trim().isEmpty()) {
+                unique.add(name.trim());
+            }
+        }
+
+        // 1. まとめて挿入（既存の名前はユニーク制約で無視される）
+        List<Tag> tags = new ArrayList<>(unique.size());
+        for (String name : unique) {
+            Tag tag = new Tag();
+            tag.setName(name);
+            tag.setCreatedAt(createdAt);
+            tags.add(tag);
+        }
+        insertOrIgnoreAll(tags);
+
+        // 2. IN句でまとめてIDを引く
+        Map<String, Long> ids = new HashMap<>(unique.size() * 2);
+        for (List<String> chunk : AppDatabase.chunk(unique)) {
+            for (Tag tag : getTagsByNamesSync(chunk)) {
+                ids.put(tag.getName(), tag.getId());
+            }
+        }
+        return ids;
+    }
 }
@@ -0,0 +1,48 @@
+package jp.ac.meijou.android.nanndatteii.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemDayCount;
+
+/**
+ * 作成日ごとのアイテム数（item_day_counts）。行の増減はトリガーが行う
+ */
+@Dao
+public interface TimelineDao {
+    /**
+     * すべての日を新しい順に（1日1行なので、何年分でも数千行）
+     */
+    @Query("SELECT * FROM item_day_counts ORDER BY day DESC")
+    List<ItemDayCount> getDayCountsSync();
+
+    /**
+     * fromDayからtoDayまで（yyyyMMdd、両端を含む）を日付順に
+     */
+    @Query("SELECT * FROM item_day_counts WHERE day BETWEEN :fromDay AND :toDay ORDER BY day")
+    List<ItemDayCount> getDayCountsBetweenSync(int fromDay, int toDay);
+
+    @Query("DELETE FROM item_day_counts")
+    void clear();
+
+    /**
+     * itemsを作成日ごとに数えて入れる（item_day_countsは空にしておくこと）
+     * 日付の式はトリガー（ItemTimeline）と同じにすること
+     */
+    @Query("INSERT INTO item_day_counts (day, count) " +
+           "SELECT CAST(strftime('%Y%m%d', created_at / 1000, 'unixepoch', 'localtime') AS INTEGER), COUNT(*) " +
+           "FROM items GROUP BY 1")
+    void insertCountsFromItems();
+
+    /**
+     * itemsから数え直す（タイムゾーンが変わった時など）
+     */
+    @Transaction
+    default void rebuild() {
+        clear();
+        insertCountsFromItems();
+    }
+}
@@ -0,0 +1,54 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * change_logを読む購読者と、読み終えた位置
+ * すべての購読者が読み終えた位置まではchange_logから消す（ChangeFeed参照）
+ */
+@Entity(tableName = "change_consumers",
+        indices = {@Index(value = "checkpoint")})
+public class ChangeConsumer {
+    @PrimaryKey
+    @ColumnInfo(name = "name")
+    @NonNull
+    private String name = "";
+
+    // 読み終えた変更のseq（これより後を次に読む）
+    @ColumnInfo(name = "checkpoint")
+    private long checkpoint;
+
+    @ColumnInfo(name = "updated_at")
+    private long updatedAt;
+
+    // Getters
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    // Setters
+    public void setName(@NonNull String name) {
+        this.name = name;
+    }
+
+    public void setCheckpoint(long checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
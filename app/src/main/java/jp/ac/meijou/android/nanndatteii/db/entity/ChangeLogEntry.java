@@ -0,0 +1,117 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * items・files・tags・item_tagsの変更履歴
+ * 行はトリガーで追加されるのでアプリからは書き込まない（ChangeLog参照）
+ */
+@Entity(tableName = "change_log")
+public class ChangeLogEntry {
+    public static final String OP_INSERT = "insert";
+    public static final String OP_UPDATE = "update";
+    public static final String OP_DELETE = "delete";
+
+    // 変更順の通し番号（AUTOINCREMENTなので削除後も再利用されない）
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "seq")
+    private long seq;
+
+    @ColumnInfo(name = "table_name")
+    @NonNull
+    private String tableName;
+
+    @ColumnInfo(name = "op")
+    @NonNull
+    private String op; // insert, update, delete
+
+    // 変更された行のID（item_tagsはitem_id）
+    @ColumnInfo(name = "row_id")
+    private long rowId;
+
+    // item_tagsのtag_id（他はnull）
+    @ColumnInfo(name = "ref_id")
+    private Long refId;
+
+    // 削除された行のuid（削除後は行から引けないため）
+    @ColumnInfo(name = "uid")
+    private String uid;
+
+    @ColumnInfo(name = "changed_at")
+    private long changedAt;
+
+    // 同期で他の端末から取り込んだ変更（送り返さない）
+    @ColumnInfo(name = "remote", defaultValue = "0")
+    private boolean remote;
+
+    // Getters
+    public long getSeq() {
+        return seq;
+    }
+
+    @NonNull
+    public String getTableName() {
+        return tableName;
+    }
+
+    @NonNull
+    public String getOp() {
+        return op;
+    }
+
+    public long getRowId() {
+        return rowId;
+    }
+
+    public Long getRefId() {
+        return refId;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public long getChangedAt() {
+        return changedAt;
+    }
+
+    public boolean isRemote() {
+        return remote;
+    }
+
+    // Setters
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public void setTableName(@NonNull String tableName) {
+        this.tableName = tableName;
+    }
+
+    public void setOp(@NonNull String op) {
+        this.op = op;
+    }
+
+    public void setRowId(long rowId) {
+        this.rowId = rowId;
+    }
+
+    public void setRefId(Long refId) {
+        this.refId = refId;
+    }
+
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
+
+    public void setChangedAt(long changedAt) {
+        this.changedAt = changedAt;
+    }
+
+    public void setRemote(boolean remote) {
+        this.remote = remote;
+    }
+}
@@ -0,0 +1,81 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+
+/**
+ * コレクションに入れたアイテムと、その並び順
+ * order_keyの辞書順が並び順（OrderKeys参照）。並べ替えは動かした行のorder_keyだけを書き換える
+ */
+@Entity(tableName = "collection_items",
+        primaryKeys = {"collection_id", "item_id"},
+        foreignKeys = {
+            @ForeignKey(
+                entity = ItemCollection.class,
+                parentColumns = "id",
+                childColumns = "collection_id",
+                onDelete = ForeignKey.CASCADE
+            ),
+            @ForeignKey(
+                entity = Item.class,
+                parentColumns = "id",
+                childColumns = "item_id",
+                onDelete = ForeignKey.CASCADE
+            )
+        },
+        indices = {
+            @Index(value = {"collection_id", "order_key"}, unique = true),
+            @Index(value = "item_id")
+        })
+public class CollectionItem {
+    @ColumnInfo(name = "collection_id")
+    private long collectionId;
+
+    @ColumnInfo(name = "item_id")
+    private long itemId;
+
+    @ColumnInfo(name = "order_key")
+    @NonNull
+    private String orderKey = "";
+
+    @ColumnInfo(name = "added_at")
+    private long addedAt;
+
+    // Getters
+    public long getCollectionId() {
+        return collectionId;
+    }
+
+    public long getItemId() {
+        return itemId;
+    }
+
+    @NonNull
+    public String getOrderKey() {
+        return orderKey;
+    }
+
+    public long getAddedAt() {
+        return addedAt;
+    }
+
+    // Setters
+    public void setCollectionId(long collectionId) {
+        this.collectionId = collectionId;
+    }
+
+    public void setItemId(long itemId) {
+        this.itemId = itemId;
+    }
+
+    public void setOrderKey(@NonNull String orderKey) {
+        this.orderKey = orderKey;
+    }
+
+    public void setAddedAt(long addedAt) {
+        this.addedAt = addedAt;
+    }
+}
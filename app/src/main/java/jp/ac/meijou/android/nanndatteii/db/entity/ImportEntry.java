@@ -0,0 +1,135 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * 取り込み対象のファイル1つ
+ * アイテムの作成と同じトランザクションでDONEにするので、中断しても二重に取り込まない
+ */
+@Entity(tableName = "import_entries",
+        foreignKeys = @ForeignKey(
+            entity = ImportSession.class,
+            parentColumns = "id",
+            childColumns = "session_id",
+            onDelete = ForeignKey.CASCADE
+        ),
+        indices = {
+            @Index(value = {"session_id", "source_uri"}, unique = true),
+            @Index(value = {"session_id", "status", "id"})
+        })
+public class ImportEntry {
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_DONE = "DONE";
+    public static final String STATUS_FAILED = "FAILED";
+
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "id")
+    private long id;
+
+    @ColumnInfo(name = "session_id")
+    private long sessionId;
+
+    @ColumnInfo(name = "source_uri")
+    @NonNull
+    private String sourceUri;
+
+    @ColumnInfo(name = "display_name")
+    private String displayName; // 分からなければ取り込み時に問い合わせる
+
+    @ColumnInfo(name = "mime_type")
+    private String mimeType; // 分からなければ取り込み時に問い合わせる
+
+    @ColumnInfo(name = "status")
+    @NonNull
+    private String status = STATUS_PENDING; // PENDING, DONE, FAILED
+
+    @ColumnInfo(name = "item_id")
+    private Long itemId; // 取り込んで作成したアイテム
+
+    @ColumnInfo(name = "error")
+    private String error;
+
+    // Constructors
+    public ImportEntry() {
+    }
+
+    public ImportEntry(long sessionId, @NonNull String sourceUri, String displayName, String mimeType) {
+        this.sessionId = sessionId;
+        this.sourceUri = sourceUri;
+        this.displayName = displayName;
+        this.mimeType = mimeType;
+    }
+
+    // Getters
+    public long getId() {
+        return id;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    @NonNull
+    public String getSourceUri() {
+        return sourceUri;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    @NonNull
+    public String getStatus() {
+        return status;
+    }
+
+    public Long getItemId() {
+        return itemId;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    // Setters
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public void setSessionId(long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public void setSourceUri(@NonNull String sourceUri) {
+        this.sourceUri = sourceUri;
+    }
+
+    public void setDisplayName(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public void setStatus(@NonNull String status) {
+        this.status = status;
+    }
+
+    public void setItemId(Long itemId) {
+        this.itemId = itemId;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
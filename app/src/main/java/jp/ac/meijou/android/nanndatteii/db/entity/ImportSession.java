@@ -0,0 +1,109 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一括取り込み1回分（共有されたファイル群、またはフォルダ1つ）
+ * 取り込みが終わるか中止されると削除される
+ */
+@Entity(tableName = "import_sessions")
+public class ImportSession {
+    public static final String STATUS_SCANNING = "SCANNING";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_CANCELLED = "CANCELLED";
+
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "id")
+    private long id;
+
+    @ColumnInfo(name = "tree_uri")
+    private String treeUri; // フォルダから取り込む場合のみ
+
+    @ColumnInfo(name = "tag_ids")
+    private String tagIds; // 取り込んだアイテムに付けるタグ（カンマ区切り）
+
+    @ColumnInfo(name = "status")
+    @NonNull
+    private String status = STATUS_RUNNING; // SCANNING, RUNNING, CANCELLED
+
+    @ColumnInfo(name = "created_at")
+    private long createdAt;
+
+    // Constructors
+    public ImportSession() {
+    }
+
+    // Getters
+    public long getId() {
+        return id;
+    }
+
+    public String getTreeUri() {
+        return treeUri;
+    }
+
+    public String getTagIds() {
+        return tagIds;
+    }
+
+    @NonNull
+    public String getStatus() {
+        return status;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * tag_idsをIDのリストとして取得
+     */
+    public List<Long> getTagIdList() {
+        List<Long> result = new ArrayList<>();
+        if (tagIds == null || tagIds.isEmpty()) {
+            return result;
+        }
+        for (String tagId : tagIds.split(",")) {
+            result.add(Long.parseLong(tagId));
+        }
+        return result;
+    }
+
+    // Setters
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public void setTreeUri(String treeUri) {
+        this.treeUri = treeUri;
+    }
+
+    public void setTagIds(String tagIds) {
+        this.tagIds = tagIds;
+    }
+
+    public void setStatus(@NonNull String status) {
+        this.status = status;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public void setTagIdList(List<Long> tagIdList) {
+        StringBuilder builder = new StringBuilder();
+        for (Long tagId : tagIdList) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(tagId);
+        }
+        this.tagIds = builder.toString();
+    }
+}
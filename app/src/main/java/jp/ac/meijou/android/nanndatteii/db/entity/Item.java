@@ -8,7 +8,9 @@ import androidx.room.PrimaryKey;
 @Entity(tableName = "items",
         indices = {
             @Index(value = "created_at"),
-            @Index(value = "last_viewed")
+            @Index(value = "updated_at"),
+            @Index(value = "last_viewed"),
+            @Index(value = "uid", unique = true)
         })
 public class Item {
     @PrimaryKey(autoGenerate = true)
@@ -30,6 +32,10 @@ public class Item {
     @ColumnInfo(name = "last_viewed")
     private Long lastViewed;
 
+    // 端末をまたいで同じ行を指すID（同期用）。nullで挿入するとトリガーで振る（ChangeLog参照）
+    @ColumnInfo(name = "uid")
+    private String uid;
+
     // Constructors
     public Item() {
     }
@@ -59,6 +65,10 @@ public class Item {
         return lastViewed;
     }
 
+    public String getUid() {
+        return uid;
+    }
+
     // Setters
     public void setId(long id) {
         this.id = id;
@@ -83,4 +93,8 @@ public class Item {
     public void setLastViewed(Long lastViewed) {
         this.lastViewed = lastViewed;
     }
+
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
 }
@@ -0,0 +1,53 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * 手動で並べるアイテムのまとめ（アルバム）
+ * 並び順はcollection_itemsのorder_keyで持つ（CollectionItem参照）
+ */
+@Entity(tableName = "collections",
+        indices = {@Index(value = "name")})
+public class ItemCollection {
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "id")
+    private long id;
+
+    @ColumnInfo(name = "name")
+    @NonNull
+    private String name = "";
+
+    @ColumnInfo(name = "created_at")
+    private long createdAt;
+
+    // Getters
+    public long getId() {
+        return id;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    // Setters
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public void setName(@NonNull String name) {
+        this.name = name;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
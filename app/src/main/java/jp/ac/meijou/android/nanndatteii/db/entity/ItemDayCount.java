@@ -0,0 +1,38 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * 作成日（端末のタイムゾーンの日付）ごとのアイテム数
+ * itemsへの追加・削除・created_atの変更でトリガーが更新する（ItemTimeline参照）
+ */
+@Entity(tableName = "item_day_counts")
+public class ItemDayCount {
+    // yyyyMMdd形式の整数（例: 20240315）。100で割ると月（yyyyMM）になる
+    @PrimaryKey
+    @ColumnInfo(name = "day")
+    private int day;
+
+    @ColumnInfo(name = "count")
+    private int count;
+
+    // Getters
+    public int getDay() {
+        return day;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Setters
+    public void setDay(int day) {
+        this.day = day;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+}
@@ -16,7 +16,8 @@ import androidx.room.PrimaryKey;
         ),
         indices = {
             @Index(value = "item_id"),
-            @Index(value = "file_type")
+            @Index(value = "file_type"),
+            @Index(value = "uid", unique = true)
         })
 public class ItemFile {
     @PrimaryKey(autoGenerate = true)
@@ -41,13 +42,24 @@ public class ItemFile {
     @ColumnInfo(name = "file_size")
     private long fileSize;
 
+    @ColumnInfo(name = "original_size")
+    private long originalSize; // 加工前のサイズ
+
     @ColumnInfo(name = "mime_type")
     @NonNull
     private String mimeType;
 
+    @ColumnInfo(name = "codec")
+    @NonNull
+    private String codec = "NONE"; // NONE, GZIP
+
     @ColumnInfo(name = "created_at")
     private long createdAt;
 
+    // 端末をまたいで同じ行を指すID（同期用）。nullで挿入するとトリガーで振る（ChangeLog参照）
+    @ColumnInfo(name = "uid")
+    private String uid;
+
     // Constructors
     public ItemFile() {
     }
@@ -80,15 +92,28 @@ public class ItemFile {
         return fileSize;
     }
 
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
     @NonNull
     public String getMimeType() {
         return mimeType;
     }
 
+    @NonNull
+    public String getCodec() {
+        return codec;
+    }
+
     public long getCreatedAt() {
         return createdAt;
     }
 
+    public String getUid() {
+        return uid;
+    }
+
     // Setters
     public void setId(long id) {
         this.id = id;
@@ -114,11 +139,23 @@ public class ItemFile {
         this.fileSize = fileSize;
     }
 
+    public void setOriginalSize(long originalSize) {
+        this.originalSize = originalSize;
+    }
+
     public void setMimeType(@NonNull String mimeType) {
         this.mimeType = mimeType;
     }
 
+    public void setCodec(@NonNull String codec) {
+        this.codec = codec;
+    }
+
     public void setCreatedAt(long createdAt) {
         this.createdAt = createdAt;
     }
+
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
 }
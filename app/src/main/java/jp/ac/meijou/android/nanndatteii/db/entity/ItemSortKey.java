@@ -0,0 +1,94 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * アイテムの並べ替えに使う値（1アイテム1行）
+ * itemsにない値（ファイルの合計サイズ・タグ名）と、nullを埋めた値をトリガーで持つ（ItemSortKeys参照）。
+ * 並べ方ごとに(値, item_id)のインデックスがあり、キーセットページングでそのまま読める
+ */
+@Entity(tableName = "item_sort_keys",
+        foreignKeys = @ForeignKey(
+            entity = Item.class,
+            parentColumns = "id",
+            childColumns = "item_id",
+            onDelete = ForeignKey.CASCADE
+        ),
+        indices = {
+            @Index(value = {"sort_title", "item_id"}),
+            @Index(value = {"sort_last_viewed", "item_id"}),
+            @Index(value = {"sort_file_size", "item_id"}),
+            @Index(value = {"sort_tag", "item_id"})
+        })
+public class ItemSortKey {
+    @PrimaryKey
+    @ColumnInfo(name = "item_id")
+    private long itemId;
+
+    // タイトル（nullは空文字）。大文字・小文字を区別せずに並べる
+    @ColumnInfo(name = "sort_title", collate = ColumnInfo.NOCASE)
+    @NonNull
+    private String title = "";
+
+    // 閲覧日時（未閲覧は0）
+    @ColumnInfo(name = "sort_last_viewed")
+    private long lastViewed;
+
+    // ファイルサイズの合計
+    @ColumnInfo(name = "sort_file_size")
+    private long fileSize;
+
+    // 付いているタグの名前のうち最小のもの（タグがなければ空文字）
+    @ColumnInfo(name = "sort_tag")
+    @NonNull
+    private String tag = "";
+
+    // Getters
+    public long getItemId() {
+        return itemId;
+    }
+
+    @NonNull
+    public String getTitle() {
+        return title;
+    }
+
+    public long getLastViewed() {
+        return lastViewed;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @NonNull
+    public String getTag() {
+        return tag;
+    }
+
+    // Setters
+    public void setItemId(long itemId) {
+        this.itemId = itemId;
+    }
+
+    public void setTitle(@NonNull String title) {
+        this.title = title;
+    }
+
+    public void setLastViewed(long lastViewed) {
+        this.lastViewed = lastViewed;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public void setTag(@NonNull String tag) {
+        this.tag = tag;
+    }
+}
@@ -0,0 +1,165 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+@Entity(tableName = "jobs",
+        indices = {
+            @Index(value = "idempotency_key", unique = true),
+            @Index(value = {"status", "priority", "next_run_at"})
+        })
+public class Job {
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_FAILED = "FAILED";
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "id")
+    private long id;
+
+    @ColumnInfo(name = "type")
+    @NonNull
+    private String type;
+
+    @ColumnInfo(name = "payload")
+    private String payload;
+
+    @ColumnInfo(name = "priority")
+    private int priority;
+
+    @ColumnInfo(name = "status")
+    @NonNull
+    private String status = STATUS_PENDING; // PENDING, RUNNING, FAILED
+
+    @ColumnInfo(name = "idempotency_key")
+    private String idempotencyKey; // 同じキーの未完了ジョブは一つしか積まれない（失敗したらnullにする）
+
+    @ColumnInfo(name = "requires_idle")
+    private boolean requiresIdle; // アプリがバックグラウンドの時のみ実行
+
+    @ColumnInfo(name = "attempts")
+    private int attempts;
+
+    @ColumnInfo(name = "max_attempts")
+    private int maxAttempts;
+
+    @ColumnInfo(name = "next_run_at")
+    private long nextRunAt;
+
+    @ColumnInfo(name = "last_error")
+    private String lastError;
+
+    @ColumnInfo(name = "created_at")
+    private long createdAt;
+
+    // Constructors
+    public Job() {
+    }
+
+    // Getters
+    public long getId() {
+        return id;
+    }
+
+    @NonNull
+    public String getType() {
+        return type;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    @NonNull
+    public String getStatus() {
+        return status;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public boolean isRequiresIdle() {
+        return requiresIdle;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getNextRunAt() {
+        return nextRunAt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    // Setters
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public void setType(@NonNull String type) {
+        this.type = type;
+    }
+
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public void setStatus(@NonNull String status) {
+        this.status = status;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public void setRequiresIdle(boolean requiresIdle) {
+        this.requiresIdle = requiresIdle;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setNextRunAt(long nextRunAt) {
+        this.nextRunAt = nextRunAt;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -3,11 +3,22 @@ package jp.ac.meijou.android.nanndatteii.db.entity;
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.ForeignKey;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 @Entity(tableName = "tags",
-        indices = @Index(value = "name", unique = true))
+        foreignKeys = @ForeignKey(
+            entity = Tag.class,
+            parentColumns = "id",
+            childColumns = "parent_id",
+            onDelete = ForeignKey.SET_NULL
+        ),
+        indices = {
+            @Index(value = "name", unique = true),
+            @Index(value = {"parent_id", "name"}),
+            @Index(value = "uid", unique = true)
+        })
 public class Tag {
     @PrimaryKey(autoGenerate = true)
     @ColumnInfo(name = "id")
@@ -23,6 +34,14 @@ public class Tag {
     @ColumnInfo(name = "created_at")
     private long createdAt;
 
+    // 親タグ（ルートならnull）。tag_closureはトリガーで追従する（TagHierarchy参照）
+    @ColumnInfo(name = "parent_id")
+    private Long parentId;
+
+    // 端末をまたいで同じ行を指すID（同期用）。nullで挿入するとトリガーで振る（ChangeLog参照）
+    @ColumnInfo(name = "uid")
+    private String uid;
+
     // Constructors
     public Tag() {
     }
@@ -45,6 +64,14 @@ public class Tag {
         return createdAt;
     }
 
+    public Long getParentId() {
+        return parentId;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
     // Setters
     public void setId(long id) {
         this.id = id;
@@ -61,4 +88,12 @@ public class Tag {
     public void setCreatedAt(long createdAt) {
         this.createdAt = createdAt;
     }
+
+    public void setParentId(Long parentId) {
+        this.parentId = parentId;
+    }
+
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
 }
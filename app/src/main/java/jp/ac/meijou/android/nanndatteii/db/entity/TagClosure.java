@@ -0,0 +1,66 @@
+package jp.ac.meijou.android.nanndatteii.db.entity;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+
+/**
+ * タグ階層の閉包テーブル
+ * 祖先と子孫（自分自身を含む）の組をすべて持ち、部分木をJOIN1回で引けるようにする
+ * 行はtagsのトリガーで維持されるのでアプリからは書き込まない（TagHierarchy参照）
+ */
+@Entity(tableName = "tag_closure",
+        primaryKeys = {"ancestor_id", "descendant_id"},
+        foreignKeys = {
+            @ForeignKey(
+                entity = Tag.class,
+                parentColumns = "id",
+                childColumns = "ancestor_id",
+                onDelete = ForeignKey.CASCADE
+            ),
+            @ForeignKey(
+                entity = Tag.class,
+                parentColumns = "id",
+                childColumns = "descendant_id",
+                onDelete = ForeignKey.CASCADE
+            )
+        },
+        indices = @Index(value = "descendant_id"))
+public class TagClosure {
+    @ColumnInfo(name = "ancestor_id")
+    private long ancestorId;
+
+    @ColumnInfo(name = "descendant_id")
+    private long descendantId;
+
+    // 祖先からの深さ（自分自身は0）
+    @ColumnInfo(name = "depth")
+    private int depth;
+
+    // Getters
+    public long getAncestorId() {
+        return ancestorId;
+    }
+
+    public long getDescendantId() {
+        return descendantId;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    // Setters
+    public void setAncestorId(long ancestorId) {
+        this.ancestorId = ancestorId;
+    }
+
+    public void setDescendantId(long descendantId) {
+        this.descendantId = descendantId;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+}
@@ -0,0 +1,17 @@
+package jp.ac.meijou.android.nanndatteii.db.relation;
+
+import androidx.room.Embedded;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemSortKey;
+
+/**
+ * 並べ替えたアイテムと、その並べ替えの値（次のページを読む位置になる）
+ */
+public class SortedItem {
+    @Embedded
+    public Item item;
+
+    @Embedded
+    public ItemSortKey sortKey;
+}
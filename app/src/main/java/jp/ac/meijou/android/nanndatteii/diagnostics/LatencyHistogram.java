@@ -0,0 +1,75 @@
+package jp.ac.meijou.android.nanndatteii.diagnostics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 2のべき乗（マイクロ秒）のバケットで集計するレイテンシのヒストグラム
+ * 値を保持しないので件数に関係なくメモリは一定
+ */
+public class LatencyHistogram {
+    // 1us, 2us, 4us, ... 約35分
+    private static final int BUCKET_COUNT = 32;
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public synchronized void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket]++;
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * パーセンタイルの近似値（バケットの上限）をミリ秒で返す
+     * @param percentile 0-100
+     */
+    public synchronized double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return Math.min((1L << (i + 1)) * 1000L, maxNanos) / 1_000_000.0;
+            }
+        }
+        return maxNanos / 1_000_000.0;
+    }
+
+    public synchronized double maxMillis() {
+        return maxNanos / 1_000_000.0;
+    }
+
+    public synchronized double meanMillis() {
+        return count == 0 ? 0 : totalNanos / (double) count / 1_000_000.0;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", getCount());
+        json.put("mean_ms", meanMillis());
+        json.put("p50_ms", percentileMillis(50));
+        json.put("p90_ms", percentileMillis(90));
+        json.put("p99_ms", percentileMillis(99));
+        json.put("max_ms", maxMillis());
+        return json;
+    }
+}
@@ -0,0 +1,165 @@
+package jp.ac.meijou.android.nanndatteii.diagnostics;
+
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * SQL文ごとのレイテンシ・行数・呼び出しスレッドを集計する
+ * 無効時はisEnabled()の判定だけで計測しない
+ */
+public final class QueryMetrics {
+    private static final String TAG = "QueryMetrics";
+    public static final String TRANSACTION = "TRANSACTION";
+
+    private static final int MAX_NORMALIZED_CACHE = 512;
+    private static final int MAX_THREADS_PER_STATEMENT = 8;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+\\b");
+    private static final Pattern BIND_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+
+    private static volatile boolean enabled;
+    private static final Map<String, StatementStats> STATS = new ConcurrentHashMap<>();
+    private static final Map<String, String> NORMALIZED = new ConcurrentHashMap<>();
+
+    private QueryMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        QueryMetrics.enabled = enabled;
+        Log.d(TAG, "setEnabled: " + enabled);
+    }
+
+    public static void reset() {
+        STATS.clear();
+    }
+
+    /**
+     * 1回の実行を記録
+     * @param sql 実行したSQL
+     * @param nanos 実行時間
+     * @param rows 読んだ（カーソルは呼び出し側が読み進めた分）・変更した行数（不明なら-1）
+     */
+    public static void record(String sql, long nanos, long rows) {
+        String statement = normalize(sql);
+        boolean mainThread = Looper.getMainLooper().isCurrentThread();
+        if (mainThread) {
+            Log.w(TAG, "メインスレッドでクエリが実行されました: " + statement);
+        }
+        STATS.computeIfAbsent(statement, k -> new StatementStats())
+            .record(nanos, rows, mainThread, Thread.currentThread().getName());
+    }
+
+    /**
+     * SQLのリテラルとIN句の展開を?にまとめる
+     */
+    public static String normalize(String sql) {
+        String cached = NORMALIZED.get(sql);
+        if (cached != null) {
+            return cached;
+        }
+        String normalized = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        normalized = STRING_LITERAL.matcher(normalized).replaceAll("?");
+        normalized = NUMBER_LITERAL.matcher(normalized).replaceAll("?");
+        normalized = BIND_LIST.matcher(normalized).replaceAll("(?)");
+        if (NORMALIZED.size() >= MAX_NORMALIZED_CACHE) {
+            NORMALIZED.clear();
+        }
+        NORMALIZED.put(sql, normalized);
+        return normalized;
+    }
+
+    /**
+     * 合計時間の長い順にテキストで出力
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("計測: ").append(enabled ? "ON" : "OFF").append('\n');
+        for (Map.Entry<String, StatementStats> entry : sortedEntries()) {
+            StatementStats stats = entry.getValue();
+            LatencyHistogram histogram = stats.histogram;
+            builder.append(String.format(Locale.US,
+                "\n%s\n  count=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms rows=%d main=%d\n",
+                entry.getKey(), histogram.getCount(),
+                histogram.percentileMillis(50), histogram.percentileMillis(90),
+                histogram.percentileMillis(99), histogram.maxMillis(),
+                stats.getRows(), stats.getMainThreadCount()));
+        }
+        return builder.toString();
+    }
+
+    public static JSONObject toJson() throws JSONException {
+        JSONArray statements = new JSONArray();
+        for (Map.Entry<String, StatementStats> entry : sortedEntries()) {
+            StatementStats stats = entry.getValue();
+            JSONObject json = stats.histogram.toJson();
+            json.put("sql", entry.getKey());
+            json.put("rows", stats.getRows());
+            json.put("main_thread_count", stats.getMainThreadCount());
+            json.put("threads", new JSONArray(stats.getThreads()));
+            statements.put(json);
+        }
+        JSONObject root = new JSONObject();
+        root.put("timestamp", System.currentTimeMillis());
+        root.put("enabled", enabled);
+        root.put("statements", statements);
+        return root;
+    }
+
+    private static List<Map.Entry<String, StatementStats>> sortedEntries() {
+        List<Map.Entry<String, StatementStats>> entries = new ArrayList<>(STATS.entrySet());
+        entries.sort((a, b) -> Long.compare(
+            b.getValue().histogram.getTotalNanos(), a.getValue().histogram.getTotalNanos()));
+        return entries;
+    }
+
+    private static class StatementStats {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        private long rows;
+        private long mainThreadCount;
+        private final Set<String> threads = new LinkedHashSet<>();
+
+        synchronized void record(long nanos, long rowCount, boolean mainThread, String thread) {
+            histogram.record(nanos);
+            if (rowCount > 0) {
+                rows += rowCount;
+            }
+            if (mainThread) {
+                mainThreadCount++;
+            }
+            if (threads.size() < MAX_THREADS_PER_STATEMENT) {
+                threads.add(thread);
+            }
+        }
+
+        synchronized long getRows() {
+            return rows;
+        }
+
+        synchronized long getMainThreadCount() {
+            return mainThreadCount;
+        }
+
+        synchronized List<String> getThreads() {
+            return new ArrayList<>(threads);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package jp.ac.meijou.android.nanndatteii.diagnostics;
+
+import android.app.Activity;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * 起動時間の計測（プロセス開始からの経過ミリ秒）
+ * DB準備完了・最初のフレーム・最初のリスト表示の3点を記録する
+ */
+public final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    private static final long NOT_REACHED = -1;
+
+    private static long databaseReadyMillis = NOT_REACHED;
+    private static long firstFrameMillis = NOT_REACHED;
+    private static long firstListMillis = NOT_REACHED;
+    private static String firstListSource;
+
+    private StartupTrace() {
+    }
+
+    private static long sinceProcessStart() {
+        return SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+    }
+
+    /**
+     * DBの接続が開いた
+     */
+    public static synchronized void markDatabaseReady() {
+        if (databaseReadyMillis == NOT_REACHED) {
+            databaseReadyMillis = sinceProcessStart();
+            Log.i(TAG, "DB準備完了: " + databaseReadyMillis + "ms");
+        }
+    }
+
+    /**
+     * 最初のフレームが描画されたら記録し、afterFirstFrameを実行する
+     * 起動中にやる必要のない処理はafterFirstFrameに回す
+     */
+    public static void observeFirstFrame(Activity activity, Runnable afterFirstFrame) {
+        View decorView = activity.getWindow().getDecorView();
+        ViewTreeObserver.OnDrawListener listener = new ViewTreeObserver.OnDrawListener() {
+            private boolean drawn;
+
+            @Override
+            public void onDraw() {
+                if (drawn) {
+                    return;
+                }
+                drawn = true;
+                markFirstFrame();
+                // onDraw中はリスナーを外せないので次のループで
+                ViewTreeObserver.OnDrawListener self = this;
+                decorView.post(() -> {
+                    decorView.getViewTreeObserver().removeOnDrawListener(self);
+                    afterFirstFrame.run();
+                });
+            }
+        };
+
+        // API 26未満ではアタッチ前に登録したOnDrawListenerが引き継がれない
+        if (decorView.isAttachedToWindow()) {
+            decorView.getViewTreeObserver().addOnDrawListener(listener);
+        } else {
+            decorView.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener() {
+                @Override
+                public void onViewAttachedToWindow(View v) {
+                    v.removeOnAttachStateChangeListener(this);
+                    v.getViewTreeObserver().addOnDrawListener(listener);
+                }
+
+                @Override
+                public void onViewDetachedFromWindow(View v) {
+                }
+            });
+        }
+    }
+
+    private static synchronized void markFirstFrame() {
+        if (firstFrameMillis == NOT_REACHED) {
+            firstFrameMillis = sinceProcessStart();
+            Log.i(TAG, "最初のフレーム: " + firstFrameMillis + "ms");
+        }
+    }
+
+    /**
+     * 最初のリストが表示された（2回目以降は無視）
+     * @param source 表示した画面（例: "home_tags"）
+     */
+    public static void markFirstList(Activity activity, String source) {
+        synchronized (StartupTrace.class) {
+            if (firstListMillis != NOT_REACHED) {
+                return;
+            }
+            firstListMillis = sinceProcessStart();
+            firstListSource = source;
+            Log.i(TAG, "最初のリスト表示: " + firstListMillis + "ms (" + source + ")");
+        }
+        if (activity != null) {
+            activity.reportFullyDrawn();
+        }
+    }
+
+    public static synchronized String dump() {
+        return String.format(Locale.US,
+            "起動\n\ndb_ready=%dms first_frame=%dms first_list=%dms (%s)\n",
+            databaseReadyMillis, firstFrameMillis, firstListMillis, firstListSource);
+    }
+
+    public static synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("db_ready_ms", databaseReadyMillis);
+        json.put("first_frame_ms", firstFrameMillis);
+        json.put("first_list_ms", firstListMillis);
+        json.put("first_list_source", firstListSource);
+        return json;
+    }
+}
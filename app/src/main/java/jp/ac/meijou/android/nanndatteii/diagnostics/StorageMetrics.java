@@ -0,0 +1,99 @@
+package jp.ac.meijou.android.nanndatteii.diagnostics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileStorageManagerの操作ごとの回数・バイト数・レイテンシ・失敗数
+ * 操作 × MIMEカテゴリ × 保存方式（MediaStore / 従来のファイル）で集計する
+ */
+public final class StorageMetrics {
+    public static final String OP_SAVE = "save";
+    public static final String OP_COPY = "copy";
+    public static final String OP_DELETE = "delete";
+    public static final String OP_RESOLVE = "resolve";
+
+    public static final String BACKEND_MEDIASTORE = "mediastore";
+    public static final String BACKEND_LEGACY = "legacy";
+
+    private static final Map<String, OperationStats> STATS = new ConcurrentHashMap<>();
+
+    private StorageMetrics() {
+    }
+
+    /**
+     * @param operation OP_*
+     * @param category MIMEカテゴリ（images, texts など）
+     * @param backend BACKEND_*
+     * @param nanos 所要時間
+     * @param bytes 読み書きしたバイト数
+     * @param success 成功したか
+     */
+    public static void record(String operation, String category, String backend,
+                              long nanos, long bytes, boolean success) {
+        String key = operation + "/" + category + "/" + backend;
+        STATS.computeIfAbsent(key, k -> new OperationStats()).record(nanos, bytes, success);
+    }
+
+    public static void reset() {
+        STATS.clear();
+    }
+
+    public static String dump() {
+        StringBuilder builder = new StringBuilder("ストレージ\n");
+        for (Map.Entry<String, OperationStats> entry : new TreeMap<>(STATS).entrySet()) {
+            OperationStats stats = entry.getValue();
+            LatencyHistogram histogram = stats.histogram;
+            builder.append(String.format(Locale.US,
+                "\n%s\n  count=%d bytes=%d failures=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms\n",
+                entry.getKey(), histogram.getCount(), stats.getBytes(), stats.getFailures(),
+                histogram.percentileMillis(50), histogram.percentileMillis(90),
+                histogram.percentileMillis(99), histogram.maxMillis()));
+        }
+        return builder.toString();
+    }
+
+    public static JSONArray toJson() throws JSONException {
+        JSONArray operations = new JSONArray();
+        for (Map.Entry<String, OperationStats> entry : new TreeMap<>(STATS).entrySet()) {
+            String[] parts = entry.getKey().split("/", 3);
+            OperationStats stats = entry.getValue();
+            JSONObject json = stats.histogram.toJson();
+            json.put("operation", parts[0]);
+            json.put("category", parts[1]);
+            json.put("backend", parts[2]);
+            json.put("bytes", stats.getBytes());
+            json.put("failures", stats.getFailures());
+            operations.put(json);
+        }
+        return operations;
+    }
+
+    private static class OperationStats {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        private long bytes;
+        private long failures;
+
+        synchronized void record(long nanos, long byteCount, boolean success) {
+            histogram.record(nanos);
+            bytes += Math.max(0, byteCount);
+            if (!success) {
+                failures++;
+            }
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        synchronized long getFailures() {
+            return failures;
+        }
+    }
+}
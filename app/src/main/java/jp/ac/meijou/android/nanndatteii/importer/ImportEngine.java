@@ -0,0 +1,147 @@
+package jp.ac.meijou.android.nanndatteii.importer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.ImportDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportSession;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+import jp.ac.meijou.android.nanndatteii.jobs.JobQueue;
+
+/**
+ * 複数ファイルの一括取り込み（共有されたファイル群・フォルダ）
+ *
+ * 取り込み対象はDBに記録してからImportJobで処理するので、
+ * プロセスが終了しても次回起動時に続きから再開する。
+ * 進捗はgetProgress()で通知される
+ */
+public class ImportEngine {
+    private static final String TAG = "ImportEngine";
+
+    private static volatile ImportEngine INSTANCE;
+
+    private final Context context;
+    private final AppDatabase db;
+    private final ImportDao importDao;
+    private final MutableLiveData<ImportProgress> progress = new MutableLiveData<>();
+    private final Set<Long> cancelledSessions = ConcurrentHashMap.newKeySet();
+
+    public static ImportEngine getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (ImportEngine.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new ImportEngine(context.getApplicationContext());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    private ImportEngine(Context context) {
+        this.context = context;
+        db = AppDatabase.getInstance(context);
+        importDao = db.importDao();
+    }
+
+    /**
+     * 共有されたファイル群を取り込む（ACTION_SEND / ACTION_SEND_MULTIPLE）
+     * 一時的な読み取り権限しかないURIは、プロセスが終了すると再開時に読めなくなる（失敗として数える）
+     * @param tagIds 取り込んだアイテムに付けるタグ
+     */
+    public void importUris(List<Uri> uris, List<Long> tagIds) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        AppExecutors.background().execute(() -> {
+            try {
+                long sessionId = db.runInTransaction(() -> {
+                    long id = importDao.insertSession(newSession(null, tagIds, ImportSession.STATUS_RUNNING));
+                    List<ImportEntry> entries = new ArrayList<>(uris.size());
+                    for (Uri uri : uris) {
+                        entries.add(new ImportEntry(id, uri.toString(), null, null));
+                    }
+                    importDao.insertEntries(entries);
+                    return id;
+                });
+                progress.postValue(new ImportProgress(sessionId, ImportProgress.STATE_RUNNING, uris.size(), 0, 0));
+                enqueue(sessionId);
+            } catch (Exception e) {
+                Log.e(TAG, "importUris: 取り込みを開始できません", e);
+            }
+        });
+    }
+
+    /**
+     * フォルダ（Storage Access Frameworkのツリー）以下のファイルをすべて取り込む
+     * 再開できるよう、呼び出し側でtakePersistableUriPermissionしておくこと
+     * @param tagIds 取り込んだアイテムに付けるタグ
+     */
+    public void importTree(Uri treeUri, List<Long> tagIds) {
+        AppExecutors.background().execute(() -> {
+            try {
+                long sessionId = importDao.insertSession(
+                    newSession(treeUri.toString(), tagIds, ImportSession.STATUS_SCANNING));
+                progress.postValue(new ImportProgress(sessionId, ImportProgress.STATE_SCANNING, 0, 0, 0));
+                enqueue(sessionId);
+            } catch (Exception e) {
+                Log.e(TAG, "importTree: 取り込みを開始できません", e);
+            }
+        });
+    }
+
+    /**
+     * 取り込みを中止する（コピー中のファイルは書き込んでから止まる）
+     */
+    public void cancel(long sessionId) {
+        cancelledSessions.add(sessionId);
+        // 実行前・再開前のジョブにも伝わるようDBにも記録する
+        AppExecutors.background().execute(
+            () -> importDao.updateSessionStatus(sessionId, ImportSession.STATUS_CANCELLED));
+    }
+
+    /**
+     * 最後に開始した取り込みの進捗
+     */
+    public LiveData<ImportProgress> getProgress() {
+        return progress;
+    }
+
+    boolean isCancelled(long sessionId) {
+        return cancelledSessions.contains(sessionId);
+    }
+
+    void postProgress(ImportProgress value) {
+        progress.postValue(value);
+    }
+
+    void onFinished(long sessionId) {
+        cancelledSessions.remove(sessionId);
+    }
+
+    private ImportSession newSession(String treeUri, List<Long> tagIds, String status) {
+        ImportSession session = new ImportSession();
+        session.setTreeUri(treeUri);
+        session.setTagIdList(tagIds != null ? tagIds : Collections.emptyList());
+        session.setStatus(status);
+        session.setCreatedAt(System.currentTimeMillis());
+        return session;
+    }
+
+    private void enqueue(long sessionId) {
+        JobQueue.getInstance(context).enqueue(ImportJob.TYPE, String.valueOf(sessionId),
+            ImportJob.TYPE + ":" + sessionId, Job.PRIORITY_HIGH, false);
+    }
+}
@@ -0,0 +1,394 @@
+package jp.ac.meijou.android.nanndatteii.importer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.FileDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.ImportDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemTagDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportSession;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+import jp.ac.meijou.android.nanndatteii.jobs.JobHandler;
+import jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer;
+import jp.ac.meijou.android.nanndatteii.repository.ItemCache;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+import jp.ac.meijou.android.nanndatteii.storage.ImageProcessor;
+import jp.ac.meijou.android.nanndatteii.storage.SavedFile;
+
+/**
+ * 一括取り込みの実行（payloadはImportSessionのID）
+ *
+ * ファイルのコピーはAppExecutors.fileIo()で並列に行い、
+ * 結果をBATCH_SIZE件ずつ1トランザクションでアイテム・ファイル・タグとして登録する。
+ * コピー済みで未登録のファイルはMAX_IN_FLIGHT件までに抑え、超えたら登録が追いつくまで次のコピーを始めない。
+ * 途中で失敗・中断しても、登録済みの分はDONEになっているので再実行で続きから取り込む。
+ * 長時間かかるのでJobQueueはAppExecutors.longJobs()で実行する
+ */
+public class ImportJob implements JobHandler {
+    public static final String TYPE = "IMPORT";
+    private static final String TAG = "ImportJob";
+
+    // 1トランザクションで登録する件数
+    private static final int BATCH_SIZE = 50;
+    // コピー中・コピー済みで未登録の上限（BATCH_SIZE以上にすること）
+    static final int MAX_IN_FLIGHT = 64;
+    // 未処理の取り込み対象を読む単位
+    private static final int PAGE_SIZE = 200;
+    // フォルダ走査で見つけたファイルを記録する単位
+    private static final int SCAN_BATCH_SIZE = 500;
+
+    private static final String FILE_TYPE_IMAGE = "IMAGE";
+    private static final String FILE_TYPE_TEXT = "TEXT";
+    private static final String FILE_TYPE_OTHER = "OTHER";
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    private final ContentResolver resolver;
+    private final AppDatabase db;
+    private final ImportDao importDao;
+    private final ItemDao itemDao;
+    private final FileDao fileDao;
+    private final ItemTagDao itemTagDao;
+    private final FileStorageManager storageManager;
+    private final ImageProcessor imageProcessor;
+    private final ImportEngine engine;
+    private final InvalidationCoalescer coalescer;
+    private final ItemCache itemCache;
+
+    public ImportJob(Context context) {
+        resolver = context.getContentResolver();
+        db = AppDatabase.getInstance(context);
+        importDao = db.importDao();
+        itemDao = db.itemDao();
+        fileDao = db.fileDao();
+        itemTagDao = db.itemTagDao();
+        storageManager = new FileStorageManager(context);
+        imageProcessor = new ImageProcessor(context);
+        engine = ImportEngine.getInstance(context);
+        coalescer = InvalidationCoalescer.getInstance(context);
+        itemCache = ItemCache.getInstance(context);
+    }
+
+    @Override
+    public void run(Job job) throws Exception {
+        long sessionId = Long.parseLong(job.getPayload());
+        ImportSession session = importDao.getSessionSync(sessionId);
+        if (session == null) {
+            return;
+        }
+
+        // 例外で抜けた場合はセッションを残し、再試行で続きから再開する
+        if (ImportSession.STATUS_SCANNING.equals(session.getStatus()) && !isCancelled(sessionId)) {
+            scanTree(sessionId, Uri.parse(session.getTreeUri()));
+            importDao.markScanned(sessionId);
+        }
+        if (!isCancelled(sessionId)) {
+            importPending(sessionId, session.getTagIdList());
+        }
+        finish(session);
+    }
+
+    private boolean isCancelled(long sessionId) {
+        if (engine.isCancelled(sessionId)) {
+            return true;
+        }
+        ImportSession session = importDao.getSessionSync(sessionId);
+        return session == null || ImportSession.STATUS_CANCELLED.equals(session.getStatus());
+    }
+
+    /**
+     * フォルダ以下を走査して取り込み対象を記録する（再走査しても同じURIは重複しない）
+     */
+    private void scanTree(long sessionId, Uri treeUri) {
+        Deque<String> directories = new ArrayDeque<>();
+        directories.push(DocumentsContract.getTreeDocumentId(treeUri));
+        List<ImportEntry> found = new ArrayList<>(SCAN_BATCH_SIZE);
+        int total = 0;
+        String[] projection = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE
+        };
+
+        while (!directories.isEmpty()) {
+            Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, directories.pop());
+            try (Cursor cursor = resolver.query(childrenUri, projection, null, null, null)) {
+                if (cursor == null) {
+                    continue;
+                }
+                while (cursor.moveToNext()) {
+                    String documentId = cursor.getString(0);
+                    String mimeType = cursor.getString(2);
+                    if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
+                        directories.push(documentId);
+                        continue;
+                    }
+                    Uri documentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+                    found.add(new ImportEntry(sessionId, documentUri.toString(), cursor.getString(1), mimeType));
+                    if (found.size() == SCAN_BATCH_SIZE) {
+                        importDao.insertEntries(found);
+                        total += found.size();
+                        found.clear();
+                        postProgress(sessionId, ImportProgress.STATE_SCANNING, total, 0, 0);
+                        if (isCancelled(sessionId)) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        if (!found.isEmpty()) {
+            importDao.insertEntries(found);
+        }
+    }
+
+    /**
+     * 未処理の取り込み対象を並列にコピーし、まとめて登録する
+     */
+    private void importPending(long sessionId, List<Long> tagIds) throws InterruptedException {
+        Semaphore permits = new Semaphore(MAX_IN_FLIGHT);
+        BlockingQueue<CopyResult> results = new LinkedBlockingQueue<>();
+        List<CopyResult> batch = new ArrayList<>(BATCH_SIZE);
+        int submitted = 0;
+        int registered = 0;
+
+        postProgress(sessionId, ImportProgress.STATE_RUNNING);
+        long afterId = 0;
+        List<ImportEntry> page;
+        pages:
+        while (!(page = importDao.getPendingEntries(sessionId, afterId, PAGE_SIZE)).isEmpty()) {
+            for (ImportEntry entry : page) {
+                afterId = entry.getId();
+                if (engine.isCancelled(sessionId)) {
+                    break pages;
+                }
+
+                // 空きがなければ、コピー済みの結果を登録して空ける（BATCH_SIZE <= MAX_IN_FLIGHTなので必ず進む）
+                while (!permits.tryAcquire()) {
+                    batch.add(results.take());
+                    results.drainTo(batch);
+                    if (batch.size() >= BATCH_SIZE) {
+                        registered += register(sessionId, batch, tagIds, permits);
+                    }
+                }
+                AppExecutors.fileIo().execute(() -> results.add(copy(entry)));
+                submitted++;
+
+                results.drainTo(batch);
+                if (batch.size() >= BATCH_SIZE) {
+                    registered += register(sessionId, batch, tagIds, permits);
+                }
+            }
+        }
+
+        // 残りのコピーを待って登録（中止時もコピー済みの分は登録する）
+        while (registered + batch.size() < submitted) {
+            batch.add(results.take());
+            results.drainTo(batch);
+            if (batch.size() >= BATCH_SIZE || registered + batch.size() == submitted) {
+                registered += register(sessionId, batch, tagIds, permits);
+            }
+        }
+        if (!batch.isEmpty()) {
+            register(sessionId, batch, tagIds, permits);
+        }
+    }
+
+    /**
+     * コピー結果を1トランザクションで登録し、空きを戻す
+     * @return 登録（または失敗として記録）した件数
+     */
+    private int register(long sessionId, List<CopyResult> batch, List<Long> tagIds, Semaphore permits) {
+        long now = System.currentTimeMillis();
+        List<Long> itemIds = new ArrayList<>(batch.size());
+        // 1件ごとに一覧を読み直さないよう、バッチ内の変更通知はまとめる
+        coalescer.beginBulkWrite();
+        try {
+            db.runInTransaction(() -> {
+                for (CopyResult result : batch) {
+                    if (result.saved == null) {
+                        importDao.markFailed(result.entry.getId(), result.error);
+                        continue;
+                    }
+
+                    Item item = new Item();
+                    item.setTitle(result.displayName);
+                    item.setDescription(result.displayName);
+                    item.setCreatedAt(now);
+                    item.setUpdatedAt(now);
+                    long itemId = itemDao.insert(item);
+                    itemIds.add(itemId);
+
+                    fileDao.insert(toItemFile(itemId, result.saved, now));
+                    // 取り込み中にセッションのタグが削除されていても、残りのタグだけ付けて登録する
+                    if (!tagIds.isEmpty()) {
+                        itemTagDao.insertTagsForItem(itemId, tagIds);
+                    }
+                    importDao.markDone(result.entry.getId(), itemId);
+                }
+            });
+        } finally {
+            coalescer.endBulkWrite();
+        }
+        itemCache.invalidateAll(itemIds);
+
+        int count = batch.size();
+        batch.clear();
+        permits.release(count);
+        postProgress(sessionId, ImportProgress.STATE_RUNNING);
+        return count;
+    }
+
+    /**
+     * 1ファイルをコピーする（fileIo()のスレッドで実行）
+     * OutOfMemoryErrorなども含めて必ず結果を返す（返さないと登録側がresults.takeで待ち続ける）
+     */
+    private CopyResult copy(ImportEntry entry) {
+        Uri uri = Uri.parse(entry.getSourceUri());
+        String displayName = entry.getDisplayName();
+        try {
+            String mimeType = entry.getMimeType() != null ? entry.getMimeType() : resolver.getType(uri);
+            if (mimeType == null) {
+                mimeType = DEFAULT_MIME_TYPE;
+            }
+            if (displayName == null) {
+                displayName = queryDisplayName(uri);
+            }
+
+            SavedFile saved = null;
+            if (mimeType.startsWith("image/")) {
+                try (InputStream inputStream = openInputStream(uri)) {
+                    saved = storageManager.saveImage(inputStream, imageProcessor);
+                } catch (IOException | OutOfMemoryError e) {
+                    // デコードできない画像（アニメーションGIFなど）や大きすぎる画像はそのまま保存する
+                    Log.w(TAG, "copy: 画像として処理できないためそのまま保存: " + uri, e);
+                }
+            }
+            if (saved == null) {
+                try (InputStream inputStream = openInputStream(uri)) {
+                    saved = storageManager.saveFile(inputStream, mimeType);
+                }
+            }
+            return new CopyResult(entry, displayName, saved, null);
+        } catch (Throwable e) {
+            Log.w(TAG, "copy: 取り込めません: " + uri, e);
+            return new CopyResult(entry, displayName, null, e.toString());
+        }
+    }
+
+    private InputStream openInputStream(Uri uri) throws IOException {
+        InputStream inputStream = resolver.openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("開けません: " + uri);
+        }
+        return inputStream;
+    }
+
+    private String queryDisplayName(Uri uri) {
+        try (Cursor cursor = resolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "queryDisplayName: 表示名を取得できません: " + uri, e);
+        }
+        return uri.getLastPathSegment();
+    }
+
+    private ItemFile toItemFile(long itemId, SavedFile saved, long now) {
+        ItemFile file = new ItemFile();
+        file.setItemId(itemId);
+        file.setFilePath(saved.getRelativePath());
+        file.setFileName(saved.getFileName());
+        file.setFileType(getFileType(saved.getMimeType()));
+        file.setFileSize(saved.getFileSize());
+        file.setOriginalSize(saved.getOriginalSize());
+        file.setMimeType(saved.getMimeType());
+        file.setCodec(saved.getCodec());
+        file.setCreatedAt(now);
+        return file;
+    }
+
+    private String getFileType(String mimeType) {
+        if (mimeType.startsWith("image/")) {
+            return FILE_TYPE_IMAGE;
+        } else if (mimeType.equals("text/plain")) {
+            return FILE_TYPE_TEXT;
+        }
+        return FILE_TYPE_OTHER;
+    }
+
+    /**
+     * 完了・中止したセッションを片付ける
+     */
+    private void finish(ImportSession session) {
+        long sessionId = session.getId();
+        boolean cancelled = isCancelled(sessionId);
+        int total = importDao.countEntries(sessionId);
+        int done = importDao.countByStatus(sessionId, ImportEntry.STATUS_DONE);
+        int failed = importDao.countByStatus(sessionId, ImportEntry.STATUS_FAILED);
+        Log.i(TAG, "finish: #" + sessionId + (cancelled ? " 中止" : " 完了")
+            + " total=" + total + " done=" + done + " failed=" + failed);
+
+        importDao.deleteSession(sessionId);
+        if (session.getTreeUri() != null) {
+            try {
+                resolver.releasePersistableUriPermission(
+                    Uri.parse(session.getTreeUri()), Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                // 権限を保持していなかった
+            }
+        }
+        engine.postProgress(new ImportProgress(sessionId,
+            cancelled ? ImportProgress.STATE_CANCELLED : ImportProgress.STATE_COMPLETED, total, done, failed));
+        engine.onFinished(sessionId);
+    }
+
+    private void postProgress(long sessionId, String state) {
+        postProgress(sessionId, state, importDao.countEntries(sessionId),
+            importDao.countByStatus(sessionId, ImportEntry.STATUS_DONE),
+            importDao.countByStatus(sessionId, ImportEntry.STATUS_FAILED));
+    }
+
+    private void postProgress(long sessionId, String state, int total, int done, int failed) {
+        engine.postProgress(new ImportProgress(sessionId, state, total, done, failed));
+    }
+
+    /**
+     * 1ファイルのコピー結果（失敗時はsavedがnull）
+     */
+    private static class CopyResult {
+        final ImportEntry entry;
+        final String displayName;
+        final SavedFile saved;
+        final String error;
+
+        CopyResult(ImportEntry entry, String displayName, SavedFile saved, String error) {
+            this.entry = entry;
+            this.displayName = displayName;
+            this.saved = saved;
+            this.error = error;
+        }
+    }
+}
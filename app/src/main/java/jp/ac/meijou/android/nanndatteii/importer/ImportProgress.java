@@ -0,0 +1,55 @@
+package jp.ac.meijou.android.nanndatteii.importer;
+
+/**
+ * 一括取り込みの進捗（不変）
+ */
+public class ImportProgress {
+    public static final String STATE_SCANNING = "SCANNING";
+    public static final String STATE_RUNNING = "RUNNING";
+    public static final String STATE_COMPLETED = "COMPLETED";
+    public static final String STATE_CANCELLED = "CANCELLED";
+
+    private final long sessionId;
+    private final String state;
+    private final int total;
+    private final int done;
+    private final int failed;
+
+    public ImportProgress(long sessionId, String state, int total, int done, int failed) {
+        this.sessionId = sessionId;
+        this.state = state;
+        this.total = total;
+        this.done = done;
+        this.failed = failed;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * 取り込み対象の数（フォルダの走査中は見つかった数）
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getDone() {
+        return done;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * 走査中・取り込み中か
+     */
+    public boolean isActive() {
+        return STATE_SCANNING.equals(state) || STATE_RUNNING.equals(state);
+    }
+}
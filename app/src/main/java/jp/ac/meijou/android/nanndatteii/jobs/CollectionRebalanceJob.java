@@ -0,0 +1,31 @@
+package jp.ac.meijou.android.nanndatteii.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.CollectionDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+
+/**
+ * コレクションの並び替えキーを短く振り直す（payloadはコレクションのID）
+ * 同じ所への差し込みが続いてキーが長くなった時にCollectionRepositoryが積む
+ */
+public class CollectionRebalanceJob implements JobHandler {
+    public static final String TYPE = "COLLECTION_REBALANCE";
+    private static final String TAG = "CollectionRebalanceJob";
+
+    private final CollectionDao collectionDao;
+
+    public CollectionRebalanceJob(Context context) {
+        collectionDao = AppDatabase.getInstance(context).collectionDao();
+    }
+
+    @Override
+    public void run(Job job) {
+        long collectionId = Long.parseLong(job.getPayload());
+        // 削除済みのコレクションなら何もしない（対象の行がない）
+        int rebalanced = collectionDao.rebalance(collectionId);
+        Log.d(TAG, "run: キーを振り直し: " + rebalanced + "件");
+    }
+}
@@ -0,0 +1,12 @@
+package jp.ac.meijou.android.nanndatteii.jobs;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+
+/**
+ * ジョブ種別ごとの処理
+ * 例外を投げるとバックオフ付きで再試行される
+ * 再実行されても結果が変わらないように実装すること
+ */
+public interface JobHandler {
+    void run(Job job) throws Exception;
+}
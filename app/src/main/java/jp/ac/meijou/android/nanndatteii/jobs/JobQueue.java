@@ -0,0 +1,230 @@
+package jp.ac.meijou.android.nanndatteii.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.JobDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+import jp.ac.meijou.android.nanndatteii.importer.ImportJob;
+
+/**
+ * DBに永続化されるバックグラウンドジョブのキュー
+ * 積まれたジョブは共有スレッドで順に実行され、プロセスが終了しても次回起動時に再開する
+ * 長時間かかる種別は専用のExecutorで実行し、その間も他のジョブは順に進む
+ */
+public class JobQueue {
+    private static final String TAG = "JobQueue";
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MS = 30 * 1000L;
+    private static final long MAX_BACKOFF_MS = 6 * 60 * 60 * 1000L;
+
+    private static volatile JobQueue INSTANCE;
+
+    private final JobDao jobDao;
+    private final Executor background;
+    private final Map<String, JobHandler> handlers = new ConcurrentHashMap<>();
+    private final Map<String, Executor> executors = new ConcurrentHashMap<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicBoolean drainRequested = new AtomicBoolean(false);
+    private volatile boolean idle;
+    private ScheduledFuture<?> wakeup;
+
+    public static JobQueue getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (JobQueue.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new JobQueue(context.getApplicationContext());
+                    INSTANCE.start();
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    private JobQueue(Context context) {
+        this(AppDatabase.getInstance(context).jobDao(), AppExecutors.background());
+        registerHandler(OrphanCleanupJob.TYPE, new OrphanCleanupJob(context));
+        registerHandler(SampleFileJob.TYPE, new SampleFileJob(context));
+        registerHandler(ImportJob.TYPE, new ImportJob(context), AppExecutors.longJobs());
+        registerHandler(CollectionRebalanceJob.TYPE, new CollectionRebalanceJob(context));
+    }
+
+    /**
+     * 処理は登録せずに作る。drainとenqueueの書き込みはbackgroundで実行する
+     */
+    @VisibleForTesting
+    JobQueue(JobDao jobDao, Executor background) {
+        this.jobDao = jobDao;
+        this.background = background;
+    }
+
+    private void start() {
+        background.execute(() -> {
+            // 前回のプロセスで実行中だったジョブを戻す
+            int recovered = jobDao.resetRunningJobs();
+            if (recovered > 0) {
+                Log.d(TAG, "start: 中断されたジョブを再開: " + recovered + "件");
+            }
+            drain();
+        });
+    }
+
+    /**
+     * ジョブ種別の処理を登録
+     */
+    public void registerHandler(String type, JobHandler handler) {
+        handlers.put(type, handler);
+    }
+
+    /**
+     * ジョブ種別の処理を登録（drainのスレッドではなくexecutorで実行する）
+     */
+    public void registerHandler(String type, JobHandler handler, Executor executor) {
+        handlers.put(type, handler);
+        executors.put(type, executor);
+    }
+
+    /**
+     * ジョブを積む
+     * @param type ジョブ種別
+     * @param payload ジョブに渡す値（不要ならnull）
+     * @param idempotencyKey 同じキーの未完了ジョブがあれば積まない（不要ならnull）
+     * @param priority 大きいほど先に実行（Job.PRIORITY_*）
+     * @param requiresIdle trueならアプリがバックグラウンドの時のみ実行
+     */
+    public void enqueue(String type, String payload, String idempotencyKey,
+                        int priority, boolean requiresIdle) {
+        Job job = new Job();
+        job.setType(type);
+        job.setPayload(payload);
+        job.setIdempotencyKey(idempotencyKey);
+        job.setPriority(priority);
+        job.setRequiresIdle(requiresIdle);
+        job.setMaxAttempts(DEFAULT_MAX_ATTEMPTS);
+        job.setCreatedAt(System.currentTimeMillis());
+        job.setNextRunAt(job.getCreatedAt());
+
+        background.execute(() -> {
+            long jobId = jobDao.insert(job);
+            if (jobId == -1) {
+                Log.d(TAG, "enqueue: 同じキーのジョブが既にあります: " + idempotencyKey);
+                return;
+            }
+            drain();
+        });
+    }
+
+    /**
+     * アプリのアイドル状態を設定（アイドル時のみのジョブはこれで実行される）
+     */
+    public void setIdle(boolean idle) {
+        this.idle = idle;
+        if (idle) {
+            requestDrain();
+        }
+    }
+
+    /**
+     * キューの消化を依頼
+     */
+    public void requestDrain() {
+        background.execute(this::drain);
+    }
+
+    private void drain() {
+        drainRequested.set(true);
+        if (!draining.compareAndSet(false, true)) {
+            // 実行中のdrainがもう一周する
+            return;
+        }
+        try {
+            while (drainRequested.getAndSet(false)) {
+                Job job;
+                while ((job = jobDao.getNextRunnableJob(System.currentTimeMillis(), idle)) != null) {
+                    if (jobDao.claim(job.getId()) == 0) {
+                        continue;
+                    }
+                    Executor executor = executors.get(job.getType());
+                    if (executor != null) {
+                        // 実行中（claim済み）なので次の周回では選ばれない。終わったら再試行の予定を入れ直す
+                        Job claimed = job;
+                        executor.execute(() -> {
+                            runJob(claimed);
+                            requestDrain();
+                        });
+                    } else {
+                        runJob(job);
+                    }
+                }
+            }
+        } finally {
+            draining.set(false);
+        }
+        if (drainRequested.get()) {
+            requestDrain();
+        } else {
+            scheduleWakeup();
+        }
+    }
+
+    private void runJob(Job job) {
+        JobHandler handler = handlers.get(job.getType());
+        if (handler == null) {
+            Log.w(TAG, "runJob: 未登録のジョブ種別: " + job.getType());
+            jobDao.markFailed(job.getId(), "未登録のジョブ種別");
+            return;
+        }
+
+        int attempts = job.getAttempts() + 1;
+        try {
+            handler.run(job);
+            jobDao.deleteById(job.getId());
+            Log.d(TAG, "runJob: 完了: " + job.getType() + " #" + job.getId());
+        } catch (Exception e) {
+            if (attempts >= job.getMaxAttempts()) {
+                Log.e(TAG, "runJob: 再試行上限に達しました: " + job.getType() + " #" + job.getId(), e);
+                jobDao.markFailed(job.getId(), e.toString());
+            } else {
+                long delay = getBackoffMillis(attempts);
+                Log.w(TAG, "runJob: 失敗。" + delay + "ms後に再試行: " + job.getType() + " #" + job.getId(), e);
+                jobDao.reschedule(job.getId(), System.currentTimeMillis() + delay, e.toString());
+            }
+        }
+    }
+
+    /**
+     * 指数バックオフ（30秒, 1分, 2分, ... 最大6時間）
+     */
+    @VisibleForTesting
+    static long getBackoffMillis(int attempts) {
+        int shift = Math.min(attempts - 1, 20);
+        return Math.min(BASE_BACKOFF_MS << shift, MAX_BACKOFF_MS);
+    }
+
+    /**
+     * 次に実行可能になるジョブの時刻に合わせて再度drainする
+     */
+    private synchronized void scheduleWakeup() {
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+        Long nextRunAt = jobDao.getNextRunAt(idle);
+        if (nextRunAt == null) {
+            return;
+        }
+        long delay = Math.max(0, nextRunAt - System.currentTimeMillis());
+        wakeup = AppExecutors.scheduler().schedule(this::requestDrain, delay, TimeUnit.MILLISECONDS);
+    }
+}
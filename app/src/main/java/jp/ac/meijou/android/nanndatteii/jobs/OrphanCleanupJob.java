@@ -0,0 +1,69 @@
+package jp.ac.meijou.android.nanndatteii.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.KeysetIterator;
+import jp.ac.meijou.android.nanndatteii.db.dao.FileDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+
+/**
+ * DBから参照されていない保存ファイルと展開キャッシュを削除する
+ */
+public class OrphanCleanupJob implements JobHandler {
+    public static final String TYPE = "ORPHAN_CLEANUP";
+    private static final String TAG = "OrphanCleanupJob";
+
+    // 保存直後でDB登録前のファイルを消さないための猶予
+    private static final long GRACE_PERIOD_MS = 60 * 60 * 1000L;
+    private static final int CHUNK_SIZE = 500;
+
+    private final FileDao fileDao;
+    private final FileStorageManager storageManager;
+
+    public OrphanCleanupJob(Context context) {
+        fileDao = AppDatabase.getInstance(context).fileDao();
+        storageManager = new FileStorageManager(context);
+    }
+
+    @Override
+    public void run(Job job) {
+        Set<String> knownPaths = new HashSet<>();
+        // 全件を1回のクエリで読まず、チャンクごとに読む
+        try (KeysetIterator<ItemFile> files = fileDao.iterateFiles(CHUNK_SIZE)) {
+            while (files.hasNext()) {
+                knownPaths.add(files.next().getFilePath());
+            }
+        }
+        long threshold = System.currentTimeMillis() - GRACE_PERIOD_MS;
+
+        int deleted = 0;
+        File root = storageManager.getRootDirectory();
+        File[] typeDirs = root.listFiles();
+        if (typeDirs != null) {
+            for (File typeDir : typeDirs) {
+                File[] files = typeDir.isDirectory() ? typeDir.listFiles() : null;
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    String relativePath = typeDir.getName() + "/" + file.getName();
+                    if (!knownPaths.contains(relativePath) && file.lastModified() < threshold
+                            && storageManager.deleteFile(relativePath)) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+
+        storageManager.clearDecodedCache();
+        Log.d(TAG, "run: 参照されていないファイルを削除: " + deleted + "件");
+    }
+}
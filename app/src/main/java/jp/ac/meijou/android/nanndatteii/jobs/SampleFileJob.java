@@ -0,0 +1,47 @@
+package jp.ac.meijou.android.nanndatteii.jobs;
+
+import android.content.Context;
+import android.os.Environment;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import jp.ac.meijou.android.nanndatteii.R;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+
+/**
+ * [必須] サンプルファイルの保存
+ * 起動処理中にディスクへ書かないよう、アイドル時のジョブとして実行する
+ */
+public class SampleFileJob implements JobHandler {
+    public static final String TYPE = "SAMPLE_FILE";
+
+    private final Context context;
+
+    public SampleFileJob(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public void run(Job job) throws IOException {
+        // [必須] フォルダ名・タグ名・日時をstrings.xmlから取得
+        String photoFolderName = context.getString(R.string.photo_folder_name);
+        String tagName = context.getString(R.string.Tags);
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        String fileName = tagName + "_" + timeStamp + ".txt";
+
+        File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        File photoDir = new File(downloadsDir, photoFolderName);
+        if (!photoDir.exists()) photoDir.mkdirs();
+        File saveFile = new File(photoDir, fileName);
+
+        // [必須] ファイル保存処理例（テキスト書き込み）
+        try (Writer writer = new FileWriter(saveFile)) {
+            writer.write("サンプルデータを書き込みます。\n");
+        }
+    }
+}
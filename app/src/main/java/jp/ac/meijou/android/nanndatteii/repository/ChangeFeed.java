@@ -0,0 +1,118 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.Context;
+
+import androidx.annotation.WorkerThread;
+
+import java.util.Collections;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.ChangeLogDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeConsumer;
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeLogEntry;
+
+/**
+ * items・files・tags・item_tagsの変更（change_log）を、購読者ごとに読み終えた位置から読む
+ * 検索インデックス・統計・キャッシュ・書き出しなど、ライブラリから作るデータを全件走査せずに更新するため
+ *
+ * 1. subscribe: 登録する。登録より前の変更は読めないので、初回は全件から作ってから続きを読む
+ * 2. poll: 読み終えた位置より後の変更をseq順に取る（同じ行への変更もそのまま並ぶ）
+ * 3. commit: 反映し終えたら位置を進める。全員が読み終えた変更はchange_logから消える
+ *
+ * 使わなくなった購読者はunsubscribeすること（残っているとchange_logが消えずに増え続ける）
+ */
+public class ChangeFeed {
+    private final ChangeLogDao changeLogDao;
+
+    public ChangeFeed(Context context) {
+        changeLogDao = AppDatabase.getInstance(context).changeLogDao();
+    }
+
+    /**
+     * 購読者を登録する（既にあれば何もしない）
+     * @return 読み終えた位置（新しい購読者は今の最後の変更）
+     */
+    @WorkerThread
+    public long subscribe(String consumer) {
+        return changeLogDao.subscribe(consumer, System.currentTimeMillis());
+    }
+
+    @WorkerThread
+    public boolean isSubscribed(String consumer) {
+        return changeLogDao.getConsumerSync(consumer) != null;
+    }
+
+    /**
+     * 読み終えた位置より後の変更をlimit件まで取る（位置は進めない）
+     * @throws IllegalStateException 登録されていない購読者
+     */
+    @WorkerThread
+    public Batch poll(String consumer, int limit) {
+        ChangeConsumer registered = changeLogDao.getConsumerSync(consumer);
+        if (registered == null) {
+            throw new IllegalStateException("購読者が登録されていません: " + consumer);
+        }
+        long checkpoint = registered.getCheckpoint();
+        List<ChangeLogEntry> changes = changeLogDao.getChangesAfterSync(checkpoint, limit);
+        long lastSeq = changes.isEmpty() ? checkpoint : changes.get(changes.size() - 1).getSeq();
+        return new Batch(changes, lastSeq, changes.size() == limit);
+    }
+
+    /**
+     * seqまで読み終えたことにし、全員が読み終えた変更を消す
+     */
+    @WorkerThread
+    public void commit(String consumer, long seq) {
+        changeLogDao.commit(consumer, seq, System.currentTimeMillis());
+    }
+
+    /**
+     * 購読をやめる
+     */
+    @WorkerThread
+    public void unsubscribe(String consumer) {
+        changeLogDao.unsubscribe(consumer);
+    }
+
+    /**
+     * 登録されている購読者と読み終えた位置（診断用）
+     */
+    @WorkerThread
+    public List<ChangeConsumer> getConsumers() {
+        return changeLogDao.getConsumersSync();
+    }
+
+    /**
+     * pollで取った変更
+     */
+    public static class Batch {
+        private final List<ChangeLogEntry> changes;
+        private final long lastSeq;
+        private final boolean more;
+
+        Batch(List<ChangeLogEntry> changes, long lastSeq, boolean more) {
+            this.changes = Collections.unmodifiableList(changes);
+            this.lastSeq = lastSeq;
+            this.more = more;
+        }
+
+        public List<ChangeLogEntry> getChanges() {
+            return changes;
+        }
+
+        /**
+         * この分を反映し終えたらcommitに渡す位置
+         */
+        public long getLastSeq() {
+            return lastSeq;
+        }
+
+        /**
+         * 続きがあるかもしれない（limit件ちょうど取れた）
+         */
+        public boolean hasMore() {
+            return more;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.Context;
+
+import androidx.lifecycle.LiveData;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.CollectionDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemCollection;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+import jp.ac.meijou.android.nanndatteii.jobs.CollectionRebalanceJob;
+import jp.ac.meijou.android.nanndatteii.jobs.JobQueue;
+
+/**
+ * 手動で並べるコレクション
+ * 並べ替えは動かした1件のキーだけを書き換えるので、コレクションの件数によらず一定の時間で済む。
+ * キーが長くなったらCollectionRebalanceJobで振り直す
+ */
+public class CollectionRepository {
+    // これより長いキーができたら振り直す（同じ所へ百回以上続けて差し込むと超える）
+    static final int MAX_KEY_LENGTH = 24;
+
+    private final Context context;
+    private final CollectionDao collectionDao;
+    private final ExecutorService executorService;
+
+    public CollectionRepository(Context context) {
+        this.context = context.getApplicationContext();
+        collectionDao = AppDatabase.getInstance(context).collectionDao();
+        executorService = AppExecutors.background();
+    }
+
+    /**
+     * すべてのコレクションを名前順で取得
+     */
+    public LiveData<List<ItemCollection>> getAllCollections() {
+        return collectionDao.getAllCollections();
+    }
+
+    /**
+     * コレクションのアイテムを並び順で取得
+     */
+    public LiveData<List<Item>> getItems(long collectionId) {
+        return collectionDao.getItems(collectionId);
+    }
+
+    /**
+     * コレクションを作成
+     */
+    public void createCollection(String name, OnCollectionCreatedListener listener) {
+        executorService.execute(() -> {
+            try {
+                ItemCollection collection = new ItemCollection();
+                collection.setName(name.trim());
+                collection.setCreatedAt(System.currentTimeMillis());
+                long collectionId = collectionDao.insert(collection);
+                if (listener != null) {
+                    listener.onSuccess(collectionId);
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * コレクションを削除（アイテム自体は消えない）
+     */
+    public void deleteCollection(long collectionId, OnCollectionUpdatedListener listener) {
+        executorService.execute(() -> {
+            try {
+                collectionDao.deleteById(collectionId);
+                if (listener != null) {
+                    listener.onSuccess();
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * アイテムを末尾に追加（既に入っているものはそのまま）
+     */
+    public void addItems(long collectionId, Collection<Long> itemIds, OnCollectionUpdatedListener listener) {
+        executorService.execute(() -> {
+            try {
+                String key = collectionDao.addItems(collectionId, itemIds, System.currentTimeMillis());
+                rebalanceIfLong(collectionId, key);
+                if (listener != null) {
+                    listener.onSuccess();
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * アイテムをコレクションから外す
+     */
+    public void removeItems(long collectionId, Collection<Long> itemIds, OnCollectionUpdatedListener listener) {
+        executorService.execute(() -> {
+            try {
+                collectionDao.removeItems(collectionId, itemIds);
+                if (listener != null) {
+                    listener.onSuccess();
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * ドラッグでの並べ替え
+     * @param afterItemId 動かした先の直前のアイテム（先頭へ動かすならnull）
+     */
+    public void moveItem(long collectionId, long itemId, Long afterItemId, OnCollectionUpdatedListener listener) {
+        executorService.execute(() -> {
+            try {
+                String key = collectionDao.moveItem(collectionId, itemId, afterItemId);
+                if (key == null) {
+                    if (listener != null) {
+                        listener.onError(new Exception("アイテムがコレクションにありません"));
+                    }
+                    return;
+                }
+                rebalanceIfLong(collectionId, key);
+                if (listener != null) {
+                    listener.onSuccess();
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    private void rebalanceIfLong(long collectionId, String key) {
+        if (key != null && key.length() > MAX_KEY_LENGTH) {
+            JobQueue.getInstance(context).enqueue(CollectionRebalanceJob.TYPE, String.valueOf(collectionId),
+                CollectionRebalanceJob.TYPE + ":" + collectionId, Job.PRIORITY_LOW, false);
+        }
+    }
+
+    public interface OnCollectionCreatedListener {
+        void onSuccess(long collectionId);
+        void onError(Exception e);
+    }
+
+    public interface OnCollectionUpdatedListener {
+        void onSuccess();
+        void onError(Exception e);
+    }
+}
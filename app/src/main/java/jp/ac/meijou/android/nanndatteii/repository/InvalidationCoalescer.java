@@ -0,0 +1,311 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.room.InvalidationTracker;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+
+/**
+ * テーブル変更によるLiveDataの再クエリをまとめる
+ *
+ * RoomのLiveDataは書き込みのたびにすぐ全件クエリをやり直すため、
+ * インポートなどで連続して書き込むと同じクエリが何百回も走る。
+ * ここで作るLiveDataは変更通知を次のようにまとめてから1回だけ読み直す
+ * - 一括書き込み中（beginBulkWrite〜endBulkWrite）は通知を溜め、終了後に1回
+ * - それ以外は前回の読み直しからMIN_REFRESH_INTERVAL_MS以内の通知を1回にまとめる
+ */
+public class InvalidationCoalescer {
+    private static final String TAG = "InvalidationCoalescer";
+
+    public static final String TABLE_ITEMS = "items";
+    public static final String TABLE_FILES = "files";
+    public static final String TABLE_ITEM_TAGS = "item_tags";
+    public static final String TABLE_TAG_CLOSURE = "tag_closure";
+
+    // 連続した変更をまとめる間隔（一括書き込み終了後の遅れる通知もこの間にまとめる）
+    private static final long MIN_REFRESH_INTERVAL_MS = 250;
+
+    private static volatile InvalidationCoalescer INSTANCE;
+
+    private final Set<CoalescedLiveData<?>> activeLiveData = new CopyOnWriteArraySet<>();
+
+    // 以下はthisで保護
+    private final Set<String> pendingTables = new HashSet<>();
+    private final Map<String, Long> tableGenerations = new HashMap<>();
+    private long generation;
+    private long lastFlushAt;
+    private boolean flushScheduled;
+    private int bulkDepth;
+
+    // 計測用
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong suppressedInBulk = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong naiveQueries = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+
+    // InvalidationTrackerに登録している間は参照を保持しておく
+    private final InvalidationTracker.Observer observer = new InvalidationTracker.Observer(
+            TABLE_ITEMS, TABLE_FILES, TABLE_ITEM_TAGS, TABLE_TAG_CLOSURE) {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            InvalidationCoalescer.this.onInvalidated(tables);
+        }
+    };
+
+    public static InvalidationCoalescer getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (InvalidationCoalescer.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new InvalidationCoalescer(context.getApplicationContext());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    private InvalidationCoalescer(Context context) {
+        AppDatabase db = AppDatabase.getInstance(context);
+        // 登録時にトリガーを作るのでUIスレッドでは行わない
+        AppExecutors.background().execute(() -> db.getInvalidationTracker().addObserver(observer));
+    }
+
+    /**
+     * 変更通知をまとめて読み直すLiveDataを作る
+     * @param loader 同期クエリ（バックグラウンドスレッドで呼ばれる）
+     * @param tables loaderが読むテーブル（TABLE_*）
+     */
+    public <T> LiveData<T> query(Callable<T> loader, String... tables) {
+        return new CoalescedLiveData<>(loader, tables);
+    }
+
+    /**
+     * 一括書き込みを開始する（入れ子にできる）
+     * 必ずfinallyでendBulkWriteを呼ぶこと
+     */
+    public void beginBulkWrite() {
+        synchronized (this) {
+            bulkDepth++;
+        }
+    }
+
+    /**
+     * 一括書き込みを終了する
+     * 一番外側の終了時に、溜まった変更を1回の読み直しにまとめる
+     */
+    public void endBulkWrite() {
+        synchronized (this) {
+            if (bulkDepth == 0) {
+                throw new IllegalStateException("beginBulkWrite()が呼ばれていません");
+            }
+            bulkDepth--;
+            // 最後の書き込みの通知はトランザクション終了後に遅れて届くので、少し待ってからまとめて読み直す
+            if (bulkDepth == 0 && !flushScheduled) {
+                scheduleFlush(MIN_REFRESH_INTERVAL_MS);
+            }
+        }
+    }
+
+    private void onInvalidated(Set<String> tables) {
+        invalidations.incrementAndGet();
+        // RoomのLiveDataなら、この通知で観測中のものがそれぞれ再クエリしていた
+        for (CoalescedLiveData<?> liveData : activeLiveData) {
+            if (liveData.observes(tables)) {
+                naiveQueries.incrementAndGet();
+            }
+        }
+
+        synchronized (this) {
+            pendingTables.addAll(tables);
+            if (bulkDepth > 0) {
+                suppressedInBulk.incrementAndGet();
+                return;
+            }
+            if (flushScheduled) {
+                rateLimited.incrementAndGet();
+                return;
+            }
+            long wait = lastFlushAt + MIN_REFRESH_INTERVAL_MS - SystemClock.uptimeMillis();
+            if (wait > 0) {
+                rateLimited.incrementAndGet();
+            }
+            scheduleFlush(Math.max(0, wait));
+        }
+    }
+
+    // thisを保持して呼ぶこと
+    private void scheduleFlush(long delayMillis) {
+        flushScheduled = true;
+        if (delayMillis == 0) {
+            AppExecutors.background().execute(this::flush);
+        } else {
+            AppExecutors.scheduler().schedule(
+                () -> AppExecutors.background().execute(this::flush), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        Set<String> tables;
+        synchronized (this) {
+            flushScheduled = false;
+            if (bulkDepth > 0 || pendingTables.isEmpty()) {
+                // 一括書き込み中なら終了時にもう一度予約される
+                return;
+            }
+            tables = new HashSet<>(pendingTables);
+            pendingTables.clear();
+            lastFlushAt = SystemClock.uptimeMillis();
+            generation++;
+            for (String table : tables) {
+                tableGenerations.put(table, generation);
+            }
+        }
+        flushes.incrementAndGet();
+
+        // 観測されていないものは次に観測された時に読み直す
+        for (CoalescedLiveData<?> liveData : activeLiveData) {
+            if (liveData.observes(tables)) {
+                liveData.reload();
+            }
+        }
+    }
+
+    private synchronized long currentGeneration() {
+        return generation;
+    }
+
+    private synchronized boolean changedSince(long loadedAt, Set<String> tables) {
+        for (String table : tables) {
+            Long changedAt = tableGenerations.get(table);
+            if (changedAt != null && changedAt > loadedAt) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void reset() {
+        invalidations.set(0);
+        suppressedInBulk.set(0);
+        rateLimited.set(0);
+        flushes.set(0);
+        naiveQueries.set(0);
+        queries.set(0);
+    }
+
+    public String dump() {
+        return String.format(Locale.US,
+            "LiveDataの再クエリ\n\ninvalidations=%d suppressed_in_bulk=%d rate_limited=%d flushes=%d\n"
+                + "queries=%d (即時再クエリなら%d, 削減%d)\n",
+            invalidations.get(), suppressedInBulk.get(), rateLimited.get(), flushes.get(),
+            queries.get(), naiveQueries.get(), savedQueries());
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("invalidations", invalidations.get());
+        json.put("suppressed_in_bulk", suppressedInBulk.get());
+        json.put("rate_limited", rateLimited.get());
+        json.put("flushes", flushes.get());
+        json.put("queries", queries.get());
+        json.put("naive_queries", naiveQueries.get());
+        json.put("saved_queries", savedQueries());
+        return json;
+    }
+
+    private long savedQueries() {
+        return Math.max(0, naiveQueries.get() - queries.get());
+    }
+
+    /**
+     * 観測中だけ変更通知を受け取り、まとめた単位で読み直すLiveData
+     */
+    private class CoalescedLiveData<T> extends LiveData<T> {
+        private final Callable<T> loader;
+        private final Set<String> tables;
+        private final AtomicBoolean invalid = new AtomicBoolean(false);
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+        // 最後に読み込んだ時点の世代（未読み込みは-1）
+        private volatile long loadedAt = -1;
+
+        CoalescedLiveData(Callable<T> loader, String... tables) {
+            this.loader = loader;
+            this.tables = new HashSet<>(Arrays.asList(tables));
+        }
+
+        boolean observes(Set<String> changed) {
+            for (String table : changed) {
+                if (tables.contains(table)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        protected void onActive() {
+            activeLiveData.add(this);
+            if (loadedAt < 0 || changedSince(loadedAt, tables)) {
+                naiveQueries.incrementAndGet();
+                reload();
+            }
+        }
+
+        @Override
+        protected void onInactive() {
+            activeLiveData.remove(this);
+        }
+
+        void reload() {
+            invalid.set(true);
+            if (loading.compareAndSet(false, true)) {
+                AppExecutors.background().execute(this::load);
+            }
+        }
+
+        private void load() {
+            do {
+                T value = null;
+                boolean loaded = false;
+                // 読み込み中に来た要求は読み込み後に1回だけやり直す
+                while (invalid.getAndSet(false)) {
+                    long at = currentGeneration();
+                    try {
+                        value = loader.call();
+                        loaded = true;
+                        loadedAt = at;
+                        queries.incrementAndGet();
+                    } catch (Exception e) {
+                        Log.e(TAG, "load: クエリに失敗", e);
+                    }
+                }
+                if (loaded) {
+                    postValue(value);
+                }
+                loading.set(false);
+            } while (invalid.get() && loading.compareAndSet(false, true));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.db.relation.ItemWithFilesAndTags;
+
+/**
+ * アイテム・ファイル・タグをまとめたものをアイテムIDで引くLRUキャッシュ（読み込みスルー）
+ *
+ * items・files・item_tags・tagsに書き込んだら、コミット後に影響するアイテムを無効化すること
+ * （リポジトリのほか、取り込み・復元・同期もそれぞれ無効化する）。
+ * コレクション・タイムライン・並び順の表はここに持たないので無効化は要らない。
+ * 返す内容は共有されているので書き換えないこと。
+ * メモリが逼迫したらonTrimMemoryで縮める
+ */
+public class ItemCache implements ComponentCallbacks2 {
+    // 大きさはアイテム1件 + ファイル数 + タグ数で数える
+    private static final int MAX_SIZE = 2000;
+
+    private static volatile ItemCache INSTANCE;
+
+    private final ItemDao itemDao;
+    private final LruCache<Long, ItemWithFilesAndTags> cache;
+
+    // 無効化のたびに増える（読み込み中に無効化されたものを入れないため、thisで保護）
+    private long invalidationCount;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong trims = new AtomicLong();
+
+    public static ItemCache getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (ItemCache.class) {
+                if (INSTANCE == null) {
+                    Context appContext = context.getApplicationContext();
+                    ItemCache cache = new ItemCache(AppDatabase.getInstance(appContext).itemDao());
+                    appContext.registerComponentCallbacks(cache);
+                    INSTANCE = cache;
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    ItemCache(ItemDao itemDao) {
+        this.itemDao = itemDao;
+        cache = new LruCache<Long, ItemWithFilesAndTags>(MAX_SIZE) {
+            @Override
+            protected int sizeOf(@NonNull Long key, @NonNull ItemWithFilesAndTags value) {
+                return 1 + value.files.size() + value.tags.size();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, @NonNull Long key,
+                                        @NonNull ItemWithFilesAndTags oldValue, ItemWithFilesAndTags newValue) {
+                if (evicted) {
+                    evictions.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * アイテムを取得（なければDBから読んで保持する）
+     * @return 存在しなければnull
+     */
+    @WorkerThread
+    public ItemWithFilesAndTags get(long itemId) {
+        ItemWithFilesAndTags cached = cache.get(itemId);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        long loadedAt = currentInvalidationCount();
+        ItemWithFilesAndTags loaded = itemDao.getItemWithFilesAndTagsSync(itemId);
+        if (loaded != null) {
+            putIfUnchanged(loaded, loadedAt);
+        }
+        return loaded;
+    }
+
+    /**
+     * 複数のアイテムを取得（キャッシュにないものはまとめて1回のクエリで読む）
+     * @return itemIdsの順（存在しないものは含まない）
+     */
+    @WorkerThread
+    public List<ItemWithFilesAndTags> getAll(Collection<Long> itemIds) {
+        Map<Long, ItemWithFilesAndTags> found = new HashMap<>(itemIds.size() * 2);
+        List<Long> missing = new ArrayList<>();
+        for (Long itemId : itemIds) {
+            ItemWithFilesAndTags cached = cache.get(itemId);
+            if (cached != null) {
+                hits.incrementAndGet();
+                found.put(itemId, cached);
+            } else {
+                misses.incrementAndGet();
+                missing.add(itemId);
+            }
+        }
+
+        long loadedAt = currentInvalidationCount();
+        for (List<Long> chunk : AppDatabase.chunk(missing)) {
+            for (ItemWithFilesAndTags loaded : itemDao.getItemsWithFilesAndTagsSync(chunk)) {
+                found.put(loaded.item.getId(), loaded);
+                putIfUnchanged(loaded, loadedAt);
+            }
+        }
+
+        List<ItemWithFilesAndTags> result = new ArrayList<>(found.size());
+        for (Long itemId : itemIds) {
+            ItemWithFilesAndTags item = found.get(itemId);
+            if (item != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private synchronized long currentInvalidationCount() {
+        return invalidationCount;
+    }
+
+    private synchronized void putIfUnchanged(ItemWithFilesAndTags loaded, long loadedAt) {
+        // 読んでいる間に無効化されたら古いかもしれないので入れない
+        if (loadedAt == invalidationCount) {
+            cache.put(loaded.item.getId(), loaded);
+        }
+    }
+
+    /**
+     * アイテム（とそのファイル・タグ）が変わった
+     */
+    public synchronized void invalidate(long itemId) {
+        invalidationCount++;
+        invalidations.incrementAndGet();
+        cache.remove(itemId);
+    }
+
+    /**
+     * 閲覧日時だけが変わった
+     * 開くたびに変わるので外さず、閲覧日時だけ違う複製に差し替える
+     * （返したものは画面が読んでいるかもしれないので書き換えない）
+     */
+    public synchronized void updateLastViewed(long itemId, long lastViewed) {
+        // 読み込み中のものは古い閲覧日時かもしれないので入れさせない
+        invalidationCount++;
+        ItemWithFilesAndTags cached = cache.get(itemId);
+        if (cached != null) {
+            cache.put(itemId, withLastViewed(cached, lastViewed));
+        }
+    }
+
+    // ファイル・タグの一覧は書き換えないので複製とも共有する
+    private static ItemWithFilesAndTags withLastViewed(ItemWithFilesAndTags cached, long lastViewed) {
+        Item item = new Item();
+        item.setId(cached.item.getId());
+        item.setTitle(cached.item.getTitle());
+        item.setDescription(cached.item.getDescription());
+        item.setCreatedAt(cached.item.getCreatedAt());
+        item.setUpdatedAt(cached.item.getUpdatedAt());
+        item.setLastViewed(lastViewed);
+        item.setUid(cached.item.getUid());
+
+        ItemWithFilesAndTags copy = new ItemWithFilesAndTags();
+        copy.item = item;
+        copy.files = cached.files;
+        copy.tags = cached.tags;
+        return copy;
+    }
+
+    /**
+     * 複数のアイテムが変わった
+     */
+    public synchronized void invalidateAll(Collection<Long> itemIds) {
+        invalidationCount++;
+        invalidations.incrementAndGet();
+        for (Long itemId : itemIds) {
+            cache.remove(itemId);
+        }
+    }
+
+    /**
+     * どのアイテムが変わったか分からない（復元など）
+     */
+    public synchronized void clear() {
+        invalidationCount++;
+        invalidations.incrementAndGet();
+        // evictAllは追い出しとして数えられるので1件ずつ外す
+        for (Long itemId : cache.snapshot().keySet()) {
+            cache.remove(itemId);
+        }
+    }
+
+    /**
+     * タグが変わった（名前・親の変更、統合、削除）
+     * そのタグか、その子タグが付いているアイテムを外す（子タグは削除時に親が付け替わる）
+     */
+    public synchronized void invalidateTag(long tagId) {
+        invalidationCount++;
+        invalidations.incrementAndGet();
+        List<Long> affected = new ArrayList<>();
+        for (Map.Entry<Long, ItemWithFilesAndTags> entry : cache.snapshot().entrySet()) {
+            for (Tag tag : entry.getValue().tags) {
+                Long parentId = tag.getParentId();
+                if (tag.getId() == tagId || (parentId != null && parentId == tagId)) {
+                    affected.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        for (Long itemId : affected) {
+            cache.remove(itemId);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        trims.incrementAndGet();
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(MAX_SIZE / 4);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            cache.trimToSize(MAX_SIZE / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        invalidations.set(0);
+        trims.set(0);
+    }
+
+    public String dump() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return String.format(Locale.US,
+            "アイテムキャッシュ\n\nsize=%d/%d hits=%d misses=%d hit_rate=%.1f%% evictions=%d invalidations=%d trims=%d\n",
+            cache.size(), cache.maxSize(), hitCount, misses.get(),
+            total == 0 ? 0.0 : hitCount * 100.0 / total,
+            evictions.get(), invalidations.get(), trims.get());
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("size", cache.size());
+        json.put("max_size", cache.maxSize());
+        json.put("hits", hits.get());
+        json.put("misses", misses.get());
+        json.put("evictions", evictions.get());
+        json.put("invalidations", invalidations.get());
+        json.put("trims", trims.get());
+        return json;
+    }
+}
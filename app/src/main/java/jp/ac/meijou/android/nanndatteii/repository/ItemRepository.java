@@ -2,33 +2,54 @@ package jp.ac.meijou.android.nanndatteii.repository;
 
 import android.content.Context;
 
+import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
 import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
 import jp.ac.meijou.android.nanndatteii.db.dao.FileDao;
+import jp.ac.meijou.android.nanndatteii.db.ItemSort;
 import jp.ac.meijou.android.nanndatteii.db.dao.ItemDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemSortDao;
 import jp.ac.meijou.android.nanndatteii.db.dao.ItemTagDao;
+import jp.ac.meijou.android.nanndatteii.db.dao.TimelineDao;
 import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemDayCount;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemTag;
+import jp.ac.meijou.android.nanndatteii.db.relation.ItemWithFilesAndTags;
+import jp.ac.meijou.android.nanndatteii.db.relation.SortedItem;
 import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
 
+import static jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer.TABLE_FILES;
+import static jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer.TABLE_ITEMS;
+import static jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer.TABLE_ITEM_TAGS;
+import static jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer.TABLE_TAG_CLOSURE;
+
 public class ItemRepository {
     private final ItemDao itemDao;
     private final FileDao fileDao;
     private final ItemTagDao itemTagDao;
+    private final TimelineDao timelineDao;
+    private final ItemSortDao itemSortDao;
     private final ExecutorService executorService;
+    private final InvalidationCoalescer coalescer;
+    private final ItemCache itemCache;
 
     public ItemRepository(Context context) {
         AppDatabase db = AppDatabase.getInstance(context);
         itemDao = db.itemDao();
         fileDao = db.fileDao();
         itemTagDao = db.itemTagDao();
-        executorService = Executors.newFixedThreadPool(2);
+        timelineDao = db.timelineDao();
+        itemSortDao = db.itemSortDao();
+        executorService = AppExecutors.background();
+        coalescer = InvalidationCoalescer.getInstance(context);
+        itemCache = ItemCache.getInstance(context);
     }
 
     /**
@@ -40,6 +61,8 @@ public class ItemRepository {
      */
     public void createItem(Item item, List<ItemFile> files, List<Long> tagIds, OnItemCreatedListener listener) {
         executorService.execute(() -> {
+            // 挿入ごとの通知で一覧を何度も読み直さないようにまとめる
+            coalescer.beginBulkWrite();
             try {
                 // 1. アイテムを挿入
                 long itemId = itemDao.insert(item);
@@ -69,22 +92,107 @@ public class ItemRepository {
                 if (listener != null) {
                     listener.onError(e);
                 }
+            } finally {
+                coalescer.endBulkWrite();
             }
         });
     }
 
     /**
-     * すべてのアイテムを取得
+     * 一括書き込みの間、一覧の読み直しを止める（終了後に1回だけ読み直す）
+     * 必ずfinallyでendBulkWriteを呼ぶこと
+     */
+    public void beginBulkWrite() {
+        coalescer.beginBulkWrite();
+    }
+
+    public void endBulkWrite() {
+        coalescer.endBulkWrite();
+    }
+
+    /**
+     * すべてのアイテムを取得（連続した変更はまとめて読み直す）
      */
     public LiveData<List<Item>> getAllItems() {
-        return itemDao.getAllItems();
+        return coalescer.query(itemDao::getAllItemsSync, TABLE_ITEMS);
     }
 
     /**
-     * タグでフィルタリングしたアイテムを取得
+     * タグでフィルタリングしたアイテムを取得（連続した変更はまとめて読み直す）
      */
     public LiveData<List<Item>> getItemsByTag(long tagId) {
-        return itemDao.getItemsByTag(tagId);
+        return coalescer.query(() -> itemDao.getItemsByTagSync(tagId), TABLE_ITEMS, TABLE_ITEM_TAGS);
+    }
+
+    /**
+     * タグとその子孫タグのいずれかが付いたアイテムを取得（連続した変更はまとめて読み直す）
+     */
+    public LiveData<List<Item>> getItemsByTagSubtree(long tagId) {
+        return coalescer.query(() -> itemDao.getItemsByTagSubtreeSync(tagId),
+            TABLE_ITEMS, TABLE_ITEM_TAGS, TABLE_TAG_CLOSURE);
+    }
+
+    /**
+     * タグとその子孫タグのいずれかが付いたアイテム数を取得
+     */
+    public LiveData<Integer> countItemsByTagSubtree(long tagId) {
+        return itemDao.countItemsByTagSubtree(tagId);
+    }
+
+    /**
+     * 並べ方を指定してアイテムをlimit件ずつ取得（キーセットページング）
+     * @param tagId このタグが付いたアイテムだけにする（絞らないならnull）
+     * @param after 前のページの最後の行（最初のページはnull）
+     */
+    public void getSortedItems(ItemSort sort, Long tagId, SortedItem after, int limit,
+                               OnSortedItemsLoadedListener listener) {
+        executorService.execute(() -> {
+            try {
+                listener.onSuccess(getSortedItemsSync(sort, tagId, after, limit));
+            } catch (Exception e) {
+                listener.onError(e);
+            }
+        });
+    }
+
+    @WorkerThread
+    public List<SortedItem> getSortedItemsSync(ItemSort sort, Long tagId, SortedItem after, int limit) {
+        return itemSortDao.getPageSync(sort, tagId, after, limit);
+    }
+
+    /**
+     * 作成日の日・月ごとのアイテム数を新しい順に取得（早送りのスクロールバー用）
+     * 件数は集計済みの表から読むので、itemsは走査しない
+     */
+    public LiveData<List<TimelineBucket>> getTimeline(TimelineBucket.Unit unit) {
+        return coalescer.query(() -> TimelineBucket.fromDayCounts(timelineDao.getDayCountsSync(), unit),
+            TABLE_ITEMS);
+    }
+
+    /**
+     * fromDayからtoDayまで（yyyyMMdd、両端を含む）の日ごとのアイテム数を日付順に取得（カレンダー表示用）
+     * アイテムのない日は含まない
+     */
+    public LiveData<List<ItemDayCount>> getDayCounts(int fromDay, int toDay) {
+        return coalescer.query(() -> timelineDao.getDayCountsBetweenSync(fromDay, toDay), TABLE_ITEMS);
+    }
+
+    /**
+     * 区切りの最初（一番新しい）から、アイテムをlimit件取得（created_atのインデックスで範囲を読む）
+     */
+    public void getItemsInBucket(TimelineBucket bucket, int limit, OnItemsLoadedListener listener) {
+        executorService.execute(() -> {
+            try {
+                listener.onSuccess(getItemsInBucketSync(bucket, limit));
+            } catch (Exception e) {
+                listener.onError(e);
+            }
+        });
+    }
+
+    @WorkerThread
+    public List<Item> getItemsInBucketSync(TimelineBucket bucket, int limit) {
+        return itemDao.getItemsCreatedBetweenSync(bucket.getStartMillis(), bucket.getEndMillis(), limit);
     }
 
     /**
@@ -94,6 +202,42 @@ public class ItemRepository {
         return itemDao.getItemById(itemId);
     }
 
+    /**
+     * アイテムとそのファイル・タグを取得（キャッシュ経由）
+     */
+    public void getItemDetail(long itemId, OnItemLoadedListener listener) {
+        executorService.execute(() -> {
+            try {
+                ItemWithFilesAndTags detail = itemCache.get(itemId);
+                if (detail == null) {
+                    listener.onError(new Exception("アイテムが見つかりません"));
+                } else {
+                    listener.onSuccess(detail);
+                }
+            } catch (Exception e) {
+                listener.onError(e);
+            }
+        });
+    }
+
+    /**
+     * アイテムとそのファイル・タグを取得（キャッシュ経由、同期）
+     * @return 存在しなければnull
+     */
+    @WorkerThread
+    public ItemWithFilesAndTags getItemDetailSync(long itemId) {
+        return itemCache.get(itemId);
+    }
+
+    /**
+     * 複数アイテムとそのファイル・タグを取得（キャッシュ経由、同期）
+     * @return itemIdsの順（存在しないものは含まない）
+     */
+    @WorkerThread
+    public List<ItemWithFilesAndTags> getItemDetailsSync(Collection<Long> itemIds) {
+        return itemCache.getAll(itemIds);
+    }
+
     /**
      * 最近閲覧したアイテムを取得
      */
@@ -106,7 +250,10 @@ public class ItemRepository {
      */
     public void updateLastViewed(long itemId) {
         executorService.execute(() -> {
-            itemDao.updateLastViewed(itemId, System.currentTimeMillis());
+            long now = System.currentTimeMillis();
+            itemDao.updateLastViewed(itemId, now);
+            // 直前に詳細を読み込んだばかりなので、外さずに閲覧日時だけ書き換える
+            itemCache.updateLastViewed(itemId, now);
         });
     }
 
@@ -118,6 +265,7 @@ public class ItemRepository {
             try {
                 item.setUpdatedAt(System.currentTimeMillis());
                 itemDao.update(item);
+                itemCache.invalidate(item.getId());
                 if (listener != null) {
                     listener.onSuccess();
                 }
@@ -135,20 +283,20 @@ public class ItemRepository {
     public void deleteItem(long itemId, FileStorageManager storageManager, OnItemDeletedListener listener) {
         executorService.execute(() -> {
             try {
-                // 1. ファイルを取得
-                List<ItemFile> files = fileDao.getFilesByItemIdSync(itemId);
+                // 1. アイテムとファイルを取得（消し残しがないようキャッシュは使わない）
+                ItemWithFilesAndTags detail = itemDao.getItemWithFilesAndTagsSync(itemId);
 
-                // 2. 物理ファイルを削除
-                if (files != null && storageManager != null) {
-                    for (ItemFile file : files) {
-                        storageManager.deleteFile(file.getFilePath());
+                if (detail != null) {
+                    // 2. 物理ファイルを削除
+                    if (storageManager != null) {
+                        for (ItemFile file : detail.files) {
+                            storageManager.deleteFile(file.getFilePath());
+                        }
                     }
-                }
 
-                // 3. データベースから削除（CASCADE設定により関連レコードも自動削除）
-                Item item = itemDao.getItemByIdSync(itemId);
-                if (item != null) {
-                    itemDao.delete(item);
+                    // 3. データベースから削除（CASCADE設定により関連レコードも自動削除）
+                    itemDao.delete(detail.item);
+                    itemCache.invalidate(itemId);
                 }
 
                 if (listener != null) {
@@ -170,6 +318,7 @@ public class ItemRepository {
             try {
                 ItemTag itemTag = new ItemTag(itemId, tagId);
                 itemTagDao.insert(itemTag);
+                itemCache.invalidate(itemId);
                 if (listener != null) {
                     listener.onSuccess();
                 }
@@ -189,6 +338,7 @@ public class ItemRepository {
             try {
                 ItemTag itemTag = new ItemTag(itemId, tagId);
                 itemTagDao.delete(itemTag);
+                itemCache.invalidate(itemId);
                 if (listener != null) {
                     listener.onSuccess();
                 }
@@ -200,11 +350,49 @@ public class ItemRepository {
         });
     }
 
+    /**
+     * 複数のアイテムにまとめてタグを付ける（1トランザクション）
+     */
+    public void applyTagToItems(Collection<Long> itemIds, long tagId, OnItemsTaggedListener listener) {
+        executorService.execute(() -> {
+            try {
+                int applied = itemTagDao.applyTagToItems(tagId, itemIds);
+                itemCache.invalidateAll(itemIds);
+                if (listener != null) {
+                    listener.onSuccess(applied);
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 複数のアイテムからまとめてタグを外す（1トランザクション）
+     */
+    public void removeTagFromItems(Collection<Long> itemIds, long tagId, OnItemsTaggedListener listener) {
+        executorService.execute(() -> {
+            try {
+                int removed = itemTagDao.removeTagFromItems(tagId, itemIds);
+                itemCache.invalidateAll(itemIds);
+                if (listener != null) {
+                    listener.onSuccess(removed);
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
     /**
      * アイテムのファイル一覧を取得
      */
     public LiveData<List<ItemFile>> getFilesByItemId(long itemId) {
-        return fileDao.getFilesByItemId(itemId);
+        return coalescer.query(() -> fileDao.getFilesByItemIdSync(itemId), TABLE_FILES);
     }
 
     // コールバックインターフェース
@@ -213,6 +401,24 @@ public class ItemRepository {
         void onError(Exception e);
     }
 
+    public interface OnItemLoadedListener {
+        void onSuccess(ItemWithFilesAndTags item);
+        void onError(Exception e);
+    }
+
+    public interface OnItemsLoadedListener {
+        void onSuccess(List<Item> items);
+        void onError(Exception e);
+    }
+
+    public interface OnSortedItemsLoadedListener {
+        /**
+         * @param items limit件未満なら最後のページ
+         */
+        void onSuccess(List<SortedItem> items);
+        void onError(Exception e);
+    }
+
     public interface OnItemUpdatedListener {
         void onSuccess();
         void onError(Exception e);
@@ -232,4 +438,12 @@ public class ItemRepository {
         void onSuccess();
         void onError(Exception e);
     }
+
+    public interface OnItemsTaggedListener {
+        /**
+         * @param changed 実際に付いた（外れた）アイテム数
+         */
+        void onSuccess(int changed);
+        void onError(Exception e);
+    }
 }
@@ -0,0 +1,203 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.room.InvalidationTracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.TagDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+
+/**
+ * プロセス全体で共有するタグの辞書
+ * 名前・IDからのタグ取得はO(1)、前方一致検索は二分探索で行う
+ * tagsテーブルの変更はRoomのInvalidationTrackerで検知して読み直す
+ */
+public class TagDictionary {
+    private static final String TABLE_TAGS = "tags";
+
+    private static volatile TagDictionary INSTANCE;
+
+    private final TagDao tagDao;
+    private final MutableLiveData<List<Tag>> allTags = new MutableLiveData<>();
+    private final AtomicBoolean reloadScheduled = new AtomicBoolean(false);
+    private final Object reloadLock = new Object();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private volatile boolean stale = true;
+
+    // InvalidationTrackerに登録している間は参照を保持しておく
+    private final InvalidationTracker.Observer observer = new InvalidationTracker.Observer(TABLE_TAGS) {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            invalidate();
+        }
+    };
+
+    public static TagDictionary getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (TagDictionary.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new TagDictionary(context.getApplicationContext());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    private TagDictionary(Context context) {
+        AppDatabase db = AppDatabase.getInstance(context);
+        tagDao = db.tagDao();
+        // 登録時にトリガーを作るのでUIスレッドでは行わない
+        AppExecutors.background().execute(() -> {
+            db.getInvalidationTracker().addObserver(observer);
+            refresh();
+        });
+    }
+
+    /**
+     * 名前順のすべてのタグ（変更があった時だけ通知される）
+     */
+    public LiveData<List<Tag>> getAllTags() {
+        return allTags;
+    }
+
+    /**
+     * 名前でタグを取得（最新の内容から引く。ワーカースレッド用）
+     * @return 見つからなければnull
+     */
+    @WorkerThread
+    public Tag findByName(String name) {
+        return fresh().byName.get(name);
+    }
+
+    /**
+     * IDでタグを取得（最新の内容から引く。ワーカースレッド用）
+     * @return 見つからなければnull
+     */
+    @WorkerThread
+    public Tag findById(long tagId) {
+        return fresh().byId.get(tagId);
+    }
+
+    /**
+     * 名前の前方一致で検索（大文字小文字は区別しない）
+     * 最後に読み込んだ内容から引くのでUIスレッドからも呼べる
+     * @param limit 最大件数
+     */
+    public List<Tag> searchByPrefix(String prefix, int limit) {
+        return snapshot.searchByPrefix(prefix, limit);
+    }
+
+    /**
+     * 内容が古くなったことを通知し、バックグラウンドで読み直す
+     * InvalidationTrackerの通知はトランザクション終了後に非同期で届くため、
+     * 自分で書き込んだ直後に引く場合はこれを呼んでおく
+     */
+    public void invalidate() {
+        stale = true;
+        if (reloadScheduled.compareAndSet(false, true)) {
+            AppExecutors.background().execute(() -> {
+                reloadScheduled.set(false);
+                refresh();
+            });
+        }
+    }
+
+    private Snapshot fresh() {
+        return stale ? refresh() : snapshot;
+    }
+
+    private Snapshot refresh() {
+        synchronized (reloadLock) {
+            if (!stale) {
+                return snapshot;
+            }
+            // 読み込み中の変更で再びstaleになれるよう先に下ろす
+            stale = false;
+            Snapshot loaded = new Snapshot(tagDao.getAllTagsSync());
+            snapshot = loaded;
+            allTags.postValue(loaded.tags);
+            return loaded;
+        }
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * ある時点のタグ一覧（不変）
+     */
+    private static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyList());
+
+        final List<Tag> tags;
+        final Map<String, Tag> byName;
+        final Map<Long, Tag> byId;
+        // 前方一致用（正規化した名前の昇順）
+        final String[] keys;
+        final Tag[] keyedTags;
+
+        Snapshot(List<Tag> list) {
+            tags = Collections.unmodifiableList(new ArrayList<>(list));
+            byName = new HashMap<>(list.size() * 2);
+            byId = new HashMap<>(list.size() * 2);
+            for (Tag tag : list) {
+                byName.put(tag.getName(), tag);
+                byId.put(tag.getId(), tag);
+            }
+
+            keyedTags = list.toArray(new Tag[0]);
+            Arrays.sort(keyedTags, Comparator.comparing(tag -> normalize(tag.getName())));
+            keys = new String[keyedTags.length];
+            for (int i = 0; i < keyedTags.length; i++) {
+                keys[i] = normalize(keyedTags[i].getName());
+            }
+        }
+
+        List<Tag> searchByPrefix(String prefix, int limit) {
+            String key = normalize(prefix);
+            List<Tag> result = new ArrayList<>(Math.min(limit, keys.length));
+            for (int i = lowerBound(key); i < keys.length && result.size() < limit; i++) {
+                if (!keys[i].startsWith(key)) {
+                    break;
+                }
+                result.add(keyedTags[i]);
+            }
+            return result;
+        }
+
+        /**
+         * key以上となる最初の位置
+         */
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
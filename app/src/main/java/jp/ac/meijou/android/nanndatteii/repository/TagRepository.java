@@ -1,10 +1,14 @@
 package jp.ac.meijou.android.nanndatteii.repository;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteConstraintException;
 
+import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -16,20 +20,45 @@ import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
 public class TagRepository {
     private final TagDao tagDao;
     private final ItemTagDao itemTagDao;
+    private final TagDictionary tagDictionary;
+    private final ItemCache itemCache;
     private final ExecutorService executorService;
 
     public TagRepository(Context context) {
         AppDatabase db = AppDatabase.getInstance(context);
         tagDao = db.tagDao();
         itemTagDao = db.itemTagDao();
+        tagDictionary = TagDictionary.getInstance(context);
+        itemCache = ItemCache.getInstance(context);
         executorService = Executors.newSingleThreadExecutor();
     }
 
     /**
-     * すべてのタグを取得
+     * すべてのタグを取得（プロセス全体で1つのクエリを共有）
      */
     public LiveData<List<Tag>> getAllTags() {
-        return tagDao.getAllTags();
+        return tagDictionary.getAllTags();
+    }
+
+    /**
+     * タグ名の前方一致検索（入力補完用）
+     */
+    public List<Tag> searchTagsByPrefix(String prefix, int limit) {
+        return tagDictionary.searchByPrefix(prefix, limit);
+    }
+
+    /**
+     * 親のないタグを取得
+     */
+    public LiveData<List<Tag>> getRootTags() {
+        return tagDao.getRootTags();
+    }
+
+    /**
+     * 子タグを取得
+     */
+    public LiveData<List<Tag>> getChildTags(long parentId) {
+        return tagDao.getChildTags(parentId);
     }
 
     /**
@@ -43,7 +72,7 @@ public class TagRepository {
      * タグ名でタグを取得（同期）
      */
     public Tag getTagByNameSync(String name) {
-        return tagDao.getTagByNameSync(name);
+        return tagDictionary.findByName(name);
     }
 
     /**
@@ -66,17 +95,36 @@ public class TagRepository {
     public void insertTag(Tag tag, OnTagInsertedListener listener) {
         executorService.execute(() -> {
             try {
-                // 重複チェック
-                Tag existing = tagDao.getTagByNameSync(tag.getName());
-                if (existing != null) {
+                // 重複はユニーク制約で判定する（確認と挿入の間に割り込まれない）
+                tag.setCreatedAt(System.currentTimeMillis());
+                long tagId = tagDao.insertOrIgnore(tag);
+                if (tagId == -1) {
                     if (listener != null) {
                         listener.onError(new Exception("タグは既に存在します"));
                     }
                     return;
                 }
 
-                tag.setCreatedAt(System.currentTimeMillis());
-                long tagId = tagDao.insert(tag);
+                tagDictionary.invalidate();
+                if (listener != null) {
+                    listener.onSuccess(tagId);
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * タグ名からIDを取得し、なければ作成
+     */
+    public void upsertTag(String name, OnTagInsertedListener listener) {
+        executorService.execute(() -> {
+            try {
+                long tagId = tagDao.upsertByName(name.trim(), System.currentTimeMillis());
+                tagDictionary.invalidate();
                 if (listener != null) {
                     listener.onSuccess(tagId);
                 }
@@ -88,6 +136,36 @@ public class TagRepository {
         });
     }
 
+    /**
+     * 複数のタグ名をIDに変換し、ないものは作成
+     */
+    public void resolveOrCreateTags(Collection<String> names, OnTagsResolvedListener listener) {
+        executorService.execute(() -> {
+            try {
+                Map<String, Long> tagIds = resolveOrCreateTagsSync(names);
+                if (listener != null) {
+                    listener.onSuccess(tagIds);
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 複数のタグ名をIDに変換し、ないものは作成（同期、1トランザクション）
+     * 取り込み処理などワーカースレッドから呼ぶ
+     * @return タグ名（前後の空白を除いたもの） → ID
+     */
+    @WorkerThread
+    public Map<String, Long> resolveOrCreateTagsSync(Collection<String> names) {
+        Map<String, Long> tagIds = tagDao.resolveOrCreateTags(names, System.currentTimeMillis());
+        tagDictionary.invalidate();
+        return tagIds;
+    }
+
     /**
      * タグを更新
      */
@@ -95,6 +173,8 @@ public class TagRepository {
         executorService.execute(() -> {
             try {
                 tagDao.update(tag);
+                tagDictionary.invalidate();
+                itemCache.invalidateTag(tag.getId());
                 if (listener != null) {
                     listener.onSuccess();
                 }
@@ -106,6 +186,97 @@ public class TagRepository {
         });
     }
 
+    /**
+     * タグ名を変更
+     */
+    public void renameTag(long tagId, String newName, OnTagUpdatedListener listener) {
+        executorService.execute(() -> {
+            try {
+                if (tagDao.rename(tagId, newName.trim()) == 0) {
+                    if (listener != null) {
+                        listener.onError(new Exception("タグが見つかりません"));
+                    }
+                    return;
+                }
+                tagDictionary.invalidate();
+                itemCache.invalidateTag(tagId);
+                if (listener != null) {
+                    listener.onSuccess();
+                }
+            } catch (SQLiteConstraintException e) {
+                if (listener != null) {
+                    listener.onError(new Exception("タグは既に存在します"));
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * タグの親を付け替える
+     * @param newParentId 新しい親（ルートにするならnull）
+     */
+    public void moveTag(long tagId, Long newParentId, OnTagUpdatedListener listener) {
+        executorService.execute(() -> {
+            try {
+                if (tagDao.move(tagId, newParentId) == 0) {
+                    if (listener != null) {
+                        listener.onError(new Exception("タグが見つかりません"));
+                    }
+                    return;
+                }
+                tagDictionary.invalidate();
+                itemCache.invalidateTag(tagId);
+                if (listener != null) {
+                    listener.onSuccess();
+                }
+            } catch (SQLiteConstraintException e) {
+                // 自分の子孫の下へは移動できない（トリガーで拒否される）
+                if (listener != null) {
+                    listener.onError(new Exception("タグを自分の下位に移動することはできません"));
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * タグsourceをtargetに統合（sourceは削除される）
+     */
+    public void mergeTags(long sourceTagId, long targetTagId, OnTagsMergedListener listener) {
+        executorService.execute(() -> {
+            try {
+                if (sourceTagId == targetTagId) {
+                    if (listener != null) {
+                        listener.onError(new Exception("同じタグには統合できません"));
+                    }
+                    return;
+                }
+                int moved = tagDao.mergeInto(sourceTagId, targetTagId);
+                tagDictionary.invalidate();
+                itemCache.invalidateTag(sourceTagId);
+                itemCache.invalidateTag(targetTagId);
+                if (listener != null) {
+                    listener.onSuccess(moved);
+                }
+            } catch (IllegalArgumentException e) {
+                if (listener != null) {
+                    listener.onError(new Exception("タグを自分の下位のタグに統合することはできません"));
+                }
+            } catch (Exception e) {
+                if (listener != null) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
     /**
      * タグを削除
      */
@@ -113,6 +284,8 @@ public class TagRepository {
         executorService.execute(() -> {
             try {
                 tagDao.delete(tag);
+                tagDictionary.invalidate();
+                itemCache.invalidateTag(tag.getId());
                 if (listener != null) {
                     listener.onSuccess();
                 }
@@ -130,9 +303,10 @@ public class TagRepository {
     public void deleteTagByName(String name, OnTagDeletedListener listener) {
         executorService.execute(() -> {
             try {
-                Tag tag = tagDao.getTagByNameSync(name);
-                if (tag != null) {
-                    tagDao.delete(tag);
+                Tag tag = tagDictionary.findByName(name);
+                if (tag != null && tagDao.deleteById(tag.getId()) > 0) {
+                    tagDictionary.invalidate();
+                    itemCache.invalidateTag(tag.getId());
                     if (listener != null) {
                         listener.onSuccess();
                     }
@@ -155,6 +329,19 @@ public class TagRepository {
         void onError(Exception e);
     }
 
+    public interface OnTagsResolvedListener {
+        void onSuccess(Map<String, Long> tagIds);
+        void onError(Exception e);
+    }
+
+    public interface OnTagsMergedListener {
+        /**
+         * @param moved 新しく統合先のタグが付いたアイテム数
+         */
+        void onSuccess(int moved);
+        void onError(Exception e);
+    }
+
     public interface OnTagUpdatedListener {
         void onSuccess();
         void onError(Exception e);
@@ -0,0 +1,104 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemDayCount;
+
+/**
+ * タイムラインの1区切り（1日または1か月）と、その中のアイテム数
+ * 作成日の新しい順の一覧で、この区切りの最初のアイテムが何番目かも持つ（早送りのスクロール位置）
+ */
+public final class TimelineBucket {
+    public enum Unit {
+        DAY,
+        MONTH
+    }
+
+    private final Unit unit;
+    private final int key;
+    private final int count;
+    private final int position;
+    private final long startMillis;
+    private final long endMillis;
+
+    private TimelineBucket(Unit unit, int key, int count, int position) {
+        this.unit = unit;
+        this.key = key;
+        this.count = count;
+        this.position = position;
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        if (unit == Unit.DAY) {
+            calendar.set(key / 10000, key / 100 % 100 - 1, key % 100);
+            startMillis = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        } else {
+            calendar.set(key / 100, key % 100 - 1, 1);
+            startMillis = calendar.getTimeInMillis();
+            calendar.add(Calendar.MONTH, 1);
+        }
+        endMillis = calendar.getTimeInMillis();
+    }
+
+    /**
+     * 日ごとの件数（新しい順）を区切りにまとめる
+     */
+    static List<TimelineBucket> fromDayCounts(List<ItemDayCount> days, Unit unit) {
+        List<TimelineBucket> buckets = new ArrayList<>();
+        int position = 0;
+        int index = 0;
+        while (index < days.size()) {
+            int key = keyOf(days.get(index).getDay(), unit);
+            int count = 0;
+            while (index < days.size() && keyOf(days.get(index).getDay(), unit) == key) {
+                count += days.get(index).getCount();
+                index++;
+            }
+            buckets.add(new TimelineBucket(unit, key, count, position));
+            position += count;
+        }
+        return buckets;
+    }
+
+    private static int keyOf(int day, Unit unit) {
+        return unit == Unit.DAY ? day : day / 100;
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+
+    /**
+     * 日ならyyyyMMdd、月ならyyyyMMの整数
+     */
+    public int getKey() {
+        return key;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * 作成日の新しい順の一覧（getAllItems）で、この区切りの最初のアイテムの位置
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * 区切りの始まり（端末のタイムゾーンでその日・月の0時）
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * 区切りの終わり（次の区切りの始まり。含まない）
+     */
+    public long getEndMillis() {
+        return endMillis;
+    }
+}
@@ -10,17 +10,22 @@ import android.provider.MediaStore;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.UUID;
 
+import jp.ac.meijou.android.nanndatteii.diagnostics.StorageMetrics;
+
 public class FileStorageManager {
     private static final String TAG = "FileStorageManager";
     private static final String ROOT_DIR = "nagetatteii";
+    private static final String DECODED_DIR = "decoded";
     private final Context context;
 
     public FileStorageManager(Context context) {
@@ -34,28 +39,64 @@ public class FileStorageManager {
      * @return 保存されたファイル情報
      */
     public SavedFile saveFile(InputStream inputStream, String mimeType) throws IOException {
-        Log.d(TAG, "saveFile: 開始。MIMEタイプ: " + mimeType);
+        return saveFile(inputStream, mimeType, StorageMetrics.OP_SAVE);
+    }
+
+    /**
+     * ファイルを保存し、operationとして計測に記録する（コピーが保存としても数えられないように）
+     */
+    private SavedFile saveFile(InputStream inputStream, String mimeType, String operation) throws IOException {
+        long start = System.nanoTime();
 
         // 1. ファイルタイプディレクトリを決定
         String typeDir = getFileTypeDirectory(mimeType);
-        Log.d(TAG, "saveFile: ファイルタイプディレクトリ: " + typeDir);
 
-        // 2. 拡張子を取得
-        String extension = MimeTypeMap.getSingleton()
-            .getExtensionFromMimeType(mimeType);
-        if (extension == null) extension = "dat";
+        SavedFile saved = null;
+        try {
+            // 2. 拡張子を取得
+            String extension = MimeTypeMap.getSingleton()
+                .getExtensionFromMimeType(mimeType);
+            if (extension == null) extension = "dat";
+
+            // 3. 圧縮するかを先頭だけ読んで判定（ストリーム全体は読まない）
+            String codec = TextCodec.CODEC_NONE;
+            if (TextCodec.isCompressible(mimeType)) {
+                inputStream = new BufferedInputStream(inputStream, TextCodec.MIN_COMPRESS_SIZE + 1);
+                codec = TextCodec.chooseCodec(mimeType, peekLength(inputStream, TextCodec.MIN_COMPRESS_SIZE));
+            }
 
-        // 3. UUIDファイル名を生成
-        String fileName = UUID.randomUUID().toString() + "." + extension;
-        Log.d(TAG, "saveFile: 生成されたファイル名: " + fileName);
+            // 4. UUIDファイル名を生成
+            String fileName = UUID.randomUUID().toString() + "." + extension + TextCodec.getFileSuffix(codec);
 
-        // 4. MediaStore APIを使用して保存
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            // Android 10以降: MediaStore API使用
-            return saveFileWithMediaStore(inputStream, fileName, mimeType, typeDir);
-        } else {
-            // Android 9以下: 従来の方法
-            return saveFileLegacy(inputStream, fileName, mimeType, typeDir);
+            // 5. MediaStore APIを使用して保存
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                // Android 10以降: MediaStore API使用
+                saved = saveFileWithMediaStore(inputStream, fileName, mimeType, typeDir, codec);
+            } else {
+                // Android 9以下: 従来の方法
+                saved = saveFileLegacy(inputStream, fileName, mimeType, typeDir, codec);
+            }
+            return saved;
+        } finally {
+            StorageMetrics.record(operation, typeDir, getBackend(), System.nanoTime() - start,
+                saved != null ? saved.getFileSize() : 0, saved != null);
+        }
+    }
+
+    /**
+     * 画像を縮小・再エンコードしてから保存
+     * @param inputStream 元画像の入力ストリーム
+     * @param processor 画像処理の設定
+     * @return 保存されたファイル情報（元サイズを含む）
+     */
+    public SavedFile saveImage(InputStream inputStream, ImageProcessor processor) throws IOException {
+        ImageProcessor.ProcessedImage processed = processor.process(inputStream);
+        try (InputStream processedStream = new FileInputStream(processed.getFile())) {
+            SavedFile saved = saveFile(processedStream, processed.getMimeType());
+            return new SavedFile(saved.getRelativePath(), saved.getFileName(),
+                saved.getFileSize(), saved.getMimeType(), processed.getOriginalSize(), saved.getCodec());
+        } finally {
+            processed.getFile().delete();
         }
     }
 
@@ -63,13 +104,13 @@ public class FileStorageManager {
      * MediaStore APIを使用してファイルを保存（Android 10+）
      */
     private SavedFile saveFileWithMediaStore(InputStream inputStream, String fileName,
-                                             String mimeType, String typeDir) throws IOException {
+                                             String mimeType, String typeDir, String codec) throws IOException {
         ContentResolver resolver = context.getContentResolver();
 
         // ContentValuesを設定
         ContentValues values = new ContentValues();
         values.put(MediaStore.Downloads.DISPLAY_NAME, fileName);
-        values.put(MediaStore.Downloads.MIME_TYPE, mimeType);
+        values.put(MediaStore.Downloads.MIME_TYPE, TextCodec.getStoredMimeType(mimeType, codec));
         values.put(MediaStore.Downloads.RELATIVE_PATH, Environment.DIRECTORY_DOWNLOADS + "/" + ROOT_DIR + "/" + typeDir);
         values.put(MediaStore.Downloads.IS_PENDING, 1); // 書き込み中フラグ
 
@@ -79,21 +120,13 @@ public class FileStorageManager {
             throw new IOException("Failed to create MediaStore entry");
         }
 
-        Log.d(TAG, "saveFileWithMediaStore: MediaStore URI: " + uri);
-
-        long fileSize = 0;
+        StreamSizes sizes;
         try (OutputStream outputStream = resolver.openOutputStream(uri)) {
             if (outputStream == null) {
                 throw new IOException("Failed to open output stream");
             }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-                fileSize += bytesRead;
-            }
-            Log.d(TAG, "saveFileWithMediaStore: 書き込み完了。サイズ: " + fileSize + " bytes");
+            sizes = writeStream(inputStream, outputStream, codec);
         }
 
         // 書き込み完了フラグを解除
@@ -103,41 +136,122 @@ public class FileStorageManager {
 
         // 相対パスを返す
         String relativePath = typeDir + "/" + fileName;
-        Log.d(TAG, "saveFileWithMediaStore: 完了。相対パス: " + relativePath);
 
-        return new SavedFile(relativePath, fileName, fileSize, mimeType);
+        return new SavedFile(relativePath, fileName, sizes.storedSize, mimeType, sizes.originalSize, codec);
     }
 
     /**
      * 従来の方法でファイルを保存（Android 9以下）
      */
     private SavedFile saveFileLegacy(InputStream inputStream, String fileName,
-                                     String mimeType, String typeDir) throws IOException {
+                                     String mimeType, String typeDir, String codec) throws IOException {
         // Downloadsディレクトリ配下に保存
         File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         File directory = new File(downloadDir, ROOT_DIR + "/" + typeDir);
 
-        if (!directory.exists()) {
-            boolean created = directory.mkdirs();
-            Log.d(TAG, "saveFileLegacy: ディレクトリ作成: " + directory.getAbsolutePath() + ", 成功: " + created);
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "saveFileLegacy: ディレクトリを作成できません: " + directory.getAbsolutePath());
         }
 
         File file = new File(directory, fileName);
-        Log.d(TAG, "saveFileLegacy: ファイルに書き込み: " + file.getAbsolutePath());
 
-        long fileSize = 0;
+        StreamSizes sizes;
         try (OutputStream outputStream = new FileOutputStream(file)) {
+            sizes = writeStream(inputStream, outputStream, codec);
+        }
+
+        String relativePath = typeDir + "/" + fileName;
+        return new SavedFile(relativePath, fileName, sizes.storedSize, mimeType, sizes.originalSize, codec);
+    }
+
+    /**
+     * コーデックを通して書き込み、元サイズと保存サイズを返す
+     */
+    private StreamSizes writeStream(InputStream inputStream, OutputStream outputStream,
+                                    String codec) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(outputStream);
+        long originalSize = 0;
+        try (OutputStream encoded = TextCodec.wrapOutput(counter, codec)) {
             byte[] buffer = new byte[8192];
             int bytesRead;
             while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-                fileSize += bytesRead;
+                encoded.write(buffer, 0, bytesRead);
+                originalSize += bytesRead;
             }
-            Log.d(TAG, "saveFileLegacy: 書き込み完了。サイズ: " + fileSize + " bytes");
         }
+        return new StreamSizes(originalSize, counter.getCount());
+    }
 
-        String relativePath = typeDir + "/" + fileName;
-        return new SavedFile(relativePath, fileName, fileSize, mimeType);
+    /**
+     * 先頭から最大limitバイトを読み、ストリーム位置を戻す
+     */
+    private long peekLength(InputStream inputStream, int limit) throws IOException {
+        inputStream.mark(limit + 1);
+        long length = 0;
+        byte[] buffer = new byte[limit];
+        int bytesRead;
+        while (length < limit && (bytesRead = inputStream.read(buffer, 0, (int) (limit - length))) != -1) {
+            length += bytesRead;
+        }
+        inputStream.reset();
+        return length;
+    }
+
+    /**
+     * 保存されたファイルを展開済みのストリームで開く
+     * @param relativePath 相対パス
+     * @param codec ItemFileに記録されたコーデック
+     */
+    public InputStream openInputStream(String relativePath, String codec) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(getFile(relativePath)));
+        return TextCodec.wrapInput(raw, codec);
+    }
+
+    /**
+     * 外部アプリで開ける形のファイルを取得
+     * 圧縮されたファイルはキャッシュに展開して返す
+     */
+    public File getReadableFile(String relativePath, String codec) throws IOException {
+        long start = System.nanoTime();
+        long decodedBytes = 0;
+        boolean success = false;
+        try {
+            File file = getFile(relativePath);
+            if (codec == null || TextCodec.CODEC_NONE.equals(codec)) {
+                success = true;
+                return file;
+            }
+
+            File decodedDir = new File(context.getCacheDir(), DECODED_DIR);
+            if (!decodedDir.exists()) {
+                decodedDir.mkdirs();
+            }
+            String name = file.getName();
+            String suffix = TextCodec.getFileSuffix(codec);
+            if (name.endsWith(suffix)) {
+                name = name.substring(0, name.length() - suffix.length());
+            }
+            File decoded = new File(decodedDir, name);
+            if (decoded.exists() && decoded.lastModified() >= file.lastModified()) {
+                success = true;
+                return decoded;
+            }
+
+            try (InputStream inputStream = openInputStream(relativePath, codec);
+                 OutputStream outputStream = new FileOutputStream(decoded)) {
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                    decodedBytes += bytesRead;
+                }
+            }
+            success = true;
+            return decoded;
+        } finally {
+            StorageMetrics.record(StorageMetrics.OP_RESOLVE, getCategoryFromPath(relativePath), getBackend(),
+                System.nanoTime() - start, decodedBytes, success);
+        }
     }
 
     /**
@@ -157,21 +271,39 @@ public class FileStorageManager {
         }
     }
 
+    /**
+     * 展開済みキャッシュを削除
+     */
+    public void clearDecodedCache() {
+        File[] files = new File(context.getCacheDir(), DECODED_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
     /**
      * ファイルを削除
      * @param relativePath 相対パス
      * @return 削除成功したか
      */
     public boolean deleteFile(String relativePath) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            // Android 10以降: MediaStoreから削除
-            return deleteFileWithMediaStore(relativePath);
-        } else {
-            // Android 9以下: 直接削除
-            File file = getFile(relativePath);
-            boolean deleted = file.exists() && file.delete();
-            Log.d(TAG, "deleteFile: " + relativePath + ", 削除成功: " + deleted);
+        long start = System.nanoTime();
+        boolean deleted = false;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                // Android 10以降: MediaStoreから削除
+                deleted = deleteFileWithMediaStore(relativePath);
+            } else {
+                // Android 9以下: 直接削除
+                File file = getFile(relativePath);
+                deleted = file.exists() && file.delete();
+            }
             return deleted;
+        } finally {
+            StorageMetrics.record(StorageMetrics.OP_DELETE, getCategoryFromPath(relativePath), getBackend(),
+                System.nanoTime() - start, 0, deleted);
         }
     }
 
@@ -190,7 +322,6 @@ public class FileStorageManager {
         String[] selectionArgs = new String[]{fileName};
 
         int deletedRows = resolver.delete(collection, selection, selectionArgs);
-        Log.d(TAG, "deleteFileWithMediaStore: " + relativePath + ", 削除行数: " + deletedRows);
         return deletedRows > 0;
     }
 
@@ -201,9 +332,8 @@ public class FileStorageManager {
      * @return 新しいファイル情報
      */
     public SavedFile copyFile(File sourceFile, String mimeType) throws IOException {
-        Log.d(TAG, "copyFile: " + sourceFile.getAbsolutePath() + ", MIMEタイプ: " + mimeType);
         try (InputStream inputStream = new FileInputStream(sourceFile)) {
-            return saveFile(inputStream, mimeType);
+            return saveFile(inputStream, mimeType, StorageMetrics.OP_COPY);
         }
     }
 
@@ -227,6 +357,22 @@ public class FileStorageManager {
         }
     }
 
+    /**
+     * 相対パスの先頭（ファイルタイプディレクトリ）をMIMEカテゴリとして取得
+     */
+    private String getCategoryFromPath(String relativePath) {
+        int slash = relativePath.indexOf('/');
+        return slash > 0 ? relativePath.substring(0, slash) : "others";
+    }
+
+    /**
+     * メトリクス用の保存方式名
+     */
+    private String getBackend() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+            ? StorageMetrics.BACKEND_MEDIASTORE : StorageMetrics.BACKEND_LEGACY;
+    }
+
     /**
      * ストレージのルートディレクトリを取得
      */
@@ -275,4 +421,41 @@ public class FileStorageManager {
             return String.format("%.2f GB", usedBytes / (1024.0 * 1024.0 * 1024.0));
         }
     }
+
+    private static class StreamSizes {
+        final long originalSize;
+        final long storedSize;
+
+        StreamSizes(long originalSize, long storedSize) {
+            this.originalSize = originalSize;
+            this.storedSize = storedSize;
+        }
+    }
+
+    /**
+     * 書き込まれたバイト数を数える
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
 }
@@ -0,0 +1,278 @@
+package jp.ac.meijou.android.nanndatteii.storage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 保存前の画像を縮小・再エンコードする
+ * 入力は一度キャッシュに退避してからサブサンプリングでデコードするため、
+ * 元画像の解像度に関係なくメモリ使用量は最大辺の大きさで抑えられる
+ */
+public class ImageProcessor {
+    private static final String TAG = "ImageProcessor";
+    public static final int DEFAULT_MAX_DIMENSION = 2048;
+    public static final int DEFAULT_QUALITY = 85;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    private static final int MIN_QUALITY = 50;
+    private static final int QUALITY_STEP = 10;
+    private static final String OUTPUT_MIME_TYPE = "image/jpeg";
+
+    // 再エンコード後も引き継ぐEXIF属性
+    private static final String[] PRESERVED_EXIF_TAGS = {
+        ExifInterface.TAG_DATETIME,
+        ExifInterface.TAG_DATETIME_ORIGINAL,
+        ExifInterface.TAG_MAKE,
+        ExifInterface.TAG_MODEL
+    };
+
+    private final File cacheDir;
+    private final int maxDimension;
+    private final int quality;
+    private final long maxBytes;
+
+    public ImageProcessor(Context context) {
+        this(context, DEFAULT_MAX_DIMENSION, DEFAULT_QUALITY, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxDimension 長辺の最大ピクセル数
+     * @param quality JPEGの初期品質（0-100）
+     * @param maxBytes 保存サイズの上限（0以下で無制限）
+     */
+    public ImageProcessor(Context context, int maxDimension, int quality, long maxBytes) {
+        this.cacheDir = context.getApplicationContext().getCacheDir();
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 画像を処理して一時ファイルに書き出す
+     * 返却された一時ファイルは呼び出し側で削除すること
+     * @param inputStream 元画像の入力ストリーム
+     * @return 処理結果
+     */
+    public ProcessedImage process(InputStream inputStream) throws IOException {
+        // 1. 入力をキャッシュに退避（全体をメモリに載せない）
+        File source = File.createTempFile("ingest_", ".src", cacheDir);
+        File output = null;
+        try {
+            long originalSize = copyToFile(inputStream, source);
+
+            // 2. サイズのみデコード
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(source.getAbsolutePath(), bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                throw new IOException("画像をデコードできません");
+            }
+
+            ExifInterface sourceExif = new ExifInterface(source.getAbsolutePath());
+            int orientation = getOrientation(sourceExif);
+            boolean withinBounds = Math.max(bounds.outWidth, bounds.outHeight) <= maxDimension;
+
+            // 縮小も回転も不要で予算内ならそのまま保存する
+            if (withinBounds && orientation == ExifInterface.ORIENTATION_NORMAL && OUTPUT_MIME_TYPE.equals(bounds.outMimeType)
+                    && (maxBytes <= 0 || originalSize <= maxBytes)) {
+                Log.d(TAG, "process: 処理不要のため元画像を使用");
+                File kept = source;
+                source = null;
+                return new ProcessedImage(kept, OUTPUT_MIME_TYPE, originalSize, originalSize);
+            }
+
+            // 3. サブサンプリングでデコード
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight);
+            Bitmap decoded = BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+            if (decoded == null) {
+                throw new IOException("画像をデコードできません");
+            }
+
+            // 4. 最大辺に合わせて縮小し、EXIFの向き（回転・反転）を画素に反映
+            Bitmap transformed = transform(decoded, orientation);
+
+            // 5. 予算に収まるまで品質を下げて再エンコード
+            output = File.createTempFile("ingest_", ".jpg", cacheDir);
+            int currentQuality = quality;
+            long storedSize;
+            try {
+                while (true) {
+                    try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(output))) {
+                        transformed.compress(Bitmap.CompressFormat.JPEG, currentQuality, outputStream);
+                    }
+                    storedSize = output.length();
+                    if (maxBytes <= 0 || storedSize <= maxBytes || currentQuality - QUALITY_STEP < MIN_QUALITY) {
+                        break;
+                    }
+                    currentQuality -= QUALITY_STEP;
+                }
+            } finally {
+                transformed.recycle();
+            }
+
+            // 6. 向き以外のEXIF属性を引き継ぐ
+            copyExif(sourceExif, output);
+            storedSize = output.length();
+
+            Log.d(TAG, "process: " + originalSize + " -> " + storedSize + " bytes (品質: " + currentQuality + ")");
+            File result = output;
+            output = null;
+            return new ProcessedImage(result, OUTPUT_MIME_TYPE, originalSize, storedSize);
+        } finally {
+            if (source != null) {
+                source.delete();
+            }
+            if (output != null) {
+                output.delete();
+            }
+        }
+    }
+
+    private long copyToFile(InputStream inputStream, File file) throws IOException {
+        long size = 0;
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+                size += bytesRead;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 長辺がmaxDimension以上を保つ最大の2のべき乗を求める
+     */
+    private int calculateInSampleSize(int width, int height) {
+        int inSampleSize = 1;
+        int longest = Math.max(width, height);
+        while (longest / (inSampleSize * 2) >= maxDimension) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private Bitmap transform(Bitmap bitmap, int orientation) {
+        int longest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        float scale = longest > maxDimension ? (float) maxDimension / longest : 1f;
+        if (scale == 1f && orientation == ExifInterface.ORIENTATION_NORMAL) {
+            return bitmap;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        applyOrientation(matrix, orientation);
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0,
+            bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (transformed != bitmap) {
+            bitmap.recycle();
+        }
+        return transformed;
+    }
+
+    private int getOrientation(ExifInterface exif) {
+        int orientation = exif.getAttributeInt(
+            ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        // 未定義・範囲外の値は向きを変えない
+        if (orientation < ExifInterface.ORIENTATION_NORMAL || orientation > ExifInterface.ORIENTATION_ROTATE_270) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+        return orientation;
+    }
+
+    /**
+     * EXIFの向きをMatrixに反映（鏡像の向きは左右反転も加える）
+     */
+    private static void applyOrientation(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void copyExif(ExifInterface sourceExif, File output) {
+        try {
+            ExifInterface outputExif = new ExifInterface(output.getAbsolutePath());
+            for (String tag : PRESERVED_EXIF_TAGS) {
+                String value = sourceExif.getAttribute(tag);
+                if (value != null) {
+                    outputExif.setAttribute(tag, value);
+                }
+            }
+            // 回転・反転は画素に反映済み
+            outputExif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                String.valueOf(ExifInterface.ORIENTATION_NORMAL));
+            outputExif.saveAttributes();
+        } catch (IOException e) {
+            Log.w(TAG, "copyExif: EXIFの書き込みに失敗", e);
+        }
+    }
+
+    /**
+     * 処理済み画像の情報
+     */
+    public static class ProcessedImage {
+        private final File file;
+        private final String mimeType;
+        private final long originalSize;
+        private final long storedSize;
+
+        public ProcessedImage(File file, String mimeType, long originalSize, long storedSize) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.originalSize = originalSize;
+            this.storedSize = storedSize;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public long getOriginalSize() {
+            return originalSize;
+        }
+
+        public long getStoredSize() {
+            return storedSize;
+        }
+    }
+}
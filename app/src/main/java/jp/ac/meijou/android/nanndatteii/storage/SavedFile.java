@@ -5,12 +5,25 @@ public class SavedFile {
     private final String fileName;
     private final long fileSize;
     private final String mimeType;
+    private final long originalSize;
+    private final String codec;
 
     public SavedFile(String relativePath, String fileName, long fileSize, String mimeType) {
+        this(relativePath, fileName, fileSize, mimeType, fileSize);
+    }
+
+    public SavedFile(String relativePath, String fileName, long fileSize, String mimeType, long originalSize) {
+        this(relativePath, fileName, fileSize, mimeType, originalSize, TextCodec.CODEC_NONE);
+    }
+
+    public SavedFile(String relativePath, String fileName, long fileSize, String mimeType,
+                     long originalSize, String codec) {
         this.relativePath = relativePath;
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.mimeType = mimeType;
+        this.originalSize = originalSize;
+        this.codec = codec;
     }
 
     public String getRelativePath() {
@@ -28,4 +41,18 @@ public class SavedFile {
     public String getMimeType() {
         return mimeType;
     }
+
+    /**
+     * 加工前のサイズ（加工していない場合はfileSizeと同じ）
+     */
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * 保存時に適用したコーデック（TextCodec参照）
+     */
+    public String getCodec() {
+        return codec;
+    }
 }
@@ -0,0 +1,76 @@
+package jp.ac.meijou.android.nanndatteii.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * テキストファイルの圧縮・展開
+ * ItemFile.codecに保存される値と対応する
+ */
+public final class TextCodec {
+    public static final String CODEC_NONE = "NONE";
+    public static final String CODEC_GZIP = "GZIP";
+
+    // これより小さいテキストはヘッダ分で逆に大きくなるため圧縮しない
+    public static final int MIN_COMPRESS_SIZE = 512;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private TextCodec() {
+    }
+
+    /**
+     * 圧縮対象のMIMEタイプか
+     */
+    public static boolean isCompressible(String mimeType) {
+        return mimeType != null && mimeType.startsWith("text/");
+    }
+
+    /**
+     * MIMEタイプとサイズから使用するコーデックを決定
+     * @param size 先頭から読めたバイト数（MIN_COMPRESS_SIZE以上なら十分）
+     */
+    public static String chooseCodec(String mimeType, long size) {
+        if (isCompressible(mimeType) && size >= MIN_COMPRESS_SIZE) {
+            return CODEC_GZIP;
+        }
+        return CODEC_NONE;
+    }
+
+    /**
+     * 書き込み用ストリームをコーデックで包む
+     */
+    public static OutputStream wrapOutput(OutputStream outputStream, String codec) throws IOException {
+        if (CODEC_GZIP.equals(codec)) {
+            return new GZIPOutputStream(outputStream, BUFFER_SIZE);
+        }
+        return outputStream;
+    }
+
+    /**
+     * 読み込み用ストリームをコーデックで包む
+     */
+    public static InputStream wrapInput(InputStream inputStream, String codec) throws IOException {
+        if (CODEC_GZIP.equals(codec)) {
+            return new GZIPInputStream(inputStream, BUFFER_SIZE);
+        }
+        return inputStream;
+    }
+
+    /**
+     * 保存時のファイル名に付ける拡張子
+     */
+    public static String getFileSuffix(String codec) {
+        return CODEC_GZIP.equals(codec) ? ".gz" : "";
+    }
+
+    /**
+     * MediaStoreに登録する実際のMIMEタイプ
+     */
+    public static String getStoredMimeType(String mimeType, String codec) {
+        return CODEC_GZIP.equals(codec) ? "application/gzip" : mimeType;
+    }
+}
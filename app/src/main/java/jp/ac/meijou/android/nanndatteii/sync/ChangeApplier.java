@@ -0,0 +1,320 @@
+package jp.ac.meijou.android.nanndatteii.sync;
+
+import android.database.sqlite.SQLiteConstraintException;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.storage.SavedFile;
+
+/**
+ * 他の端末の変更を反映する（1ページ分を1トランザクションの中で呼ぶ）
+ *
+ * アイテムは端末の方が新しければ反映しない（後勝ち）。
+ * タグ・ファイルはサーバーで後勝ちを判定済みなのでそのまま反映する。
+ * ファイルの中身は呼び出し側がトランザクションの前に保存しておく
+ */
+final class ChangeApplier {
+    private static final String TAG = "ChangeApplier";
+
+    private final AppDatabase db;
+    private final String localDevice;
+    private final Map<String, SavedFile> savedBlobs;
+    private final Map<String, Long> tagIds = new HashMap<>();
+    // コミット後にストレージから消すファイル
+    private final List<String> removedPaths = new ArrayList<>();
+    // コミット後にItemCacheから外すアイテム・タグ
+    private final Set<Long> touchedItemIds = new HashSet<>();
+    private final Set<Long> touchedTagIds = new HashSet<>();
+    private int skipped;
+
+    ChangeApplier(AppDatabase db, String localDevice, Map<String, SavedFile> savedBlobs) {
+        this.db = db;
+        this.localDevice = localDevice;
+        this.savedBlobs = savedBlobs;
+    }
+
+    /**
+     * 受け取ったページを読む（JSONの誤りはトランザクションの外で検出する）
+     */
+    static List<RemoteChange> parse(JSONArray changes) throws IOException {
+        List<RemoteChange> parsed = new ArrayList<>();
+        if (changes == null) {
+            return parsed;
+        }
+        try {
+            for (int i = 0; i < changes.length(); i++) {
+                parsed.add(new RemoteChange(changes.getJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            throw new IOException("同期のデータを読めません", e);
+        }
+        return parsed;
+    }
+
+    void apply(RemoteChange change) {
+        boolean delete = SyncProtocol.OP_DELETE.equals(change.op);
+        switch (change.entity) {
+            case SyncProtocol.ENTITY_TAG:
+                if (delete) {
+                    deleteTag(change);
+                } else {
+                    upsertTag(change);
+                }
+                break;
+            case SyncProtocol.ENTITY_ITEM:
+                if (delete) {
+                    deleteItem(change);
+                } else {
+                    upsertItem(change);
+                }
+                break;
+            case SyncProtocol.ENTITY_FILE:
+                if (delete) {
+                    deleteFile(change);
+                } else {
+                    insertFile(change);
+                }
+                break;
+            default:
+                // 知らない種類は読み飛ばす（新しいプロトコルとの互換のため）
+                skipped++;
+                break;
+        }
+    }
+
+    int getSkippedCount() {
+        return skipped;
+    }
+
+    List<String> getRemovedPaths() {
+        return removedPaths;
+    }
+
+    Set<Long> getTouchedItemIds() {
+        return touchedItemIds;
+    }
+
+    Set<Long> getTouchedTagIds() {
+        return touchedTagIds;
+    }
+
+    private void upsertTag(RemoteChange change) {
+        Tag tag = db.tagDao().getTagByUidSync(change.uid);
+        String name = change.data.optString("name");
+        Tag named = db.tagDao().getTagByNameSync(name);
+        if (tag == null) {
+            // 同名のタグが端末にあれば同じタグとして扱う
+            tag = named;
+        } else if (named != null && named.getId() != tag.getId()) {
+            Log.w(TAG, "upsertTag: 同名のタグがあるため名前は変えません: " + name);
+            name = tag.getName();
+        }
+
+        Long parentId = null;
+        String parentUid = stringOrNull(change.data, "parent");
+        if (parentUid != null) {
+            parentId = findTagId(parentUid);
+        }
+
+        if (tag == null) {
+            tag = new Tag();
+            tag.setUid(change.uid);
+            tag.setName(name);
+            tag.setColor(stringOrNull(change.data, "color"));
+            tag.setCreatedAt(change.data.optLong("created_at"));
+            tag.setParentId(parentId);
+            tagIds.put(change.uid, db.tagDao().insert(tag));
+            return;
+        }
+        tag.setUid(change.uid);
+        tag.setName(name);
+        tag.setColor(stringOrNull(change.data, "color"));
+        tag.setParentId(parentId);
+        tagIds.put(change.uid, tag.getId());
+        touchedTagIds.add(tag.getId());
+        try {
+            db.tagDao().update(tag);
+        } catch (SQLiteConstraintException e) {
+            // 端末側の階層と循環する移動
+            Log.w(TAG, "upsertTag: タグを移動できません: " + name, e);
+            skipped++;
+        }
+    }
+
+    private void deleteTag(RemoteChange change) {
+        Long tagId = findTagId(change.uid);
+        if (tagId == null) {
+            skipped++;
+            return;
+        }
+        db.tagDao().deleteById(tagId);
+        tagIds.remove(change.uid);
+        touchedTagIds.add(tagId);
+    }
+
+    private void upsertItem(RemoteChange change) {
+        Item item = db.itemDao().getItemByUidSync(change.uid);
+        if (item != null && !SyncProtocol.wins(change.version, change.device, item.getUpdatedAt(), localDevice)) {
+            // 端末の方が新しい（次の同期で送る）
+            skipped++;
+            return;
+        }
+        boolean created = item == null;
+        if (created) {
+            item = new Item();
+            item.setUid(change.uid);
+        }
+        item.setTitle(stringOrNull(change.data, "title"));
+        item.setDescription(stringOrNull(change.data, "description"));
+        item.setCreatedAt(change.data.optLong("created_at"));
+        item.setUpdatedAt(change.version);
+        if (created) {
+            item.setId(db.itemDao().insert(item));
+        } else {
+            db.itemDao().update(item);
+        }
+        touchedItemIds.add(item.getId());
+
+        Set<Long> wanted = new HashSet<>();
+        JSONArray tags = change.data.optJSONArray("tags");
+        for (int i = 0; tags != null && i < tags.length(); i++) {
+            Long tagId = findTagId(tags.optString(i));
+            if (tagId != null) {
+                wanted.add(tagId);
+            }
+        }
+        Set<Long> current = new HashSet<>();
+        for (Tag tag : db.itemTagDao().getTagsForItemSync(item.getId())) {
+            current.add(tag.getId());
+        }
+        List<Long> itemIds = Collections.singletonList(item.getId());
+        boolean tagsChanged = false;
+        for (Long tagId : current) {
+            if (!wanted.contains(tagId)) {
+                db.itemTagDao().deleteTagForItems(tagId, itemIds);
+                tagsChanged = true;
+            }
+        }
+        for (Long tagId : wanted) {
+            if (!current.contains(tagId)) {
+                db.itemTagDao().insertTagForItems(tagId, itemIds);
+                tagsChanged = true;
+            }
+        }
+        if (tagsChanged) {
+            // タグの付け外しでトリガーが進めたupdated_atを送り元の値に戻す
+            db.itemDao().update(item);
+        }
+    }
+
+    private void deleteItem(RemoteChange change) {
+        Item item = db.itemDao().getItemByUidSync(change.uid);
+        if (item == null
+                || !SyncProtocol.wins(change.version, change.device, item.getUpdatedAt(), localDevice)) {
+            skipped++;
+            return;
+        }
+        for (ItemFile file : db.fileDao().getFilesByItemIdSync(item.getId())) {
+            removedPaths.add(file.getFilePath());
+        }
+        db.itemDao().deleteById(item.getId());
+        touchedItemIds.add(item.getId());
+    }
+
+    private void insertFile(RemoteChange change) {
+        SavedFile saved = savedBlobs.get(change.uid);
+        if (db.fileDao().getFileByUidSync(change.uid) != null || saved == null) {
+            // ファイルは作成後に変わらないので、既にあれば何もしない
+            skipped++;
+            return;
+        }
+        Item item = db.itemDao().getItemByUidSync(change.data.optString("item"));
+        if (item == null) {
+            removedPaths.add(saved.getRelativePath());
+            skipped++;
+            return;
+        }
+        ItemFile file = new ItemFile();
+        file.setUid(change.uid);
+        file.setItemId(item.getId());
+        file.setFilePath(saved.getRelativePath());
+        file.setFileName(change.data.optString("name"));
+        file.setFileType(change.data.optString("type"));
+        file.setFileSize(saved.getFileSize());
+        file.setOriginalSize(change.data.optLong("original_size"));
+        file.setMimeType(change.data.optString("mime_type"));
+        file.setCodec(saved.getCodec());
+        file.setCreatedAt(change.data.optLong("created_at"));
+        db.fileDao().insert(file);
+        touchedItemIds.add(item.getId());
+    }
+
+    private void deleteFile(RemoteChange change) {
+        ItemFile file = db.fileDao().getFileByUidSync(change.uid);
+        if (file == null) {
+            skipped++;
+            return;
+        }
+        removedPaths.add(file.getFilePath());
+        db.fileDao().delete(file);
+        touchedItemIds.add(file.getItemId());
+    }
+
+    private Long findTagId(String uid) {
+        if (tagIds.containsKey(uid)) {
+            return tagIds.get(uid);
+        }
+        Tag tag = db.tagDao().getTagByUidSync(uid);
+        Long tagId = tag != null ? tag.getId() : null;
+        tagIds.put(uid, tagId);
+        return tagId;
+    }
+
+    private static String stringOrNull(JSONObject json, String key) {
+        return json.isNull(key) ? null : json.optString(key);
+    }
+
+    /**
+     * サーバーから受け取った1件の変更
+     */
+    static class RemoteChange {
+        final long seq;
+        final String device;
+        final String entity;
+        final String uid;
+        final String op;
+        final long version;
+        final JSONObject data;
+
+        RemoteChange(JSONObject json) throws JSONException {
+            seq = json.getLong(SyncProtocol.KEY_SEQ);
+            device = json.getString(SyncProtocol.KEY_DEVICE);
+            entity = json.getString(SyncProtocol.KEY_ENTITY);
+            uid = json.getString(SyncProtocol.KEY_UID);
+            op = json.getString(SyncProtocol.KEY_OP);
+            version = json.getLong(SyncProtocol.KEY_VERSION);
+            JSONObject value = json.optJSONObject(SyncProtocol.KEY_DATA);
+            data = value != null ? value : new JSONObject();
+        }
+
+        boolean isUpsert() {
+            return SyncProtocol.OP_UPSERT.equals(op);
+        }
+    }
+}
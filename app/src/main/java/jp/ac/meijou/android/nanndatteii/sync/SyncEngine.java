@@ -0,0 +1,588 @@
+package jp.ac.meijou.android.nanndatteii.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.KeysetIterator;
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeLogEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.db.relation.ItemWithFilesAndTags;
+import jp.ac.meijou.android.nanndatteii.repository.ChangeFeed;
+import jp.ac.meijou.android.nanndatteii.repository.InvalidationCoalescer;
+import jp.ac.meijou.android.nanndatteii.repository.ItemCache;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+import jp.ac.meijou.android.nanndatteii.storage.SavedFile;
+import jp.ac.meijou.android.nanndatteii.storage.TextCodec;
+
+/**
+ * 同期サーバーを介して、複数の端末のライブラリをそろえる（SyncProtocol参照）
+ *
+ * 1. 送信: ChangeFeedの購読者としてこの端末での変更をCHANGES_PER_BATCH件ずつまとめて送り、
+ *    サーバーが持っていないファイルの中身をチャンクに分けて送る（初回はライブラリ全体を送る）
+ * 2. 受信: 他の端末の変更をページごとに受け取り、ファイルの中身を保存してから
+ *    1トランザクションで反映する
+ *
+ * 送信・受信の位置はページごとに保存するので、途中で失敗しても次回は続きから行う。
+ * ファイルの中身も受け取り済み・送信済みの分は送り直さない
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+    static final String PREFS_NAME = "sync";
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_SNAPSHOT_DONE = "snapshot_done";
+    private static final String KEY_PULL_SEQ = "pull_seq";
+    // 1回に送受信する変更の数
+    private static final int CHANGES_PER_BATCH = 500;
+    private static final String PART_DIR = "sync";
+    // ChangeFeedの購読者名
+    static final String CONSUMER = "sync";
+
+    private final AppDatabase db;
+    private final FileStorageManager storageManager;
+    private final InvalidationCoalescer coalescer;
+    private final ItemCache itemCache;
+    private final ChangeFeed changeFeed;
+    private final SyncTransport transport;
+    private final SharedPreferences prefs;
+    private final File partDir;
+
+    /**
+     * @param serverUrl 同期サーバーのURL（例: https://example.com）
+     */
+    public SyncEngine(Context context, String serverUrl) {
+        db = AppDatabase.getInstance(context);
+        storageManager = new FileStorageManager(context);
+        coalescer = InvalidationCoalescer.getInstance(context);
+        itemCache = ItemCache.getInstance(context);
+        changeFeed = new ChangeFeed(context);
+        transport = new SyncTransport(serverUrl);
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        partDir = new File(context.getCacheDir(), PART_DIR);
+    }
+
+    /**
+     * この端末のID（初回に作る）
+     */
+    public synchronized String getDeviceId() {
+        String deviceId = prefs.getString(KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            prefs.edit().putString(KEY_DEVICE_ID, deviceId).commit();
+        }
+        return deviceId;
+    }
+
+    /**
+     * 送信してから受信する
+     * 失敗した場合も、それまでに送受信した分は次回やり直さない
+     */
+    @WorkerThread
+    public synchronized SyncResult sync() throws IOException {
+        long start = System.nanoTime();
+        Run run = new Run(getDeviceId());
+        push(run);
+        // 一覧の読み直しは最後に1回だけにする
+        coalescer.beginBulkWrite();
+        try {
+            pull(run);
+        } finally {
+            coalescer.endBulkWrite();
+        }
+        return new SyncResult(run.pushed, run.rejected, run.pulled, run.skipped,
+            run.uploadedBlobs, run.uploadedBytes, run.downloadedBlobs, run.downloadedBytes,
+            System.nanoTime() - start);
+    }
+
+    private void push(Run run) throws IOException {
+        if (!changeFeed.isSubscribed(CONSUMER) || !prefs.getBoolean(KEY_SNAPSHOT_DONE, false)) {
+            // 購読より前の変更はchange_logにないので、初回はライブラリ全体を送る
+            changeFeed.subscribe(CONSUMER);
+            pushSnapshot(run);
+            prefs.edit().putBoolean(KEY_SNAPSHOT_DONE, true).apply();
+        }
+        ChangeFeed.Batch batch;
+        do {
+            batch = changeFeed.poll(CONSUMER, CHANGES_PER_BATCH);
+            List<ChangeLogEntry> entries = new ArrayList<>();
+            for (ChangeLogEntry entry : batch.getChanges()) {
+                // 同期で取り込んだ変更は送り返さない
+                if (!entry.isRemote()) {
+                    entries.add(entry);
+                }
+            }
+            pushEntries(run, entries);
+            changeFeed.commit(CONSUMER, batch.getLastSeq());
+        } while (batch.hasMore());
+    }
+
+    /**
+     * ライブラリ全体を、すべての行を挿入した変更として送る
+     * 途中で失敗した場合は次回最初から送り直す（サーバーは同じ版の送り直しを無視する）
+     */
+    private void pushSnapshot(Run run) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Long> tagIds = new ArrayList<>();
+        for (Tag tag : sortParentsFirst(db.tagDao().getAllTagsSync())) {
+            tagIds.add(tag.getId());
+        }
+        for (List<Long> chunk : AppDatabase.chunk(tagIds)) {
+            pushEntries(run, snapshotEntries("tags", chunk, now));
+        }
+        List<Long> rowIds = new ArrayList<>(CHANGES_PER_BATCH);
+        try (KeysetIterator<Item> items = db.itemDao().iterateItems(CHANGES_PER_BATCH)) {
+            while (items.hasNext()) {
+                rowIds.add(items.next().getId());
+                if (rowIds.size() == CHANGES_PER_BATCH) {
+                    pushEntries(run, snapshotEntries("items", rowIds, now));
+                    rowIds.clear();
+                }
+            }
+        }
+        pushEntries(run, snapshotEntries("items", rowIds, now));
+        rowIds.clear();
+        try (KeysetIterator<ItemFile> files = db.fileDao().iterateFiles(CHANGES_PER_BATCH)) {
+            while (files.hasNext()) {
+                rowIds.add(files.next().getId());
+                if (rowIds.size() == CHANGES_PER_BATCH) {
+                    pushEntries(run, snapshotEntries("files", rowIds, now));
+                    rowIds.clear();
+                }
+            }
+        }
+        pushEntries(run, snapshotEntries("files", rowIds, now));
+    }
+
+    /**
+     * 親のタグが子より先になるように並べる（受け取る側で親を先に作るため）
+     */
+    private static List<Tag> sortParentsFirst(List<Tag> tags) {
+        Map<Long, Tag> byId = new HashMap<>();
+        for (Tag tag : tags) {
+            byId.put(tag.getId(), tag);
+        }
+        Map<Long, Integer> depths = new HashMap<>();
+        for (Tag tag : tags) {
+            int depth = 0;
+            for (Tag parent = byId.get(tag.getParentId()); parent != null && depth < tags.size();
+                    parent = byId.get(parent.getParentId())) {
+                depth++;
+            }
+            depths.put(tag.getId(), depth);
+        }
+        List<Tag> sorted = new ArrayList<>(tags);
+        sorted.sort((a, b) -> Integer.compare(depths.get(a.getId()), depths.get(b.getId())));
+        return sorted;
+    }
+
+    private static List<ChangeLogEntry> snapshotEntries(String table, List<Long> rowIds, long now) {
+        List<ChangeLogEntry> entries = new ArrayList<>();
+        for (Long rowId : rowIds) {
+            ChangeLogEntry entry = new ChangeLogEntry();
+            entry.setTableName(table);
+            entry.setOp(ChangeLogEntry.OP_INSERT);
+            entry.setRowId(rowId);
+            entry.setChangedAt(now);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private void pushEntries(Run run, List<ChangeLogEntry> entries) throws IOException {
+        JSONArray changes = collectChanges(entries);
+        if (changes.length() == 0) {
+            return;
+        }
+        JSONObject response = transport.push(newBatch(run.device, changes));
+        run.pushed += changes.length();
+        run.rejected += response.optInt(SyncProtocol.KEY_STALE);
+        uploadBlobs(run, response.optJSONArray(SyncProtocol.KEY_BLOBS_NEEDED));
+    }
+
+    /**
+     * change_logを行ごとの最新の状態にまとめる
+     * 同じ行への変更は1件にし、タグ → アイテム → ファイルの順に並べる（受け取る側で参照先が先にあるように）
+     */
+    private JSONArray collectChanges(List<ChangeLogEntry> entries) throws IOException {
+        Map<String, ChangeLogEntry> latest = new LinkedHashMap<>();
+        for (ChangeLogEntry entry : entries) {
+            // タグの付け外しはアイテムの変更として送る
+            String table = "item_tags".equals(entry.getTableName()) ? "items" : entry.getTableName();
+            String key = table + ":" + entry.getRowId();
+            ChangeLogEntry previous = latest.remove(key);
+            if (previous != null && isRowDelete(previous) && !isRowDelete(entry)) {
+                // 削除に伴うタグの付け外し（CASCADE）で削除を上書きしない
+                latest.put(key, previous);
+            } else {
+                latest.put(key, entry);
+            }
+        }
+
+        Set<Long> tagIds = new HashSet<>();
+        Set<Long> itemIds = new HashSet<>();
+        Set<Long> fileIds = new HashSet<>();
+        for (Map.Entry<String, ChangeLogEntry> entry : latest.entrySet()) {
+            if (isRowDelete(entry.getValue())) {
+                continue;
+            }
+            long rowId = entry.getValue().getRowId();
+            if (entry.getKey().startsWith("tags:")) {
+                tagIds.add(rowId);
+            } else if (entry.getKey().startsWith("items:")) {
+                itemIds.add(rowId);
+            } else {
+                fileIds.add(rowId);
+            }
+        }
+        Map<Long, Tag> tags = loadTags(tagIds);
+        Map<Long, ItemWithFilesAndTags> items = new HashMap<>();
+        for (List<Long> chunk : AppDatabase.chunk(itemIds)) {
+            for (ItemWithFilesAndTags item : db.itemDao().getItemsWithFilesAndTagsSync(chunk)) {
+                items.put(item.item.getId(), item);
+            }
+        }
+        Map<Long, ItemFile> files = new HashMap<>();
+        Set<Long> fileItemIds = new HashSet<>();
+        for (List<Long> chunk : AppDatabase.chunk(fileIds)) {
+            for (ItemFile file : db.fileDao().getFilesByIdsSync(chunk)) {
+                files.put(file.getId(), file);
+                fileItemIds.add(file.getItemId());
+            }
+        }
+        Map<Long, String> itemUids = new HashMap<>();
+        for (List<Long> chunk : AppDatabase.chunk(fileItemIds)) {
+            for (Item item : db.itemDao().getItemsByIdsSync(chunk)) {
+                itemUids.put(item.getId(), item.getUid());
+            }
+        }
+
+        JSONArray tagChanges = new JSONArray();
+        JSONArray itemChanges = new JSONArray();
+        JSONArray fileChanges = new JSONArray();
+        try {
+            for (Map.Entry<String, ChangeLogEntry> entry : latest.entrySet()) {
+                ChangeLogEntry change = entry.getValue();
+                String key = entry.getKey();
+                if (key.startsWith("tags:")) {
+                    add(tagChanges, SyncProtocol.ENTITY_TAG, change, tagJson(tags, tags.get(change.getRowId())));
+                } else if (key.startsWith("items:")) {
+                    add(itemChanges, SyncProtocol.ENTITY_ITEM, change, itemJson(items.get(change.getRowId())));
+                } else {
+                    add(fileChanges, SyncProtocol.ENTITY_FILE, change,
+                        fileJson(files.get(change.getRowId()), itemUids));
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException("同期のデータを作成できません", e);
+        }
+
+        JSONArray changes = new JSONArray();
+        for (JSONArray group : new JSONArray[]{tagChanges, itemChanges, fileChanges}) {
+            for (int i = 0; i < group.length(); i++) {
+                changes.put(group.opt(i));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 変更された行と、その親のタグ（uidを送るため）を読む
+     */
+    private Map<Long, Tag> loadTags(Set<Long> tagIds) {
+        Map<Long, Tag> tags = new HashMap<>();
+        for (List<Long> chunk : AppDatabase.chunk(tagIds)) {
+            for (Tag tag : db.tagDao().getTagsByIdsSync(chunk)) {
+                tags.put(tag.getId(), tag);
+            }
+        }
+        Set<Long> parentIds = new HashSet<>();
+        for (Tag tag : tags.values()) {
+            if (tag.getParentId() != null && !tags.containsKey(tag.getParentId())) {
+                parentIds.add(tag.getParentId());
+            }
+        }
+        for (List<Long> chunk : AppDatabase.chunk(parentIds)) {
+            for (Tag tag : db.tagDao().getTagsByIdsSync(chunk)) {
+                tags.put(tag.getId(), tag);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * 1件の変更を追加する
+     * @param data 行の今の状態（行が既に消えていればnull）
+     */
+    private static void add(JSONArray changes, String entity, ChangeLogEntry change, Data data)
+            throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(SyncProtocol.KEY_ENTITY, entity);
+        if (isRowDelete(change)) {
+            if (change.getUid() == null) {
+                return;
+            }
+            json.put(SyncProtocol.KEY_UID, change.getUid());
+            json.put(SyncProtocol.KEY_OP, SyncProtocol.OP_DELETE);
+            json.put(SyncProtocol.KEY_VERSION, change.getChangedAt());
+        } else if (data != null) {
+            json.put(SyncProtocol.KEY_UID, data.uid);
+            json.put(SyncProtocol.KEY_OP, SyncProtocol.OP_UPSERT);
+            // アイテム・ファイルは行の日時、タグは変更日時
+            json.put(SyncProtocol.KEY_VERSION, data.version != null ? data.version : change.getChangedAt());
+            json.put(SyncProtocol.KEY_DATA, data.json);
+        } else {
+            // 後の変更で消えた行（削除はこの後のページで送る）
+            return;
+        }
+        changes.put(json);
+    }
+
+    private static Data tagJson(Map<Long, Tag> tags, Tag tag) throws JSONException {
+        if (tag == null || tag.getUid() == null) {
+            return null;
+        }
+        Tag parent = tag.getParentId() != null ? tags.get(tag.getParentId()) : null;
+        JSONObject json = new JSONObject();
+        json.put("name", tag.getName());
+        json.put("color", orNull(tag.getColor()));
+        json.put("parent", parent != null ? orNull(parent.getUid()) : JSONObject.NULL);
+        json.put("created_at", tag.getCreatedAt());
+        return new Data(tag.getUid(), null, json);
+    }
+
+    private static Data itemJson(ItemWithFilesAndTags entry) throws JSONException {
+        if (entry == null || entry.item.getUid() == null) {
+            return null;
+        }
+        Item item = entry.item;
+        JSONArray tagUids = new JSONArray();
+        for (Tag tag : entry.tags) {
+            if (tag.getUid() != null) {
+                tagUids.put(tag.getUid());
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put("title", orNull(item.getTitle()));
+        json.put("description", orNull(item.getDescription()));
+        json.put("created_at", item.getCreatedAt());
+        json.put("updated_at", item.getUpdatedAt());
+        json.put("tags", tagUids);
+        return new Data(item.getUid(), item.getUpdatedAt(), json);
+    }
+
+    private Data fileJson(ItemFile file, Map<Long, String> itemUids) throws JSONException {
+        String itemUid = file != null ? itemUids.get(file.getItemId()) : null;
+        if (file == null || file.getUid() == null || itemUid == null) {
+            return null;
+        }
+        File blob = storageManager.getFile(file.getFilePath());
+        if (!blob.isFile()) {
+            Log.w(TAG, "fileJson: ファイルが見つからないため送りません: " + file.getFilePath());
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        json.put("item", itemUid);
+        json.put("name", file.getFileName());
+        json.put("type", file.getFileType());
+        json.put("size", file.getFileSize());
+        json.put("original_size", file.getOriginalSize());
+        json.put("mime_type", file.getMimeType());
+        json.put("codec", file.getCodec());
+        json.put("created_at", file.getCreatedAt());
+        json.put(SyncProtocol.KEY_BLOB_SIZE, blob.length());
+        return new Data(file.getUid(), file.getCreatedAt(), json);
+    }
+
+    /**
+     * サーバーが持っていないファイルの中身を、受け取り済みの位置から送る
+     */
+    private void uploadBlobs(Run run, JSONArray needed) throws IOException {
+        for (int i = 0; needed != null && i < needed.length(); i++) {
+            JSONObject blob = needed.optJSONObject(i);
+            ItemFile file = blob != null ? db.fileDao().getFileByUidSync(blob.optString(SyncProtocol.KEY_UID)) : null;
+            if (file == null) {
+                // 送った後に消えたファイル（削除は次回送る）
+                continue;
+            }
+            run.uploadedBytes += transport.uploadBlob(file.getUid(), storageManager.getFile(file.getFilePath()),
+                blob.optLong(SyncProtocol.KEY_OFFSET));
+            run.uploadedBlobs++;
+        }
+    }
+
+    private void pull(Run run) throws IOException {
+        long cursor = prefs.getLong(KEY_PULL_SEQ, 0);
+        boolean more = true;
+        while (more) {
+            JSONObject page = transport.pull(run.device, cursor, CHANGES_PER_BATCH);
+            List<ChangeApplier.RemoteChange> changes = ChangeApplier.parse(page.optJSONArray(SyncProtocol.KEY_CHANGES));
+            if (!changes.isEmpty()) {
+                applyPage(run, changes);
+                run.pulled += changes.size();
+            }
+            cursor = page.optLong(SyncProtocol.KEY_NEXT, cursor);
+            prefs.edit().putLong(KEY_PULL_SEQ, cursor).apply();
+            more = page.optBoolean(SyncProtocol.KEY_MORE);
+        }
+    }
+
+    private void applyPage(Run run, List<ChangeApplier.RemoteChange> changes) throws IOException {
+        Map<String, SavedFile> saved = downloadBlobs(run, changes);
+        ChangeApplier applier = new ChangeApplier(db, run.device, saved);
+        try {
+            db.runInTransaction(() -> {
+                long before = db.changeLogDao().getLastSeqSync();
+                for (ChangeApplier.RemoteChange change : changes) {
+                    applier.apply(change);
+                }
+                // 取り込んだ変更は送り返さない
+                db.changeLogDao().markRemoteAfter(before);
+            });
+        } catch (RuntimeException e) {
+            for (SavedFile file : saved.values()) {
+                storageManager.deleteFile(file.getRelativePath());
+            }
+            throw e;
+        }
+        run.skipped += applier.getSkippedCount();
+        itemCache.invalidateAll(applier.getTouchedItemIds());
+        for (Long tagId : applier.getTouchedTagIds()) {
+            itemCache.invalidateTag(tagId);
+        }
+        for (String path : applier.getRemovedPaths()) {
+            storageManager.deleteFile(path);
+        }
+    }
+
+    /**
+     * ページ内の新しいファイルの中身を受け取って保存する
+     * 受け取り途中のファイルはpartDirに残し、次回はその続きから受け取る
+     * @return ファイルのuid → 保存したファイル
+     */
+    private Map<String, SavedFile> downloadBlobs(Run run, List<ChangeApplier.RemoteChange> changes)
+            throws IOException {
+        Set<String> pageItems = new HashSet<>();
+        List<ChangeApplier.RemoteChange> files = new ArrayList<>();
+        for (ChangeApplier.RemoteChange change : changes) {
+            if (!change.isUpsert()) {
+                continue;
+            }
+            if (SyncProtocol.ENTITY_ITEM.equals(change.entity)) {
+                pageItems.add(change.uid);
+            } else if (SyncProtocol.ENTITY_FILE.equals(change.entity)) {
+                files.add(change);
+            }
+        }
+
+        Map<String, SavedFile> saved = new HashMap<>();
+        for (ChangeApplier.RemoteChange change : files) {
+            String itemUid = change.data.optString("item");
+            if (db.fileDao().getFileByUidSync(change.uid) != null
+                    || (!pageItems.contains(itemUid) && db.itemDao().getItemByUidSync(itemUid) == null)) {
+                // 既にあるファイルと、アイテムが消えているファイルは受け取らない
+                continue;
+            }
+            if (!partDir.isDirectory() && !partDir.mkdirs()) {
+                throw new IOException("一時フォルダを作成できません: " + partDir);
+            }
+            File part = new File(partDir, change.uid + ".part");
+            long size = change.data.optLong(SyncProtocol.KEY_BLOB_SIZE);
+            if (part.length() > size) {
+                part.delete();
+            }
+            if (part.length() < size || !part.exists()) {
+                run.downloadedBytes += transport.downloadBlob(change.uid, part);
+            }
+            if (part.length() != size) {
+                throw new IOException("ファイルの中身が途中までしか届いていません: " + change.uid);
+            }
+            // 保存時のコーデックを外してから渡す（この端末のコーデックはFileStorageManagerが選び直す）
+            try (InputStream inputStream = TextCodec.wrapInput(new FileInputStream(part),
+                    change.data.optString("codec", TextCodec.CODEC_NONE))) {
+                saved.put(change.uid, storageManager.saveFile(inputStream, change.data.optString("mime_type")));
+            }
+            part.delete();
+            run.downloadedBlobs++;
+        }
+        return saved;
+    }
+
+    private static JSONObject newBatch(String device, JSONArray changes) throws IOException {
+        try {
+            JSONObject batch = new JSONObject();
+            batch.put(SyncProtocol.KEY_DEVICE, device);
+            batch.put(SyncProtocol.KEY_CHANGES, changes);
+            return batch;
+        } catch (JSONException e) {
+            throw new IOException("同期のデータを作成できません", e);
+        }
+    }
+
+    /**
+     * 行自体の削除か（タグの付け外しの削除は含まない）
+     */
+    private static boolean isRowDelete(ChangeLogEntry entry) {
+        return ChangeLogEntry.OP_DELETE.equals(entry.getOp()) && !"item_tags".equals(entry.getTableName());
+    }
+
+    private static Object orNull(Object value) {
+        return value != null ? value : JSONObject.NULL;
+    }
+
+    /**
+     * 送る行の状態
+     */
+    private static class Data {
+        final String uid;
+        // nullなら変更日時を使う
+        final Long version;
+        final JSONObject json;
+
+        Data(String uid, Long version, JSONObject json) {
+            this.uid = uid;
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    /**
+     * 1回の同期の状態
+     */
+    private static class Run {
+        final String device;
+        int pushed;
+        int rejected;
+        int pulled;
+        int skipped;
+        int uploadedBlobs;
+        long uploadedBytes;
+        int downloadedBlobs;
+        long downloadedBytes;
+
+        Run(String device) {
+            this.device = device;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package jp.ac.meijou.android.nanndatteii.sync;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 同期サーバーとのやり取りの取り決め
+ *
+ * - POST PUSH_PATH: 端末の変更をまとめて送る（gzipしたJSON）
+ *   {device, changes: [{entity, uid, op, version, data}]}
+ *   → {applied, stale, blobs_needed: [{uid, offset}]}
+ * - GET PULL_PATH?device=&after=&limit=: 他の端末の変更をサーバーの通し番号順に受け取る
+ *   → {changes: [{seq, entity, uid, op, version, data}], next, more}
+ * - PUT BLOBS_PATH{uid}?offset=: ファイルの中身をoffsetから1チャンク送る
+ *   Upload-Lengthに全体の大きさ、応答のUpload-Offsetに受け取り済みの大きさ（ずれていれば409）
+ * - GET BLOBS_PATH{uid}: ファイルの中身（Range: bytes=N- で途中から）
+ *
+ * 同じ行（entity + uid）への変更はversionが大きい方、同じなら端末IDが大きい方を残す（後勝ち）。
+ * versionはアイテムがupdated_at、ファイルがcreated_at（ファイルは作成後に変わらない）、
+ * タグと削除は変更日時。ファイルは中身がそろうまで他の端末には見えない
+ */
+final class SyncProtocol {
+    static final int VERSION = 1;
+
+    static final String PUSH_PATH = "/sync/push";
+    static final String PULL_PATH = "/sync/pull";
+    static final String BLOBS_PATH = "/sync/blobs/";
+
+    static final String HEADER_VERSION = "Sync-Version";
+    static final String HEADER_UPLOAD_OFFSET = "Upload-Offset";
+    static final String HEADER_UPLOAD_LENGTH = "Upload-Length";
+
+    static final String ENTITY_TAG = "tag";
+    static final String ENTITY_ITEM = "item";
+    static final String ENTITY_FILE = "file";
+
+    static final String OP_UPSERT = "upsert";
+    static final String OP_DELETE = "delete";
+
+    static final String KEY_DEVICE = "device";
+    static final String KEY_CHANGES = "changes";
+    static final String KEY_SEQ = "seq";
+    static final String KEY_ENTITY = "entity";
+    static final String KEY_UID = "uid";
+    static final String KEY_OP = "op";
+    static final String KEY_VERSION = "version";
+    static final String KEY_DATA = "data";
+    static final String KEY_APPLIED = "applied";
+    static final String KEY_STALE = "stale";
+    static final String KEY_BLOBS_NEEDED = "blobs_needed";
+    static final String KEY_OFFSET = "offset";
+    static final String KEY_NEXT = "next";
+    static final String KEY_MORE = "more";
+    // dataのうちファイルの中身の大きさ（保存時のコーデックのまま送る）
+    static final String KEY_BLOB_SIZE = "blob_size";
+
+    private SyncProtocol() {
+    }
+
+    /**
+     * 同じ行への2つの変更のうち、aを残すか（後勝ち）
+     */
+    static boolean wins(long versionA, String deviceA, long versionB, String deviceB) {
+        if (versionA != versionB) {
+            return versionA > versionB;
+        }
+        return deviceA.compareTo(deviceB) > 0;
+    }
+
+    static void writeJson(OutputStream outputStream, JSONObject json) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(outputStream);
+        gzip.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        gzip.finish();
+    }
+
+    static JSONObject readJson(InputStream inputStream, boolean gzipped) throws IOException {
+        InputStream in = gzipped ? new GZIPInputStream(inputStream) : inputStream;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, count);
+        }
+        try {
+            return new JSONObject(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("同期のデータを読めません", e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package jp.ac.meijou.android.nanndatteii.sync;
+
+import java.util.Locale;
+
+/**
+ * 同期の結果（不変）
+ */
+public class SyncResult {
+    private final int pushedCount;
+    private final int rejectedCount;
+    private final int pulledCount;
+    private final int skippedCount;
+    private final int uploadedBlobCount;
+    private final long uploadedBytes;
+    private final int downloadedBlobCount;
+    private final long downloadedBytes;
+    private final long elapsedNanos;
+
+    SyncResult(int pushedCount, int rejectedCount, int pulledCount, int skippedCount,
+               int uploadedBlobCount, long uploadedBytes, int downloadedBlobCount, long downloadedBytes,
+               long elapsedNanos) {
+        this.pushedCount = pushedCount;
+        this.rejectedCount = rejectedCount;
+        this.pulledCount = pulledCount;
+        this.skippedCount = skippedCount;
+        this.uploadedBlobCount = uploadedBlobCount;
+        this.uploadedBytes = uploadedBytes;
+        this.downloadedBlobCount = downloadedBlobCount;
+        this.downloadedBytes = downloadedBytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * 送った変更の数（同じ行への変更はまとめて1件）
+     */
+    public int getPushedCount() {
+        return pushedCount;
+    }
+
+    /**
+     * 送ったが、サーバーにより新しい変更があったため採用されなかった数
+     */
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * 受け取った他の端末の変更の数
+     */
+    public int getPulledCount() {
+        return pulledCount;
+    }
+
+    /**
+     * 受け取ったが、端末の方が新しいか対象がないため反映しなかった数
+     */
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    public int getUploadedBlobCount() {
+        return uploadedBlobCount;
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public int getDownloadedBlobCount() {
+        return downloadedBlobCount;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "送信 %d件（不採用 %d件） / 受信 %d件（未反映 %d件） / "
+                + "ファイル 送信 %d件 %.1f MB・受信 %d件 %.1f MB / %.1f s",
+            pushedCount, rejectedCount, pulledCount, skippedCount,
+            uploadedBlobCount, uploadedBytes / (1024.0 * 1024.0),
+            downloadedBlobCount, downloadedBytes / (1024.0 * 1024.0),
+            elapsedNanos / 1_000_000_000.0);
+    }
+}
@@ -0,0 +1,156 @@
+package jp.ac.meijou.android.nanndatteii.sync;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * 同期サーバーへのHTTPリクエスト（SyncProtocol参照）
+ */
+final class SyncTransport {
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+    // ファイルの中身を送る単位（失敗しても送り直すのはこの分だけ）
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    private final String baseUrl;
+
+    SyncTransport(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    JSONObject push(JSONObject body) throws IOException {
+        HttpURLConnection connection = open(SyncProtocol.PUSH_PATH);
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                SyncProtocol.writeJson(outputStream, body);
+            }
+            return readResponse(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    JSONObject pull(String device, long afterSeq, int limit) throws IOException {
+        HttpURLConnection connection = open(SyncProtocol.PULL_PATH
+            + "?device=" + URLEncoder.encode(device, "UTF-8") + "&after=" + afterSeq + "&limit=" + limit);
+        try {
+            return readResponse(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * ファイルの中身をoffsetから最後までCHUNK_SIZEずつ送る
+     * @return 送ったバイト数
+     */
+    long uploadBlob(String uid, File file, long offset) throws IOException {
+        long total = file.length();
+        long sent = 0;
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(total, 1))];
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            // 空のファイルも1回送って受け取り済みにする
+            do {
+                int length = (int) Math.min(chunk.length, total - offset);
+                input.seek(offset);
+                input.readFully(chunk, 0, length);
+
+                HttpURLConnection connection = open(SyncProtocol.BLOBS_PATH + uid + "?offset=" + offset);
+                try {
+                    connection.setRequestMethod("PUT");
+                    connection.setDoOutput(true);
+                    connection.setFixedLengthStreamingMode(length);
+                    connection.setRequestProperty("Content-Type", "application/octet-stream");
+                    connection.setRequestProperty(SyncProtocol.HEADER_UPLOAD_LENGTH, Long.toString(total));
+                    try (OutputStream outputStream = connection.getOutputStream()) {
+                        outputStream.write(chunk, 0, length);
+                    }
+                    int code = connection.getResponseCode();
+                    String received = connection.getHeaderField(SyncProtocol.HEADER_UPLOAD_OFFSET);
+                    if ((code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_CONFLICT)
+                            || received == null) {
+                        throw new IOException("ファイルを送れません: " + uid + " (" + code + ")");
+                    }
+                    if (code == HttpURLConnection.HTTP_OK) {
+                        sent += length;
+                    }
+                    // 409ならサーバーが受け取っている位置から送り直す
+                    offset = Long.parseLong(received);
+                } finally {
+                    connection.disconnect();
+                }
+            } while (offset < total);
+        }
+        return sent;
+    }
+
+    /**
+     * ファイルの中身をpartの続きから受け取る（partが途中までなら続きだけ）
+     * @return 受け取ったバイト数
+     */
+    long downloadBlob(String uid, File part) throws IOException {
+        long offset = part.length();
+        HttpURLConnection connection = open(SyncProtocol.BLOBS_PATH + uid);
+        try {
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+            int code = connection.getResponseCode();
+            boolean append;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                append = true;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // 途中からの取得に対応していなければ最初から
+                append = false;
+            } else {
+                throw new IOException("ファイルを受け取れません: " + uid + " (" + code + ")");
+            }
+            long received = 0;
+            try (InputStream inputStream = connection.getInputStream();
+                 OutputStream outputStream = new FileOutputStream(part, append)) {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                    received += count;
+                }
+            }
+            return received;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty(SyncProtocol.HEADER_VERSION, Integer.toString(SyncProtocol.VERSION));
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    private static JSONObject readResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            throw new IOException("同期サーバーがエラーを返しました: " + code);
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            return SyncProtocol.readJson(inputStream, "gzip".equals(connection.getContentEncoding()));
+        }
+    }
+}
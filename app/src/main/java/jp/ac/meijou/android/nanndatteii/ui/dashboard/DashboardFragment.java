@@ -1,41 +1,38 @@
 package jp.ac.meijou.android.nanndatteii.ui.dashboard;
 
-import android.content.Intent;
-import android.net.Uri;
+import android.content.Context;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
-import android.widget.Toast;
 
 import androidx.annotation.NonNull;
-import androidx.core.content.FileProvider;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.navigation.fragment.NavHostFragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
 import jp.ac.meijou.android.nanndatteii.R;
 import jp.ac.meijou.android.nanndatteii.databinding.FragmentDashboardBinding;
 import jp.ac.meijou.android.nanndatteii.db.entity.Item;
-import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
 import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.diagnostics.StartupTrace;
 import jp.ac.meijou.android.nanndatteii.repository.ItemRepository;
 import jp.ac.meijou.android.nanndatteii.repository.TagRepository;
-import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
 
 public class DashboardFragment extends Fragment {
     private FragmentDashboardBinding binding;
     private TagRepository tagRepository;
     private ItemRepository itemRepository;
-    private FileStorageManager fileStorageManager;
     private ItemAdapter itemAdapter;
     private List<Tag> tagsList = new ArrayList<>();
+    private boolean liveItemsShown;
 
     public View onCreateView(@NonNull LayoutInflater inflater,
                              ViewGroup container, Bundle savedInstanceState) {
@@ -45,18 +42,13 @@ public class DashboardFragment extends Fragment {
         binding = FragmentDashboardBinding.inflate(inflater, container, false);
         View root = binding.getRoot();
 
-        // Repositoryとストレージマネージャーを初期化
-        tagRepository = new TagRepository(requireContext());
-        itemRepository = new ItemRepository(requireContext());
-        fileStorageManager = new FileStorageManager(requireContext());
-
         // RecyclerViewの設定
         RecyclerView recyclerView = binding.fileRecyclerView;
         recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
 
         itemAdapter = new ItemAdapter(getContext(), item -> {
             // アイテムクリック時の処理
-            openItemFiles(item);
+            openItemDetail(item);
         });
         recyclerView.setAdapter(itemAdapter);
 
@@ -70,8 +62,10 @@ public class DashboardFragment extends Fragment {
         binding.SetTags.setAdapter(spinnerAdapter);
 
         // タグ一覧を取得してSpinnerに反映
-        tagRepository.getAllTags().observe(getViewLifecycleOwner(), tags -> {
+        getTagRepository().getAllTags().observe(getViewLifecycleOwner(), tags -> {
             tagsList = tags;
+            // 1件ずつ通知しないようまとめて入れ替える
+            spinnerAdapter.setNotifyOnChange(false);
             spinnerAdapter.clear();
             spinnerAdapter.add("すべて");
             for (Tag tag : tags) {
@@ -80,7 +74,8 @@ public class DashboardFragment extends Fragment {
             spinnerAdapter.notifyDataSetChanged();
         });
 
-        // 初期表示：すべてのアイテムを表示
+        // 初期表示：保存しておいた1画面分を先に出し、すべてのアイテムが読めたら差し替える
+        showSnapshot();
         loadAllItems();
 
         // OpenTagsボタンの処理
@@ -105,68 +100,74 @@ public class DashboardFragment extends Fragment {
         return root;
     }
 
+    // Repository等は起動を遅くしないよう最初に使う時に作る
+    private TagRepository getTagRepository() {
+        if (tagRepository == null) {
+            tagRepository = new TagRepository(requireContext());
+        }
+        return tagRepository;
+    }
+
+    private ItemRepository getItemRepository() {
+        if (itemRepository == null) {
+            itemRepository = new ItemRepository(requireContext());
+        }
+        return itemRepository;
+    }
+
+    /**
+     * 前回保存したスナップショットを表示（実データが先に届いていれば何もしない）
+     */
+    private void showSnapshot() {
+        DashboardSnapshot snapshot = DashboardSnapshot.peek();
+        if (snapshot != null) {
+            itemAdapter.setItems(snapshot.getRows());
+            return;
+        }
+
+        Context appContext = requireContext().getApplicationContext();
+        RecyclerView recyclerView = binding.fileRecyclerView;
+        AppExecutors.background().execute(() -> {
+            DashboardSnapshot loaded = DashboardSnapshot.load(appContext);
+            if (loaded == null) {
+                return;
+            }
+            recyclerView.post(() -> {
+                if (binding != null && !liveItemsShown) {
+                    itemAdapter.setItems(loaded.getRows());
+                }
+            });
+        });
+    }
+
     /**
      * すべてのアイテムを読み込む
      */
     private void loadAllItems() {
-        itemRepository.getAllItems().observe(getViewLifecycleOwner(), items -> {
+        getItemRepository().getAllItems().observe(getViewLifecycleOwner(), items -> {
+            StartupTrace.markFirstList(getActivity(), "dashboard_items");
+            liveItemsShown = true;
             itemAdapter.setItems(items);
+            DashboardSnapshot.update(requireContext(), items);
         });
     }
 
     /**
-     * タグでフィルタリングしたアイテムを読み込む
+     * タグでフィルタリングしたアイテムを読み込む（子孫タグのアイテムも含む）
      */
     private void loadItemsByTag(long tagId) {
-        itemRepository.getItemsByTag(tagId).observe(getViewLifecycleOwner(), items -> {
+        getItemRepository().getItemsByTagSubtree(tagId).observe(getViewLifecycleOwner(), items -> {
+            liveItemsShown = true;
             itemAdapter.setItems(items);
         });
     }
 
     /**
-     * アイテムのファイルを開く
+     * アイテムの詳細画面を開く
      */
-    private void openItemFiles(Item item) {
-        itemRepository.getFilesByItemId(item.getId()).observe(getViewLifecycleOwner(), files -> {
-            if (files == null || files.isEmpty()) {
-                Toast.makeText(requireContext(), "ファイルがありません", Toast.LENGTH_SHORT).show();
-                return;
-            }
-
-            // 最初のファイルを開く
-            ItemFile firstFile = files.get(0);
-            File file = fileStorageManager.getFile(firstFile.getFilePath());
-
-            if (!file.exists()) {
-                Toast.makeText(requireContext(), "ファイルが見つかりません", Toast.LENGTH_SHORT).show();
-                return;
-            }
-
-            // 閲覧日時を更新
-            itemRepository.updateLastViewed(item.getId());
-
-            try {
-                // FileProviderでUriを取得
-                Uri fileUri = FileProvider.getUriForFile(
-                    requireContext(),
-                    requireContext().getPackageName() + ".fileprovider",
-                    file
-                );
-
-                // 外部アプリで開く
-                Intent intent = new Intent(Intent.ACTION_VIEW);
-                intent.setDataAndType(fileUri, firstFile.getMimeType());
-                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-
-                if (intent.resolveActivity(requireContext().getPackageManager()) != null) {
-                    startActivity(intent);
-                } else {
-                    Toast.makeText(requireContext(), "ファイルを開けるアプリがありません", Toast.LENGTH_SHORT).show();
-                }
-            } catch (Exception e) {
-                Toast.makeText(requireContext(), "ファイルを開けませんでした: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            }
-        });
+    private void openItemDetail(Item item) {
+        NavHostFragment.findNavController(this)
+            .navigate(R.id.navigation_item_detail, ItemDetailFragment.arguments(item.getId()));
     }
 
     @Override
@@ -0,0 +1,238 @@
+package jp.ac.meijou.android.nanndatteii.ui.dashboard;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+
+/**
+ * ダッシュボードの最初の1画面分の行を保存したもの
+ * 起動直後はこれを表示し、DBのクエリが返ったら実データに差し替える
+ *
+ * 件数とupdated_atの最大値をウォーターマークとして持ち、
+ * 一覧が変わっていなければ保存し直さない（last_viewedの更新などでは書き込まない）
+ * 起動時もDBの件数・最大値と比べ、画面を閉じている間に復元・同期・取り込みで変わっていれば表示しない
+ */
+public final class DashboardSnapshot {
+    private static final String TAG = "DashboardSnapshot";
+    private static final String FILE_NAME = "dashboard_snapshot.json";
+    private static final int FORMAT_VERSION = 1;
+
+    // 最初の1画面に収まる行数より少し多め
+    private static final int ROW_COUNT = 20;
+
+    private static final Object SAVE_LOCK = new Object();
+    private static volatile DashboardSnapshot current;
+
+    private final List<Item> rows;
+    private final int itemCount;
+    private final long maxUpdatedAt;
+
+    private DashboardSnapshot(List<Item> rows, int itemCount, long maxUpdatedAt) {
+        this.rows = rows;
+        this.itemCount = itemCount;
+        this.maxUpdatedAt = maxUpdatedAt;
+    }
+
+    /**
+     * 表示用の行（Itemはid・説明・日時のみ設定されている）
+     */
+    public List<Item> getRows() {
+        return rows;
+    }
+
+    private boolean hasSameWatermark(DashboardSnapshot other) {
+        return other != null && itemCount == other.itemCount && maxUpdatedAt == other.maxUpdatedAt;
+    }
+
+    /**
+     * DBの一覧が保存した時から変わっていないか（COUNTとMAX(updated_at)だけ読む）
+     */
+    private boolean matches(ItemDao itemDao) {
+        Long dbMaxUpdatedAt = itemDao.getMaxUpdatedAtSync();
+        return itemCount == itemDao.countItemsSync()
+            && maxUpdatedAt == (dbMaxUpdatedAt != null ? dbMaxUpdatedAt : 0);
+    }
+
+    /**
+     * 読み込み済みのスナップショット（未読み込みならnull）
+     */
+    public static DashboardSnapshot peek() {
+        return current;
+    }
+
+    /**
+     * バックグラウンドで読み込んでおく
+     */
+    public static void preload(Context context) {
+        Context appContext = context.getApplicationContext();
+        AppExecutors.background().execute(() -> load(appContext));
+    }
+
+    /**
+     * ファイルから読み込む（ブロッキング、UIスレッドから呼ばないこと）
+     * @return 保存されていない・壊れている・DBの一覧と合わない場合はnull
+     */
+    public static DashboardSnapshot load(Context context) {
+        DashboardSnapshot snapshot = current;
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = inputStream.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+            snapshot = fromJson(new JSONObject(new String(bytes, 0, offset, StandardCharsets.UTF_8)));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "load: スナップショットを読み込めません", e);
+            return null;
+        }
+        if (!snapshot.matches(AppDatabase.getInstance(context).itemDao())) {
+            // 古い一覧を一瞬見せるより、実データが届くまで空のままにする
+            Log.d(TAG, "load: 保存後に一覧が変わっているので使いません");
+            return null;
+        }
+
+        synchronized (DashboardSnapshot.class) {
+            // 読み込み中に新しい一覧で更新されていればそちらを優先
+            if (current == null) {
+                current = snapshot;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * 最新の一覧でスナップショットを更新する
+     * ウォーターマークが変わっていなければ何もしない
+     * @param items created_at降順のすべてのアイテム
+     */
+    public static void update(Context context, List<Item> items) {
+        DashboardSnapshot snapshot = fromItems(items);
+        synchronized (DashboardSnapshot.class) {
+            if (snapshot.hasSameWatermark(current)) {
+                return;
+            }
+            current = snapshot;
+        }
+
+        Context appContext = context.getApplicationContext();
+        AppExecutors.background().execute(() -> save(appContext, snapshot));
+    }
+
+    private static DashboardSnapshot fromItems(List<Item> items) {
+        long maxUpdatedAt = 0;
+        for (Item item : items) {
+            maxUpdatedAt = Math.max(maxUpdatedAt, item.getUpdatedAt());
+        }
+
+        List<Item> rows = new ArrayList<>();
+        for (Item item : items.subList(0, Math.min(ROW_COUNT, items.size()))) {
+            Item row = new Item();
+            row.setId(item.getId());
+            row.setDescription(truncate(item.getDescription()));
+            row.setCreatedAt(item.getCreatedAt());
+            row.setUpdatedAt(item.getUpdatedAt());
+            rows.add(row);
+        }
+        return new DashboardSnapshot(Collections.unmodifiableList(rows), items.size(), maxUpdatedAt);
+    }
+
+    /**
+     * ItemAdapterで表示される分だけ残す
+     * （上限を1文字超えて残すと表示側で同じように「...」が付く）
+     */
+    private static String truncate(String description) {
+        if (description == null || description.length() <= ItemAdapter.MAX_DISPLAY_LENGTH + 1) {
+            return description;
+        }
+        return description.substring(0, ItemAdapter.MAX_DISPLAY_LENGTH + 1);
+    }
+
+    private static void save(Context context, DashboardSnapshot snapshot) {
+        synchronized (SAVE_LOCK) {
+            if (current != snapshot) {
+                // より新しいスナップショットの保存が後に控えている
+                return;
+            }
+
+            // 途中で落ちても壊れたファイルが残らないよう一時ファイルから置き換える
+            File file = new File(context.getFilesDir(), FILE_NAME);
+            File temp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+            try (OutputStream outputStream = new FileOutputStream(temp)) {
+                outputStream.write(snapshot.toJson().toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "save: スナップショットを保存できません", e);
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "save: スナップショットを置き換えられません");
+                temp.delete();
+            }
+        }
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Item row : rows) {
+            JSONObject json = new JSONObject();
+            json.put("id", row.getId());
+            json.put("description", row.getDescription());
+            json.put("created_at", row.getCreatedAt());
+            json.put("updated_at", row.getUpdatedAt());
+            array.put(json);
+        }
+        JSONObject root = new JSONObject();
+        root.put("version", FORMAT_VERSION);
+        root.put("item_count", itemCount);
+        root.put("max_updated_at", maxUpdatedAt);
+        root.put("rows", array);
+        return root;
+    }
+
+    private static DashboardSnapshot fromJson(JSONObject root) throws JSONException {
+        if (root.getInt("version") != FORMAT_VERSION) {
+            throw new JSONException("未対応の形式: " + root.getInt("version"));
+        }
+        JSONArray array = root.getJSONArray("rows");
+        List<Item> rows = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            Item row = new Item();
+            row.setId(json.getLong("id"));
+            row.setDescription(json.isNull("description") ? null : json.getString("description"));
+            row.setCreatedAt(json.getLong("created_at"));
+            row.setUpdatedAt(json.getLong("updated_at"));
+            rows.add(row);
+        }
+        return new DashboardSnapshot(Collections.unmodifiableList(rows),
+            root.getInt("item_count"), root.getLong("max_updated_at"));
+    }
+}
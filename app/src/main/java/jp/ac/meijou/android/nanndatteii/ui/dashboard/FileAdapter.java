@@ -1,44 +1,50 @@
 package jp.ac.meijou.android.nanndatteii.ui.dashboard;
 
-import android.content.Context;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
-import java.io.File;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import jp.ac.meijou.android.nanndatteii.R;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+
+/**
+ * アイテムに添付されたファイルの一覧（DBの情報だけを表示し、中身はタップされた時に読む）
+ */
 public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder> {
-    private final Context context;
-    private final List<File> fileList;
+    private final List<ItemFile> fileList = new ArrayList<>();
+    private final OnFileClickListener listener;
 
-    public FileAdapter(Context context, List<File> files) {
-        this.context = context;
-        this.fileList = new ArrayList<>(files);
+    public FileAdapter(OnFileClickListener listener) {
+        this.listener = listener;
     }
 
-    public void setFiles(List<File> files) {
+    public void setFiles(List<ItemFile> files) {
         fileList.clear();
         if (files != null) {
             fileList.addAll(files);
         }
-        notifyDataSetChanged(); // これを追加
+        notifyDataSetChanged();
     }
 
     @NonNull
     @Override
     public FileViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        View view = LayoutInflater.from(context).inflate(android.R.layout.simple_list_item_1, parent, false);
+        View view = LayoutInflater.from(parent.getContext())
+            .inflate(R.layout.item_file, parent, false);
         return new FileViewHolder(view);
     }
 
     @Override
     public void onBindViewHolder(@NonNull FileViewHolder holder, int position) {
-        File file = fileList.get(position);
-        holder.textView.setText(file.getName());
+        holder.bind(fileList.get(position), listener);
     }
 
     @Override
@@ -47,10 +53,28 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
     }
 
     static class FileViewHolder extends RecyclerView.ViewHolder {
-        TextView textView;
-        public FileViewHolder(@NonNull View itemView) {
+        private final TextView fileName;
+
+        FileViewHolder(@NonNull View itemView) {
             super(itemView);
-            textView = itemView.findViewById(android.R.id.text1);
+            fileName = itemView.findViewById(R.id.fileName);
         }
+
+        void bind(ItemFile file, OnFileClickListener listener) {
+            // 保存時のサイズ（圧縮・縮小前）を表示
+            long size = file.getOriginalSize() > 0 ? file.getOriginalSize() : file.getFileSize();
+            fileName.setText(file.getFileName() + "\n"
+                + file.getMimeType() + " / " + Formatter.formatShortFileSize(itemView.getContext(), size));
+
+            itemView.setOnClickListener(v -> {
+                if (listener != null) {
+                    listener.onFileClick(file);
+                }
+            });
+        }
+    }
+
+    public interface OnFileClickListener {
+        void onFileClick(ItemFile file);
     }
 }
@@ -20,6 +20,9 @@ import jp.ac.meijou.android.nanndatteii.db.entity.Item;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
 
 public class ItemAdapter extends RecyclerView.Adapter<ItemAdapter.ViewHolder> {
+    // 説明文をこの文字数で切って表示する
+    static final int MAX_DISPLAY_LENGTH = 50;
+
     private List<Item> items;
     private final Context context;
     private final OnItemClickListener listener;
@@ -69,8 +72,8 @@ public class ItemAdapter extends RecyclerView.Adapter<ItemAdapter.ViewHolder> {
             String displayText = item.getDescription();
             if (displayText == null || displayText.trim().isEmpty()) {
                 displayText = "アイテム #" + item.getId();
-            } else if (displayText.length() > 50) {
-                displayText = displayText.substring(0, 50) + "...";
+            } else if (displayText.length() > MAX_DISPLAY_LENGTH) {
+                displayText = displayText.substring(0, MAX_DISPLAY_LENGTH) + "...";
             }
 
             // 日時を追加
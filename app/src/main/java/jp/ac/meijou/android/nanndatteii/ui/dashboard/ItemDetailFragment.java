@@ -0,0 +1,169 @@
+package jp.ac.meijou.android.nanndatteii.ui.dashboard;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.FileProvider;
+import androidx.fragment.app.Fragment;
+import androidx.fragment.app.FragmentActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.databinding.FragmentItemDetailBinding;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.db.relation.ItemWithFilesAndTags;
+import jp.ac.meijou.android.nanndatteii.repository.ItemRepository;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+
+/**
+ * アイテムの詳細（説明・タグ・添付ファイルの一覧）
+ * アイテムとファイル・タグは1回の読み込み（キャッシュ経由）で取得し、
+ * ファイルの中身はタップされた時に初めて読む
+ */
+public class ItemDetailFragment extends Fragment {
+    public static final String ARG_ITEM_ID = "itemId";
+
+    private FragmentItemDetailBinding binding;
+    private ItemRepository itemRepository;
+    private FileStorageManager fileStorageManager;
+    private FileAdapter fileAdapter;
+
+    /**
+     * 画面遷移の引数
+     */
+    public static Bundle arguments(long itemId) {
+        Bundle args = new Bundle();
+        args.putLong(ARG_ITEM_ID, itemId);
+        return args;
+    }
+
+    public View onCreateView(@NonNull LayoutInflater inflater,
+                             ViewGroup container, Bundle savedInstanceState) {
+        binding = FragmentItemDetailBinding.inflate(inflater, container, false);
+
+        fileAdapter = new FileAdapter(this::openFile);
+        binding.itemFileList.setLayoutManager(new LinearLayoutManager(getContext()));
+        binding.itemFileList.setAdapter(fileAdapter);
+
+        long itemId = requireArguments().getLong(ARG_ITEM_ID);
+        loadItem(itemId);
+        // 閲覧日時を更新
+        getItemRepository().updateLastViewed(itemId);
+
+        return binding.getRoot();
+    }
+
+    private ItemRepository getItemRepository() {
+        if (itemRepository == null) {
+            itemRepository = new ItemRepository(requireContext());
+        }
+        return itemRepository;
+    }
+
+    private FileStorageManager getFileStorageManager() {
+        if (fileStorageManager == null) {
+            fileStorageManager = new FileStorageManager(requireContext());
+        }
+        return fileStorageManager;
+    }
+
+    private void loadItem(long itemId) {
+        getItemRepository().getItemDetail(itemId, new ItemRepository.OnItemLoadedListener() {
+            @Override
+            public void onSuccess(ItemWithFilesAndTags item) {
+                runOnUiThread(() -> showItem(item));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                runOnUiThread(() -> Toast.makeText(requireContext(),
+                    "読み込めませんでした: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    private void showItem(ItemWithFilesAndTags item) {
+        String description = item.item.getDescription();
+        binding.itemDescription.setText(description == null || description.trim().isEmpty()
+            ? "アイテム #" + item.item.getId() : description);
+
+        List<String> tagNames = new ArrayList<>();
+        for (Tag tag : item.tags) {
+            tagNames.add(tag.getName());
+        }
+        binding.itemTags.setText(tagNames.isEmpty() ? "タグなし" : String.join(", ", tagNames));
+
+        if (item.files.isEmpty()) {
+            Toast.makeText(requireContext(), "ファイルがありません", Toast.LENGTH_SHORT).show();
+        }
+        fileAdapter.setFiles(item.files);
+    }
+
+    /**
+     * ファイルを外部アプリで開く（圧縮されたメモの展開はバックグラウンドで行う）
+     */
+    private void openFile(ItemFile itemFile) {
+        FileStorageManager storageManager = getFileStorageManager();
+        String authority = requireContext().getPackageName() + ".fileprovider";
+        AppExecutors.background().execute(() -> {
+            try {
+                File file = storageManager.getFile(itemFile.getFilePath());
+                if (!file.exists()) {
+                    runOnUiThread(() -> Toast.makeText(requireContext(),
+                        "ファイルが見つかりません", Toast.LENGTH_SHORT).show());
+                    return;
+                }
+                File readableFile = storageManager.getReadableFile(itemFile.getFilePath(), itemFile.getCodec());
+                runOnUiThread(() -> startViewer(readableFile, itemFile.getMimeType(), authority));
+            } catch (Exception e) {
+                runOnUiThread(() -> Toast.makeText(requireContext(),
+                    "ファイルを開けませんでした: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    private void startViewer(File readableFile, String mimeType, String authority) {
+        Uri fileUri = FileProvider.getUriForFile(requireContext(), authority, readableFile);
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setDataAndType(fileUri, mimeType);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        if (intent.resolveActivity(requireContext().getPackageManager()) != null) {
+            startActivity(intent);
+        } else {
+            Toast.makeText(requireContext(), "ファイルを開けるアプリがありません", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * 画面が閉じられていれば何もしない
+     */
+    private void runOnUiThread(Runnable action) {
+        FragmentActivity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(() -> {
+            if (binding != null) {
+                action.run();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        binding = null;
+    }
+}
@@ -2,6 +2,7 @@ package jp.ac.meijou.android.nanndatteii.ui.home;
 
 
 import android.Manifest;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -25,6 +26,7 @@ import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 import androidx.fragment.app.Fragment;
+import androidx.fragment.app.FragmentActivity;
 import androidx.lifecycle.ViewModelProvider;
 
 import java.io.File;
@@ -32,14 +34,17 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
 import jp.ac.meijou.android.nanndatteii.databinding.FragmentHomeBinding;
 import jp.ac.meijou.android.nanndatteii.R;
 import jp.ac.meijou.android.nanndatteii.db.entity.Item;
 import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
 import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.diagnostics.StartupTrace;
 import jp.ac.meijou.android.nanndatteii.repository.ItemRepository;
 import jp.ac.meijou.android.nanndatteii.repository.TagRepository;
 import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+import jp.ac.meijou.android.nanndatteii.storage.ImageProcessor;
 import jp.ac.meijou.android.nanndatteii.storage.SavedFile;
 
 import java.io.ByteArrayInputStream;
@@ -64,6 +69,7 @@ public class HomeFragment extends Fragment
     private TagRepository tagRepository;
     private ItemRepository itemRepository;
     private FileStorageManager fileStorageManager;
+    private ImageProcessor imageProcessor;
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater,
@@ -75,11 +81,6 @@ public class HomeFragment extends Fragment
         binding = FragmentHomeBinding.inflate(inflater, container, false);
         View root = binding.getRoot();
 
-        // Repositoryとストレージマネージャーを初期化
-        tagRepository = new TagRepository(requireContext());
-        itemRepository = new ItemRepository(requireContext());
-        fileStorageManager = new FileStorageManager(requireContext());
-
         // タグリストをSpinnerで表示
         final List<Tag>[] tagsList = new List[]{new ArrayList<>()};
         final ArrayAdapter<String> spinnerAdapter = new ArrayAdapter<>(
@@ -91,8 +92,11 @@ public class HomeFragment extends Fragment
         binding.HomeTagSet.setAdapter(spinnerAdapter);
 
         // TagRepositoryからタグ一覧を取得してSpinnerに反映
-        tagRepository.getAllTags().observe(getViewLifecycleOwner(), tags -> {
+        getTagRepository().getAllTags().observe(getViewLifecycleOwner(), tags -> {
+            StartupTrace.markFirstList(getActivity(), "home_tags");
             tagsList[0] = tags;
+            // 1件ずつ通知しないようまとめて入れ替える
+            spinnerAdapter.setNotifyOnChange(false);
             spinnerAdapter.clear();
             for (Tag tag : tags) {
                 spinnerAdapter.add(tag.getName());
@@ -100,6 +104,18 @@ public class HomeFragment extends Fragment
             spinnerAdapter.notifyDataSetChanged();
         });
 
+        // タグ名の入力補完。候補を選んだらSpinnerもそのタグにする
+        binding.TextTag.setAdapter(new TagSuggestionAdapter(requireContext(), getTagRepository()));
+        binding.TextTag.setOnItemClickListener((parent, view, position, id) -> {
+            String name = (String) parent.getItemAtPosition(position);
+            for (int i = 0; i < tagsList[0].size(); i++) {
+                if (tagsList[0].get(i).getName().equals(name)) {
+                    binding.HomeTagSet.setSelection(i);
+                    break;
+                }
+            }
+        });
+
 
         final TextView textView = binding.textHome;
         homeViewModel.getText().observe(getViewLifecycleOwner(), textView::setText);
@@ -165,10 +181,10 @@ public class HomeFragment extends Fragment
             newTag.setName(tagName);
             newTag.setCreatedAt(System.currentTimeMillis());
 
-            tagRepository.insertTag(newTag, new TagRepository.OnTagInsertedListener() {
+            getTagRepository().insertTag(newTag, new TagRepository.OnTagInsertedListener() {
                 @Override
                 public void onSuccess(long tagId) {
-                    requireActivity().runOnUiThread(() -> {
+                    runOnUiThread(() -> {
                         Toast.makeText(requireContext(), "タグを追加しました", Toast.LENGTH_SHORT).show();
                         binding.TextTag.setText("");
                         // LiveDataが自動更新するのでSpinnerは自動で更新される
@@ -177,7 +193,7 @@ public class HomeFragment extends Fragment
 
                 @Override
                 public void onError(Exception e) {
-                    requireActivity().runOnUiThread(() -> {
+                    runOnUiThread(() -> {
                         Toast.makeText(requireContext(), "エラー: " + e.getMessage(), Toast.LENGTH_SHORT).show();
                     });
                 }
@@ -248,10 +264,10 @@ public class HomeFragment extends Fragment
             }
 
             String selectedTagName = binding.HomeTagSet.getSelectedItem().toString();
-            tagRepository.deleteTagByName(selectedTagName, new TagRepository.OnTagDeletedListener() {
+            getTagRepository().deleteTagByName(selectedTagName, new TagRepository.OnTagDeletedListener() {
                 @Override
                 public void onSuccess() {
-                    requireActivity().runOnUiThread(() -> {
+                    runOnUiThread(() -> {
                         Toast.makeText(getContext(), "タグを削除しました", Toast.LENGTH_SHORT).show();
                         currentTagId = null;
                         currentTag = null;
@@ -260,7 +276,7 @@ public class HomeFragment extends Fragment
 
                 @Override
                 public void onError(Exception e) {
-                    requireActivity().runOnUiThread(() -> {
+                    runOnUiThread(() -> {
                         Toast.makeText(getContext(), "削除エラー: " + e.getMessage(), Toast.LENGTH_SHORT).show();
                     });
                 }
@@ -286,6 +302,35 @@ public class HomeFragment extends Fragment
         return root;
     }
 
+    // Repository等は起動を遅くしないよう最初に使う時に作る
+    private TagRepository getTagRepository() {
+        if (tagRepository == null) {
+            tagRepository = new TagRepository(requireContext());
+        }
+        return tagRepository;
+    }
+
+    private ItemRepository getItemRepository() {
+        if (itemRepository == null) {
+            itemRepository = new ItemRepository(requireContext());
+        }
+        return itemRepository;
+    }
+
+    private FileStorageManager getFileStorageManager() {
+        if (fileStorageManager == null) {
+            fileStorageManager = new FileStorageManager(requireContext());
+        }
+        return fileStorageManager;
+    }
+
+    private ImageProcessor getImageProcessor() {
+        if (imageProcessor == null) {
+            imageProcessor = new ImageProcessor(requireContext());
+        }
+        return imageProcessor;
+    }
+
     /**
      * 新しいアイテムを保存（写真 + メモ）
      */
@@ -309,52 +354,64 @@ public class HomeFragment extends Fragment
             return;
         }
 
-        List<ItemFile> files = new ArrayList<>();
         List<Long> tagIds = new ArrayList<>();
         tagIds.add(currentTagId);
-
-        try {
-            // 1. 写真を保存
-            if (photoUri != null) {
-                Log.d(TAG, "saveNewItem: 写真を保存します。URI: " + photoUri);
-                InputStream photoStream = requireContext().getContentResolver().openInputStream(photoUri);
-                if (photoStream != null) {
-                    SavedFile savedPhoto = fileStorageManager.saveFile(photoStream, "image/jpeg");
-                    Log.d(TAG, "saveNewItem: 写真の保存成功: " + savedPhoto.getRelativePath());
+        Uri targetPhotoUri = photoUri;
+        ContentResolver resolver = requireContext().getContentResolver();
+        FileStorageManager fileStorageManager = getFileStorageManager();
+        ImageProcessor imageProcessor = getImageProcessor();
+        ItemRepository itemRepository = getItemRepository();
+
+        // 画像のデコード・再エンコードはUIスレッドで行わない
+        AppExecutors.background().execute(() -> {
+            List<ItemFile> files = new ArrayList<>();
+            try {
+                // 1. 写真を縮小・再エンコードして保存
+                if (targetPhotoUri != null) {
+                    Log.d(TAG, "saveNewItem: 写真を保存します。URI: " + targetPhotoUri);
+                    SavedFile savedPhoto = savePhoto(resolver, targetPhotoUri, fileStorageManager, imageProcessor);
+                    Log.d(TAG, "saveNewItem: 写真の保存成功: " + savedPhoto.getRelativePath()
+                        + " (" + savedPhoto.getOriginalSize() + " -> " + savedPhoto.getFileSize() + " bytes)");
 
                     ItemFile photoFile = new ItemFile();
                     photoFile.setFilePath(savedPhoto.getRelativePath());
                     photoFile.setFileName(savedPhoto.getFileName());
                     photoFile.setFileType("IMAGE");
                     photoFile.setFileSize(savedPhoto.getFileSize());
+                    photoFile.setOriginalSize(savedPhoto.getOriginalSize());
                     photoFile.setMimeType(savedPhoto.getMimeType());
+                    photoFile.setCodec(savedPhoto.getCodec());
                     photoFile.setCreatedAt(System.currentTimeMillis());
                     files.add(photoFile);
-
-                    photoStream.close();
-                } else {
-                    Log.w(TAG, "saveNewItem: photoStreamがnullです。");
                 }
-            }
 
-            // 2. メモを保存
-            if (!memoText.trim().isEmpty()) {
-                Log.d(TAG, "saveNewItem: メモを保存します。");
-                byte[] textBytes = memoText.getBytes(StandardCharsets.UTF_8);
-                InputStream textStream = new ByteArrayInputStream(textBytes);
-                SavedFile savedText = fileStorageManager.saveFile(textStream, "text/plain");
-                Log.d(TAG, "saveNewItem: メモの保存成功: " + savedText.getRelativePath());
-
-                ItemFile textFile = new ItemFile();
-                textFile.setFilePath(savedText.getRelativePath());
-                textFile.setFileName(savedText.getFileName());
-                textFile.setFileType("TEXT");
-                textFile.setFileSize(savedText.getFileSize());
-                textFile.setMimeType(savedText.getMimeType());
-                textFile.setCreatedAt(System.currentTimeMillis());
-                files.add(textFile);
-
-                textStream.close();
+                // 2. メモを保存
+                if (!memoText.trim().isEmpty()) {
+                    Log.d(TAG, "saveNewItem: メモを保存します。");
+                    byte[] textBytes = memoText.getBytes(StandardCharsets.UTF_8);
+                    InputStream textStream = new ByteArrayInputStream(textBytes);
+                    SavedFile savedText = fileStorageManager.saveFile(textStream, "text/plain");
+                    Log.d(TAG, "saveNewItem: メモの保存成功: " + savedText.getRelativePath());
+
+                    ItemFile textFile = new ItemFile();
+                    textFile.setFilePath(savedText.getRelativePath());
+                    textFile.setFileName(savedText.getFileName());
+                    textFile.setFileType("TEXT");
+                    textFile.setFileSize(savedText.getFileSize());
+                    textFile.setOriginalSize(savedText.getOriginalSize());
+                    textFile.setMimeType(savedText.getMimeType());
+                    textFile.setCodec(savedText.getCodec());
+                    textFile.setCreatedAt(System.currentTimeMillis());
+                    files.add(textFile);
+
+                    textStream.close();
+                }
+            } catch (Exception | OutOfMemoryError e) {
+                Log.e(TAG, "saveNewItem: ファイル保存中にエラーが発生しました。", e);
+                runOnUiThread(() -> {
+                    Toast.makeText(requireContext(), "ファイル保存エラー: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                });
+                return;
             }
 
             // 3. アイテムを作成
@@ -368,7 +425,7 @@ public class HomeFragment extends Fragment
                 @Override
                 public void onSuccess(long itemId) {
                     Log.d(TAG, "onSuccess: アイテムの保存に成功。ItemID: " + itemId);
-                    requireActivity().runOnUiThread(() -> {
+                    runOnUiThread(() -> {
                         Toast.makeText(requireContext(), "保存しました", Toast.LENGTH_SHORT).show();
                         // UIをリセット
                         binding.Textbox.setText("");
@@ -379,18 +436,56 @@ public class HomeFragment extends Fragment
                 @Override
                 public void onError(Exception e) {
                     Log.e(TAG, "onError: アイテムの保存に失敗。", e);
-                    requireActivity().runOnUiThread(() -> {
+                    runOnUiThread(() -> {
                         Toast.makeText(requireContext(), "保存に失敗しました: " + e.getMessage(), Toast.LENGTH_SHORT).show();
                     });
                 }
             });
+        });
+    }
 
-        } catch (IOException e) {
-            Log.e(TAG, "saveNewItem: ファイル保存中にIOExceptionが発生しました。", e);
-            Toast.makeText(requireContext(), "ファイル保存エラー: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+    /**
+     * 写真を縮小・再エンコードして保存する
+     * デコードできない画像（HEIC・アニメーションなど）や、大きすぎてデコードできない画像は
+     * ImportJob.copyと同じくそのまま保存する
+     */
+    private static SavedFile savePhoto(ContentResolver resolver, Uri uri,
+                                       FileStorageManager fileStorageManager,
+                                       ImageProcessor imageProcessor) throws IOException {
+        try (InputStream photoStream = openInputStream(resolver, uri)) {
+            return fileStorageManager.saveImage(photoStream, imageProcessor);
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.w(TAG, "savePhoto: 画像として処理できないためそのまま保存: " + uri, e);
+        }
+        String mimeType = resolver.getType(uri);
+        try (InputStream photoStream = openInputStream(resolver, uri)) {
+            return fileStorageManager.saveFile(photoStream, mimeType != null ? mimeType : "image/jpeg");
         }
     }
 
+    private static InputStream openInputStream(ContentResolver resolver, Uri uri) throws IOException {
+        InputStream inputStream = resolver.openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("開けません: " + uri);
+        }
+        return inputStream;
+    }
+
+    /**
+     * 画面が閉じられていれば何もしない（保存の完了は裏のスレッドから届く）
+     */
+    private void runOnUiThread(Runnable action) {
+        FragmentActivity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(() -> {
+            if (binding != null) {
+                action.run();
+            }
+        });
+    }
+
     /**
      * パーミッションの確認とリクエスト
      */
@@ -0,0 +1,58 @@
+package jp.ac.meijou.android.nanndatteii.ui.home;
+
+import android.content.Context;
+import android.widget.ArrayAdapter;
+import android.widget.Filter;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.repository.TagRepository;
+
+/**
+ * タグ名入力欄の補完候補
+ * 候補はTagDictionaryの前方一致検索から取る（全件をAdapterに持たない）
+ */
+public class TagSuggestionAdapter extends ArrayAdapter<String> {
+    private static final int MAX_SUGGESTIONS = 20;
+
+    private final TagRepository tagRepository;
+    private final Filter filter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            FilterResults results = new FilterResults();
+            List<String> names = new ArrayList<>();
+            if (constraint != null && constraint.length() > 0) {
+                for (Tag tag : tagRepository.searchTagsByPrefix(constraint.toString(), MAX_SUGGESTIONS)) {
+                    names.add(tag.getName());
+                }
+            }
+            results.values = names;
+            results.count = names.size();
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            setNotifyOnChange(false);
+            clear();
+            addAll((List<String>) results.values);
+            notifyDataSetChanged();
+        }
+    };
+
+    public TagSuggestionAdapter(Context context, TagRepository tagRepository) {
+        super(context, android.R.layout.simple_dropdown_item_1line, new ArrayList<>());
+        this.tagRepository = tagRepository;
+    }
+
+    @NonNull
+    @Override
+    public Filter getFilter() {
+        return filter;
+    }
+}
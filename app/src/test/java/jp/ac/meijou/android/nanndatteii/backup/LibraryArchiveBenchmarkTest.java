@@ -0,0 +1,417 @@
+package jp.ac.meijou.android.nanndatteii.backup;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.benchmark.SyntheticLibrary;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+
+import static org.junit.Assert.*;
+
+/**
+ * ライブラリの書き出し・復元の中身と速度を確認する
+ *
+ * 計測の実行例（約3GBのライブラリ）:
+ * ./gradlew :app:testDebugUnitTest --tests '*LibraryArchiveBenchmarkTest' \
+ *     -Dbenchmark.enabled=true -Dbenchmark.archive.items=5000
+ *
+ * 結果は app/build/benchmark/archive-benchmark.json（-Dbenchmark.archive.output で変更可）
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class LibraryArchiveBenchmarkTest {
+    private static final String DEFAULT_ITEMS = "200";
+    private static final String DEFAULT_OUTPUT = "build/benchmark/archive-benchmark.json";
+    private static final int TAG_COUNT = 50;
+    private static final int TAGS_PER_ITEM = 3;
+    // 差分の計測で更新するアイテムの割合
+    private static final double TOUCH_RATIO = 0.01;
+    private static final long TIMEOUT_SECONDS = 3600;
+
+    private Context context;
+    private AppDatabase db;
+    private FileStorageManager storageManager;
+    private File archive;
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        onBackground(() -> {
+            db.clearAllTables();
+            return null;
+        });
+        storageManager = new FileStorageManager(context);
+        archive = File.createTempFile("library", ".tar");
+    }
+
+    @After
+    public void tearDown() {
+        archive.delete();
+        deleteRecursively(storageManager.getRootDirectory());
+    }
+
+    @Test
+    public void export_writesEveryItemAndBlob() throws Exception {
+        // 同期のDAO呼び出しはメインスレッドから行えない
+        onBackground(() -> {
+            checkExport();
+            return null;
+        });
+    }
+
+    private void checkExport() throws Exception {
+        seed(50);
+        List<String> paths = db.fileDao().getAllFilePaths();
+        assertTrue(storageManager.getFile(paths.get(0)).delete());
+
+        LibraryExporter exporter = new LibraryExporter(context);
+        ExportResult full = export(exporter, false);
+        assertEquals(50, full.getItemCount());
+        assertEquals(49, full.getFileCount());
+        assertEquals(1, full.getMissingFileCount());
+
+        Map<String, byte[]> entries = readEntries(archive);
+        List<String> names = new ArrayList<>(entries.keySet());
+        assertEquals(ArchiveFormat.MANIFEST, names.get(0));
+        assertEquals(ArchiveFormat.SUMMARY, names.get(names.size() - 1));
+        assertTrue(entries.containsKey(ArchiveFormat.pageName(ArchiveFormat.TAGS_DIR, 1)));
+        assertTrue(entries.containsKey(ArchiveFormat.pageName(ArchiveFormat.ITEMS_DIR, 1)));
+        assertFalse(entries.containsKey(ArchiveFormat.blobName(paths.get(0))));
+        for (String path : paths.subList(1, paths.size())) {
+            assertEquals(storageManager.getFile(path).length(), entries.get(ArchiveFormat.blobName(path)).length);
+        }
+        JSONObject summary = new JSONObject(new String(entries.get(ArchiveFormat.SUMMARY), StandardCharsets.UTF_8));
+        assertEquals(full.getWatermark(), summary.getLong("watermark"));
+
+        // 変更がなければ差分は空
+        ExportResult empty = export(exporter, true);
+        assertEquals(0, empty.getItemCount());
+        assertEquals(full.getWatermark(), empty.getWatermark());
+
+        // 更新したアイテムとタグを付け外ししたアイテムだけが入る
+        SupportSQLiteDatabase sqlite = db.getOpenHelper().getWritableDatabase();
+        sqlite.execSQL("UPDATE items SET updated_at = ? WHERE id IN (SELECT id FROM items ORDER BY id LIMIT 3)",
+            new Object[]{full.getWatermark() + 1});
+        sqlite.execSQL("DELETE FROM item_tags WHERE item_id = (SELECT MAX(id) FROM items)");
+        ExportResult incremental = export(exporter, true);
+        assertEquals(4, incremental.getItemCount());
+        assertTrue(incremental.getWatermark() > full.getWatermark());
+    }
+
+    @Test
+    @Config(sdk = 28) // 復元はFileStorageManager.saveFileを通る（RobolectricにはMediaStoreのプロバイダがない）
+    public void restore_roundTripsLibrary() throws Exception {
+        onBackground(() -> {
+            checkRestore();
+            return null;
+        });
+    }
+
+    private void checkRestore() throws Exception {
+        seed(30);
+        List<String> paths = db.fileDao().getAllFilePaths();
+        assertTrue(storageManager.getFile(paths.get(0)).delete());
+        // 親が後のIDになる階層も戻ること
+        List<Tag> tags = db.tagDao().getAllTagsSync();
+        long parentId = tags.get(tags.size() - 1).getId();
+        long childId = tags.get(0).getId();
+        db.tagDao().move(childId, parentId);
+        String childName = db.tagDao().getTagByIdSync(childId).getName();
+        String parentName = db.tagDao().getTagByIdSync(parentId).getName();
+        int itemTags = countRows("item_tags");
+
+        ExportResult exported = export(new LibraryExporter(context), false);
+
+        // 別の端末に戻す想定で、DBとファイルを空にする
+        db.clearAllTables();
+        deleteRecursively(storageManager.getRootDirectory());
+
+        RestoreResult restored = restore();
+        assertTrue(restored.toString(), restored.isVerified());
+        assertEquals(30, restored.getItemCount());
+        assertEquals(exported.getFileCount(), restored.getFileCount());
+        assertEquals(1, restored.getMissingFileCount());
+        assertEquals(TAG_COUNT, restored.getTagCount());
+        assertEquals(itemTags, restored.getItemTagCount());
+        assertEquals(itemTags, countRows("item_tags"));
+
+        Tag child = db.tagDao().getTagByNameSync(childName);
+        assertEquals(db.tagDao().getTagByNameSync(parentName).getId(), (long) child.getParentId());
+        assertEquals(2, db.tagDao().getPathSync(child.getId()).size());
+
+        // 外したインデックスとトリガーが戻っていること
+        SupportSQLiteDatabase sqlite = db.getOpenHelper().getWritableDatabase();
+        for (String name : new String[]{"index_items_created_at", "index_files_item_id",
+                "index_item_tags_tag_id", "items_touch_after_tag_insert", "tag_closure_after_insert",
+                "item_day_counts_after_insert", "item_sort_keys_after_item_insert"}) {
+            try (Cursor cursor = sqlite.query("SELECT 1 FROM sqlite_master WHERE name = ?", new Object[]{name})) {
+                assertTrue(name, cursor.moveToFirst());
+            }
+        }
+        assertDerivedTablesMatch(30);
+
+        // 同じ書庫をもう一度戻してもuidが同じアイテムは上書きされ、増えない
+        int files = db.fileDao().countFilesSync();
+        RestoreResult again = restore();
+        assertTrue(again.toString(), again.isVerified());
+        assertEquals(0, again.getItemCount());
+        assertEquals(30, again.getUpdatedItemCount());
+        assertEquals(0, again.getFileCount());
+        assertEquals(0, again.getTagCount());
+        assertEquals(30, db.itemDao().countItemsSync());
+        assertEquals(files, db.fileDao().countFilesSync());
+        assertEquals(itemTags, countRows("item_tags"));
+        assertDerivedTablesMatch(30);
+    }
+
+    // トリガーを外して入れた分も、並べ替えの値・日ごとの件数が数え直されていること
+    private void assertDerivedTablesMatch(int itemCount) {
+        assertEquals(itemCount, countRows("item_sort_keys"));
+        assertEquals(itemCount, queryLong("SELECT SUM(count) FROM item_day_counts"));
+        assertEquals(queryLong("SELECT SUM(file_size) FROM files"),
+            queryLong("SELECT SUM(sort_file_size) FROM item_sort_keys"));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM item_sort_keys WHERE sort_tag != " +
+            "(SELECT COALESCE(MIN(tags.name), '') FROM item_tags INNER JOIN tags ON tags.id = item_tags.tag_id " +
+            "WHERE item_tags.item_id = item_sort_keys.item_id)"));
+    }
+
+    private long queryLong(String sql) {
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase().query(sql)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    @Test
+    @Config(sdk = 28) // 復元はFileStorageManager.saveFileを通る（RobolectricにはMediaStoreのプロバイダがない）
+    public void export_benchmark() throws Exception {
+        Assume.assumeTrue("-Dbenchmark.enabled=true を指定した時のみ実行",
+            Boolean.getBoolean("benchmark.enabled"));
+        String json = onBackground(this::runBenchmark);
+        System.out.println(json);
+        writeResults(json, new File(System.getProperty("benchmark.archive.output", DEFAULT_OUTPUT)));
+    }
+
+    private String runBenchmark() throws Exception {
+        int itemCount = Integer.parseInt(System.getProperty("benchmark.archive.items", DEFAULT_ITEMS));
+        long libraryBytes = seed(itemCount);
+        System.out.println(String.format(Locale.US, "seeded %d items / %.1f MB",
+            itemCount, libraryBytes / (1024.0 * 1024.0)));
+
+        LibraryExporter exporter = new LibraryExporter(context);
+        HeapSampler fullHeap = new HeapSampler();
+        ExportResult full = export(exporter, false);
+        long fullPeak = fullHeap.stop();
+        assertEquals(itemCount, full.getItemCount());
+        assertEquals(libraryBytes, full.getBlobBytes());
+        assertEquals(full.getArchiveBytes(), archive.length());
+
+        int touched = Math.max(1, (int) (itemCount * TOUCH_RATIO));
+        db.getOpenHelper().getWritableDatabase().execSQL(
+            "UPDATE items SET updated_at = ? WHERE id IN (SELECT id FROM items ORDER BY RANDOM() LIMIT ?)",
+            new Object[]{full.getWatermark() + 1, touched});
+        HeapSampler incrementalHeap = new HeapSampler();
+        ExportResult incremental = export(exporter, true);
+        long incrementalPeak = incrementalHeap.stop();
+        assertEquals(touched, incremental.getItemCount());
+
+        // 全体の書庫を空のライブラリに戻す
+        export(exporter, false);
+        db.clearAllTables();
+        deleteRecursively(storageManager.getRootDirectory());
+        HeapSampler restoreHeap = new HeapSampler();
+        RestoreResult restored = restore();
+        long restorePeak = restoreHeap.stop();
+        assertTrue(restored.toString(), restored.isVerified());
+        assertEquals(itemCount, restored.getItemCount());
+
+        return "{\"timestamp\":" + System.currentTimeMillis()
+            + ",\"items\":" + itemCount
+            + ",\"library_bytes\":" + libraryBytes
+            + ",\"results\":[\n  " + toJson("full", full, fullPeak)
+            + ",\n  " + toJson("incremental", incremental, incrementalPeak)
+            + ",\n  " + toJson(restored, restorePeak, archive.length()) + "\n]}\n";
+    }
+
+    private static <T> T onBackground(Callable<T> task) throws Exception {
+        return AppExecutors.background().submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private ExportResult export(LibraryExporter exporter, boolean incremental) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(archive);
+             FileChannel channel = outputStream.getChannel()) {
+            return incremental ? exporter.exportIncremental(channel) : exporter.exportFull(channel);
+        }
+    }
+
+    private RestoreResult restore() throws IOException {
+        try (InputStream inputStream = new FileInputStream(archive)) {
+            return new LibraryRestorer(context).restore(inputStream);
+        }
+    }
+
+    private int countRows(String table) {
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase().query("SELECT COUNT(*) FROM " + table)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    /**
+     * 合成ライブラリを作り、ファイルの中身をDBのfile_sizeの大きさで書く
+     * @return ファイルの合計バイト数
+     */
+    private long seed(int itemCount) throws IOException {
+        SyntheticLibrary.seed(db, itemCount, TAG_COUNT, TAGS_PER_ITEM, 1, itemCount);
+        SupportSQLiteDatabase sqlite = db.getOpenHelper().getWritableDatabase();
+        // 合成データのupdated_atは未来の時刻を含むので、差分の確認のため過去にそろえる
+        sqlite.execSQL("UPDATE items SET updated_at = created_at");
+
+        byte[] buffer = new byte[1 << 20];
+        new Random(itemCount).nextBytes(buffer);
+        long total = 0;
+        try (Cursor cursor = sqlite.query("SELECT file_path, file_size FROM files")) {
+            while (cursor.moveToNext()) {
+                File file = storageManager.getFile(cursor.getString(0));
+                file.getParentFile().mkdirs();
+                long size = cursor.getLong(1);
+                try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                    for (long written = 0; written < size; ) {
+                        int length = (int) Math.min(buffer.length, size - written);
+                        outputStream.write(buffer, 0, length);
+                        written += length;
+                    }
+                }
+                total += size;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 書庫のエントリ名と中身を順に読む
+     */
+    private static Map<String, byte[]> readEntries(File file) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            ArchiveReader reader = new ArchiveReader(inputStream);
+            String name;
+            while ((name = reader.next()) != null) {
+                entries.put(name, reader.readEntry());
+            }
+        }
+        return entries;
+    }
+
+    private static String toJson(String name, ExportResult result, long peakHeapBytes) {
+        return String.format(Locale.US,
+            "{\"name\":\"%s\",\"items\":%d,\"files\":%d,\"archive_bytes\":%d,\"elapsed_ms\":%.1f," +
+            "\"mb_per_sec\":%.1f,\"peak_heap_delta_mb\":%.1f}",
+            name, result.getItemCount(), result.getFileCount(), result.getArchiveBytes(),
+            result.getElapsedNanos() / 1_000_000.0, result.megabytesPerSecond(),
+            peakHeapBytes / (1024.0 * 1024.0));
+    }
+
+    private static String toJson(RestoreResult result, long peakHeapBytes, long archiveBytes) {
+        double seconds = (result.getLoadNanos() + result.getRebuildNanos()) / 1_000_000_000.0;
+        return String.format(Locale.US,
+            "{\"name\":\"restore\",\"items\":%d,\"files\":%d,\"rows\":%d,\"load_ms\":%.1f," +
+            "\"rebuild_ms\":%.1f,\"rows_per_sec\":%.1f,\"mb_per_sec\":%.1f,\"peak_heap_delta_mb\":%.1f}",
+            result.getItemCount(), result.getFileCount(), result.getRowCount(),
+            result.getLoadNanos() / 1_000_000.0, result.getRebuildNanos() / 1_000_000.0,
+            result.rowsPerSecond(), archiveBytes / (1024.0 * 1024.0) / seconds,
+            peakHeapBytes / (1024.0 * 1024.0));
+    }
+
+    private static void writeResults(String json, File output) throws IOException {
+        File parent = output.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+            writer.write(json);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 計測中のヒープ使用量の最大値（開始時からの増分）を記録する
+     */
+    private static class HeapSampler {
+        private final long baseline;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long peak;
+
+        HeapSampler() {
+            System.gc();
+            baseline = usedHeap();
+            thread = new Thread(() -> {
+                while (running) {
+                    peak = Math.max(peak, usedHeap() - baseline);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            return peak;
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
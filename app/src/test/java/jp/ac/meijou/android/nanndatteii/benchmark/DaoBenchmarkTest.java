@@ -0,0 +1,353 @@
+package jp.ac.meijou.android.nanndatteii.benchmark;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.repository.ItemRepository;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * DAO・Repositoryのレイテンシを合成データで計測し、JSONに書き出す
+ *
+ * 実行例:
+ * ./gradlew :app:testDebugUnitTest --tests '*DaoBenchmarkTest' \
+ *     -Dbenchmark.enabled=true -Dbenchmark.sizes=1000,100000,1000000
+ *
+ * 結果は app/build/benchmark/dao-benchmark.json（-Dbenchmark.output で変更可）
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class DaoBenchmarkTest {
+    private static final String DEFAULT_SIZES = "1000,10000";
+    private static final String DEFAULT_OUTPUT = "build/benchmark/dao-benchmark.json";
+    private static final int TAG_COUNT = 200;
+    private static final int TAGS_PER_ITEM = 3;
+    private static final int FILES_PER_ITEM = 2;
+    private static final int WRITE_OPS = 200;
+    private static final int MAX_BULK_ITEMS = 100_000;
+    private static final int BULK_ITERATIONS = 3;
+    private static final int DEEP_TREE_DEPTH = 50;
+    private static final int WIDE_TREE_FANOUT = 1000;
+    private static final int ITEMS_PER_TREE_TAG = 20;
+    private static final long TIMEOUT_SECONDS = 120;
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Assume.assumeTrue("-Dbenchmark.enabled=true を指定した時のみ実行",
+            Boolean.getBoolean("benchmark.enabled"));
+
+        Context context = ApplicationProvider.getApplicationContext();
+        AppDatabase db = AppDatabase.getInstance(context);
+        ItemRepository repository = new ItemRepository(context);
+        List<LatencyStats> results = new ArrayList<>();
+
+        for (int size : parseSizes(System.getProperty("benchmark.sizes", DEFAULT_SIZES))) {
+            db.clearAllTables();
+            long seedStart = System.nanoTime();
+            SyntheticLibrary library = SyntheticLibrary.seed(
+                db, size, TAG_COUNT, TAGS_PER_ITEM, FILES_PER_ITEM, size);
+            System.out.println("seeded " + size + " items in "
+                + (System.nanoTime() - seedStart) / 1_000_000 + " ms");
+
+            int iterations = size >= 100_000 ? 5 : 30;
+            Random random = new Random(size);
+
+            results.add(measureQuery("ItemDao.getAllItems", size, iterations,
+                () -> db.itemDao().getAllItems()));
+            results.add(measureQuery("ItemDao.getItemsByTag", size, iterations, () -> {
+                long[] tagIds = library.getTagIds();
+                return db.itemDao().getItemsByTag(tagIds[random.nextInt(tagIds.length)]);
+            }));
+            results.add(measureQuery("ItemDao.getRecentlyViewedItems", size, iterations,
+                () -> db.itemDao().getRecentlyViewedItems()));
+
+            // 同期のDAO呼び出しはメインスレッドから行えない
+            results.addAll(AppExecutors.background()
+                .submit(() -> measureBulkTagging(db, library, size))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            // 階層タグ: 深い木（一本道）と広い木（1階層に多数の子）
+            long deepRoot = AppExecutors.background()
+                .submit(() -> buildTagTree(db, library, "deep", DEEP_TREE_DEPTH, 1, random))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            long wideRoot = AppExecutors.background()
+                .submit(() -> buildTagTree(db, library, "wide", 1, WIDE_TREE_FANOUT, random))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            results.add(measureQuery("ItemDao.getItemsByTagSubtree[deep]", size, iterations,
+                () -> db.itemDao().getItemsByTagSubtree(deepRoot)));
+            results.add(measureQuery("ItemDao.getItemsByTagSubtree[wide]", size, iterations,
+                () -> db.itemDao().getItemsByTagSubtree(wideRoot)));
+
+            List<Long> createdIds = new ArrayList<>();
+            results.add(measureCreate(repository, library, size, createdIds));
+            results.add(measureDelete(repository, size, createdIds));
+        }
+
+        String json = toJson(results);
+        System.out.println(json);
+        writeResults(json, new File(System.getProperty("benchmark.output", DEFAULT_OUTPUT)));
+    }
+
+    private <T> LatencyStats measureQuery(String name, int size, int iterations,
+                                          Supplier<LiveData<T>> query) throws InterruptedException {
+        // ウォームアップ
+        awaitValue(query.get());
+
+        LatencyStats stats = new LatencyStats(name, size);
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            assertNotNull(awaitValue(query.get()));
+            stats.record(System.nanoTime() - start);
+        }
+        return stats;
+    }
+
+    /**
+     * タグの一括付与・一括解除・統合（最大MAX_BULK_ITEMS件）
+     */
+    private List<LatencyStats> measureBulkTagging(AppDatabase db, SyntheticLibrary library, int size) {
+        int count = Math.min(size, MAX_BULK_ITEMS);
+        List<Long> itemIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            itemIds.add(library.getFirstItemId() + i);
+        }
+
+        LatencyStats apply = new LatencyStats("ItemTagDao.applyTagToItems[" + count + "]", size);
+        LatencyStats remove = new LatencyStats("ItemTagDao.removeTagFromItems[" + count + "]", size);
+        LatencyStats merge = new LatencyStats("TagDao.mergeInto[" + count + "]", size);
+        long target = db.tagDao().upsertByName("bulk-target", System.currentTimeMillis());
+        for (int i = 0; i < BULK_ITERATIONS; i++) {
+            long source = db.tagDao().upsertByName("bulk-source-" + i, System.currentTimeMillis());
+
+            long start = System.nanoTime();
+            assertEquals(count, db.itemTagDao().applyTagToItems(source, itemIds));
+            apply.record(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            db.tagDao().mergeInto(source, target);
+            merge.record(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals(count, db.itemTagDao().removeTagFromItems(target, itemIds));
+            remove.record(System.nanoTime() - start);
+        }
+        db.tagDao().deleteById(target);
+
+        List<LatencyStats> results = new ArrayList<>();
+        results.add(apply);
+        results.add(remove);
+        results.add(merge);
+        return results;
+    }
+
+    /**
+     * 階層タグを作り、各タグにランダムなアイテムを付ける
+     * @return ルートのタグID
+     */
+    private long buildTagTree(AppDatabase db, SyntheticLibrary library, String prefix,
+                              int depth, int fanout, Random random) {
+        return db.runInTransaction(() -> {
+            long now = System.currentTimeMillis();
+            long rootId = insertTag(db, prefix, null, now);
+            List<Long> level = Collections.singletonList(rootId);
+            List<Long> all = new ArrayList<>(level);
+            for (int d = 1; d <= depth; d++) {
+                List<Long> next = new ArrayList<>();
+                for (long parentId : level) {
+                    for (int i = 0; i < fanout; i++) {
+                        next.add(insertTag(db, prefix + "-" + d + "-" + next.size(), parentId, now));
+                    }
+                }
+                all.addAll(next);
+                level = next;
+            }
+            // 閉包テーブルがトリガーで埋まっていること
+            assertEquals(all.size(), db.tagDao().getSubtreeSync(rootId).size());
+
+            for (long tagId : all) {
+                List<Long> itemIds = new ArrayList<>(ITEMS_PER_TREE_TAG);
+                for (int i = 0; i < ITEMS_PER_TREE_TAG; i++) {
+                    itemIds.add(library.getFirstItemId() + random.nextInt(library.getItemCount()));
+                }
+                db.itemTagDao().applyTagToItems(tagId, itemIds);
+            }
+            return rootId;
+        });
+    }
+
+    private static long insertTag(AppDatabase db, String name, Long parentId, long createdAt) {
+        Tag tag = new Tag();
+        tag.setName(name);
+        tag.setParentId(parentId);
+        tag.setCreatedAt(createdAt);
+        return db.tagDao().insert(tag);
+    }
+
+    private LatencyStats measureCreate(ItemRepository repository, SyntheticLibrary library,
+                                       int size, List<Long> createdIds) throws InterruptedException {
+        LatencyStats stats = new LatencyStats("ItemRepository.createItem", size);
+        long[] tagIds = library.getTagIds();
+        for (int i = 0; i < WRITE_OPS; i++) {
+            Item item = new Item();
+            item.setDescription("benchmark " + i);
+            item.setCreatedAt(System.currentTimeMillis());
+            item.setUpdatedAt(item.getCreatedAt());
+
+            ItemFile file = new ItemFile();
+            file.setFilePath("texts/benchmark-" + i + ".txt");
+            file.setFileName("benchmark-" + i + ".txt");
+            file.setFileType("TEXT");
+            file.setMimeType("text/plain");
+            file.setCreatedAt(item.getCreatedAt());
+
+            CountDownLatch latch = new CountDownLatch(1);
+            AtomicLong createdId = new AtomicLong(-1);
+            AtomicReference<Exception> error = new AtomicReference<>();
+            long start = System.nanoTime();
+            repository.createItem(item, Collections.singletonList(file),
+                Collections.singletonList(tagIds[i % tagIds.length]),
+                new ItemRepository.OnItemCreatedListener() {
+                    @Override
+                    public void onSuccess(long itemId) {
+                        createdId.set(itemId);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        error.set(e);
+                        latch.countDown();
+                    }
+                });
+            assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            stats.record(System.nanoTime() - start);
+            assertNull(error.get());
+            createdIds.add(createdId.get());
+        }
+        return stats;
+    }
+
+    private LatencyStats measureDelete(ItemRepository repository, int size,
+                                       List<Long> itemIds) throws InterruptedException {
+        LatencyStats stats = new LatencyStats("ItemRepository.deleteItem", size);
+        for (long itemId : itemIds) {
+            CountDownLatch latch = new CountDownLatch(1);
+            AtomicReference<Exception> error = new AtomicReference<>();
+            long start = System.nanoTime();
+            repository.deleteItem(itemId, null, new ItemRepository.OnItemDeletedListener() {
+                @Override
+                public void onSuccess() {
+                    latch.countDown();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    error.set(e);
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            stats.record(System.nanoTime() - start);
+            assertNull(error.get());
+        }
+        return stats;
+    }
+
+    /**
+     * LiveDataの最初の値を待つ
+     * クエリはRoomのスレッドで実行され、結果はメインLooperに届くのでLooperを回しながら待つ
+     */
+    private static <T> T awaitValue(LiveData<T> liveData) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<T> value = new AtomicReference<>();
+        Observer<T> observer = v -> {
+            value.set(v);
+            latch.countDown();
+        };
+        ShadowLooper mainLooper = shadowOf(Looper.getMainLooper());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        liveData.observeForever(observer);
+        try {
+            while (latch.getCount() > 0) {
+                mainLooper.idle();
+                if (latch.await(100, TimeUnit.MICROSECONDS)) {
+                    break;
+                }
+                assertTrue("LiveDataの値が返りませんでした", System.nanoTime() < deadline);
+            }
+        } finally {
+            liveData.removeObserver(observer);
+        }
+        return value.get();
+    }
+
+    private static List<Integer> parseSizes(String value) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                sizes.add(Integer.parseInt(part.trim()));
+            }
+        }
+        return sizes;
+    }
+
+    private static String toJson(List<LatencyStats> results) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"timestamp\":").append(System.currentTimeMillis())
+            .append(",\"tag_count\":").append(TAG_COUNT)
+            .append(",\"tags_per_item\":").append(TAGS_PER_ITEM)
+            .append(",\"files_per_item\":").append(FILES_PER_ITEM)
+            .append(",\"results\":[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("\n  ").append(results.get(i).toJson());
+        }
+        return builder.append("\n]}\n").toString();
+    }
+
+    private static void writeResults(String json, File output) throws IOException {
+        File parent = output.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+            writer.write(json);
+        }
+    }
+}
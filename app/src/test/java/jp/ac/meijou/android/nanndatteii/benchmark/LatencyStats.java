@@ -0,0 +1,64 @@
+package jp.ac.meijou.android.nanndatteii.benchmark;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 1つの計測対象のレイテンシを集計する
+ */
+public final class LatencyStats {
+    private final String name;
+    private final int datasetSize;
+    private long[] samples = new long[64];
+    private int count;
+
+    public LatencyStats(String name, int datasetSize) {
+        this.name = name;
+        this.datasetSize = datasetSize;
+    }
+
+    public void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile 0-100
+     */
+    public double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1_000_000.0;
+    }
+
+    public double opsPerSecond() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += samples[i];
+        }
+        return total == 0 ? 0 : count / (total / 1_000_000_000.0);
+    }
+
+    public String toJson() {
+        return String.format(Locale.US,
+            "{\"name\":\"%s\",\"dataset_size\":%d,\"count\":%d," +
+            "\"p50_ms\":%.3f,\"p90_ms\":%.3f,\"p99_ms\":%.3f,\"max_ms\":%.3f,\"ops_per_sec\":%.1f}",
+            name, datasetSize, count,
+            percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(100),
+            opsPerSecond());
+    }
+}
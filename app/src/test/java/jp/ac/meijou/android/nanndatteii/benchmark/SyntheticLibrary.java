@@ -0,0 +1,134 @@
+package jp.ac.meijou.android.nanndatteii.benchmark;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import java.util.Random;
+import java.util.UUID;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+
+/**
+ * ベンチマーク用の合成ライブラリをAppDatabaseに投入する
+ * タグは一部に偏るように割り当て、実際の使われ方に近づける
+ */
+public final class SyntheticLibrary {
+    private static final long THREE_YEARS_MS = 3L * 365 * 24 * 60 * 60 * 1000;
+    private static final int BATCH_SIZE = 10_000;
+
+    private static final String[] MEMO_WORDS = {
+        "レシート", "買い物", "課題", "ゼミ", "打ち合わせ", "写真", "メモ",
+        "receipt", "groceries", "meeting", "notes", "photo", "todo"
+    };
+
+    private final int itemCount;
+    private final long[] tagIds;
+    private final long firstItemId;
+
+    private SyntheticLibrary(int itemCount, long[] tagIds, long firstItemId) {
+        this.itemCount = itemCount;
+        this.tagIds = tagIds;
+        this.firstItemId = firstItemId;
+    }
+
+    /**
+     * @param itemCount アイテム数
+     * @param tagCount タグ数
+     * @param tagsPerItem 1アイテムあたりのタグ数
+     * @param filesPerItem 1アイテムあたりのファイル数
+     * @param seed 乱数シード
+     */
+    public static SyntheticLibrary seed(AppDatabase db, int itemCount, int tagCount,
+                                        int tagsPerItem, int filesPerItem, long seed) {
+        Random random = new Random(seed);
+        SupportSQLiteDatabase sqlite = db.getOpenHelper().getWritableDatabase();
+        long now = System.currentTimeMillis();
+
+        // 1. タグ
+        long[] tagIds = new long[tagCount];
+        sqlite.beginTransaction();
+        try {
+            SupportSQLiteStatement insertTag = sqlite.compileStatement(
+                "INSERT INTO tags (name, color, created_at) VALUES (?, NULL, ?)");
+            for (int i = 0; i < tagCount; i++) {
+                insertTag.bindString(1, "tag-" + i);
+                insertTag.bindLong(2, now - random.nextInt(1_000_000));
+                tagIds[i] = insertTag.executeInsert();
+            }
+            sqlite.setTransactionSuccessful();
+        } finally {
+            sqlite.endTransaction();
+        }
+
+        // 2. アイテム・ファイル・タグ付け
+        SupportSQLiteStatement insertItem = sqlite.compileStatement(
+            "INSERT INTO items (title, description, created_at, updated_at, last_viewed) VALUES (?, ?, ?, ?, ?)");
+        SupportSQLiteStatement insertFile = sqlite.compileStatement(
+            "INSERT INTO files (item_id, file_path, file_name, file_type, file_size, original_size, mime_type, codec, created_at) " +
+            "VALUES (?, ?, ?, 'IMAGE', ?, ?, 'image/jpeg', 'NONE', ?)");
+        SupportSQLiteStatement insertItemTag = sqlite.compileStatement(
+            "INSERT OR IGNORE INTO item_tags (item_id, tag_id) VALUES (?, ?)");
+
+        long firstItemId = -1;
+        for (int start = 0; start < itemCount; start += BATCH_SIZE) {
+            int end = Math.min(itemCount, start + BATCH_SIZE);
+            sqlite.beginTransaction();
+            try {
+                for (int i = start; i < end; i++) {
+                    long createdAt = now - (long) (random.nextDouble() * THREE_YEARS_MS);
+                    insertItem.bindString(1, "Item " + i);
+                    insertItem.bindString(2, MEMO_WORDS[random.nextInt(MEMO_WORDS.length)] + " " + i);
+                    insertItem.bindLong(3, createdAt);
+                    insertItem.bindLong(4, createdAt + random.nextInt(1_000_000));
+                    if (random.nextInt(10) < 3) {
+                        insertItem.bindLong(5, createdAt + random.nextInt(100_000_000));
+                    } else {
+                        insertItem.bindNull(5);
+                    }
+                    long itemId = insertItem.executeInsert();
+                    if (firstItemId < 0) {
+                        firstItemId = itemId;
+                    }
+
+                    for (int f = 0; f < filesPerItem; f++) {
+                        String fileName = UUID.randomUUID() + ".jpg";
+                        long size = 200_000 + random.nextInt(800_000);
+                        insertFile.bindLong(1, itemId);
+                        insertFile.bindString(2, "images/" + fileName);
+                        insertFile.bindString(3, fileName);
+                        insertFile.bindLong(4, size);
+                        insertFile.bindLong(5, size * 4);
+                        insertFile.bindLong(6, createdAt);
+                        insertFile.executeInsert();
+                    }
+
+                    for (int t = 0; t < tagsPerItem && tagCount > 0; t++) {
+                        // 二乗で先頭のタグに偏らせる
+                        double r = random.nextDouble();
+                        insertItemTag.bindLong(1, itemId);
+                        insertItemTag.bindLong(2, tagIds[(int) (r * r * tagCount)]);
+                        insertItemTag.executeInsert();
+                    }
+                }
+                sqlite.setTransactionSuccessful();
+            } finally {
+                sqlite.endTransaction();
+            }
+        }
+
+        sqlite.execSQL("ANALYZE");
+        return new SyntheticLibrary(itemCount, tagIds, firstItemId);
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public long[] getTagIds() {
+        return tagIds;
+    }
+
+    public long getFirstItemId() {
+        return firstItemId;
+    }
+}
@@ -0,0 +1,172 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import jp.ac.meijou.android.nanndatteii.benchmark.SyntheticLibrary;
+import jp.ac.meijou.android.nanndatteii.db.dao.CollectionDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.CollectionItem;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemCollection;
+
+import static org.junit.Assert.*;
+
+/**
+ * コレクションの並び替えキー（OrderKeys）と並べ替え・振り直しを確認する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class CollectionDaoTest {
+    private static final int ITEM_COUNT = 10_000;
+
+    private AppDatabase db;
+    private CollectionDao dao;
+    private List<Long> itemIds;
+    private long collectionId;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+            .addCallback(new TriggerCallback())
+            .allowMainThreadQueries()
+            .build();
+        dao = db.collectionDao();
+        SyntheticLibrary.seed(db, ITEM_COUNT, 10, 1, 0, 1);
+        itemIds = db.itemDao().getItemIdsAfterSync(0, ITEM_COUNT);
+        ItemCollection collection = new ItemCollection();
+        collection.setName("お気に入り");
+        collectionId = dao.insert(collection);
+        dao.addItems(collectionId, itemIds, 1);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void between_keepsOrderAndStaysShort() {
+        Random random = new Random(1);
+        List<String> keys = new ArrayList<>();
+        keys.add(OrderKeys.between(null, null));
+        for (int i = 0; i < 5_000; i++) {
+            int index = random.nextInt(keys.size() + 1);
+            String before = index > 0 ? keys.get(index - 1) : null;
+            String after = index < keys.size() ? keys.get(index) : null;
+            String key = OrderKeys.between(before, after);
+            assertTrue(OrderKeys.isValid(key));
+            assertTrue(before == null || before.compareTo(key) < 0);
+            assertTrue(after == null || key.compareTo(after) < 0);
+            keys.add(index, key);
+        }
+
+        // 末尾への追加は整数部を増やすだけなので伸びない
+        String last = null;
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            last = OrderKeys.between(last, null);
+        }
+        assertTrue(last.length() <= 4);
+
+        try {
+            OrderKeys.between("a1", "a0");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 逆順は受け付けない
+        }
+        assertFalse(OrderKeys.isValid("a0V0"));
+    }
+
+    @Test
+    public void moveItem_rewritesOnlyTheMovedRow() {
+        assertEquals(itemIds, dao.getItemIdsInOrderSync(collectionId));
+        Map<Long, String> before = keys();
+
+        // 末尾のアイテムを2番目へ
+        long moved = itemIds.get(ITEM_COUNT - 1);
+        String key = dao.moveItem(collectionId, moved, itemIds.get(0));
+        Map<Long, String> after = keys();
+        int changed = 0;
+        for (long itemId : itemIds) {
+            if (!before.get(itemId).equals(after.get(itemId))) {
+                changed++;
+            }
+        }
+        assertEquals(1, changed);
+        assertEquals(key, after.get(moved));
+
+        List<Long> expected = new ArrayList<>(itemIds);
+        expected.remove(moved);
+        expected.add(1, moved);
+        assertEquals(expected, dao.getItemIdsInOrderSync(collectionId));
+
+        // 先頭へ・既にある位置へ
+        dao.moveItem(collectionId, itemIds.get(5), null);
+        expected.remove(itemIds.get(5));
+        expected.add(0, itemIds.get(5));
+        assertEquals(key, dao.moveItem(collectionId, moved, itemIds.get(0)));
+        assertEquals(expected, dao.getItemIdsInOrderSync(collectionId));
+
+        // コレクションにないアイテム
+        dao.removeItems(collectionId, itemIds.subList(100, 200));
+        assertNull(dao.moveItem(collectionId, itemIds.get(150), null));
+        assertNull(dao.moveItem(collectionId, moved, itemIds.get(150)));
+        assertEquals(ITEM_COUNT - 100, dao.countItems(collectionId));
+    }
+
+    @Test
+    public void rebalance_shortensKeysWithoutChangingOrder() {
+        // 同じ所（先頭の2件の間）へ差し込み続けるとキーが伸びる
+        long first = itemIds.get(0);
+        for (int i = 1; i <= 200; i++) {
+            dao.moveItem(collectionId, itemIds.get(ITEM_COUNT - i), first);
+        }
+        List<Long> order = dao.getItemIdsInOrderSync(collectionId);
+        int longest = 0;
+        for (String key : keys().values()) {
+            longest = Math.max(longest, key.length());
+        }
+        assertTrue(longest > 24);
+
+        assertEquals(ITEM_COUNT, dao.rebalance(collectionId));
+        assertEquals(order, dao.getItemIdsInOrderSync(collectionId));
+        for (String key : keys().values()) {
+            assertTrue(OrderKeys.isValid(key));
+            assertTrue(key.length() <= 4);
+        }
+
+        // 振り直した後も末尾へ追加できる
+        assertEquals(0, dao.rebalance(collectionId + 1));
+        long itemId = itemIds.get(0);
+        dao.removeItems(collectionId, Collections.singletonList(itemId));
+        dao.addItems(collectionId, Collections.singletonList(itemId), 2);
+        List<Long> ordered = dao.getItemIdsInOrderSync(collectionId);
+        assertEquals(itemId, (long) ordered.get(ordered.size() - 1));
+    }
+
+    private Map<Long, String> keys() {
+        Map<Long, String> keys = new HashMap<>();
+        String afterKey = "";
+        List<CollectionItem> page;
+        do {
+            page = dao.getEntriesAfterSync(collectionId, afterKey, 1000);
+            for (CollectionItem entry : page) {
+                keys.put(entry.getItemId(), entry.getOrderKey());
+                afterKey = entry.getOrderKey();
+            }
+        } while (page.size() == 1000);
+        return keys;
+    }
+}
@@ -0,0 +1,174 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.benchmark.SyntheticLibrary;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemSortDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.relation.SortedItem;
+
+import static org.junit.Assert.*;
+
+/**
+ * item_sort_keysのトリガーと、並べ方ごとのキーセットページングを確認する
+ * 期待する順序は、元のテーブルから値を計算して並べ替えるクエリで作る
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ItemSortDaoTest {
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final int ITEM_COUNT = 300;
+    private static final int PAGE_SIZE = 7;
+
+    private AppDatabase db;
+    private ItemSortDao dao;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        dao = db.itemSortDao();
+        onBackground(() -> {
+            db.clearAllTables();
+            // トリガーのあるDBに入れるので、item_sort_keysも埋まる
+            SyntheticLibrary.seed(db, ITEM_COUNT, 8, 2, 2, 1);
+            return null;
+        });
+    }
+
+    @Test
+    public void pages_matchTheSortedBaseTables() throws Exception {
+        // 同期のDAO呼び出しはメインスレッドから行えない
+        onBackground(() -> {
+            checkAllSorts();
+            return null;
+        });
+    }
+
+    @Test
+    public void sortKeys_followEditsToItemsFilesAndTags() throws Exception {
+        onBackground(() -> {
+            List<Long> itemIds = db.itemDao().getItemIdsAfterSync(0, ITEM_COUNT);
+            // 大文字・小文字が混ざったタイトルとnull
+            for (int i = 0; i < 40; i++) {
+                Item item = db.itemDao().getItemByIdSync(itemIds.get(i));
+                item.setTitle(i % 5 == 0 ? null : (i % 2 == 0 ? "apple " : "Apple ") + (i % 3));
+                db.itemDao().update(item);
+                db.itemDao().updateLastViewed(itemIds.get(i), 1_000 + i);
+            }
+            // ファイルの削除
+            for (int i = 40; i < 60; i++) {
+                List<ItemFile> files = db.fileDao().getFilesByItemIdSync(itemIds.get(i));
+                db.fileDao().delete(files.get(0));
+            }
+            // タグの名前の変更・削除・付け外し
+            long renamed = db.tagDao().getTagByNameSync("tag-3").getId();
+            db.tagDao().rename(renamed, "a-first");
+            db.tagDao().deleteById(db.tagDao().getTagByNameSync("tag-0").getId());
+            db.itemTagDao().removeTagFromItems(renamed, itemIds.subList(60, 80));
+            db.itemTagDao().applyTagToItems(renamed, itemIds.subList(80, 100));
+
+            checkAllSorts();
+
+            // アイテムを消すと行も消える
+            db.itemDao().deleteById(itemIds.get(0));
+            assertEquals(ITEM_COUNT - 1, countRows("item_sort_keys"));
+            return null;
+        });
+    }
+
+    private void checkAllSorts() {
+        List<Long> tagIds = new ArrayList<>();
+        tagIds.add(null);
+        try (Cursor cursor = db.query(new SimpleSQLiteQuery("SELECT id FROM tags ORDER BY id LIMIT 3"))) {
+            while (cursor.moveToNext()) {
+                tagIds.add(cursor.getLong(0));
+            }
+        }
+        for (ItemSort.Key key : ItemSort.Key.values()) {
+            for (boolean ascending : new boolean[] {true, false}) {
+                ItemSort sort = new ItemSort(key, ascending);
+                for (Long tagId : tagIds) {
+                    assertEquals(sort + " tag=" + tagId, expected(sort, tagId), paged(sort, tagId));
+                }
+            }
+        }
+    }
+
+    private List<Long> paged(ItemSort sort, Long tagId) {
+        List<Long> ids = new ArrayList<>();
+        SortedItem last = null;
+        List<SortedItem> page;
+        do {
+            page = dao.getPageSync(sort, tagId, last, PAGE_SIZE);
+            for (SortedItem row : page) {
+                assertEquals(row.item.getId(), row.sortKey.getItemId());
+                ids.add(row.item.getId());
+                last = row;
+            }
+        } while (page.size() == PAGE_SIZE);
+        return ids;
+    }
+
+    private List<Long> expected(ItemSort sort, Long tagId) {
+        String value;
+        switch (sort.getKey()) {
+            case UPDATED:
+                value = "items.updated_at";
+                break;
+            case TITLE:
+                value = "COALESCE(items.title, '') COLLATE NOCASE";
+                break;
+            case FILE_SIZE:
+                value = "(SELECT COALESCE(SUM(file_size), 0) FROM files WHERE files.item_id = items.id)";
+                break;
+            case TAG:
+                value = "(SELECT COALESCE(MIN(tags.name), '') FROM item_tags " +
+                    "INNER JOIN tags ON tags.id = item_tags.tag_id WHERE item_tags.item_id = items.id)";
+                break;
+            default:
+                value = "COALESCE(items.last_viewed, 0)";
+                break;
+        }
+        String direction = sort.isAscending() ? "" : " DESC";
+        String sql = "SELECT id FROM items " +
+            (tagId != null ? "WHERE EXISTS (SELECT 1 FROM item_tags " +
+                "WHERE item_tags.item_id = items.id AND item_tags.tag_id = " + tagId + ") " : "") +
+            "ORDER BY " + value + direction + ", id" + direction;
+        List<Long> ids = new ArrayList<>();
+        try (Cursor cursor = db.query(new SimpleSQLiteQuery(sql))) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        }
+        return ids;
+    }
+
+    private int countRows(String table) {
+        try (Cursor cursor = db.query(new SimpleSQLiteQuery("SELECT COUNT(*) FROM " + table))) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    private static <T> T onBackground(Callable<T> task) throws Exception {
+        return AppExecutors.background().submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,137 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import jp.ac.meijou.android.nanndatteii.benchmark.SyntheticLibrary;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * ItemDao・FileDaoのチャンク読み（KeysetIterator）を確認する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KeysetIteratorTest {
+    private static final int ITEM_COUNT = 250;
+    private static final int CHUNK_SIZE = 100;
+
+    private AppDatabase db;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+            .addCallback(new TriggerCallback())
+            .allowMainThreadQueries()
+            .build();
+        SyntheticLibrary.seed(db, ITEM_COUNT, 10, 2, 2, 1);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void iterateItems_readsEveryRowInChunks() {
+        List<Long> ids = new ArrayList<>();
+        try (KeysetIterator<Item> items = db.itemDao().iterateItems(CHUNK_SIZE)) {
+            while (items.hasNext()) {
+                ids.add(items.next().getId());
+            }
+            // 250件を100件ずつ: 最後のチャンクが100件未満なので空のクエリは走らない
+            assertEquals(3, items.getLoadedChunkCount());
+        }
+        assertEquals(ITEM_COUNT, ids.size());
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i - 1) < ids.get(i));
+        }
+
+        try (KeysetIterator<ItemFile> files = db.fileDao().iterateFiles(CHUNK_SIZE)) {
+            int count = 0;
+            while (files.hasNext()) {
+                files.next();
+                count++;
+            }
+            assertEquals(ITEM_COUNT * 2, count);
+            // 500件ちょうど: 最後に空のチャンクを1回読んで終わる
+            assertEquals(6, files.getLoadedChunkCount());
+        }
+    }
+
+    @Test
+    public void close_stopsWithoutReadingTheRest() {
+        KeysetIterator<Item> items = db.itemDao().iterateItems(CHUNK_SIZE);
+        for (int i = 0; i < 10; i++) {
+            items.next();
+        }
+        items.close();
+        assertFalse(items.hasNext());
+        assertEquals(1, items.getLoadedChunkCount());
+        try {
+            items.next();
+            fail();
+        } catch (NoSuchElementException expected) {
+            // 閉じた後は何も返さない
+        }
+
+        // Streamは必要な分だけ読み、closeでイテレーターも閉じる
+        KeysetIterator<Item> streamed = db.itemDao().iterateItems(CHUNK_SIZE);
+        try (Stream<Item> stream = streamed.stream()) {
+            assertEquals(150, stream.limit(150).count());
+        }
+        assertEquals(2, streamed.getLoadedChunkCount());
+        assertFalse(streamed.hasNext());
+    }
+
+    @Test
+    public void iterateItems_seesWritesAheadOfTheCursor() {
+        List<Long> before = db.itemDao().getItemIdsAfterSync(0, ITEM_COUNT);
+        List<Long> seen = new ArrayList<>();
+        try (KeysetIterator<Item> items = db.itemDao().iterateItems(CHUNK_SIZE)) {
+            seen.add(items.next().getId());
+            // まだ読んでいない行の削除と、末尾への追加は反映される
+            db.itemDao().deleteById(before.get(before.size() - 1));
+            Item added = new Item();
+            added.setTitle("追加");
+            long addedId = db.itemDao().insert(added);
+            // 読んだ行の削除は結果に影響しない
+            db.itemDao().deleteById(before.get(0));
+            while (items.hasNext()) {
+                seen.add(items.next().getId());
+            }
+            assertEquals(ITEM_COUNT, seen.size());
+            assertFalse(seen.contains(before.get(before.size() - 1)));
+            assertEquals(addedId, (long) seen.get(seen.size() - 1));
+        }
+    }
+
+    @Test
+    public void iterateItemsUpdatedAfter_matchesKeysetOrder() {
+        List<Item> all = db.itemDao().getItemsUpdatedAfterSync(Long.MIN_VALUE, Long.MAX_VALUE, ITEM_COUNT);
+        long since = all.get(ITEM_COUNT / 2).getUpdatedAt();
+        List<Long> expected = all.stream()
+            .filter(item -> item.getUpdatedAt() > since)
+            .map(Item::getId)
+            .collect(Collectors.toList());
+
+        try (Stream<Item> stream = db.itemDao().iterateItemsUpdatedAfter(since, 7).stream()) {
+            assertEquals(expected, stream.map(Item::getId).collect(Collectors.toList()));
+        }
+    }
+}
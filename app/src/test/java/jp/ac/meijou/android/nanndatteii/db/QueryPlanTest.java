@@ -0,0 +1,206 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jp.ac.meijou.android.nanndatteii.benchmark.SyntheticLibrary;
+
+import static org.junit.Assert.*;
+
+/**
+ * db.daoパッケージの全@QueryについてEXPLAIN QUERY PLANを実行し、
+ * ベースラインで許可されていない全件走査・一時B-treeソートがあれば失敗させる
+ *
+ * Roomの@QueryはCLASS保持のため、SQLはDAOのソースから抽出する
+ * （文字列リテラルの連結だけを読む。定数を使った@Queryは確かめられないので失敗させる）
+ * ベースライン: src/test/resources/query-plan-baseline.txt
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class QueryPlanTest {
+    private static final String DEFAULT_DAO_SOURCE_DIR =
+        "src/main/java/jp/ac/meijou/android/nanndatteii/db/dao";
+    private static final String BASELINE_RESOURCE = "/query-plan-baseline.txt";
+
+    private static final Pattern QUERY_PATTERN = Pattern.compile(
+        "@Query\\(\\s*((?:\"(?:[^\"\\\\]|\\\\.)*\"\\s*\\+?\\s*)+)\\)(.*?)(\\w+)\\s*\\(",
+        Pattern.DOTALL);
+    private static final Pattern ANNOTATION_PATTERN = Pattern.compile("@Query\\(");
+    private static final Pattern LITERAL_PATTERN = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern BIND_PATTERN = Pattern.compile(":\\w+");
+
+    private AppDatabase db;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+            .addCallback(new TriggerCallback())
+            .allowMainThreadQueries()
+            .build();
+        // 統計情報があるとプランナーが実データに近い計画を選ぶ
+        SyntheticLibrary.seed(db, 2000, 50, 3, 2, 1);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void daoQueries_onlyUseAllowedPlans() throws IOException {
+        Map<String, Set<String>> baseline = loadBaseline();
+        Set<String> seen = new HashSet<>();
+        List<String> violations = new ArrayList<>();
+
+        List<DaoQuery> queries = loadDaoQueries();
+        assertFalse("@Queryが見つかりません", queries.isEmpty());
+
+        for (DaoQuery query : queries) {
+            Set<String> allowed = baseline.getOrDefault(query.name, Collections.emptySet());
+            for (String issue : explain(query.sql)) {
+                seen.add(query.name + " | " + issue);
+                if (!allowed.contains(issue)) {
+                    violations.add(query.name + " | " + issue);
+                }
+            }
+        }
+
+        // 改善されて不要になった許可は警告のみ
+        for (Map.Entry<String, Set<String>> entry : baseline.entrySet()) {
+            for (String issue : entry.getValue()) {
+                if (!seen.contains(entry.getKey() + " | " + issue)) {
+                    System.out.println("QueryPlanTest: 不要になったベースライン: " + entry.getKey() + " | " + issue);
+                }
+            }
+        }
+
+        assertTrue("ベースラインで許可されていない実行計画があります。"
+                + "意図した変更であれば query-plan-baseline.txt をレビューの上更新してください:\n"
+                + String.join("\n", violations),
+            violations.isEmpty());
+    }
+
+    /**
+     * 全件走査（インデックスなしのSCAN）と一時B-treeの行を返す
+     */
+    private List<String> explain(String sql) {
+        String bound = BIND_PATTERN.matcher(sql).replaceAll("?");
+        int parameters = 0;
+        for (char c : bound.toCharArray()) {
+            if (c == '?') {
+                parameters++;
+            }
+        }
+
+        List<String> issues = new ArrayList<>();
+        try (Cursor cursor = db.query(new SimpleSQLiteQuery(
+                "EXPLAIN QUERY PLAN " + bound, new Object[parameters]))) {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex)
+                    .replace("SCAN TABLE ", "SCAN ")
+                    .replace("SEARCH TABLE ", "SEARCH ");
+                boolean fullScan = detail.startsWith("SCAN ")
+                    && !detail.contains(" USING ")
+                    && !detail.startsWith("SCAN CONSTANT");
+                if (fullScan || detail.startsWith("USE TEMP B-TREE")) {
+                    issues.add(detail);
+                }
+            }
+        }
+        return issues;
+    }
+
+    private List<DaoQuery> loadDaoQueries() throws IOException {
+        File dir = new File(System.getProperty("queryplan.daoSourceDir", DEFAULT_DAO_SOURCE_DIR));
+        File[] sources = dir.listFiles((d, name) -> name.endsWith(".java"));
+        assertNotNull("DAOのソースが見つかりません: " + dir.getAbsolutePath(), sources);
+        Arrays.sort(sources);
+
+        List<DaoQuery> queries = new ArrayList<>();
+        List<String> unparsed = new ArrayList<>();
+        for (File source : sources) {
+            String dao = source.getName().replace(".java", "");
+            String content = new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8);
+            int annotations = 0;
+            Matcher annotation = ANNOTATION_PATTERN.matcher(content);
+            while (annotation.find()) {
+                annotations++;
+            }
+            int extracted = 0;
+            Matcher matcher = QUERY_PATTERN.matcher(content);
+            while (matcher.find()) {
+                extracted++;
+                StringBuilder sql = new StringBuilder();
+                Matcher literal = LITERAL_PATTERN.matcher(matcher.group(1));
+                while (literal.find()) {
+                    sql.append(literal.group(1).replace("\\\"", "\""));
+                }
+                queries.add(new DaoQuery(dao + "." + matcher.group(3), sql.toString()));
+            }
+            if (extracted != annotations) {
+                unparsed.add(dao + ": @Query " + annotations + "件のうち" + extracted + "件しか読めません");
+            }
+        }
+        // 読めない@Queryを黙って飛ばすと、その実行計画が確かめられないまま通ってしまう
+        assertTrue("文字列リテラルの連結だけで書かれていない@Queryがあります:\n" + String.join("\n", unparsed),
+            unparsed.isEmpty());
+        return queries;
+    }
+
+    private Map<String, Set<String>> loadBaseline() throws IOException {
+        Map<String, Set<String>> baseline = new HashMap<>();
+        try (InputStream inputStream = getClass().getResourceAsStream(BASELINE_RESOURCE)) {
+            assertNotNull("ベースラインが見つかりません: " + BASELINE_RESOURCE, inputStream);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\|", 2);
+                baseline.computeIfAbsent(parts[0].trim(), k -> new HashSet<>()).add(parts[1].trim());
+            }
+        }
+        return baseline;
+    }
+
+    private static class DaoQuery {
+        final String name;
+        final String sql;
+
+        DaoQuery(String name, String sql) {
+            this.name = name;
+            this.sql = sql;
+        }
+    }
+}
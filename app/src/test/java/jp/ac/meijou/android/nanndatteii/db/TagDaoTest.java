@@ -0,0 +1,75 @@
+package jp.ac.meijou.android.nanndatteii.db;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import jp.ac.meijou.android.nanndatteii.db.dao.TagDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * タグの統合で階層（tag_closure）が崩れないことを確認する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class TagDaoTest {
+    private AppDatabase db;
+    private TagDao dao;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+            .addCallback(new TriggerCallback())
+            .allowMainThreadQueries()
+            .build();
+        dao = db.tagDao();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void mergeInto_movesChildrenUnderTarget() {
+        long root = insert("root", null);
+        long source = insert("source", root);
+        long child = insert("child", source);
+        long target = insert("target", null);
+
+        dao.mergeInto(source, target);
+
+        assertNull(dao.getTagByIdSync(source));
+        assertEquals(Long.valueOf(target), dao.getTagByIdSync(child).getParentId());
+        assertTrue(dao.isInSubtree(target, child));
+        assertFalse(dao.isInSubtree(root, child));
+        assertEquals(2, dao.getPathSync(child).size());
+    }
+
+    @Test
+    public void mergeInto_rejectsDescendantTarget() {
+        long source = insert("source", null);
+        long child = insert("child", source);
+
+        assertThrows(IllegalArgumentException.class, () -> dao.mergeInto(source, child));
+        assertThrows(IllegalArgumentException.class, () -> dao.mergeInto(source, source));
+        assertNotNull(dao.getTagByIdSync(source));
+        assertEquals(Long.valueOf(source), dao.getTagByIdSync(child).getParentId());
+    }
+
+    private long insert(String name, Long parentId) {
+        Tag tag = new Tag();
+        tag.setName(name);
+        tag.setParentId(parentId);
+        tag.setCreatedAt(System.currentTimeMillis());
+        return dao.insert(tag);
+    }
+}
@@ -0,0 +1,242 @@
+package jp.ac.meijou.android.nanndatteii.importer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.dao.ImportDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.ImportSession;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 一括取り込みの並列コピーと登録を確認する
+ * （コピー済みで未登録の数の上限・中止・途中からの再開・コピー中のエラー）
+ *
+ * ファイルの中身はShadowContentResolverに登録したストリームから読む
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28) // 取り込みはFileStorageManager.saveFileを通る（RobolectricにはMediaStoreのプロバイダがない）
+public class ImportJobTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private Context context;
+    private AppDatabase db;
+    private ImportDao importDao;
+    private ImportEngine engine;
+    private FileStorageManager storageManager;
+
+    // 開かれたストリームの数と番号（1ファイルにつき1回開く）
+    private final AtomicInteger opened = new AtomicInteger();
+    private final Set<Integer> openedIndexes = ConcurrentHashMap.newKeySet();
+    // テストごとに差し替える中身
+    private volatile IntFunction<InputStream> source = ImportJobTest::content;
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        importDao = db.importDao();
+        engine = ImportEngine.getInstance(context);
+        storageManager = new FileStorageManager(context);
+        onBackground(() -> {
+            db.clearAllTables();
+            return null;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(storageManager.getRootDirectory());
+    }
+
+    @Test
+    public void run_limitsCopiedButUnregisteredFiles() throws Exception {
+        long sessionId = createSession(300);
+        AtomicInteger maxUnregistered = new AtomicInteger();
+        source = index -> {
+            // 開いた時点で、コピーを始めた数から登録済みの数を引いたものが上限を超えないこと
+            int unregistered = opened.get() - importDao.countByStatus(sessionId, ImportEntry.STATUS_DONE)
+                - importDao.countByStatus(sessionId, ImportEntry.STATUS_FAILED);
+            maxUnregistered.accumulateAndGet(unregistered, Math::max);
+            return content(index);
+        };
+
+        run(sessionId);
+
+        assertTrue("未登録 " + maxUnregistered.get(), maxUnregistered.get() <= ImportJob.MAX_IN_FLIGHT);
+        assertEquals(300, opened.get());
+        assertEquals(300, (int) onBackground(() -> db.itemDao().countItemsSync()));
+        assertNull(onBackground(() -> importDao.getSessionSync(sessionId)));
+        assertProgress(ImportProgress.STATE_COMPLETED, 300, 0);
+    }
+
+    @Test
+    public void run_stopsCopyingWhenCancelledAndRegistersCopiedFiles() throws Exception {
+        long sessionId = createSession(300);
+        source = index -> {
+            // 先頭から順にコピーを始めるので、10件目を開いた時には0〜9件目が始まっている
+            if (index == 9) {
+                engine.cancel(sessionId);
+            }
+            return content(index);
+        };
+
+        run(sessionId);
+
+        // 中止後は新しいコピーを始めず、始めていた分は登録される
+        int items = onBackground(() -> db.itemDao().countItemsSync());
+        assertTrue("登録 " + items, items >= 10 && items < 300);
+        assertEquals(opened.get(), items);
+        assertProgress(ImportProgress.STATE_CANCELLED, items, 0);
+        assertFalse(engine.isCancelled(sessionId));
+    }
+
+    @Test
+    public void run_resumesFromPendingEntries() throws Exception {
+        long sessionId = createSession(20);
+        // 前回の実行で先頭の5件まで登録済みだった状態にする
+        onBackground(() -> {
+            List<ImportEntry> entries = importDao.getPendingEntries(sessionId, 0, 5);
+            for (ImportEntry entry : entries) {
+                Item item = new Item();
+                item.setTitle(entry.getDisplayName());
+                item.setCreatedAt(1);
+                item.setUpdatedAt(1);
+                importDao.markDone(entry.getId(), db.itemDao().insert(item));
+            }
+            return null;
+        });
+
+        run(sessionId);
+
+        assertEquals(15, opened.get());
+        for (int i = 0; i < 5; i++) {
+            assertFalse(openedIndexes.contains(i));
+        }
+        assertEquals(20, (int) onBackground(() -> db.itemDao().countItemsSync()));
+        assertProgress(ImportProgress.STATE_COMPLETED, 20, 0);
+    }
+
+    @Test
+    public void run_recordsErrorsThrownWhileCopying() throws Exception {
+        long sessionId = createSession(10);
+        source = index -> {
+            if (index == 3) {
+                // Errorでも結果が返り、登録側が待ち続けないこと
+                return new InputStream() {
+                    @Override
+                    public int read() {
+                        throw new OutOfMemoryError("テスト");
+                    }
+                };
+            }
+            return content(index);
+        };
+
+        run(sessionId);
+
+        assertEquals(9, (int) onBackground(() -> db.itemDao().countItemsSync()));
+        assertProgress(ImportProgress.STATE_COMPLETED, 9, 1);
+    }
+
+    /**
+     * count件の取り込み対象を持つセッションを作り、各URIの中身を登録する
+     */
+    private long createSession(int count) throws Exception {
+        long sessionId = onBackground(() -> {
+            ImportSession session = new ImportSession();
+            session.setTagIdList(Collections.emptyList());
+            session.setStatus(ImportSession.STATUS_RUNNING);
+            session.setCreatedAt(System.currentTimeMillis());
+            long id = importDao.insertSession(session);
+            List<ImportEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new ImportEntry(id, uri(i).toString(), "memo" + i + ".txt", "text/plain"));
+            }
+            importDao.insertEntries(entries);
+            return id;
+        });
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            shadowOf(context.getContentResolver()).registerInputStreamSupplier(uri(index), () -> {
+                opened.incrementAndGet();
+                openedIndexes.add(index);
+                return source.apply(index);
+            });
+        }
+        return sessionId;
+    }
+
+    private void run(long sessionId) throws Exception {
+        Job job = new Job();
+        job.setType(ImportJob.TYPE);
+        job.setPayload(String.valueOf(sessionId));
+        onBackground(() -> {
+            new ImportJob(context).run(job);
+            return null;
+        });
+    }
+
+    // 進捗はpostValueでメインスレッドに届く
+    private void assertProgress(String state, int done, int failed) {
+        shadowOf(Looper.getMainLooper()).idle();
+        ImportProgress progress = engine.getProgress().getValue();
+        assertNotNull(progress);
+        assertEquals(state, progress.getState());
+        assertEquals(done, progress.getDone());
+        assertEquals(failed, progress.getFailed());
+    }
+
+    private static Uri uri(int index) {
+        return Uri.parse("content://jp.ac.meijou.android.nanndatteii.test/memo/" + index);
+    }
+
+    private static InputStream content(int index) {
+        return new ByteArrayInputStream(("メモ " + index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static <T> T onBackground(Callable<T> task) throws Exception {
+        return AppExecutors.background().submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
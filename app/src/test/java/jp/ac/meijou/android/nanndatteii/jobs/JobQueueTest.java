@@ -0,0 +1,166 @@
+package jp.ac.meijou.android.nanndatteii.jobs;
+
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.TriggerCallback;
+import jp.ac.meijou.android.nanndatteii.db.entity.Job;
+
+import static org.junit.Assert.*;
+
+/**
+ * ジョブキューの重複防止・再試行の予定・失敗後のキーの解放・アイドル時のみのジョブを確認する
+ * enqueueとdrainは呼び出したスレッドでそのまま実行させ、終わった時点のDBを見る
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class JobQueueTest {
+    private static final String TYPE_OK = "TEST_OK";
+    private static final String TYPE_FAIL = "TEST_FAIL";
+    private static final long SECOND = 1000L;
+    private static final long HOUR = 60 * 60 * SECOND;
+
+    private AppDatabase db;
+    private JobQueue queue;
+    private final AtomicInteger runs = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+            .addCallback(new TriggerCallback())
+            .allowMainThreadQueries()
+            .build();
+        queue = new JobQueue(db.jobDao(), Runnable::run);
+        queue.registerHandler(TYPE_OK, job -> runs.incrementAndGet());
+        queue.registerHandler(TYPE_FAIL, job -> {
+            throw new IllegalStateException("失敗 " + failures.incrementAndGet());
+        });
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void enqueue_ignoresSameKeyUntilJobFinishes() {
+        // アイドルでないので実行されずに残る
+        queue.enqueue(TYPE_OK, null, "key", Job.PRIORITY_NORMAL, true);
+        queue.enqueue(TYPE_OK, null, "key", Job.PRIORITY_NORMAL, true);
+        assertEquals(1, db.jobDao().countByStatus(Job.STATUS_PENDING));
+
+        queue.setIdle(true);
+        assertEquals(1, runs.get());
+        assertEquals(0, db.jobDao().countByStatus(Job.STATUS_PENDING));
+
+        // 完了したジョブは消えるので同じキーで積める
+        queue.enqueue(TYPE_OK, null, "key", Job.PRIORITY_NORMAL, false);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void setIdle_runsIdleOnlyJobs() {
+        queue.enqueue(TYPE_OK, null, null, Job.PRIORITY_NORMAL, true);
+        queue.enqueue(TYPE_OK, null, null, Job.PRIORITY_NORMAL, false);
+        assertEquals(1, runs.get());
+        assertEquals(1, db.jobDao().countByStatus(Job.STATUS_PENDING));
+
+        queue.setIdle(true);
+        assertEquals(2, runs.get());
+        assertEquals(0, db.jobDao().countByStatus(Job.STATUS_PENDING));
+    }
+
+    @Test
+    public void run_reschedulesWithBackoffAfterFailure() {
+        long before = System.currentTimeMillis();
+        queue.enqueue(TYPE_FAIL, null, null, Job.PRIORITY_NORMAL, false);
+        long after = System.currentTimeMillis();
+
+        assertJob(Job.STATUS_PENDING, 1, "失敗 1");
+        long nextRunAt = nextRunAt();
+        assertTrue(nextRunAt >= before + 30 * SECOND && nextRunAt <= after + 30 * SECOND);
+
+        before = System.currentTimeMillis();
+        retryNow();
+        after = System.currentTimeMillis();
+
+        assertJob(Job.STATUS_PENDING, 2, "失敗 2");
+        nextRunAt = nextRunAt();
+        assertTrue(nextRunAt >= before + 60 * SECOND && nextRunAt <= after + 60 * SECOND);
+    }
+
+    @Test
+    public void getBackoffMillis_doublesUpToSixHours() {
+        assertEquals(30 * SECOND, JobQueue.getBackoffMillis(1));
+        assertEquals(60 * SECOND, JobQueue.getBackoffMillis(2));
+        assertEquals(120 * SECOND, JobQueue.getBackoffMillis(3));
+        assertEquals(30 * SECOND << 9, JobQueue.getBackoffMillis(10));
+        assertEquals(6 * HOUR, JobQueue.getBackoffMillis(11));
+        // シフトが桁あふれしないこと
+        assertEquals(6 * HOUR, JobQueue.getBackoffMillis(100));
+    }
+
+    @Test
+    public void run_releasesKeyAfterLastAttemptFails() {
+        queue.enqueue(TYPE_FAIL, null, "key", Job.PRIORITY_NORMAL, false);
+        for (int i = 1; i < 5; i++) {
+            retryNow();
+        }
+
+        assertJob(Job.STATUS_FAILED, 5, "失敗 5");
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase()
+                .query("SELECT idempotency_key FROM jobs")) {
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.isNull(0));
+        }
+        // 上限に達したら再試行しない
+        retryNow();
+        assertEquals(5, failures.get());
+
+        // 失敗したジョブはキーを外すので、同じキーで積み直せる
+        queue.enqueue(TYPE_FAIL, null, "key", Job.PRIORITY_NORMAL, false);
+        assertEquals(6, failures.get());
+        assertEquals(1, db.jobDao().countByStatus(Job.STATUS_PENDING));
+        assertEquals(1, db.jobDao().countByStatus(Job.STATUS_FAILED));
+    }
+
+    /**
+     * 待機中のジョブを今すぐ実行できるようにしてdrainする
+     */
+    private void retryNow() {
+        db.getOpenHelper().getWritableDatabase()
+            .execSQL("UPDATE jobs SET next_run_at = 0 WHERE status = 'PENDING'");
+        queue.requestDrain();
+    }
+
+    private void assertJob(String status, int attempts, String error) {
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase()
+                .query("SELECT status, attempts, last_error FROM jobs ORDER BY id LIMIT 1")) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(status, cursor.getString(0));
+            assertEquals(attempts, cursor.getInt(1));
+            assertTrue(cursor.getString(2), cursor.getString(2).contains(error));
+        }
+    }
+
+    private long nextRunAt() {
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase()
+                .query("SELECT next_run_at FROM jobs ORDER BY id LIMIT 1")) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.ChangeLogEntry;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * change_logのトリガーと、購読者ごとの位置・切り詰めを確認する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ChangeFeedTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private AppDatabase db;
+    private ChangeFeed feed;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        feed = new ChangeFeed(context);
+        onBackground(() -> {
+            db.clearAllTables();
+            return null;
+        });
+    }
+
+    @Test
+    public void poll_readsChangesFromEachCheckpoint() throws Exception {
+        // 同期のDAO呼び出しはメインスレッドから行えない
+        onBackground(() -> {
+            checkPoll();
+            return null;
+        });
+    }
+
+    private void checkPoll() {
+        // 購読者がいない間は記録しない
+        long before = insertItem("購読前");
+        assertEquals(0, countRows("change_log"));
+
+        assertEquals(0, feed.subscribe("search"));
+        long itemId = insertItem("メモ");
+        Tag tag = new Tag();
+        tag.setName("仕事");
+        tag.setCreatedAt(1);
+        long tagId = db.tagDao().insert(tag);
+        Item item = db.itemDao().getItemByIdSync(itemId);
+        item.setTitle("メモ（修正）");
+        db.itemDao().update(item);
+        db.itemDao().updateLastViewed(itemId, 2);
+        db.itemTagDao().insertTagForItems(tagId, Collections.singletonList(itemId));
+        db.itemDao().deleteById(before);
+
+        ChangeFeed.Batch batch = feed.poll("search", 100);
+        assertFalse(batch.hasMore());
+        List<String> changes = describe(batch.getChanges());
+        // 閲覧日時の更新は記録されない
+        assertEquals(Arrays.asList("items:insert", "tags:insert", "items:update"), changes.subList(0, 3));
+        // タグの付け外しはupdated_atも進める（同じ文のトリガーどうしの順序は決まっていない）
+        assertEquals(new HashSet<>(Arrays.asList("item_tags:insert", "items:update")),
+            new HashSet<>(changes.subList(3, 5)));
+        assertEquals("items:delete", changes.get(5));
+        for (ChangeLogEntry change : batch.getChanges()) {
+            if (change.getTableName().equals("item_tags")) {
+                assertEquals(itemId, change.getRowId());
+                assertEquals(tagId, (long) change.getRefId());
+            }
+        }
+        assertNotNull(batch.getChanges().get(5).getUid());
+
+        // 位置を進めるまでは同じ変更を読む
+        assertEquals(batch.getLastSeq(), feed.poll("search", 100).getChanges().get(5).getSeq());
+        ChangeFeed.Batch first = feed.poll("search", 2);
+        assertTrue(first.hasMore());
+        feed.commit("search", first.getLastSeq());
+        assertEquals(4, feed.poll("search", 100).getChanges().size());
+        assertEquals(4, countRows("change_log"));
+    }
+
+    @Test
+    public void commit_truncatesWhatEveryConsumerHasRead() throws Exception {
+        onBackground(() -> {
+            checkTruncate();
+            return null;
+        });
+    }
+
+    private void checkTruncate() {
+        feed.subscribe("search");
+        insertItem("1");
+        insertItem("2");
+        // 後から登録した購読者は登録より後の変更だけを読む
+        long checkpoint = feed.subscribe("stats");
+        assertEquals(db.changeLogDao().getLastSeqSync(), checkpoint);
+        insertItem("3");
+        assertEquals(1, feed.poll("stats", 100).getChanges().size());
+        assertEquals(3, feed.poll("search", 100).getChanges().size());
+
+        // statsが読み終えても、searchが読んでいない分は残る
+        feed.commit("stats", feed.poll("stats", 100).getLastSeq());
+        assertEquals(3, countRows("change_log"));
+        // 位置は戻らない
+        feed.commit("stats", 0);
+        assertTrue(feed.poll("stats", 100).getChanges().isEmpty());
+
+        feed.commit("search", feed.poll("search", 100).getLastSeq());
+        assertEquals(0, countRows("change_log"));
+
+        // 読まない購読者をやめると、その購読者のために残していた変更も消える
+        insertItem("4");
+        feed.commit("search", feed.poll("search", 100).getLastSeq());
+        assertEquals(1, countRows("change_log"));
+        feed.unsubscribe("stats");
+        assertEquals(0, countRows("change_log"));
+        assertEquals(1, feed.getConsumers().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void poll_rejectsUnknownConsumer() throws Throwable {
+        try {
+            onBackground(() -> feed.poll("unknown", 10));
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long insertItem(String title) {
+        Item item = new Item();
+        item.setTitle(title);
+        item.setCreatedAt(1);
+        item.setUpdatedAt(1);
+        return db.itemDao().insert(item);
+    }
+
+    private static List<String> describe(List<ChangeLogEntry> changes) {
+        List<String> described = new ArrayList<>();
+        for (ChangeLogEntry change : changes) {
+            described.add(change.getTableName() + ":" + change.getOp());
+        }
+        return described;
+    }
+
+    private int countRows(String table) {
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase().query("SELECT COUNT(*) FROM " + table)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    private static <T> T onBackground(Callable<T> task) throws Exception {
+        return AppExecutors.background().submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
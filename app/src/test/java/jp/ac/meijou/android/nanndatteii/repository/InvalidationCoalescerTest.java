@@ -0,0 +1,190 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 変更通知が一括書き込みの終了後・一定間隔ごとに1回の読み直しにまとまることを確認する
+ * 実際のスレッドとタイマーで動くので、通知が届くまで待ってから数える
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class InvalidationCoalescerTest {
+    private static final long TIMEOUT_SECONDS = 60;
+    // まとめる間隔（250ms）より十分長く待ち、遅れて届く通知も受け取る
+    private static final long SETTLE_MILLIS = 1_000;
+
+    private AppDatabase db;
+    private InvalidationCoalescer coalescer;
+    private final AtomicInteger loads = new AtomicInteger();
+    private LiveData<Integer> itemCount;
+    private final Observer<Integer> observer = count -> { };
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        coalescer = InvalidationCoalescer.getInstance(context);
+        awaitBackgroundIdle();
+        onBackground(() -> {
+            db.clearAllTables();
+            return null;
+        });
+        Thread.sleep(SETTLE_MILLIS);
+
+        itemCount = coalescer.query(() -> {
+            loads.incrementAndGet();
+            return db.itemDao().countItemsSync();
+        }, InvalidationCoalescer.TABLE_ITEMS);
+        itemCount.observeForever(observer);
+        // 観測を始めた時に1回読む
+        awaitLoads(1);
+        coalescer.reset();
+    }
+
+    @After
+    public void tearDown() {
+        itemCount.removeObserver(observer);
+    }
+
+    @Test
+    public void bulkWrite_reloadsOnceAfterEnd() throws Exception {
+        coalescer.beginBulkWrite();
+        try {
+            insertItems(20);
+            // 一括書き込み中は読み直さない
+            assertLoadsStayAt(1);
+        } finally {
+            coalescer.endBulkWrite();
+        }
+
+        awaitLoads(2);
+        assertLoadsStayAt(2);
+        awaitValue(20);
+    }
+
+    @Test
+    public void invalidations_coalesceToTrailingReload() throws Exception {
+        insertItems(1);
+        awaitLoads(2);
+
+        // 直前の読み直しから間隔内の変更は、間隔の終わりに1回だけ読み直す
+        insertItems(10);
+        awaitLoads(3);
+        assertLoadsStayAt(3);
+        // 最後の変更まで反映されている
+        awaitValue(11);
+    }
+
+    @Test
+    public void nestedBulkWrite_reloadsAfterOutermostEnd() throws Exception {
+        coalescer.beginBulkWrite();
+        try {
+            coalescer.beginBulkWrite();
+            try {
+                insertItems(5);
+            } finally {
+                coalescer.endBulkWrite();
+            }
+            // 内側の終了ではまだ読み直さない
+            assertLoadsStayAt(1);
+            insertItems(5);
+        } finally {
+            coalescer.endBulkWrite();
+        }
+
+        awaitLoads(2);
+        assertLoadsStayAt(2);
+        awaitValue(10);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endBulkWrite_rejectsUnmatchedEnd() {
+        coalescer.endBulkWrite();
+    }
+
+    private void insertItems(int count) throws Exception {
+        // 1件ずつ別のトランザクションにして、通知も件数分届くようにする
+        onBackground(() -> {
+            for (int i = 0; i < count; i++) {
+                Item item = new Item();
+                item.setTitle("メモ" + i);
+                item.setCreatedAt(1);
+                item.setUpdatedAt(1);
+                db.itemDao().insert(item);
+            }
+            return null;
+        });
+    }
+
+    private void awaitLoads(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (loads.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, loads.get());
+    }
+
+    private void assertLoadsStayAt(int expected) throws InterruptedException {
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals(expected, loads.get());
+    }
+
+    // postValueはメインスレッドに投げられるので、Looperを回して受け取る
+    private void awaitValue(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            Integer value = itemCount.getValue();
+            if (value != null && value == expected) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(Integer.valueOf(expected), itemCount.getValue());
+    }
+
+    // background()の全スレッドが同時に空くまで待つ（それより前に投げられた処理は終わっている）
+    private static void awaitBackgroundIdle() throws InterruptedException {
+        int threads = 2;
+        CountDownLatch started = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            AppExecutors.background().execute(() -> {
+                started.countDown();
+                try {
+                    started.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static <T> T onBackground(Callable<T> task) throws Exception {
+        return AppExecutors.background().submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,183 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.ComponentCallbacks2;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.TriggerCallback;
+import jp.ac.meijou.android.nanndatteii.db.dao.ItemDao;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemTag;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.db.relation.ItemWithFilesAndTags;
+
+import static org.junit.Assert.*;
+
+/**
+ * アイテムキャッシュの無効化と縮小を確認する
+ * 読み込み中の無効化は、DAOを包んで読み込みの途中に割り込ませて再現する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ItemCacheTest {
+    private AppDatabase db;
+    private ItemCache cache;
+    // 読み込みの途中（DBから読んだ後・キャッシュに入れる前）に実行する処理
+    private Runnable duringLoad;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+            .addCallback(new TriggerCallback())
+            .allowMainThreadQueries()
+            .build();
+        ItemDao dao = db.itemDao();
+        ItemDao interrupting = (ItemDao) Proxy.newProxyInstance(ItemDao.class.getClassLoader(),
+            new Class<?>[]{ItemDao.class}, (proxy, method, args) -> {
+                Object result;
+                try {
+                    result = method.invoke(dao, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (duringLoad != null) {
+                    Runnable action = duringLoad;
+                    duringLoad = null;
+                    action.run();
+                }
+                return result;
+            });
+        cache = new ItemCache(interrupting);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void get_doesNotKeepItemInvalidatedWhileLoading() throws Exception {
+        long itemId = insertItem("メモ");
+        duringLoad = () -> cache.invalidate(itemId);
+
+        assertNotNull(cache.get(itemId));
+        // 読んでいる間に無効化されたので入れていない
+        cache.get(itemId);
+        assertEquals(0, stats().getLong("hits"));
+        assertEquals(2, stats().getLong("misses"));
+
+        cache.get(itemId);
+        assertEquals(1, stats().getLong("hits"));
+    }
+
+    @Test
+    public void getAll_doesNotKeepItemsInvalidatedWhileLoading() throws Exception {
+        List<Long> itemIds = Arrays.asList(insertItem("a"), insertItem("b"));
+        duringLoad = () -> cache.invalidate(itemIds.get(1));
+
+        assertEquals(2, cache.getAll(itemIds).size());
+        // 無効化はどのアイテムのものでも、その読み込みの結果はすべて入れない
+        assertEquals(0, stats().getInt("size"));
+
+        cache.getAll(itemIds);
+        cache.getAll(itemIds);
+        assertEquals(2, stats().getLong("hits"));
+    }
+
+    @Test
+    public void invalidateTag_removesItemsWithTheTagOrItsChildren() throws Exception {
+        long parent = insertTag("親", null);
+        long child = insertTag("子", parent);
+        long other = insertTag("他", null);
+        long onParent = insertItem("親のメモ");
+        long onChild = insertItem("子のメモ");
+        long onOther = insertItem("他のメモ");
+        db.itemTagDao().insert(new ItemTag(onParent, parent));
+        db.itemTagDao().insert(new ItemTag(onChild, child));
+        db.itemTagDao().insert(new ItemTag(onOther, other));
+        cache.getAll(Arrays.asList(onParent, onChild, onOther));
+
+        cache.invalidateTag(parent);
+
+        cache.get(onOther);
+        assertEquals(1, stats().getLong("hits"));
+        cache.get(onParent);
+        cache.get(onChild);
+        assertEquals(1, stats().getLong("hits"));
+        assertEquals(5, stats().getLong("misses"));
+    }
+
+    @Test
+    public void updateLastViewed_replacesInsteadOfWritingSharedItem() throws Exception {
+        long itemId = insertItem("メモ");
+        ItemWithFilesAndTags before = cache.get(itemId);
+
+        cache.updateLastViewed(itemId, 123L);
+
+        // 返したものは書き換えない
+        assertNull(before.item.getLastViewed());
+        ItemWithFilesAndTags after = cache.get(itemId);
+        assertNotSame(before, after);
+        assertEquals(Long.valueOf(123L), after.item.getLastViewed());
+        assertEquals("メモ", after.item.getTitle());
+        assertSame(before.tags, after.tags);
+        assertEquals(1, stats().getLong("hits"));
+    }
+
+    @Test
+    public void onTrimMemory_shrinksByLevel() throws Exception {
+        int maxSize = stats().getInt("max_size");
+        List<Long> itemIds = new ArrayList<>();
+        for (int i = 0; i < maxSize; i++) {
+            itemIds.add(insertItem("メモ" + i));
+        }
+        cache.getAll(itemIds);
+        assertEquals(maxSize, stats().getInt("size"));
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(maxSize / 2, stats().getInt("size"));
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(maxSize / 4, stats().getInt("size"));
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, stats().getInt("size"));
+        assertEquals(3, stats().getLong("trims"));
+        // 縮めたのは追い出しとして数える
+        assertEquals(maxSize, stats().getLong("evictions"));
+    }
+
+    private JSONObject stats() throws Exception {
+        return cache.toJson();
+    }
+
+    private long insertItem(String title) {
+        Item item = new Item();
+        item.setTitle(title);
+        item.setCreatedAt(1);
+        item.setUpdatedAt(1);
+        return db.itemDao().insert(item);
+    }
+
+    private long insertTag(String name, Long parentId) {
+        Tag tag = new Tag();
+        tag.setName(name);
+        tag.setParentId(parentId);
+        tag.setCreatedAt(1);
+        return db.tagDao().insert(tag);
+    }
+}
@@ -0,0 +1,144 @@
+package jp.ac.meijou.android.nanndatteii.repository;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemDayCount;
+
+import static org.junit.Assert.*;
+
+/**
+ * item_day_countsのトリガーと、タイムラインの区切り・区切りへの移動を確認する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ItemTimelineTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private AppDatabase db;
+    private ItemRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        repository = new ItemRepository(context);
+        onBackground(() -> {
+            db.clearAllTables();
+            return null;
+        });
+    }
+
+    @Test
+    public void dayCounts_followInsertUpdateAndDelete() throws Exception {
+        // 同期のDAO呼び出しはメインスレッドから行えない
+        onBackground(() -> {
+            checkDayCounts();
+            return null;
+        });
+    }
+
+    private void checkDayCounts() {
+        long early = insertItem(at(2024, 3, 15, 1));
+        insertItem(at(2024, 3, 15, 23));
+        long other = insertItem(at(2024, 3, 16, 12));
+        insertItem(at(2024, 4, 1, 12));
+        assertEquals(Arrays.asList("20240401=1", "20240316=1", "20240315=2"),
+            describe(db.timelineDao().getDayCountsSync()));
+
+        // 作成日の変更は元の日から新しい日へ移す（最後の1件が抜けた日は消える）
+        Item item = db.itemDao().getItemByIdSync(other);
+        item.setCreatedAt(at(2024, 3, 15, 12));
+        db.itemDao().update(item);
+        db.itemDao().deleteById(early);
+        assertEquals(Arrays.asList("20240401=1", "20240315=2"), describe(db.timelineDao().getDayCountsSync()));
+        assertEquals(Arrays.asList("20240315=2"),
+            describe(db.timelineDao().getDayCountsBetweenSync(20240301, 20240331)));
+
+        // 数え直しても同じになる
+        db.timelineDao().clear();
+        db.timelineDao().rebuild();
+        assertEquals(Arrays.asList("20240401=1", "20240315=2"), describe(db.timelineDao().getDayCountsSync()));
+    }
+
+    @Test
+    public void buckets_pointAtTheFirstItemOfEachDayAndMonth() throws Exception {
+        onBackground(() -> {
+            checkBuckets();
+            return null;
+        });
+    }
+
+    private void checkBuckets() {
+        int[][] days = {{2023, 12, 31}, {2024, 1, 5}, {2024, 1, 20}, {2024, 2, 29}, {2025, 1, 1}};
+        for (int i = 0; i < days.length; i++) {
+            for (int j = 0; j <= i; j++) {
+                insertItem(at(days[i][0], days[i][1], days[i][2], 10 + j));
+            }
+        }
+        List<Item> all = db.itemDao().getAllItemsSync();
+
+        List<TimelineBucket> months = TimelineBucket.fromDayCounts(
+            db.timelineDao().getDayCountsSync(), TimelineBucket.Unit.MONTH);
+        List<String> described = new ArrayList<>();
+        for (TimelineBucket month : months) {
+            described.add(month.getKey() + "=" + month.getCount() + "@" + month.getPosition());
+        }
+        assertEquals(Arrays.asList("202501=5@0", "202402=4@5", "202401=5@9", "202312=1@14"), described);
+
+        // 区切りの最初のアイテムは、新しい順の一覧でgetPosition番目のアイテム
+        List<TimelineBucket> buckets = new ArrayList<>(months);
+        buckets.addAll(TimelineBucket.fromDayCounts(db.timelineDao().getDayCountsSync(), TimelineBucket.Unit.DAY));
+        for (TimelineBucket bucket : buckets) {
+            List<Item> items = repository.getItemsInBucketSync(bucket, bucket.getCount() + 1);
+            assertEquals(bucket.getCount(), items.size());
+            for (int i = 0; i < items.size(); i++) {
+                assertEquals(all.get(bucket.getPosition() + i).getId(), items.get(i).getId());
+            }
+        }
+    }
+
+    private long insertItem(long createdAt) {
+        Item item = new Item();
+        item.setTitle("メモ");
+        item.setCreatedAt(createdAt);
+        item.setUpdatedAt(createdAt);
+        return db.itemDao().insert(item);
+    }
+
+    private static long at(int year, int month, int day, int hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static List<String> describe(List<ItemDayCount> counts) {
+        List<String> described = new ArrayList<>();
+        for (ItemDayCount count : counts) {
+            described.add(count.getDay() + "=" + count.getCount());
+        }
+        return described;
+    }
+
+    private static <T> T onBackground(Callable<T> task) throws Exception {
+        return AppExecutors.background().submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
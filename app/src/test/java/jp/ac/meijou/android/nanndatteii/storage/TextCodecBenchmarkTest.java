@@ -0,0 +1,257 @@
+package jp.ac.meijou.android.nanndatteii.storage;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * メモ圧縮の圧縮率と、保存・読み込みにかかる時間を計測する
+ * 日本語・英語それぞれのメモを想定したコーパスで実行する
+ *
+ * 読み込みはアプリと同じくFileStorageManager.getReadableFileを通す
+ * （圧縮したメモはcacheDir/decodedへの展開を含む。展開済みを再利用する場合も別に測る）
+ *
+ * 計測は時間がかかるので、指定した時のみ実行する:
+ * ./gradlew :app:testDebugUnitTest --tests '*TextCodecBenchmarkTest' -Dbenchmark.enabled=true
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28) // 保存はFileStorageManager.saveFileを通る（RobolectricにはMediaStoreのプロバイダがない）
+public class TextCodecBenchmarkTest {
+    private static final int[] MEMO_SIZES = {200, 2_000, 20_000, 200_000};
+    private static final int SAVE_ITERATIONS = 10;
+    private static final int READ_ITERATIONS = 50;
+    // 比較用に圧縮せずに保存するMIMEタイプ（text/以外は圧縮しない）
+    private static final String RAW_MIME_TYPE = "application/octet-stream";
+
+    private static final String[] JAPANESE_SENTENCES = {
+        "今日は午前中に名城大学の図書館でレポートの資料を探した。",
+        "駅前のスーパーで牛乳と卵、食パンを買う。",
+        "来週の月曜日までにモバイルアプリ開発の課題を提出すること。",
+        "打ち合わせのメモ：画面遷移はホームとダッシュボードの二つで進める。",
+        "レシートは経費精算のために写真で残しておく。",
+        "雨が降りそうなので傘を持っていく。",
+        "先生から指摘された点：データベースの設計をもう一度見直す。",
+        "夕方にアルバイトのシフトが入っているので十七時には出発する。",
+        "買ったもの：ノート三冊、ボールペン、付箋。",
+        "次回のゼミでは先行研究の要約を発表する予定。"
+    };
+
+    private static final String[] ENGLISH_SENTENCES = {
+        "Pick up groceries on the way home: milk, eggs and bread.",
+        "Meeting notes: the dashboard should show the most recent items first.",
+        "Remember to submit the mobile app assignment before Monday.",
+        "Receipt photos are kept for the monthly expense report.",
+        "The library closes early on Saturdays, so go in the morning.",
+        "Ask the professor about the database schema review.",
+        "Bring an umbrella, the forecast says rain in the afternoon.",
+        "Part-time shift starts at five, leave the campus by four thirty.",
+        "Bought three notebooks, a ballpoint pen and sticky notes.",
+        "Next seminar: present a summary of the related work."
+    };
+
+    private FileStorageManager storageManager;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        storageManager = new FileStorageManager(context);
+    }
+
+    @After
+    public void tearDown() {
+        storageManager.clearDecodedCache();
+        deleteRecursively(storageManager.getRootDirectory());
+    }
+
+    @Test
+    public void smallMemo_isNotCompressed() {
+        assertEquals(TextCodec.CODEC_NONE,
+            TextCodec.chooseCodec("text/plain", TextCodec.MIN_COMPRESS_SIZE - 1));
+        assertEquals(TextCodec.CODEC_GZIP,
+            TextCodec.chooseCodec("text/plain", TextCodec.MIN_COMPRESS_SIZE));
+        assertEquals(TextCodec.CODEC_NONE,
+            TextCodec.chooseCodec("image/jpeg", TextCodec.MIN_COMPRESS_SIZE));
+    }
+
+    @Test
+    public void gzip_roundTrips() throws IOException {
+        byte[] original = buildMemo(JAPANESE_SENTENCES, 20_000, new Random(1)).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(original, decode(encode(original, TextCodec.CODEC_GZIP), TextCodec.CODEC_GZIP));
+    }
+
+    @Test
+    public void storedMemo_readsBackThroughReadableFile() throws IOException {
+        byte[] original = buildMemo(JAPANESE_SENTENCES, 20_000, new Random(1)).getBytes(StandardCharsets.UTF_8);
+        SavedFile saved = save(original, "text/plain");
+        assertEquals(TextCodec.CODEC_GZIP, saved.getCodec());
+        assertTrue(saved.getFileSize() < original.length);
+
+        // 展開した時も、展開済みを再利用した時も元に戻ること
+        assertArrayEquals(original, read(saved));
+        assertArrayEquals(original, read(saved));
+    }
+
+    @Test
+    public void japaneseCorpus_benchmark() throws IOException {
+        runBenchmark("ja", JAPANESE_SENTENCES);
+    }
+
+    @Test
+    public void englishCorpus_benchmark() throws IOException {
+        runBenchmark("en", ENGLISH_SENTENCES);
+    }
+
+    private void runBenchmark(String label, String[] sentences) throws IOException {
+        Assume.assumeTrue("-Dbenchmark.enabled=true を指定した時のみ実行",
+            Boolean.getBoolean("benchmark.enabled"));
+
+        for (int size : MEMO_SIZES) {
+            byte[] original = buildMemo(sentences, size, new Random(size)).getBytes(StandardCharsets.UTF_8);
+
+            long rawSaveNanos = medianSaveNanos(original, RAW_MIME_TYPE);
+            long storedSaveNanos = medianSaveNanos(original, "text/plain");
+            SavedFile raw = save(original, RAW_MIME_TYPE);
+            SavedFile stored = save(original, "text/plain");
+
+            // 展開して元に戻ること
+            assertArrayEquals(original, read(stored));
+
+            long rawReadNanos = medianReadNanos(raw, false);
+            long coldReadNanos = medianReadNanos(stored, true);
+            long warmReadNanos = medianReadNanos(stored, false);
+            double ratio = (double) stored.getFileSize() / original.length;
+
+            System.out.println(String.format(
+                "[%s] size=%d codec=%s stored=%d ratio=%.3f save(raw)=%.1fus save(stored)=%.1fus "
+                    + "read(raw)=%.1fus read(stored,展開)=%.1fus read(stored,展開済み)=%.1fus",
+                label, original.length, stored.getCodec(), stored.getFileSize(), ratio,
+                rawSaveNanos / 1000.0, storedSaveNanos / 1000.0,
+                rawReadNanos / 1000.0, coldReadNanos / 1000.0, warmReadNanos / 1000.0));
+
+            if (TextCodec.CODEC_GZIP.equals(stored.getCodec())) {
+                assertTrue("圧縮後のほうが大きい: " + ratio, ratio < 1.0);
+            }
+        }
+    }
+
+    /**
+     * 文を並べてtargetBytes（UTF-8）以上のメモを作る
+     * バイト数は足した分だけ数える（毎回全体をエンコードし直さない）
+     */
+    private static String buildMemo(String[] sentences, int targetBytes, Random random) {
+        StringBuilder builder = new StringBuilder();
+        int bytes = 0;
+        while (bytes < targetBytes) {
+            StringBuilder piece = new StringBuilder(sentences[random.nextInt(sentences.length)]);
+            // 改行や日付を混ぜて貼り付けたメモに近づける
+            if (random.nextInt(4) == 0) {
+                piece.append('\n').append("2025/").append(1 + random.nextInt(12))
+                    .append('/').append(1 + random.nextInt(28)).append('\n');
+            } else {
+                piece.append(' ');
+            }
+            builder.append(piece);
+            bytes += piece.toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return builder.toString();
+    }
+
+    private SavedFile save(byte[] data, String mimeType) throws IOException {
+        return storageManager.saveFile(new ByteArrayInputStream(data), mimeType);
+    }
+
+    /**
+     * アプリと同じくgetReadableFileで開ける形にしてから全体を読む
+     */
+    private byte[] read(SavedFile saved) throws IOException {
+        File file = storageManager.getReadableFile(saved.getRelativePath(), saved.getCodec());
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return readFully(inputStream);
+        }
+    }
+
+    private long medianSaveNanos(byte[] data, String mimeType) throws IOException {
+        long[] samples = new long[SAVE_ITERATIONS];
+        for (int i = 0; i < SAVE_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            SavedFile saved = save(data, mimeType);
+            samples[i] = System.nanoTime() - start;
+            storageManager.deleteFile(saved.getRelativePath());
+        }
+        Arrays.sort(samples);
+        return samples[SAVE_ITERATIONS / 2];
+    }
+
+    /**
+     * @param cold 展開済みのキャッシュを毎回消してから読むか
+     */
+    private long medianReadNanos(SavedFile saved, boolean cold) throws IOException {
+        long[] samples = new long[READ_ITERATIONS];
+        read(saved);
+        for (int i = 0; i < READ_ITERATIONS; i++) {
+            if (cold) {
+                storageManager.clearDecodedCache();
+            }
+            long start = System.nanoTime();
+            read(saved);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[READ_ITERATIONS / 2];
+    }
+
+    private static byte[] encode(byte[] data, String codec) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (OutputStream outputStream = TextCodec.wrapOutput(buffer, codec)) {
+            outputStream.write(data);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static byte[] decode(byte[] data, String codec) throws IOException {
+        try (InputStream inputStream = TextCodec.wrapInput(new ByteArrayInputStream(data), codec)) {
+            return readFully(inputStream);
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(chunk)) != -1) {
+            buffer.write(chunk, 0, bytesRead);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,342 @@
+package jp.ac.meijou.android.nanndatteii.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import jp.ac.meijou.android.nanndatteii.AppExecutors;
+import jp.ac.meijou.android.nanndatteii.db.AppDatabase;
+import jp.ac.meijou.android.nanndatteii.db.entity.Item;
+import jp.ac.meijou.android.nanndatteii.db.entity.ItemFile;
+import jp.ac.meijou.android.nanndatteii.db.entity.Tag;
+import jp.ac.meijou.android.nanndatteii.storage.FileStorageManager;
+import jp.ac.meijou.android.nanndatteii.storage.SavedFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * 同期エンジンをテスト用の同期サーバー（SyncTestServer）と通して確認する
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28) // 受け取ったファイルはFileStorageManager.saveFileを通る（RobolectricにはMediaStoreのプロバイダがない）
+public class SyncEngineTest {
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final int BLOB_SIZE = 700_000;
+
+    private Context context;
+    private AppDatabase db;
+    private FileStorageManager storageManager;
+    private SyncTestServer server;
+    private SyncEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.getInstance(context);
+        storageManager = new FileStorageManager(context);
+        server = new SyncTestServer();
+        resetDevice();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        resetDevice();
+    }
+
+    @Test
+    public void sync_roundTripsLibraryToNewDevice() throws Exception {
+        // 同期のDAO呼び出しはメインスレッドから行えない
+        onBackground(() -> {
+            checkRoundTrip();
+            return null;
+        });
+    }
+
+    private void checkRoundTrip() throws Exception {
+        long now = System.currentTimeMillis();
+        long parentId = insertTag("仕事", null, now);
+        long childId = insertTag("会議", parentId, now);
+        long noteId = insertItem("議事録", now);
+        db.itemTagDao().insertTagForItems(childId, Collections.singletonList(noteId));
+        byte[] text = "来週の予定を確認する\n".getBytes(StandardCharsets.UTF_8);
+        ItemFile textFile = insertFile(noteId, text, "text/plain", now);
+        long photoId = insertItem("写真", now);
+        byte[] binary = randomBytes(BLOB_SIZE);
+        ItemFile binaryFile = insertFile(photoId, binary, "application/octet-stream", now);
+
+        SyncResult first = engine.sync();
+        assertEquals(first.toString(), 6, first.getPushedCount());
+        assertEquals(2, first.getUploadedBlobCount());
+        assertEquals(0, first.getPulledCount());
+        assertEquals(2, server.countRecords(SyncProtocol.ENTITY_TAG, SyncProtocol.OP_UPSERT));
+        assertEquals(2, server.countRecords(SyncProtocol.ENTITY_ITEM, SyncProtocol.OP_UPSERT));
+        assertArrayEquals(binary, server.getBlob(binaryFile.getUid()));
+
+        // 送り終えた変更は残らず、もう一度同期しても何も送らない
+        SyncResult second = engine.sync();
+        assertEquals(0, second.getPushedCount());
+        assertEquals(0, countRows("change_log"));
+
+        String parentUid = db.tagDao().getTagByIdSync(parentId).getUid();
+        String childUid = db.tagDao().getTagByIdSync(childId).getUid();
+        String noteUid = db.itemDao().getItemByIdSync(noteId).getUid();
+        long noteUpdatedAt = db.itemDao().getItemByIdSync(noteId).getUpdatedAt();
+
+        // 新しい端末で受け取る
+        resetDevice();
+        SyncResult restored = engine.sync();
+        assertEquals(restored.toString(), 6, restored.getPulledCount());
+        assertEquals(0, restored.getSkippedCount());
+        assertEquals(2, restored.getDownloadedBlobCount());
+        assertEquals(2, db.itemDao().countItemsSync());
+
+        Tag child = db.tagDao().getTagByUidSync(childUid);
+        assertEquals("会議", child.getName());
+        assertEquals(db.tagDao().getTagByUidSync(parentUid).getId(), (long) child.getParentId());
+        Item note = db.itemDao().getItemByUidSync(noteUid);
+        assertEquals("議事録", note.getTitle());
+        assertEquals(noteUpdatedAt, note.getUpdatedAt());
+        List<Tag> noteTags = db.itemTagDao().getTagsForItemSync(note.getId());
+        assertEquals(1, noteTags.size());
+        assertEquals(childUid, noteTags.get(0).getUid());
+        assertArrayEquals(text, readFile(db.fileDao().getFileByUidSync(textFile.getUid())));
+        assertArrayEquals(binary, readFile(db.fileDao().getFileByUidSync(binaryFile.getUid())));
+
+        // 受け取った変更は送り返さない
+        assertEquals(0, engine.sync().getPushedCount());
+    }
+
+    @Test
+    public void sync_resolvesConflictsByLastWriterWins() throws Exception {
+        onBackground(() -> {
+            checkLastWriterWins();
+            return null;
+        });
+    }
+
+    private void checkLastWriterWins() throws Exception {
+        long base = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        String[] names = {"X", "Y", "Z", "W", "V"};
+        String[] uids = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            uids[i] = db.itemDao().getItemByIdSync(insertItem(names[i], base)).getUid();
+        }
+        assertEquals(5, engine.sync().getPushedCount());
+
+        // 別の端末での変更: Xの更新（新しい）、Yの更新（古い）、Zの削除、W・Vの更新
+        JSONArray changes = new JSONArray();
+        changes.put(itemChange(uids[0], "X-b", base + 1000));
+        changes.put(itemChange(uids[1], "Y-b", base - 1000));
+        changes.put(new JSONObject()
+            .put(SyncProtocol.KEY_ENTITY, SyncProtocol.ENTITY_ITEM)
+            .put(SyncProtocol.KEY_UID, uids[2])
+            .put(SyncProtocol.KEY_OP, SyncProtocol.OP_DELETE)
+            .put(SyncProtocol.KEY_VERSION, base + 1000));
+        changes.put(itemChange(uids[3], "W-b", base + 1000));
+        changes.put(itemChange(uids[4], "V-b", base + 1000));
+        assertEquals(1, server.pushAs("device-b", changes).getInt(SyncProtocol.KEY_STALE));
+
+        // この端末での変更: Wは別の端末より新しく、Vは古い
+        editItem(uids[3], "W-a", base + 2000);
+        editItem(uids[4], "V-a", base + 500);
+
+        SyncResult result = engine.sync();
+        assertEquals(result.toString(), 2, result.getPushedCount());
+        assertEquals(1, result.getRejectedCount());
+        assertEquals(3, result.getPulledCount());
+
+        assertEquals("X-b", db.itemDao().getItemByUidSync(uids[0]).getTitle());
+        assertEquals("Y", db.itemDao().getItemByUidSync(uids[1]).getTitle());
+        assertNull(db.itemDao().getItemByUidSync(uids[2]));
+        assertEquals("W-a", db.itemDao().getItemByUidSync(uids[3]).getTitle());
+        assertEquals("V-b", db.itemDao().getItemByUidSync(uids[4]).getTitle());
+        assertEquals("W-a", server.getRecord(SyncProtocol.ENTITY_ITEM, uids[3])
+            .getJSONObject(SyncProtocol.KEY_DATA).getString("title"));
+        assertEquals("V-b", server.getRecord(SyncProtocol.ENTITY_ITEM, uids[4])
+            .getJSONObject(SyncProtocol.KEY_DATA).getString("title"));
+
+        // 取り込んだ変更は送り返さない
+        assertEquals(0, engine.sync().getPushedCount());
+    }
+
+    @Test
+    public void sync_resumesInterruptedBlobTransfers() throws Exception {
+        onBackground(() -> {
+            checkResume();
+            return null;
+        });
+    }
+
+    private void checkResume() throws Exception {
+        long now = System.currentTimeMillis();
+        byte[] binary = randomBytes(BLOB_SIZE);
+        ItemFile file = insertFile(insertItem("大きいファイル", now), binary, "application/octet-stream", now);
+
+        // 2つ目のチャンクで失敗させ、次の同期で続きから送る
+        server.failUploadAtChunk(1);
+        try {
+            engine.sync();
+            fail("送信の失敗が伝わっていません");
+        } catch (IOException expected) {
+            // 続きから再開する
+        }
+        SyncResult resumed = engine.sync();
+        assertEquals(Arrays.asList(0L, (long) SyncTransport.CHUNK_SIZE, 2L * SyncTransport.CHUNK_SIZE),
+            server.getUploadOffsets());
+        assertEquals(BLOB_SIZE, server.getUploadedBytes());
+        assertEquals(BLOB_SIZE - SyncTransport.CHUNK_SIZE, resumed.getUploadedBytes());
+        assertArrayEquals(binary, server.getBlob(file.getUid()));
+
+        // 受け取りを途中で切断し、次の同期で続きから受け取る
+        resetDevice();
+        server.failDownloadAfter(100_000);
+        try {
+            engine.sync();
+            fail("受信の失敗が伝わっていません");
+        } catch (IOException expected) {
+            // 続きから再開する
+        }
+        assertEquals(0, db.itemDao().countItemsSync());
+        SyncResult downloaded = engine.sync();
+        assertEquals(Arrays.asList(0L, 100_000L), server.getDownloadOffsets());
+        assertEquals(BLOB_SIZE - 100_000, downloaded.getDownloadedBytes());
+        assertArrayEquals(binary, readFile(db.fileDao().getFileByUidSync(file.getUid())));
+    }
+
+    /**
+     * 新しい端末にする（DB・ファイル・同期の位置・端末IDを消す）
+     */
+    private void resetDevice() throws Exception {
+        onBackground(() -> {
+            db.clearAllTables();
+            return null;
+        });
+        deleteRecursively(storageManager.getRootDirectory());
+        deleteRecursively(new File(context.getCacheDir(), "sync"));
+        context.getSharedPreferences(SyncEngine.PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+        engine = new SyncEngine(context, server.getUrl());
+    }
+
+    private long insertTag(String name, Long parentId, long createdAt) {
+        Tag tag = new Tag();
+        tag.setName(name);
+        tag.setParentId(parentId);
+        tag.setCreatedAt(createdAt);
+        return db.tagDao().insert(tag);
+    }
+
+    private long insertItem(String title, long timestamp) {
+        Item item = new Item();
+        item.setTitle(title);
+        item.setCreatedAt(timestamp);
+        item.setUpdatedAt(timestamp);
+        return db.itemDao().insert(item);
+    }
+
+    private void editItem(String uid, String title, long updatedAt) {
+        Item item = db.itemDao().getItemByUidSync(uid);
+        item.setTitle(title);
+        item.setUpdatedAt(updatedAt);
+        db.itemDao().update(item);
+    }
+
+    /**
+     * ファイルを保存して登録する
+     * @return uidを含む登録後の行
+     */
+    private ItemFile insertFile(long itemId, byte[] content, String mimeType, long createdAt) throws IOException {
+        SavedFile saved = storageManager.saveFile(new ByteArrayInputStream(content), mimeType);
+        ItemFile file = new ItemFile();
+        file.setItemId(itemId);
+        file.setFilePath(saved.getRelativePath());
+        file.setFileName(saved.getFileName());
+        file.setFileType(mimeType.startsWith("text/") ? "text" : "other");
+        file.setFileSize(saved.getFileSize());
+        file.setOriginalSize(saved.getOriginalSize());
+        file.setMimeType(mimeType);
+        file.setCodec(saved.getCodec());
+        file.setCreatedAt(createdAt);
+        long fileId = db.fileDao().insert(file);
+        return db.fileDao().getFilesByIdsSync(Collections.singletonList(fileId)).get(0);
+    }
+
+    private static JSONObject itemChange(String uid, String title, long version) throws JSONException {
+        JSONObject data = new JSONObject()
+            .put("title", title)
+            .put("description", JSONObject.NULL)
+            .put("created_at", version)
+            .put("updated_at", version)
+            .put("tags", new JSONArray());
+        return new JSONObject()
+            .put(SyncProtocol.KEY_ENTITY, SyncProtocol.ENTITY_ITEM)
+            .put(SyncProtocol.KEY_UID, uid)
+            .put(SyncProtocol.KEY_OP, SyncProtocol.OP_UPSERT)
+            .put(SyncProtocol.KEY_VERSION, version)
+            .put(SyncProtocol.KEY_DATA, data);
+    }
+
+    private byte[] readFile(ItemFile file) throws IOException {
+        assertNotNull(file);
+        try (InputStream inputStream = storageManager.openInputStream(file.getFilePath(), file.getCodec())) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            return content.toByteArray();
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private int countRows(String table) {
+        try (Cursor cursor = db.getOpenHelper().getReadableDatabase().query("SELECT COUNT(*) FROM " + table)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    private static <T> T onBackground(Callable<T> task) throws Exception {
+        return AppExecutors.background().submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,392 @@
+package jp.ac.meijou.android.nanndatteii.sync;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 同期サーバーの代わり（テスト用、プロセス内で動く）
+ * SyncProtocolの取り決めどおり、行ごとに後勝ちで最新の変更だけを持つ
+ */
+class SyncTestServer {
+    private final HttpServer server;
+    // 通し番号 → 変更（ファイルは中身がそろうまで入れない）
+    private final TreeMap<Long, Record> bySeq = new TreeMap<>();
+    private final Map<String, Record> byKey = new HashMap<>();
+    private final Map<String, ByteArrayOutputStream> blobs = new HashMap<>();
+    private final Set<String> completeBlobs = new HashSet<>();
+    private final List<Long> uploadOffsets = new ArrayList<>();
+    private final List<Long> downloadOffsets = new ArrayList<>();
+    private long seq;
+    private long uploadedBytes;
+    private int failUploadAtChunk = -1;
+    private long failDownloadAfterBytes = -1;
+
+    SyncTestServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(SyncProtocol.PUSH_PATH, exchange -> handle(exchange, this::push));
+        server.createContext(SyncProtocol.PULL_PATH, exchange -> handle(exchange, this::pull));
+        server.createContext(SyncProtocol.BLOBS_PATH, exchange -> handle(exchange, this::blob));
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * 保存している行の最新の変更（なければnull）
+     */
+    synchronized JSONObject getRecord(String entity, String uid) throws JSONException {
+        Record record = byKey.get(entity + ":" + uid);
+        return record != null ? record.toJson() : null;
+    }
+
+    synchronized int countRecords(String entity, String op) {
+        int count = 0;
+        for (Record record : byKey.values()) {
+            if (record.entity.equals(entity) && record.op.equals(op)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized byte[] getBlob(String uid) {
+        return completeBlobs.contains(uid) ? blobs.get(uid).toByteArray() : null;
+    }
+
+    /**
+     * 受け取ったチャンクの先頭位置（受け取った順）
+     */
+    synchronized List<Long> getUploadOffsets() {
+        return new ArrayList<>(uploadOffsets);
+    }
+
+    /**
+     * 中身の取得の開始位置（取得した順）
+     */
+    synchronized List<Long> getDownloadOffsets() {
+        return new ArrayList<>(downloadOffsets);
+    }
+
+    synchronized long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    /**
+     * 次のchunk個目（0から）のチャンクを受け取らずに500を返す（1回だけ）
+     */
+    synchronized void failUploadAtChunk(int chunk) {
+        failUploadAtChunk = chunk;
+    }
+
+    /**
+     * 次の中身の取得をbytesだけ返したところで切断する（1回だけ）
+     */
+    synchronized void failDownloadAfter(long bytes) {
+        failDownloadAfterBytes = bytes;
+    }
+
+    /**
+     * 他の端末からの送信（テストで別の端末の変更を作る）
+     */
+    synchronized JSONObject pushAs(String device, JSONArray changes) throws JSONException {
+        JSONObject body = new JSONObject();
+        body.put(SyncProtocol.KEY_DEVICE, device);
+        body.put(SyncProtocol.KEY_CHANGES, changes);
+        return applyPush(body);
+    }
+
+    synchronized void putBlob(String uid, byte[] content) {
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        blob.write(content, 0, content.length);
+        blobs.put(uid, blob);
+        completeBlobs.add(uid);
+        Record record = byKey.get(SyncProtocol.ENTITY_FILE + ":" + uid);
+        if (record != null && record.seq == 0) {
+            assignSeq(record);
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException, JSONException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange);
+        } catch (JSONException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void push(HttpExchange exchange) throws IOException, JSONException {
+        JSONObject body = SyncProtocol.readJson(exchange.getRequestBody(),
+            "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")));
+        JSONObject response;
+        synchronized (this) {
+            response = applyPush(body);
+        }
+        sendJson(exchange, response);
+    }
+
+    private JSONObject applyPush(JSONObject body) throws JSONException {
+        String device = body.getString(SyncProtocol.KEY_DEVICE);
+        JSONArray changes = body.getJSONArray(SyncProtocol.KEY_CHANGES);
+        JSONArray blobsNeeded = new JSONArray();
+        int applied = 0;
+        int stale = 0;
+        for (int i = 0; i < changes.length(); i++) {
+            Record change = new Record(changes.getJSONObject(i), device);
+            String key = change.entity + ":" + change.uid;
+            Record existing = byKey.get(key);
+            if (existing != null) {
+                boolean fileExists = change.isFileUpsert() && existing.isFileUpsert();
+                boolean duplicate = existing.device.equals(device) && existing.version == change.version
+                    && existing.op.equals(change.op);
+                if (duplicate || fileExists) {
+                    // 送り直し（ファイルは作成後に変わらない）
+                    if (existing.seq == 0) {
+                        blobsNeeded.put(blobNeeded(change.uid));
+                    }
+                    continue;
+                }
+                if (!SyncProtocol.wins(change.version, device, existing.version, existing.device)) {
+                    stale++;
+                    continue;
+                }
+                bySeq.remove(existing.seq);
+            }
+            byKey.put(key, change);
+            applied++;
+            if (change.isFileUpsert() && !completeBlobs.contains(change.uid)) {
+                blobsNeeded.put(blobNeeded(change.uid));
+                continue;
+            }
+            if (SyncProtocol.ENTITY_FILE.equals(change.entity) && !change.isFileUpsert()) {
+                blobs.remove(change.uid);
+                completeBlobs.remove(change.uid);
+            }
+            assignSeq(change);
+        }
+        JSONObject response = new JSONObject();
+        response.put(SyncProtocol.KEY_APPLIED, applied);
+        response.put(SyncProtocol.KEY_STALE, stale);
+        response.put(SyncProtocol.KEY_BLOBS_NEEDED, blobsNeeded);
+        return response;
+    }
+
+    private JSONObject blobNeeded(String uid) throws JSONException {
+        ByteArrayOutputStream blob = blobs.get(uid);
+        JSONObject json = new JSONObject();
+        json.put(SyncProtocol.KEY_UID, uid);
+        json.put(SyncProtocol.KEY_OFFSET, blob != null ? blob.size() : 0);
+        return json;
+    }
+
+    private void assignSeq(Record record) {
+        record.seq = ++seq;
+        bySeq.put(record.seq, record);
+    }
+
+    private void pull(HttpExchange exchange) throws IOException, JSONException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String device = query.get("device");
+        long after = Long.parseLong(query.get("after"));
+        int limit = Integer.parseInt(query.get("limit"));
+
+        JSONArray changes = new JSONArray();
+        long next = after;
+        boolean more = false;
+        synchronized (this) {
+            for (Record record : bySeq.tailMap(after, false).values()) {
+                if (changes.length() == limit) {
+                    more = true;
+                    break;
+                }
+                next = record.seq;
+                // 送ってきた端末には返さない
+                if (!record.device.equals(device)) {
+                    changes.put(record.toJson());
+                }
+            }
+        }
+        JSONObject response = new JSONObject();
+        response.put(SyncProtocol.KEY_CHANGES, changes);
+        response.put(SyncProtocol.KEY_NEXT, next);
+        response.put(SyncProtocol.KEY_MORE, more);
+        sendJson(exchange, response);
+    }
+
+    private void blob(HttpExchange exchange) throws IOException {
+        String uid = exchange.getRequestURI().getPath().substring(SyncProtocol.BLOBS_PATH.length());
+        if ("PUT".equals(exchange.getRequestMethod())) {
+            receiveChunk(exchange, uid);
+        } else {
+            sendBlob(exchange, uid);
+        }
+    }
+
+    private void receiveChunk(HttpExchange exchange, String uid) throws IOException {
+        long offset = Long.parseLong(parseQuery(exchange.getRequestURI().getRawQuery()).get("offset"));
+        long total = Long.parseLong(exchange.getRequestHeaders().getFirst(SyncProtocol.HEADER_UPLOAD_LENGTH));
+        byte[] chunk = readAll(exchange.getRequestBody());
+        int code;
+        long received;
+        synchronized (this) {
+            ByteArrayOutputStream blob = blobs.computeIfAbsent(uid, k -> new ByteArrayOutputStream());
+            if (failUploadAtChunk == 0) {
+                failUploadAtChunk = -1;
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            if (failUploadAtChunk > 0) {
+                failUploadAtChunk--;
+            }
+            if (offset != blob.size()) {
+                code = 409;
+            } else {
+                blob.write(chunk, 0, chunk.length);
+                uploadOffsets.add(offset);
+                uploadedBytes += chunk.length;
+                code = 200;
+                if (blob.size() == total) {
+                    putBlob(uid, blob.toByteArray());
+                }
+            }
+            received = blob.size();
+        }
+        exchange.getResponseHeaders().set(SyncProtocol.HEADER_UPLOAD_OFFSET, Long.toString(received));
+        exchange.sendResponseHeaders(code, -1);
+    }
+
+    private void sendBlob(HttpExchange exchange, String uid) throws IOException {
+        byte[] content;
+        long failAfter;
+        synchronized (this) {
+            content = getBlob(uid);
+            failAfter = failDownloadAfterBytes;
+            failDownloadAfterBytes = -1;
+        }
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        int start = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        }
+        synchronized (this) {
+            downloadOffsets.add((long) start);
+        }
+        int length = content.length - start;
+        exchange.sendResponseHeaders(start > 0 ? 206 : 200, length == 0 ? -1 : length);
+        OutputStream outputStream = exchange.getResponseBody();
+        if (failAfter >= 0 && failAfter < length) {
+            // 途中で切断する（書き足りないまま閉じると接続ごと閉じられる）
+            outputStream.write(content, start, (int) failAfter);
+            outputStream.flush();
+            return;
+        }
+        outputStream.write(content, start, length);
+    }
+
+    private static void sendJson(HttpExchange exchange, JSONObject json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            SyncProtocol.writeJson(outputStream, json);
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int count;
+        while ((count = inputStream.read(chunk)) != -1) {
+            buffer.write(chunk, 0, count);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        if (query == null) {
+            return values;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                values.put(pair.substring(0, separator),
+                    URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8.name()));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * サーバーが持つ1行分の最新の変更
+     */
+    private static class Record {
+        final String entity;
+        final String uid;
+        final String op;
+        final long version;
+        final String device;
+        final JSONObject data;
+        long seq;
+
+        Record(JSONObject json, String device) throws JSONException {
+            entity = json.getString(SyncProtocol.KEY_ENTITY);
+            uid = json.getString(SyncProtocol.KEY_UID);
+            op = json.getString(SyncProtocol.KEY_OP);
+            version = json.getLong(SyncProtocol.KEY_VERSION);
+            data = json.optJSONObject(SyncProtocol.KEY_DATA);
+            this.device = device;
+        }
+
+        boolean isFileUpsert() {
+            return SyncProtocol.ENTITY_FILE.equals(entity) && SyncProtocol.OP_UPSERT.equals(op);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(SyncProtocol.KEY_SEQ, seq);
+            json.put(SyncProtocol.KEY_DEVICE, device);
+            json.put(SyncProtocol.KEY_ENTITY, entity);
+            json.put(SyncProtocol.KEY_UID, uid);
+            json.put(SyncProtocol.KEY_OP, op);
+            json.put(SyncProtocol.KEY_VERSION, version);
+            json.put(SyncProtocol.KEY_DATA, data != null ? data : JSONObject.NULL);
+            return json;
+        }
+    }
+}